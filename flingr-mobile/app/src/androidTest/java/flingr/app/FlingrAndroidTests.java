@@ -11,9 +11,15 @@ import org.junit.runner.RunWith;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
+import flingr.app.entities.AlgorithmBenchmark;
+import flingr.app.entities.CipherProfile;
 import flingr.app.entities.Connection;
+import flingr.app.entities.TransferRoute;
+import flingr.app.managers.CipherProfileManager;
 import flingr.app.managers.ConnectionManager;
+import flingr.app.remote.CipherBenchmark;
 import flingr.app.remote.JSONResponseParser;
 import flingr.app.utilities.CryptographyHelper;
 
@@ -143,4 +149,31 @@ public class FlingrAndroidTests
         assertEquals("192.168.1.23", response.getLocalAddress());
         assertEquals("4OPRA9", response.getActivationCode());
     }
+
+    @Test
+    public void testCipherBenchmark()
+    {
+        List<AlgorithmBenchmark> results = new CipherBenchmark(1024 * 1024).run();
+
+        // Every profile relies on the CTR ciphers and the SHA MACs
+        for (String name : new String[]{"aes128-ctr", "aes256-ctr", "hmac-sha1", "hmac-sha2-256"})
+        {
+            AlgorithmBenchmark result = null;
+            for (AlgorithmBenchmark benchmark : results)
+            {
+                if (benchmark.getName().equals(name))
+                {
+                    result = benchmark;
+                }
+            }
+
+            assertNotNull(name + " was not benchmarked", result);
+            assertTrue(name + " has no throughput", result.getBytesPerSecond() > 0);
+        }
+
+        Map<String, String> lanConfig = CipherProfileManager.getInstance()
+                .getSessionConfig(CipherProfile.AUTO, TransferRoute.LAN);
+        assertEquals(CipherProfile.LAN_MAX_THROUGHPUT.getKeyExchanges(), lanConfig.get("kex"));
+        assertTrue(lanConfig.get("cipher.c2s").contains("aes128-ctr"));
+    }
 }
@@ -9,16 +9,27 @@ import android.support.v7.app.AppCompatActivity;
 import android.util.Patterns;
 import android.view.View;
 import android.view.inputmethod.InputMethodManager;
+import android.widget.ArrayAdapter;
 import android.widget.Button;
+import android.widget.CheckBox;
 import android.widget.EditText;
 import android.widget.LinearLayout;
+import android.widget.Spinner;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import java.util.List;
+
 import flingr.app.R;
+import flingr.app.entities.CipherProfile;
+import flingr.app.entities.CompressionMode;
 import flingr.app.entities.Connection;
+import flingr.app.entities.RateLimit;
+import flingr.app.entities.TransferOptions;
+import flingr.app.entities.TransportMode;
 import flingr.app.remote.QueryServerCallback;
 import flingr.app.remote.QueryServerTask;
+import flingr.app.ui.RateLimitEditor;
 import flingr.app.utilities.Serializer;
 import timber.log.Timber;
 
@@ -50,6 +61,22 @@ public class NewConnectionActivity extends AppCompatActivity implements QuerySer
     public static final String SELECTED_CONNECTION_POS = "SelectedConnectionAdapter";
     public static final String SERIALIZED_CONNECTION = "NewConnectionBlob";
 
+    private static final long BYTES_PER_MB = 1024L * 1024L;
+
+    // Choices of the transfer option spinners, in the order of their labels
+    private static final CipherProfile[] CIPHER_PROFILES = {CipherProfile.AUTO,
+            CipherProfile.LAN_MAX_THROUGHPUT, CipherProfile.WAN_DEFAULT};
+    private static final String[] CIPHER_PROFILE_LABELS = {"Automatic",
+            "Fastest", "Strongest"};
+    private static final CompressionMode[] COMPRESSION_MODES = {CompressionMode.AUTO,
+            CompressionMode.OFF, CompressionMode.ALWAYS};
+    private static final String[] COMPRESSION_MODE_LABELS = {"Compressible files only",
+            "Off", "Every file"};
+    private static final TransportMode[] TRANSPORT_MODES = {TransportMode.SFTP,
+            TransportMode.AUTO, TransportMode.EXEC};
+    private static final String[] TRANSPORT_MODE_LABELS = {"SFTP", "Whichever is faster",
+            "Stream through the desktop's shell"};
+
     private LinearLayout activationCodeLayout;
     private EditText activationCodeEditText;
 
@@ -75,6 +102,22 @@ public class NewConnectionActivity extends AppCompatActivity implements QuerySer
     private EditText ipWANEditText;
     private EditText portWANEditText;
 
+    private Button transferOptionsButton;
+    private LinearLayout transferOptionsLayout;
+    private EditText stripeCountEditText;
+    private EditText minStripeSizeEditText;
+    private EditText pipelineDepthEditText;
+    private Spinner cipherProfileSpinner;
+    private Spinner compressionModeSpinner;
+    private Spinner transportModeSpinner;
+    private CheckBox deltaTransferCheckBox;
+    private EditText maxImageDimensionEditText;
+    private EditText imageQualityEditText;
+    private RateLimitEditor rateLimitEditor;
+
+    // Options of the connection being edited, which keep the ones without a field as they were
+    private TransferOptions transferOptions = new TransferOptions();
+
     private VisualStates currentVisualState;
 
     private QueryServerTask serverTask;
@@ -132,6 +175,9 @@ public class NewConnectionActivity extends AppCompatActivity implements QuerySer
 
                         nameOfDevice.setText(connection.getColloquialName());
 
+                        transferOptions = connection.getTransferOptions();
+                        showTransferOptions();
+
                         isEditingConnection = true;
                     }
                 }
@@ -240,6 +286,25 @@ public class NewConnectionActivity extends AppCompatActivity implements QuerySer
 
         editIPButton.setOnClickListener((v) -> toggleEditIP());
 
+        transferOptionsButton = findViewById(R.id.transferOptionsButton);
+        transferOptionsLayout = findViewById(R.id.transferOptionsLayout);
+        stripeCountEditText = findViewById(R.id.stripeCountEditText);
+        minStripeSizeEditText = findViewById(R.id.minStripeSizeEditText);
+        pipelineDepthEditText = findViewById(R.id.pipelineDepthEditText);
+        cipherProfileSpinner = findViewById(R.id.cipherProfileSpinner);
+        compressionModeSpinner = findViewById(R.id.compressionModeSpinner);
+        transportModeSpinner = findViewById(R.id.transportModeSpinner);
+        deltaTransferCheckBox = findViewById(R.id.deltaTransferCheckBox);
+        maxImageDimensionEditText = findViewById(R.id.maxImageDimensionEditText);
+        imageQualityEditText = findViewById(R.id.imageQualityEditText);
+        rateLimitEditor = new RateLimitEditor(findViewById(R.id.rateLimitFields));
+
+        cipherProfileSpinner.setAdapter(createSpinnerAdapter(CIPHER_PROFILE_LABELS));
+        compressionModeSpinner.setAdapter(createSpinnerAdapter(COMPRESSION_MODE_LABELS));
+        transportModeSpinner.setAdapter(createSpinnerAdapter(TRANSPORT_MODE_LABELS));
+
+        transferOptionsButton.setOnClickListener((v) -> toggleTransferOptions());
+        showTransferOptions();
 
         setVisualState(VisualStates.PROVIDING_CODE);
 
@@ -272,6 +337,149 @@ public class NewConnectionActivity extends AppCompatActivity implements QuerySer
         }
     }
 
+    /**
+     * Shows or hides the transfer options, which most connections leave at their defaults.
+     */
+    @SuppressLint("SetTextI18n")
+    private void toggleTransferOptions()
+    {
+        if (transferOptionsLayout.getVisibility() == View.VISIBLE)
+        {
+            transferOptionsLayout.setVisibility(View.GONE);
+            transferOptionsButton.setText("Show transfer options");
+        }
+        else
+        {
+            transferOptionsLayout.setVisibility(View.VISIBLE);
+            transferOptionsButton.setText("Hide transfer options");
+        }
+    }
+
+    /**
+     * Fills the transfer option fields from the options being edited.
+     */
+    private void showTransferOptions()
+    {
+        stripeCountEditText.setText(String.valueOf(transferOptions.getStripeCount()));
+        minStripeSizeEditText.setText(
+                String.valueOf(transferOptions.getMinStripeSize() / BYTES_PER_MB));
+        pipelineDepthEditText.setText(String.valueOf(transferOptions.getPipelineDepth()));
+        cipherProfileSpinner.setSelection(
+                indexOf(CIPHER_PROFILES, transferOptions.getCipherProfile()));
+        compressionModeSpinner.setSelection(
+                indexOf(COMPRESSION_MODES, transferOptions.getCompressionMode()));
+        transportModeSpinner.setSelection(
+                indexOf(TRANSPORT_MODES, transferOptions.getTransportMode()));
+        deltaTransferCheckBox.setChecked(transferOptions.isDeltaTransferEnabled());
+        maxImageDimensionEditText.setText(String.valueOf(transferOptions.getMaxImageDimension()));
+        imageQualityEditText.setText(String.valueOf(transferOptions.getImageQuality()));
+        rateLimitEditor.show(transferOptions.getRateLimits());
+    }
+
+    /**
+     * Copies the transfer option fields into the options being edited.
+     *
+     * @return True if every field holds a valid value.
+     */
+    private boolean readTransferOptions()
+    {
+        Long stripeCount = parseOption(stripeCountEditText, TransferOptions.DEFAULT_STRIPE_COUNT);
+        Long minStripeSize = parseOption(minStripeSizeEditText,
+                TransferOptions.DEFAULT_MIN_STRIPE_SIZE / BYTES_PER_MB);
+        Long pipelineDepth = parseOption(pipelineDepthEditText,
+                TransferOptions.AUTO_PIPELINE_DEPTH);
+        Long maxImageDimension = parseOption(maxImageDimensionEditText,
+                TransferOptions.ORIGINAL_IMAGE_SIZE);
+        Long imageQuality = parseOption(imageQualityEditText,
+                TransferOptions.DEFAULT_IMAGE_QUALITY);
+        List<RateLimit> rateLimits = rateLimitEditor.read();
+        if (stripeCount == null || minStripeSize == null || pipelineDepth == null
+                || maxImageDimension == null || imageQuality == null || imageQuality < 1
+                || imageQuality > 100 || rateLimits == null)
+        {
+            return false;
+        }
+
+        transferOptions.setStripeCount(
+                (int) Math.min(stripeCount, TransferOptions.MAX_STRIPE_COUNT));
+        transferOptions.setMinStripeSize(minStripeSize * BYTES_PER_MB);
+        transferOptions.setPipelineDepth(
+                (int) Math.min(pipelineDepth, TransferOptions.MAX_PIPELINE_DEPTH));
+        transferOptions.setCipherProfile(
+                CIPHER_PROFILES[cipherProfileSpinner.getSelectedItemPosition()]);
+        transferOptions.setCompressionMode(
+                COMPRESSION_MODES[compressionModeSpinner.getSelectedItemPosition()]);
+        transferOptions.setTransportMode(
+                TRANSPORT_MODES[transportModeSpinner.getSelectedItemPosition()]);
+        transferOptions.setDeltaTransferEnabled(deltaTransferCheckBox.isChecked());
+        transferOptions.setMaxImageDimension(
+                (int) Math.min(maxImageDimension, Integer.MAX_VALUE));
+        transferOptions.setImageQuality(imageQuality.intValue());
+        transferOptions.setRateLimits(rateLimits);
+        return true;
+    }
+
+    /**
+     * Parses a numeric transfer option.
+     *
+     * @param editText     The field holding the option.
+     * @param defaultValue Value of an empty field.
+     *
+     * @return The value, null if the field doesn't hold a number.
+     */
+    private static Long parseOption(EditText editText, long defaultValue)
+    {
+        String text = editText.getText().toString().trim();
+        if (text.isEmpty())
+        {
+            return defaultValue;
+        }
+
+        try
+        {
+            return Long.valueOf(text);
+        }
+        catch (NumberFormatException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Creates the adapter of a transfer option spinner.
+     *
+     * @param labels Labels of the choices.
+     *
+     * @return The adapter.
+     */
+    private ArrayAdapter<String> createSpinnerAdapter(String[] labels)
+    {
+        ArrayAdapter<String> adapter = new ArrayAdapter<>(this,
+                android.R.layout.simple_spinner_item, labels);
+        adapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+        return adapter;
+    }
+
+    /**
+     * Finds the position of a choice of a transfer option spinner.
+     *
+     * @param choices The choices.
+     * @param choice  The choice to find.
+     *
+     * @return The position, 0 if the choice isn't listed.
+     */
+    private static <T> int indexOf(T[] choices, T choice)
+    {
+        for (int i = 0; i < choices.length; i++)
+        {
+            if (choices[i] == choice)
+            {
+                return i;
+            }
+        }
+        return 0;
+    }
+
     /**
      * Signal for the user experience state machine. This is always executed on the main thread.
      *
@@ -566,13 +774,14 @@ public class NewConnectionActivity extends AppCompatActivity implements QuerySer
 
                         if (Patterns.IP_ADDRESS.matcher(ip).matches() && wanVerified)
                         {
-                            if (!un.isEmpty() && !pw.isEmpty())
+                            if (!un.isEmpty() && !pw.isEmpty() && readTransferOptions())
                             {
                                 Connection connection = new Connection(activationCode, colloquialName,
                                         wanIp, convertedWANPort, un, pw);
 
                                 connection.setLocalPort(convertedPort);
                                 connection.setLocalAddress(ip);
+                                connection.setTransferOptions(transferOptions);
 
                                 return connection;
                             }
@@ -6,6 +6,9 @@ import android.support.design.widget.FloatingActionButton;
 import android.support.v4.app.Fragment;
 import android.support.v7.app.AppCompatActivity;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import flingr.app.R;
 import flingr.app.entities.Connection;
 import flingr.app.fragments.MainContentFragment;
@@ -16,7 +19,7 @@ import flingr.app.utilities.Serializer;
 public class ShareActivity extends AppCompatActivity
 {
     private static final String MAIN_FRAG_TAG = "MainContentFragment";
-    private FileSharingIntentParser.SharedFileInfo sharedFileInfo;
+    private List<FileSharingIntentParser.SharedFileInfo> sharedFiles = new ArrayList<>();
 
     @Override
     protected void onCreate(Bundle savedInstanceState)
@@ -32,7 +35,7 @@ public class ShareActivity extends AppCompatActivity
         Intent intent = getIntent();
         if (intent != null)
         {
-            sharedFileInfo = fileSharingIntentParser.parseIntent(intent);
+            sharedFiles = fileSharingIntentParser.parseIntent(intent);
         }
 
         ConnectionManager.getInstance().readFromPreferences(this);
@@ -40,7 +43,7 @@ public class ShareActivity extends AppCompatActivity
         // If savedInstanceState is not null, the device was rotated.
         if (savedInstanceState == null)
         {
-            MainContentFragment newFragment = MainContentFragment.newInstance(sharedFileInfo);
+            MainContentFragment newFragment = MainContentFragment.newInstance(sharedFiles);
 
 
             getSupportFragmentManager().beginTransaction().add(R.id.fragment_content,
@@ -52,7 +55,7 @@ public class ShareActivity extends AppCompatActivity
             if (fragment instanceof MainContentFragment)
             {
                 // TODO This is disgusting. Make the Connections Parcelable to use bundles in the Fragment
-                ((MainContentFragment) fragment).setSharedFileInfo(sharedFileInfo);
+                ((MainContentFragment) fragment).setSharedFiles(sharedFiles);
             }
         }
     }
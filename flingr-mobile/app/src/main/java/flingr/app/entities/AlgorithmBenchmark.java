@@ -0,0 +1,73 @@
+package flingr.app.entities;
+
+import java.io.Serializable;
+
+/**
+ * Entity class for storing how fast this phone runs one of JSch's ciphers or MACs.
+ */
+public class AlgorithmBenchmark implements Serializable
+{
+    private static final long serialVersionUID = 1L;
+
+    private final String name;
+    private final boolean isCipher;
+    private final long bytesPerSecond;
+    private final long cpuMillisPerMegabyte;
+
+    /**
+     * Constructor.
+     *
+     * @param name                 JSch name of the algorithm, such as aes128-ctr.
+     * @param isCipher             True for a cipher, false for a MAC.
+     * @param bytesPerSecond       Bytes processed per second of wall time.
+     * @param cpuMillisPerMegabyte Thread CPU time spent per MiB processed.
+     */
+    public AlgorithmBenchmark(String name, boolean isCipher, long bytesPerSecond,
+                              long cpuMillisPerMegabyte)
+    {
+        this.name = name;
+        this.isCipher = isCipher;
+        this.bytesPerSecond = bytesPerSecond;
+        this.cpuMillisPerMegabyte = cpuMillisPerMegabyte;
+    }
+
+    /**
+     * Gets the JSch name of the algorithm.
+     *
+     * @return The name.
+     */
+    public String getName()
+    {
+        return name;
+    }
+
+    /**
+     * Whether the algorithm is a cipher rather than a MAC.
+     *
+     * @return True for a cipher.
+     */
+    public boolean isCipher()
+    {
+        return isCipher;
+    }
+
+    /**
+     * Gets the bytes processed per second of wall time.
+     *
+     * @return Bytes per second.
+     */
+    public long getBytesPerSecond()
+    {
+        return bytesPerSecond;
+    }
+
+    /**
+     * Gets the thread CPU time spent per MiB processed.
+     *
+     * @return CPU milliseconds per MiB.
+     */
+    public long getCpuMillisPerMegabyte()
+    {
+        return cpuMillisPerMegabyte;
+    }
+}
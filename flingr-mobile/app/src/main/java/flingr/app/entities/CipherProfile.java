@@ -0,0 +1,86 @@
+package flingr.app.entities;
+
+/**
+ * Named sets of the cipher, MAC and key exchange algorithms a session to a {@link Connection}
+ * prefers.  Only algorithms that both JSch and the desktop's OpenSSH server support are listed.
+ */
+public enum CipherProfile
+{
+    /** {@link #LAN_MAX_THROUGHPUT} on the LAN and {@link #WAN_DEFAULT} over the WAN. */
+    AUTO(null, null, null),
+
+    /** Cheapest algorithms first, ordered by this phone's benchmark once it ran. */
+    LAN_MAX_THROUGHPUT("aes128-ctr,aes192-ctr,aes256-ctr",
+            "hmac-sha1,hmac-sha2-256",
+            "ecdh-sha2-nistp256,diffie-hellman-group-exchange-sha256"),
+
+    /** Strongest algorithms first, the cost is hidden by the link on the WAN. */
+    WAN_DEFAULT("aes256-ctr,aes192-ctr,aes128-ctr",
+            "hmac-sha2-256,hmac-sha1",
+            "ecdh-sha2-nistp256,ecdh-sha2-nistp384,ecdh-sha2-nistp521,"
+                    + "diffie-hellman-group-exchange-sha256");
+
+    private final String ciphers;
+    private final String macs;
+    private final String keyExchanges;
+
+    /**
+     * Constructor.
+     *
+     * @param ciphers      Comma separated ciphers in order of preference.
+     * @param macs         Comma separated MACs in order of preference.
+     * @param keyExchanges Comma separated key exchanges in order of preference.
+     */
+    CipherProfile(String ciphers, String macs, String keyExchanges)
+    {
+        this.ciphers = ciphers;
+        this.macs = macs;
+        this.keyExchanges = keyExchanges;
+    }
+
+    /**
+     * Resolves {@link #AUTO} to the profile used on a route.
+     *
+     * @param route The route the session is established over.
+     *
+     * @return The concrete profile.
+     */
+    public CipherProfile resolve(TransferRoute route)
+    {
+        if (this != AUTO)
+        {
+            return this;
+        }
+        return route == TransferRoute.LAN ? LAN_MAX_THROUGHPUT : WAN_DEFAULT;
+    }
+
+    /**
+     * Gets the ciphers in order of preference.
+     *
+     * @return Comma separated cipher names, null for {@link #AUTO}.
+     */
+    public String getCiphers()
+    {
+        return ciphers;
+    }
+
+    /**
+     * Gets the MACs in order of preference.
+     *
+     * @return Comma separated MAC names, null for {@link #AUTO}.
+     */
+    public String getMacs()
+    {
+        return macs;
+    }
+
+    /**
+     * Gets the key exchanges in order of preference.
+     *
+     * @return Comma separated key exchange names, null for {@link #AUTO}.
+     */
+    public String getKeyExchanges()
+    {
+        return keyExchanges;
+    }
+}
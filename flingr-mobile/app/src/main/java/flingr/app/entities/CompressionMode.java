@@ -0,0 +1,14 @@
+package flingr.app.entities;
+
+/**
+ * Whether uploads to a {@link Connection} are sent over a zlib compressed SSH session.
+ */
+public enum CompressionMode
+{
+    /** Never compress. */
+    OFF,
+    /** Compress files of compressible content types, at a level suited to the link speed. */
+    AUTO,
+    /** Compress every file, at a level suited to the link speed. */
+    ALWAYS
+}
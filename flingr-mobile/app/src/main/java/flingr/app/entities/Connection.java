@@ -8,6 +8,9 @@ import java.util.Objects;
  */
 public class Connection implements Serializable
 {
+    // Pinned to the value computed before any fields were added so saved connections still load
+    private static final long serialVersionUID = -1866979522312473438L;
+
     private String activationCode;
     private String colloquialName;
     private String wanAddress;
@@ -16,6 +19,7 @@ public class Connection implements Serializable
     private Integer localPort;
     private String userName;
     private String userPassword;
+    private TransferOptions transferOptions;
 
     /**
      * Default constructor
@@ -152,6 +156,31 @@ public class Connection implements Serializable
         return wanPort;
     }
 
+    /**
+     * Gets the options used to transfer files to this connection.
+     *
+     * @return The transfer options, never null.
+     */
+    public TransferOptions getTransferOptions()
+    {
+        // Connections saved before transfer options existed deserialize without them
+        if (transferOptions == null)
+        {
+            transferOptions = new TransferOptions();
+        }
+        return transferOptions;
+    }
+
+    /**
+     * Sets the options used to transfer files to this connection.
+     *
+     * @param transferOptions The transfer options.
+     */
+    public void setTransferOptions(TransferOptions transferOptions)
+    {
+        this.transferOptions = transferOptions;
+    }
+
     /**
      * Creates formatted string summary of this object.
      *
@@ -0,0 +1,137 @@
+package flingr.app.entities;
+
+import java.io.Serializable;
+
+/**
+ * Entity class for storing a shared file that has not been uploaded yet, so it survives the
+ * process being killed and can wait for better conditions.
+ */
+public class PendingUpload implements Serializable
+{
+    private static final long serialVersionUID = 1L;
+
+    private final long id;
+    private final Connection connection;
+    private final String fileUri;
+    private final String fileName;
+    private final long fileSize;
+    private boolean isDeferred;
+    private final long queuedAt;
+    private final long fanOutId;
+
+    /**
+     * Constructor.
+     *
+     * @param id         Unique identifier of the upload.
+     * @param connection The connection the file is sent to.
+     * @param fileUri    Uri of the local file.
+     * @param fileName   Name of the remote file.
+     * @param fileSize   Size of the local file in bytes, negative if unknown.
+     * @param isDeferred True if the upload waits for an unmetered network or charging.
+     * @param fanOutId   Id shared by the uploads of the same file to several connections, 0 if
+     *                   the file was only sent to this one.
+     */
+    public PendingUpload(long id, Connection connection, String fileUri, String fileName,
+                         long fileSize, boolean isDeferred, long fanOutId)
+    {
+        this.id = id;
+        this.connection = connection;
+        this.fileUri = fileUri;
+        this.fileName = fileName;
+        this.fileSize = fileSize;
+        this.isDeferred = isDeferred;
+        this.queuedAt = System.currentTimeMillis();
+        this.fanOutId = fanOutId;
+    }
+
+    /**
+     * Gets the unique identifier of the upload.
+     *
+     * @return The id.
+     */
+    public long getId()
+    {
+        return id;
+    }
+
+    /**
+     * Gets the connection the file is sent to.
+     *
+     * @return The connection.
+     */
+    public Connection getConnection()
+    {
+        return connection;
+    }
+
+    /**
+     * Gets the Uri of the local file.
+     *
+     * @return The file Uri.
+     */
+    public String getFileUri()
+    {
+        return fileUri;
+    }
+
+    /**
+     * Gets the name of the remote file.
+     *
+     * @return The file name.
+     */
+    public String getFileName()
+    {
+        return fileName;
+    }
+
+    /**
+     * Gets the size of the local file.
+     *
+     * @return Size in bytes, negative if unknown.
+     */
+    public long getFileSize()
+    {
+        return fileSize;
+    }
+
+    /**
+     * Gets whether the upload waits for an unmetered network or charging.
+     *
+     * @return True if deferred.
+     */
+    public boolean isDeferred()
+    {
+        return isDeferred;
+    }
+
+    /**
+     * Sets whether the upload waits for an unmetered network or charging.
+     *
+     * @param isDeferred True if deferred.
+     */
+    public void setDeferred(boolean isDeferred)
+    {
+        this.isDeferred = isDeferred;
+    }
+
+    /**
+     * Gets when the file was shared.
+     *
+     * @return Milliseconds since the epoch.
+     */
+    public long getQueuedAt()
+    {
+        return queuedAt;
+    }
+
+    /**
+     * Gets the id shared by the uploads of the same file to several connections, which read the
+     * file once between them.
+     *
+     * @return The fan out id, 0 if the file was only sent to this connection.
+     */
+    public long getFanOutId()
+    {
+        return fanOutId;
+    }
+}
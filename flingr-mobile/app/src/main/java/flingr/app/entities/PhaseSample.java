@@ -0,0 +1,111 @@
+package flingr.app.entities;
+
+import java.io.Serializable;
+
+/**
+ * Entity class for storing how long one phase of an upload took and how it ended.
+ */
+public class PhaseSample implements Serializable
+{
+    private static final long serialVersionUID = 1L;
+
+    private final long transferId;
+    private final TransferPhase phase;
+    private final TransferRoute route;
+    private final long durationMillis;
+    private final long bytes;
+    private final boolean isSuccess;
+    private final long recordedAt;
+
+    /**
+     * Constructor.
+     *
+     * @param transferId     Identifier shared by the phases of one upload attempt, 0 if none.
+     * @param phase          The phase.
+     * @param route          The route the phase ran over, null if it didn't use one.
+     * @param durationMillis How long the phase took.
+     * @param bytes          Number of bytes the phase moved.
+     * @param isSuccess      True if the phase completed.
+     */
+    public PhaseSample(long transferId, TransferPhase phase, TransferRoute route,
+                       long durationMillis, long bytes, boolean isSuccess)
+    {
+        this.transferId = transferId;
+        this.phase = phase;
+        this.route = route;
+        this.durationMillis = durationMillis;
+        this.bytes = bytes;
+        this.isSuccess = isSuccess;
+        this.recordedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * Gets the identifier shared by the phases of one upload attempt.
+     *
+     * @return The transfer id, 0 if none.
+     */
+    public long getTransferId()
+    {
+        return transferId;
+    }
+
+    /**
+     * Gets the phase.
+     *
+     * @return The phase.
+     */
+    public TransferPhase getPhase()
+    {
+        return phase;
+    }
+
+    /**
+     * Gets the route the phase ran over.
+     *
+     * @return The route, null if it didn't use one.
+     */
+    public TransferRoute getRoute()
+    {
+        return route;
+    }
+
+    /**
+     * Gets how long the phase took.
+     *
+     * @return Duration in milliseconds.
+     */
+    public long getDurationMillis()
+    {
+        return durationMillis;
+    }
+
+    /**
+     * Gets the number of bytes the phase moved.
+     *
+     * @return Number of bytes.
+     */
+    public long getBytes()
+    {
+        return bytes;
+    }
+
+    /**
+     * Whether the phase completed.
+     *
+     * @return True if it completed.
+     */
+    public boolean isSuccess()
+    {
+        return isSuccess;
+    }
+
+    /**
+     * Gets when the phase finished.
+     *
+     * @return Milliseconds since the epoch.
+     */
+    public long getRecordedAt()
+    {
+        return recordedAt;
+    }
+}
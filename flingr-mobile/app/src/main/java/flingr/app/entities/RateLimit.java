@@ -0,0 +1,111 @@
+package flingr.app.entities;
+
+import java.io.Serializable;
+
+/**
+ * Entity class for storing an upload rate limit, optionally restricted to one route and to a
+ * time of day.
+ */
+public class RateLimit implements Serializable
+{
+    private static final long serialVersionUID = 1L;
+
+    public static final int MINUTES_PER_DAY = 24 * 60;
+
+    private final long bytesPerSecond;
+    private final TransferRoute route;
+    private final int startMinute;
+    private final int endMinute;
+
+    /**
+     * Constructor of a limit that applies all day.
+     *
+     * @param bytesPerSecond Maximum upload rate in bytes per second.
+     * @param route          The route the limit applies to, null for both.
+     */
+    public RateLimit(long bytesPerSecond, TransferRoute route)
+    {
+        this(bytesPerSecond, route, 0, 0);
+    }
+
+    /**
+     * Constructor of a limit that applies at certain times of day.  A window whose end is before
+     * its start spans midnight, one whose start and end are equal spans the whole day.
+     *
+     * @param bytesPerSecond Maximum upload rate in bytes per second.
+     * @param route          The route the limit applies to, null for both.
+     * @param startMinute    Minute of the day the limit starts at, from 0 to 1439.
+     * @param endMinute      Minute of the day the limit ends at, exclusive.
+     */
+    public RateLimit(long bytesPerSecond, TransferRoute route, int startMinute, int endMinute)
+    {
+        this.bytesPerSecond = Math.max(1, bytesPerSecond);
+        this.route = route;
+        this.startMinute = ((startMinute % MINUTES_PER_DAY) + MINUTES_PER_DAY) % MINUTES_PER_DAY;
+        this.endMinute = ((endMinute % MINUTES_PER_DAY) + MINUTES_PER_DAY) % MINUTES_PER_DAY;
+    }
+
+    /**
+     * Gets the maximum upload rate.
+     *
+     * @return Bytes per second.
+     */
+    public long getBytesPerSecond()
+    {
+        return bytesPerSecond;
+    }
+
+    /**
+     * Gets the route the limit applies to.
+     *
+     * @return The route, null for both.
+     */
+    public TransferRoute getRoute()
+    {
+        return route;
+    }
+
+    /**
+     * Gets the minute of the day the limit starts at.
+     *
+     * @return Minute from 0 to 1439.
+     */
+    public int getStartMinute()
+    {
+        return startMinute;
+    }
+
+    /**
+     * Gets the minute of the day the limit ends at.
+     *
+     * @return Minute from 0 to 1439, exclusive.
+     */
+    public int getEndMinute()
+    {
+        return endMinute;
+    }
+
+    /**
+     * Whether the limit applies to an upload over a route at a time of day.
+     *
+     * @param route       The route of the upload.
+     * @param minuteOfDay Current minute of the day.
+     *
+     * @return True if the limit applies.
+     */
+    public boolean appliesTo(TransferRoute route, int minuteOfDay)
+    {
+        if (this.route != null && this.route != route)
+        {
+            return false;
+        }
+
+        if (startMinute == endMinute)
+        {
+            return true;
+        }
+        return startMinute < endMinute
+                ? minuteOfDay >= startMinute && minuteOfDay < endMinute
+                : minuteOfDay >= startMinute || minuteOfDay < endMinute;
+    }
+}
@@ -0,0 +1,58 @@
+package flingr.app.entities;
+
+import java.io.Serializable;
+
+/**
+ * Entity class for storing which route last reached a {@link Connection} from a network.
+ */
+public class RouteCacheEntry implements Serializable
+{
+    private static final long serialVersionUID = 1L;
+
+    private final TransferRoute route;
+    private final long connectMillis;
+    private final long recordedAt;
+
+    /**
+     * Constructor.
+     *
+     * @param route         The route that worked.
+     * @param connectMillis How long establishing the session took.
+     */
+    public RouteCacheEntry(TransferRoute route, long connectMillis)
+    {
+        this.route = route;
+        this.connectMillis = connectMillis;
+        this.recordedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * Gets the route that worked.
+     *
+     * @return The route.
+     */
+    public TransferRoute getRoute()
+    {
+        return route;
+    }
+
+    /**
+     * Gets how long establishing the session took.
+     *
+     * @return Connect time in milliseconds.
+     */
+    public long getConnectMillis()
+    {
+        return connectMillis;
+    }
+
+    /**
+     * Gets when the route was recorded.
+     *
+     * @return Milliseconds since the epoch.
+     */
+    public long getRecordedAt()
+    {
+        return recordedAt;
+    }
+}
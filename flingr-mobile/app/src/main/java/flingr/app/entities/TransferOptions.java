@@ -0,0 +1,299 @@
+package flingr.app.entities;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Entity class for storing how files are transferred to a {@link Connection}.
+ */
+public class TransferOptions implements Serializable
+{
+    private static final long serialVersionUID = 1L;
+
+    public static final int DEFAULT_STRIPE_COUNT = 3;
+
+    // The desktop allows 3 channels per session, and stripes only take the ones other uploads
+    // sharing the session can spare, see SessionPoolManager#openSpareChannel
+    public static final int MAX_STRIPE_COUNT = 3;
+    public static final long DEFAULT_MIN_STRIPE_SIZE = 32L * 1024L * 1024L;
+
+    // Lets the uploader size the write pipeline to the measured bandwidth-delay product
+    public static final int AUTO_PIPELINE_DEPTH = 0;
+    public static final int MAX_PIPELINE_DEPTH = 1024;
+
+    public static final int DEFAULT_READ_AHEAD_DEPTH = 4;
+    public static final int DEFAULT_READ_CHUNK_SIZE = 256 * 1024;
+    public static final int MIN_READ_CHUNK_SIZE = 16 * 1024;
+
+    // Photos are sent at full resolution unless a size is set
+    public static final int ORIGINAL_IMAGE_SIZE = 0;
+    public static final int DEFAULT_IMAGE_QUALITY = 85;
+
+    private int stripeCount = DEFAULT_STRIPE_COUNT;
+    private long minStripeSize = DEFAULT_MIN_STRIPE_SIZE;
+    private CompressionMode compressionMode = CompressionMode.AUTO;
+    private CipherProfile cipherProfile = CipherProfile.AUTO;
+    private int pipelineDepth = AUTO_PIPELINE_DEPTH;
+    private Boolean deltaTransferEnabled = true;
+    private ArrayList<RateLimit> rateLimits = new ArrayList<>();
+    // The desktop's sshd_config forces internal-sftp, so the exec stream is only tried on request
+    private TransportMode transportMode = TransportMode.SFTP;
+    private Integer readAheadDepth = DEFAULT_READ_AHEAD_DEPTH;
+    private Integer readChunkSize = DEFAULT_READ_CHUNK_SIZE;
+    private Integer maxImageDimension = ORIGINAL_IMAGE_SIZE;
+    private Integer imageQuality = DEFAULT_IMAGE_QUALITY;
+
+    /**
+     * Gets the number of SFTP channels a large file is split across.
+     *
+     * @return The stripe count, 1 disables striping.
+     */
+    public int getStripeCount()
+    {
+        return stripeCount;
+    }
+
+    /**
+     * Sets the number of SFTP channels a large file is split across.
+     *
+     * @param stripeCount The stripe count, 1 disables striping, at most {@link #MAX_STRIPE_COUNT}.
+     */
+    public void setStripeCount(int stripeCount)
+    {
+        this.stripeCount = Math.max(1, Math.min(MAX_STRIPE_COUNT, stripeCount));
+    }
+
+    /**
+     * Gets the smallest byte range worth sending over its own channel.
+     *
+     * @return The minimum stripe size in bytes.
+     */
+    public long getMinStripeSize()
+    {
+        return minStripeSize;
+    }
+
+    /**
+     * Sets the smallest byte range worth sending over its own channel.
+     *
+     * @param minStripeSize The minimum stripe size in bytes.
+     */
+    public void setMinStripeSize(long minStripeSize)
+    {
+        this.minStripeSize = Math.max(1L, minStripeSize);
+    }
+
+    /**
+     * Gets whether files are compressed on the way to the desktop.
+     *
+     * @return The compression mode.
+     */
+    public CompressionMode getCompressionMode()
+    {
+        // Options saved before compression was configurable don't have a mode yet
+        return compressionMode != null ? compressionMode : CompressionMode.AUTO;
+    }
+
+    /**
+     * Sets whether files are compressed on the way to the desktop.
+     *
+     * @param compressionMode The compression mode.
+     */
+    public void setCompressionMode(CompressionMode compressionMode)
+    {
+        this.compressionMode = compressionMode;
+    }
+
+    /**
+     * Gets the cipher, MAC and key exchange preferences of sessions to the desktop.
+     *
+     * @return The cipher profile.
+     */
+    public CipherProfile getCipherProfile()
+    {
+        // Options saved before profiles were configurable don't have one yet
+        return cipherProfile != null ? cipherProfile : CipherProfile.AUTO;
+    }
+
+    /**
+     * Sets the cipher, MAC and key exchange preferences of sessions to the desktop.
+     *
+     * @param cipherProfile The cipher profile.
+     */
+    public void setCipherProfile(CipherProfile cipherProfile)
+    {
+        this.cipherProfile = cipherProfile;
+    }
+
+    /**
+     * Gets the number of SFTP write requests kept in flight on a channel.
+     *
+     * @return The pipeline depth, {@link #AUTO_PIPELINE_DEPTH} to tune it during the transfer.
+     */
+    public int getPipelineDepth()
+    {
+        return pipelineDepth;
+    }
+
+    /**
+     * Sets the number of SFTP write requests kept in flight on a channel.
+     *
+     * @param pipelineDepth The pipeline depth, {@link #AUTO_PIPELINE_DEPTH} to tune it during the
+     *                      transfer, at most {@link #MAX_PIPELINE_DEPTH}.
+     */
+    public void setPipelineDepth(int pipelineDepth)
+    {
+        this.pipelineDepth = Math.max(AUTO_PIPELINE_DEPTH,
+                Math.min(MAX_PIPELINE_DEPTH, pipelineDepth));
+    }
+
+    /**
+     * Gets whether a modified file is sent as a delta against the copy already on the desktop.
+     *
+     * @return True if delta transfers are enabled.
+     */
+    public boolean isDeltaTransferEnabled()
+    {
+        // Options saved before delta transfers existed don't have the flag yet
+        return deltaTransferEnabled == null || deltaTransferEnabled;
+    }
+
+    /**
+     * Sets whether a modified file is sent as a delta against the copy already on the desktop.
+     *
+     * @param deltaTransferEnabled True to enable delta transfers.
+     */
+    public void setDeltaTransferEnabled(boolean deltaTransferEnabled)
+    {
+        this.deltaTransferEnabled = deltaTransferEnabled;
+    }
+
+    /**
+     * Gets the upload rate limits of the connection, on top of the global ones of the
+     * {@link flingr.app.managers.BandwidthManager}.
+     *
+     * @return The limits, empty for none.
+     */
+    public List<RateLimit> getRateLimits()
+    {
+        // Options saved before rate limits existed don't have the list yet
+        return rateLimits != null ? new ArrayList<>(rateLimits) : new ArrayList<>();
+    }
+
+    /**
+     * Sets the upload rate limits of the connection.
+     *
+     * @param rateLimits The limits, empty for none.
+     */
+    public void setRateLimits(List<RateLimit> rateLimits)
+    {
+        this.rateLimits = new ArrayList<>(rateLimits);
+    }
+
+    /**
+     * Gets how the bytes of an upload travel to the desktop.
+     *
+     * @return The transport mode.
+     */
+    public TransportMode getTransportMode()
+    {
+        // Options saved before transports were configurable don't have a mode yet
+        return transportMode != null ? transportMode : TransportMode.SFTP;
+    }
+
+    /**
+     * Sets how the bytes of an upload travel to the desktop.
+     *
+     * @param transportMode The transport mode.
+     */
+    public void setTransportMode(TransportMode transportMode)
+    {
+        this.transportMode = transportMode;
+    }
+
+    /**
+     * Gets the number of chunks of a file read ahead of the upload sending them.
+     *
+     * @return The read ahead depth, 1 to read on the sending thread.
+     */
+    public int getReadAheadDepth()
+    {
+        // Options saved before reads were pipelined don't have a depth yet
+        return readAheadDepth != null ? readAheadDepth : DEFAULT_READ_AHEAD_DEPTH;
+    }
+
+    /**
+     * Sets the number of chunks of a file read ahead of the upload sending them.
+     *
+     * @param readAheadDepth The read ahead depth, 1 to read on the sending thread.
+     */
+    public void setReadAheadDepth(int readAheadDepth)
+    {
+        this.readAheadDepth = Math.max(1, readAheadDepth);
+    }
+
+    /**
+     * Gets the number of bytes read from a file at once while it is read ahead.
+     *
+     * @return The chunk size in bytes.
+     */
+    public int getReadChunkSize()
+    {
+        // Options saved before reads were pipelined don't have a chunk size yet
+        return readChunkSize != null ? readChunkSize : DEFAULT_READ_CHUNK_SIZE;
+    }
+
+    /**
+     * Sets the number of bytes read from a file at once while it is read ahead.
+     *
+     * @param readChunkSize The chunk size in bytes, capped at the size of the pooled buffers.
+     */
+    public void setReadChunkSize(int readChunkSize)
+    {
+        this.readChunkSize = Math.max(MIN_READ_CHUNK_SIZE, readChunkSize);
+    }
+
+    /**
+     * Gets the longest side in pixels photos are downscaled to before they are sent.
+     *
+     * @return The size in pixels, {@link #ORIGINAL_IMAGE_SIZE} to send photos as they are.
+     */
+    public int getMaxImageDimension()
+    {
+        // Options saved before photos could be downscaled send them as they are
+        return maxImageDimension != null ? maxImageDimension : ORIGINAL_IMAGE_SIZE;
+    }
+
+    /**
+     * Sets the longest side in pixels photos are downscaled to before they are sent.
+     *
+     * @param maxImageDimension The size in pixels, {@link #ORIGINAL_IMAGE_SIZE} to send photos
+     *                          as they are.
+     */
+    public void setMaxImageDimension(int maxImageDimension)
+    {
+        this.maxImageDimension = Math.max(ORIGINAL_IMAGE_SIZE, maxImageDimension);
+    }
+
+    /**
+     * Gets the encoder quality downscaled JPEG and WebP photos are saved with.
+     *
+     * @return The quality, 0 to 100.
+     */
+    public int getImageQuality()
+    {
+        // Options saved before photos could be downscaled don't have a quality yet
+        return imageQuality != null ? imageQuality : DEFAULT_IMAGE_QUALITY;
+    }
+
+    /**
+     * Sets the encoder quality downscaled JPEG and WebP photos are saved with.
+     *
+     * @param imageQuality The quality, 0 to 100.
+     */
+    public void setImageQuality(int imageQuality)
+    {
+        this.imageQuality = Math.max(0, Math.min(100, imageQuality));
+    }
+}
@@ -0,0 +1,15 @@
+package flingr.app.entities;
+
+/**
+ * The phases of an upload that are timed for diagnostics.
+ */
+public enum TransferPhase
+{
+    LOOKUP,
+    TCP_CONNECT,
+    KEY_EXCHANGE,
+    AUTH,
+    CHANNEL_OPEN,
+    TRANSFER,
+    CLOSE
+}
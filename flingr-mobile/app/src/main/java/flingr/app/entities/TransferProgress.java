@@ -0,0 +1,201 @@
+package flingr.app.entities;
+
+/**
+ * Entity class for a snapshot of the progress of a batch of uploads.
+ */
+public class TransferProgress
+{
+    private final int batchId;
+    private final int totalFiles;
+    private final int filesFinished;
+    private final int filesFailed;
+    private final long currentUploadId;
+    private final String currentFileName;
+    private final long bytesTransferred;
+    private final long bytesEstimated;
+    private final long bytesPerSecond;
+    private final boolean isFinished;
+    private final boolean isCancelled;
+    private final String failureMessage;
+
+    /**
+     * Constructor.
+     *
+     * @param batchId          Unique identifier of the batch.
+     * @param totalFiles       Number of files in the batch.
+     * @param filesFinished    Number of files that finished, successfully or not.
+     * @param filesFailed      Number of files that failed.
+     * @param currentUploadId  Unique identifier of the upload that started last, -1 if none.
+     * @param currentFileName  Name of the file that started last.
+     * @param bytesTransferred Bytes sent so far.
+     * @param bytesEstimated   Estimated size of the whole batch, 0 if unknown.
+     * @param bytesPerSecond   Smoothed throughput.
+     * @param isFinished       True if every file of the batch finished.
+     * @param isCancelled      True if the batch was cancelled.
+     * @param failureMessage   Reason the last failed file failed, may be null.
+     */
+    public TransferProgress(int batchId, int totalFiles, int filesFinished, int filesFailed,
+                            long currentUploadId, String currentFileName,
+                            long bytesTransferred, long bytesEstimated,
+                            long bytesPerSecond, boolean isFinished, boolean isCancelled,
+                            String failureMessage)
+    {
+        this.batchId = batchId;
+        this.totalFiles = totalFiles;
+        this.filesFinished = filesFinished;
+        this.filesFailed = filesFailed;
+        this.currentUploadId = currentUploadId;
+        this.currentFileName = currentFileName;
+        this.bytesTransferred = bytesTransferred;
+        this.bytesEstimated = bytesEstimated;
+        this.bytesPerSecond = bytesPerSecond;
+        this.isFinished = isFinished;
+        this.isCancelled = isCancelled;
+        this.failureMessage = failureMessage;
+    }
+
+    /**
+     * Gets the unique identifier of the batch.
+     *
+     * @return The batch id.
+     */
+    public int getBatchId()
+    {
+        return batchId;
+    }
+
+    /**
+     * Gets the number of files in the batch.
+     *
+     * @return The file count.
+     */
+    public int getTotalFiles()
+    {
+        return totalFiles;
+    }
+
+    /**
+     * Gets the number of files that finished, successfully or not.
+     *
+     * @return The finished file count.
+     */
+    public int getFilesFinished()
+    {
+        return filesFinished;
+    }
+
+    /**
+     * Gets the number of files that failed.
+     *
+     * @return The failed file count.
+     */
+    public int getFilesFailed()
+    {
+        return filesFailed;
+    }
+
+    /**
+     * Gets the unique identifier of the upload that started last, which it can be cancelled by.
+     *
+     * @return The upload id, -1 if no file started yet.
+     */
+    public long getCurrentUploadId()
+    {
+        return currentUploadId;
+    }
+
+    /**
+     * Gets the name of the file that started last.
+     *
+     * @return The file name.
+     */
+    public String getCurrentFileName()
+    {
+        return currentFileName;
+    }
+
+    /**
+     * Gets the bytes sent so far.
+     *
+     * @return Bytes sent.
+     */
+    public long getBytesTransferred()
+    {
+        return bytesTransferred;
+    }
+
+    /**
+     * Gets the estimated size of the whole batch.
+     *
+     * @return Size in bytes, 0 if unknown.
+     */
+    public long getBytesEstimated()
+    {
+        return bytesEstimated;
+    }
+
+    /**
+     * Gets the smoothed throughput.
+     *
+     * @return Bytes per second.
+     */
+    public long getBytesPerSecond()
+    {
+        return bytesPerSecond;
+    }
+
+    /**
+     * Whether every file of the batch finished.
+     *
+     * @return True if finished.
+     */
+    public boolean isFinished()
+    {
+        return isFinished;
+    }
+
+    /**
+     * Whether the batch was cancelled.
+     *
+     * @return True if cancelled.
+     */
+    public boolean isCancelled()
+    {
+        return isCancelled;
+    }
+
+    /**
+     * Gets the reason the last failed file failed.
+     *
+     * @return The failure message, may be null.
+     */
+    public String getFailureMessage()
+    {
+        return failureMessage;
+    }
+
+    /**
+     * Gets how much of the batch was sent.
+     *
+     * @return Percentage between 0 and 100.
+     */
+    public int getPercentComplete()
+    {
+        return bytesEstimated > 0
+                ? (int) Math.min(100L, (bytesTransferred * 100L) / bytesEstimated) : 0;
+    }
+
+    /**
+     * Gets the estimated time until the batch is sent.
+     *
+     * @return Milliseconds remaining, or -1 if unknown.
+     */
+    public long getEtaMillis()
+    {
+        if (bytesPerSecond <= 0 || bytesEstimated <= 0)
+        {
+            return -1;
+        }
+        return Math.max(0, bytesEstimated - bytesTransferred) * 1000L / bytesPerSecond;
+    }
+}
@@ -0,0 +1,107 @@
+package flingr.app.entities;
+
+import java.io.Serializable;
+
+/**
+ * Entity class for storing the state of an upload that has not finished yet, so it can be
+ * resumed after a dropped connection or a restart of the application.
+ */
+public class TransferRecord implements Serializable
+{
+    private static final long serialVersionUID = 1L;
+
+    private final String sourceUri;
+    private final String remoteName;
+    private final String fingerprint;
+    private final long fileSize;
+    private long bytesConfirmed;
+    private long lastUpdated;
+
+    /**
+     * Constructor.
+     *
+     * @param sourceUri   Uri of the local file.
+     * @param remoteName  Name of the remote file.
+     * @param fingerprint Fingerprint of the local file's content.
+     * @param fileSize    Size of the local file in bytes, negative if unknown.
+     */
+    public TransferRecord(String sourceUri, String remoteName, String fingerprint, long fileSize)
+    {
+        this.sourceUri = sourceUri;
+        this.remoteName = remoteName;
+        this.fingerprint = fingerprint;
+        this.fileSize = fileSize;
+        this.lastUpdated = System.currentTimeMillis();
+    }
+
+    /**
+     * Gets the Uri of the local file.
+     *
+     * @return The source Uri.
+     */
+    public String getSourceUri()
+    {
+        return sourceUri;
+    }
+
+    /**
+     * Gets the name of the remote file.
+     *
+     * @return The remote name.
+     */
+    public String getRemoteName()
+    {
+        return remoteName;
+    }
+
+    /**
+     * Gets the fingerprint of the local file's content when the upload started.
+     *
+     * @return The content fingerprint.
+     */
+    public String getFingerprint()
+    {
+        return fingerprint;
+    }
+
+    /**
+     * Gets the size of the local file when the upload started.
+     *
+     * @return The size in bytes, negative if unknown.
+     */
+    public long getFileSize()
+    {
+        return fileSize;
+    }
+
+    /**
+     * Gets the number of bytes known to have been handed to the server.
+     *
+     * @return The confirmed byte count.
+     */
+    public long getBytesConfirmed()
+    {
+        return bytesConfirmed;
+    }
+
+    /**
+     * Sets the number of bytes known to have been handed to the server.
+     *
+     * @param bytesConfirmed The confirmed byte count.
+     */
+    public void setBytesConfirmed(long bytesConfirmed)
+    {
+        this.bytesConfirmed = bytesConfirmed;
+        this.lastUpdated = System.currentTimeMillis();
+    }
+
+    /**
+     * Gets when the record last changed.
+     *
+     * @return Milliseconds since the epoch.
+     */
+    public long getLastUpdated()
+    {
+        return lastUpdated;
+    }
+}
@@ -0,0 +1,10 @@
+package flingr.app.entities;
+
+/**
+ * The network path a {@link Connection} was reached over.
+ */
+public enum TransferRoute
+{
+    LAN,
+    WAN
+}
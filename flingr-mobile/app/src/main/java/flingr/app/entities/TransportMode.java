@@ -0,0 +1,14 @@
+package flingr.app.entities;
+
+/**
+ * How the bytes of an upload to a {@link Connection} travel to the desktop.
+ */
+public enum TransportMode
+{
+    /** Written with SFTP requests, which can be resumed, patched and striped. */
+    SFTP,
+    /** Streamed into {@code cat} over an exec channel, without SFTP's request framing. */
+    EXEC,
+    /** Whichever of the two was measured faster over the route, trying each once. */
+    AUTO
+}
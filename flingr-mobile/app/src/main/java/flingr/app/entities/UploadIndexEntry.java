@@ -0,0 +1,88 @@
+package flingr.app.entities;
+
+import java.io.Serializable;
+
+/**
+ * Entity class for storing what a file uploaded to a {@link Connection} contained, so sharing the
+ * same content to the same place again can be skipped.
+ */
+public class UploadIndexEntry implements Serializable
+{
+    private static final long serialVersionUID = 1L;
+
+    private final String remoteName;
+    private final long fileSize;
+    private final int remoteModifiedTime;
+    private final String contentHash;
+    private final long indexedAt;
+
+    /**
+     * Constructor.
+     *
+     * @param remoteName         Name of the remote file.
+     * @param fileSize           Size of the file in bytes.
+     * @param remoteModifiedTime Modification time of the remote file in seconds since the epoch,
+     *                           as reported by the server.
+     * @param contentHash        Hex encoded SHA-256 of the file.
+     */
+    public UploadIndexEntry(String remoteName, long fileSize, int remoteModifiedTime,
+                            String contentHash)
+    {
+        this.remoteName = remoteName;
+        this.fileSize = fileSize;
+        this.remoteModifiedTime = remoteModifiedTime;
+        this.contentHash = contentHash;
+        this.indexedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * Gets the name of the remote file.
+     *
+     * @return The remote name.
+     */
+    public String getRemoteName()
+    {
+        return remoteName;
+    }
+
+    /**
+     * Gets the size of the file.
+     *
+     * @return Size in bytes.
+     */
+    public long getFileSize()
+    {
+        return fileSize;
+    }
+
+    /**
+     * Gets the modification time of the remote file right after it was uploaded.  A different
+     * time means something else wrote the file since.
+     *
+     * @return Seconds since the epoch, as reported by the server.
+     */
+    public int getRemoteModifiedTime()
+    {
+        return remoteModifiedTime;
+    }
+
+    /**
+     * Gets the SHA-256 of the file.
+     *
+     * @return Hex encoded hash.
+     */
+    public String getContentHash()
+    {
+        return contentHash;
+    }
+
+    /**
+     * Gets when the upload was indexed.
+     *
+     * @return Milliseconds since the epoch.
+     */
+    public long getIndexedAt()
+    {
+        return indexedAt;
+    }
+}
@@ -0,0 +1,17 @@
+package flingr.app.entities;
+
+/**
+ * Who an upload is running for, which decides how it is scheduled against other queued uploads.
+ */
+public enum UploadPriority
+{
+    /**
+     * Shared by the user, who is waiting for it.
+     */
+    INTERACTIVE,
+
+    /**
+     * Run by a scheduled job, such as a deferred or recovered upload.
+     */
+    BACKGROUND
+}
@@ -4,17 +4,36 @@ package flingr.app.fragments;
 import android.os.Bundle;
 import android.support.annotation.NonNull;
 import android.support.v4.app.Fragment;
+import android.support.v7.app.AlertDialog;
+import android.text.format.Formatter;
+import android.util.SparseBooleanArray;
+import android.view.ActionMode;
 import android.view.LayoutInflater;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.AbsListView;
 import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 import flingr.app.R;
 import flingr.app.entities.Connection;
-import flingr.app.services.FileUploadIntentService;
+import flingr.app.entities.PendingUpload;
+import flingr.app.entities.RateLimit;
+import flingr.app.entities.TransferProgress;
+import flingr.app.managers.BandwidthManager;
+import flingr.app.managers.PendingUploadManager;
+import flingr.app.managers.TransferProgressManager;
+import flingr.app.services.FileUploadService;
+import flingr.app.services.UploadScheduler;
 import flingr.app.ui.ConnectionAdapter;
+import flingr.app.ui.RateLimitEditor;
 import flingr.app.utilities.FileSharingIntentParser;
 
 
@@ -23,19 +42,27 @@ import flingr.app.utilities.FileSharingIntentParser;
  */
 public class MainContentFragment extends Fragment
 {
-    private FileSharingIntentParser.SharedFileInfo sharedFileInfo;
+    private List<FileSharingIntentParser.SharedFileInfo> sharedFiles = new ArrayList<>();
 
     private ConnectionAdapter adapter;
 
+    private TextView progressLabel;
+    private TextView globalRateLimitLabel;
+
+    // Batch whose progress the label shows, -1 if none
+    private volatile int shownBatchId = -1;
+
+    private final TransferProgressManager.ProgressListener progressListener = this::showProgress;
+
     public MainContentFragment()
     {
     }
 
 
-    public static MainContentFragment newInstance(FileSharingIntentParser.SharedFileInfo sharedFileInfo)
+    public static MainContentFragment newInstance(List<FileSharingIntentParser.SharedFileInfo> sharedFiles)
     {
         MainContentFragment fragment = new MainContentFragment();
-        fragment.setSharedFileInfo(sharedFileInfo);
+        fragment.setSharedFiles(sharedFiles);
 
         return fragment;
     }
@@ -63,9 +90,14 @@ public class MainContentFragment extends Fragment
         TextView fileLabel = view.findViewById(R.id.file_name_label);
 
         String fileNameLabel;
-        if (sharedFileInfo != null && !sharedFileInfo.getFileName().isEmpty())
+        if (sharedFiles.size() > 1)
         {
-            fileNameLabel = "Sharing " + sharedFileInfo.getFileName();
+            fileNameLabel = "Sharing " + sharedFiles.size() + " files";
+        }
+        else if (sharedFiles.size() == 1 && sharedFiles.get(0).getFileName() != null
+                && !sharedFiles.get(0).getFileName().isEmpty())
+        {
+            fileNameLabel = "Sharing " + sharedFiles.get(0).getFileName();
         }
         else
         {
@@ -73,30 +105,214 @@ public class MainContentFragment extends Fragment
         }
         fileLabel.setText(fileNameLabel);
 
+        progressLabel = view.findViewById(R.id.upload_progress_label);
+        progressLabel.setOnClickListener((clickedView) -> manageUploads());
+
+        globalRateLimitLabel = view.findViewById(R.id.global_rate_limit_label);
+        globalRateLimitLabel.setOnClickListener((clickedView) -> editGlobalRateLimits());
+        showGlobalRateLimits();
+
         previousConnectionsListView.setOnItemClickListener((parentAV, clickedView, position, id) ->
         {
             Connection selectedConnection = adapter.getItem(position);
             if (selectedConnection != null)
             {
-                if (sharedFileInfo != null)
-                {
-                    FileUploadIntentService.startService(getActivity(), selectedConnection, sharedFileInfo.getFileUri(),
-                            sharedFileInfo.getFileName());
-                }
-                else
-                {
-                    Toast.makeText(getActivity(), "No file to send", Toast.LENGTH_LONG).show();
-                }
+                sendSharedFiles(Collections.singletonList(selectedConnection));
             }
         });
 
+        // Long pressing selects several desktops to send the same files to at once
+        previousConnectionsListView.setChoiceMode(ListView.CHOICE_MODE_MULTIPLE_MODAL);
+        previousConnectionsListView.setMultiChoiceModeListener(
+                new SendToSelectedListener(previousConnectionsListView));
+
         return view;
     }
 
+    /**
+     * Queues the shared files for connections and tells the user if they were deferred.
+     *
+     * @param connections The connections to send the files to.
+     */
+    private void sendSharedFiles(List<Connection> connections)
+    {
+        if (sharedFiles.isEmpty())
+        {
+            Toast.makeText(getActivity(), "No file to send", Toast.LENGTH_LONG).show();
+        }
+        else if (UploadScheduler.submit(getActivity(), connections, sharedFiles))
+        {
+            Toast.makeText(getActivity(), "Large upload queued until Wi-Fi or charging",
+                    Toast.LENGTH_LONG).show();
+            showWaitingUploads();
+        }
+    }
 
-    public void setSharedFileInfo(FileSharingIntentParser.SharedFileInfo sharedFileInfo)
+    /**
+     * Lets the user cancel single uploads, whether they are running, queued or waiting for Wi-Fi
+     * or charging, or every running upload at once.
+     */
+    private void manageUploads()
     {
-        this.sharedFileInfo = sharedFileInfo;
+        List<PendingUpload> uploads = PendingUploadManager.getInstance().getUploads(getActivity());
+        int batchId = shownBatchId;
+        if (uploads.isEmpty() && batchId < 0)
+        {
+            return;
+        }
+
+        String[] labels = new String[uploads.size()];
+        for (int i = 0; i < uploads.size(); i++)
+        {
+            PendingUpload upload = uploads.get(i);
+            labels[i] = upload.getFileName() + " to " + upload.getConnection().getColloquialName()
+                    + (upload.isDeferred() ? ", waiting for Wi-Fi or charging" : "");
+        }
+
+        AlertDialog.Builder builder = new AlertDialog.Builder(getActivity());
+        builder.setTitle("Tap an upload to cancel it");
+        builder.setItems(labels, (dialog, which) ->
+        {
+            PendingUpload upload = uploads.get(which);
+            FileUploadService.cancelTransfer(getActivity(), upload.getId());
+            Toast.makeText(getActivity(), "Cancelling " + upload.getFileName(),
+                    Toast.LENGTH_SHORT).show();
+            showWaitingUploads();
+        });
+        if (batchId >= 0)
+        {
+            builder.setNeutralButton("Cancel all", (dialog, which) ->
+            {
+                FileUploadService.cancelBatch(batchId);
+                Toast.makeText(getActivity(), "Cancelling upload", Toast.LENGTH_SHORT).show();
+            });
+        }
+        builder.setNegativeButton("Close", null);
+
+        builder.create().show();
+    }
+
+    /**
+     * Shows how many uploads wait for Wi-Fi or charging while no upload is running, so they can
+     * still be cancelled.
+     */
+    private void showWaitingUploads()
+    {
+        if (shownBatchId < 0 && progressLabel != null)
+        {
+            String waitingText = getWaitingText();
+            progressLabel.setVisibility(waitingText != null ? View.VISIBLE : View.GONE);
+            progressLabel.setText(waitingText);
+        }
+    }
+
+    /**
+     * Describes the uploads waiting for Wi-Fi or charging.
+     *
+     * @return The description, null if none is waiting.
+     */
+    private String getWaitingText()
+    {
+        int waitingUploads = 0;
+        for (PendingUpload upload : PendingUploadManager.getInstance().getUploads(getActivity()))
+        {
+            if (upload.isDeferred())
+            {
+                waitingUploads++;
+            }
+        }
+        return waitingUploads == 0 ? null : waitingUploads
+                + (waitingUploads == 1 ? " upload waits" : " uploads wait")
+                + " for Wi-Fi or charging. Tap to cancel";
+    }
+
+    /**
+     * Shows the upload limits that apply to every desktop.
+     */
+    private void showGlobalRateLimits()
+    {
+        List<RateLimit> limits = BandwidthManager.getInstance().getGlobalLimits(getActivity());
+        globalRateLimitLabel.setText("Upload limit for every desktop: "
+                + RateLimitEditor.describe(limits) + ". Tap to change");
+    }
+
+    /**
+     * Lets the user edit the upload limits that apply to every desktop.
+     */
+    private void editGlobalRateLimits()
+    {
+        View fields = LayoutInflater.from(getActivity()).inflate(R.layout.rate_limit_fields,
+                null);
+        RateLimitEditor rateLimitEditor = new RateLimitEditor(fields);
+        rateLimitEditor.show(BandwidthManager.getInstance().getGlobalLimits(getActivity()));
+
+        AlertDialog.Builder builder = new AlertDialog.Builder(getActivity());
+        builder.setTitle("Upload limit for every desktop");
+        builder.setView(fields);
+        builder.setPositiveButton("Save", (dialog, which) ->
+        {
+            List<RateLimit> limits = rateLimitEditor.read();
+            if (limits == null)
+            {
+                Toast.makeText(getActivity(), "Limits must be numbers and times HH:MM",
+                        Toast.LENGTH_LONG).show();
+                return;
+            }
+
+            BandwidthManager.getInstance().setGlobalLimits(getActivity(), limits);
+            showGlobalRateLimits();
+        });
+        builder.setNegativeButton("Cancel", null);
+
+        builder.create().show();
+    }
+
+    @Override
+    public void onResume()
+    {
+        super.onResume();
+        TransferProgressManager.getInstance().addListener(progressListener);
+        showWaitingUploads();
+    }
+
+    @Override
+    public void onPause()
+    {
+        TransferProgressManager.getInstance().removeListener(progressListener);
+        super.onPause();
+    }
+
+    /**
+     * Shows the progress of an upload below the shared file label.  Called on the progress thread.
+     *
+     * @param progress Snapshot of the upload.
+     */
+    private void showProgress(TransferProgress progress)
+    {
+        if (getActivity() == null)
+        {
+            return;
+        }
+
+        shownBatchId = progress.isFinished() ? -1 : progress.getBatchId();
+        String progressText = progress.isFinished() ? getWaitingText()
+                : "Uploading: " + progress.getPercentComplete() + "% complete, "
+                + Formatter.formatShortFileSize(getActivity(), progress.getBytesPerSecond())
+                + "/s. Tap to cancel";
+
+        getActivity().runOnUiThread(() ->
+        {
+            if (progressLabel != null)
+            {
+                progressLabel.setVisibility(progressText != null ? View.VISIBLE : View.GONE);
+                progressLabel.setText(progressText);
+            }
+        });
+    }
+
+    public void setSharedFiles(List<FileSharingIntentParser.SharedFileInfo> sharedFiles)
+    {
+        this.sharedFiles = sharedFiles != null ? sharedFiles : new ArrayList<>();
     }
 
     public void notifyDataSetChanged()
@@ -106,4 +322,71 @@ public class MainContentFragment extends Fragment
             adapter.notifyDataSetChanged();
         }
     }
+
+    /**
+     * Action mode of the connection list while several connections are selected, which sends the
+     * shared files to all of them.
+     */
+    private class SendToSelectedListener implements AbsListView.MultiChoiceModeListener
+    {
+        private final ListView listView;
+
+        SendToSelectedListener(ListView listView)
+        {
+            this.listView = listView;
+        }
+
+        @Override
+        public void onItemCheckedStateChanged(ActionMode mode, int position, long id,
+                                              boolean checked)
+        {
+            mode.setTitle(listView.getCheckedItemCount() + " selected");
+        }
+
+        @Override
+        public boolean onCreateActionMode(ActionMode mode, Menu menu)
+        {
+            mode.getMenuInflater().inflate(R.menu.send_to_selected_menu, menu);
+            return true;
+        }
+
+        @Override
+        public boolean onPrepareActionMode(ActionMode mode, Menu menu)
+        {
+            return false;
+        }
+
+        @Override
+        public boolean onActionItemClicked(ActionMode mode, MenuItem item)
+        {
+            if (item.getItemId() != R.id.send_to_selected_menu_item)
+            {
+                return false;
+            }
+
+            List<Connection> connections = new ArrayList<>();
+            SparseBooleanArray checkedPositions = listView.getCheckedItemPositions();
+            for (int i = 0; i < checkedPositions.size(); i++)
+            {
+                Connection connection = adapter.getItem(checkedPositions.keyAt(i));
+                if (checkedPositions.valueAt(i) && connection != null)
+                {
+                    connections.add(connection);
+                }
+            }
+
+            if (!connections.isEmpty())
+            {
+                sendSharedFiles(connections);
+            }
+            mode.finish();
+            return true;
+        }
+
+        @Override
+        public void onDestroyActionMode(ActionMode mode)
+        {
+            // Nothing to clean up, the list clears its selection
+        }
+    }
 }
@@ -0,0 +1,355 @@
+package flingr.app.managers;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Base64;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import flingr.app.entities.Connection;
+import flingr.app.entities.RateLimit;
+import flingr.app.entities.TransferRoute;
+import flingr.app.utilities.Serializer;
+import flingr.app.utilities.TokenBucket;
+
+/**
+ * Shapes the upload bandwidth with token buckets, so an upload doesn't take the whole uplink from
+ * everything else on the phone.
+ * <p>
+ * Limits come from the {@link RateLimit}s of each connection's
+ * {@link flingr.app.entities.TransferOptions} and from the global limits kept here, each optionally
+ * restricted to the LAN or WAN route and to a time of day.  A limit without a route caps the
+ * uploads over both routes together, so it is paced by one bucket that every route shares, while a
+ * limit of one route has a bucket of that route.  Every connection has such buckets of its own,
+ * all uploads share the global ones, and an upload waits for each bucket it goes through.
+ */
+public class BandwidthManager
+{
+    public static final String GLOBAL_RATE_LIMITS = "FlingrGlobalRateLimits";
+
+    // The limits in effect are looked up again this often, so schedules take effect mid upload
+    private static final long RESOLVE_INTERVAL_NANOS = 10L * 1000L * 1000L * 1000L;
+
+    // Smaller uploads are dominated by their fixed costs and say little about the link
+    private static final long MIN_SAMPLE_BYTES = 1024L * 1024L;
+    private static final double SMOOTHING = 0.3;
+
+    private static final BandwidthManager bandwidthManager = new BandwidthManager();
+
+    private final ArrayList<RateLimit> globalLimits = new ArrayList<>();
+    private final TokenBucket globalBucket = new TokenBucket();
+    private final HashMap<TransferRoute, TokenBucket> globalRouteBuckets = new HashMap<>();
+
+    // Keyed by connection for limits of both routes, and by connection and route for the others
+    private final HashMap<String, TokenBucket> connectionBuckets = new HashMap<>();
+
+    // Smoothed bytes per second that uploads put on the wire, by connection and route
+    private final HashMap<String, Double> measuredThroughputs = new HashMap<>();
+    private boolean isLoaded = false;
+
+    public static BandwidthManager getInstance()
+    {
+        return bandwidthManager;
+    }
+
+    /**
+     * Private constructor.
+     */
+    private BandwidthManager()
+    {
+    }
+
+    /**
+     * Gets the limits that apply to uploads to every connection.
+     *
+     * @param context An Android life-cycle object.
+     *
+     * @return The global limits.
+     */
+    public synchronized List<RateLimit> getGlobalLimits(Context context)
+    {
+        load(context);
+        return new ArrayList<>(globalLimits);
+    }
+
+    /**
+     * Replaces the limits that apply to uploads to every connection.
+     *
+     * @param context An Android life-cycle object.
+     * @param limits  The global limits, empty for none.
+     */
+    public synchronized void setGlobalLimits(Context context, List<RateLimit> limits)
+    {
+        load(context);
+        globalLimits.clear();
+        globalLimits.addAll(limits);
+
+        byte[] serializedObj = Serializer.serialize(globalLimits);
+        if (context != null && serializedObj != null)
+        {
+            context.getSharedPreferences(ConnectionManager.FLINGR_PREFS_LABEL, Context.MODE_PRIVATE)
+                    .edit()
+                    .putString(GLOBAL_RATE_LIMITS, Base64.encodeToString(serializedObj, Base64.DEFAULT))
+                    .apply();
+        }
+    }
+
+    /**
+     * Gets the throttle an upload to a connection over a route paces its bytes with.
+     *
+     * @param context    An Android life-cycle object to read the global limits with.
+     * @param connection The connection the upload is sent to.
+     * @param route      The route the upload is sent over.
+     *
+     * @return The throttle.
+     */
+    public synchronized Throttle getThrottle(Context context, Connection connection,
+                                             TransferRoute route)
+    {
+        load(context);
+
+        TokenBucket globalRouteBucket = globalRouteBuckets.get(route);
+        if (globalRouteBucket == null)
+        {
+            globalRouteBucket = new TokenBucket();
+            globalRouteBuckets.put(route, globalRouteBucket);
+        }
+
+        return new Throttle(connection, route, getConnectionBucket(connection, null),
+                getConnectionBucket(connection, route), globalBucket, globalRouteBucket);
+    }
+
+    /**
+     * Records how fast an upload's bytes went out, as counted by its {@link Throttle}.
+     *
+     * @param connection   The connection the file was sent to.
+     * @param route        The route the file was sent over.
+     * @param bytes        Bytes the upload actually sent, leaving out resumed and skipped ones.
+     * @param elapsedNanos Time the bytes took to send in nanoseconds.
+     */
+    public synchronized void recordThroughput(Connection connection, TransferRoute route,
+                                              long bytes, long elapsedNanos)
+    {
+        if (bytes < MIN_SAMPLE_BYTES || elapsedNanos <= 0)
+        {
+            return;
+        }
+
+        String key = createKey(connection, route);
+        double sample = bytes * 1e9 / elapsedNanos;
+        Double previous = measuredThroughputs.get(key);
+        measuredThroughputs.put(key, previous == null
+                ? sample : previous + SMOOTHING * (sample - previous));
+    }
+
+    /**
+     * Gets how fast uploads to a connection over a route put their bytes on the wire lately.
+     *
+     * @param connection The connection.
+     * @param route      The route.
+     *
+     * @return Bytes per second, 0 if nothing was measured yet.
+     */
+    public synchronized long getMeasuredBytesPerSecond(Connection connection, TransferRoute route)
+    {
+        Double throughput = measuredThroughputs.get(createKey(connection, route));
+        return throughput != null ? throughput.longValue() : 0;
+    }
+
+    /**
+     * Gets the bucket that paces the limits of a connection for a route.
+     *
+     * @param connection The connection.
+     * @param route      The route, null for the limits of both routes.
+     *
+     * @return The bucket.
+     */
+    private TokenBucket getConnectionBucket(Connection connection, TransferRoute route)
+    {
+        String key = createKey(connection, route);
+        TokenBucket connectionBucket = connectionBuckets.get(key);
+        if (connectionBucket == null)
+        {
+            connectionBucket = new TokenBucket();
+            connectionBuckets.put(key, connectionBucket);
+        }
+        return connectionBucket;
+    }
+
+    /**
+     * Creates the key the buckets and measurements of a connection over a route are stored under.
+     *
+     * @param connection The connection.
+     * @param route      The route, null for both.
+     *
+     * @return The key.
+     */
+    private static String createKey(Connection connection, TransferRoute route)
+    {
+        return connection.getActivationCode() + "|" + connection.getUserName() + "|" + route;
+    }
+
+    /**
+     * Gets the lowest of the limits of exactly one route, or of both routes, that apply at a time
+     * of day.
+     *
+     * @param limits      The limits to choose from.
+     * @param route       The route the limits name, null for the limits of both routes.
+     * @param minuteOfDay Current minute of the day.
+     *
+     * @return Bytes per second, 0 for no limit.
+     */
+    private static long resolveLimit(List<RateLimit> limits, TransferRoute route, int minuteOfDay)
+    {
+        long bytesPerSecond = 0;
+        for (RateLimit limit : limits)
+        {
+            if (limit.getRoute() == route && limit.appliesTo(route, minuteOfDay)
+                    && (bytesPerSecond == 0 || limit.getBytesPerSecond() < bytesPerSecond))
+            {
+                bytesPerSecond = limit.getBytesPerSecond();
+            }
+        }
+        return bytesPerSecond;
+    }
+
+    /**
+     * Reads the global limits from Shared Preferences the first time they are needed.
+     *
+     * @param context An Android life-cycle object.
+     */
+    private void load(Context context)
+    {
+        if (!isLoaded && context != null)
+        {
+            isLoaded = true;
+
+            SharedPreferences sharedPreferences = context.getSharedPreferences(
+                    ConnectionManager.FLINGR_PREFS_LABEL, Context.MODE_PRIVATE);
+            String base64Limits = sharedPreferences.getString(GLOBAL_RATE_LIMITS, null);
+            if (base64Limits != null)
+            {
+                ArrayList<RateLimit> savedLimits =
+                        Serializer.deserialize(Base64.decode(base64Limits, Base64.DEFAULT));
+                if (savedLimits != null)
+                {
+                    globalLimits.addAll(savedLimits);
+                }
+            }
+        }
+    }
+
+    /**
+     * Paces the bytes of one upload through its connection's and the global buckets.  Bytes are
+     * reserved right before they are handed to the channel, so pacing needs no copies.
+     */
+    public static class Throttle
+    {
+        private final Connection connection;
+        private final TransferRoute route;
+        private final TokenBucket connectionBucket;
+        private final TokenBucket connectionRouteBucket;
+        private final TokenBucket globalBucket;
+        private final TokenBucket globalRouteBucket;
+        private final AtomicLong bytesAcquired = new AtomicLong();
+
+        // Stripes of one upload share its throttle
+        private volatile long connectionLimit;
+        private volatile long connectionRouteLimit;
+        private volatile long globalLimit;
+        private volatile long globalRouteLimit;
+        private volatile long resolvedAtNanos;
+
+        Throttle(Connection connection, TransferRoute route, TokenBucket connectionBucket,
+                 TokenBucket connectionRouteBucket, TokenBucket globalBucket,
+                 TokenBucket globalRouteBucket)
+        {
+            this.connection = connection;
+            this.route = route;
+            this.connectionBucket = connectionBucket;
+            this.connectionRouteBucket = connectionRouteBucket;
+            this.globalBucket = globalBucket;
+            this.globalRouteBucket = globalRouteBucket;
+            resolve(System.nanoTime());
+        }
+
+        /**
+         * Waits until the limits allow a number of bytes to be sent.
+         *
+         * @param bytes Number of bytes about to be sent.
+         *
+         * @throws InterruptedIOException if interrupted while waiting.
+         */
+        public void acquire(long bytes) throws InterruptedIOException
+        {
+            bytesAcquired.addAndGet(bytes);
+            long now = System.nanoTime();
+            if (now - resolvedAtNanos >= RESOLVE_INTERVAL_NANOS)
+            {
+                resolve(now);
+            }
+            if (connectionLimit <= 0 && connectionRouteLimit <= 0 && globalLimit <= 0
+                    && globalRouteLimit <= 0)
+            {
+                return;
+            }
+
+            long waitNanos = Math.max(
+                    Math.max(connectionBucket.reserve(bytes, connectionLimit, now),
+                            connectionRouteBucket.reserve(bytes, connectionRouteLimit, now)),
+                    Math.max(globalBucket.reserve(bytes, globalLimit, now),
+                            globalRouteBucket.reserve(bytes, globalRouteLimit, now)));
+            if (waitNanos > 0)
+            {
+                try
+                {
+                    Thread.sleep(waitNanos / 1000000L, (int) (waitNanos % 1000000L));
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while throttled");
+                }
+            }
+        }
+
+        /**
+         * Gets the bytes sent through the throttle so far, which leaves out those an upload
+         * resumed, skipped or only reported.
+         *
+         * @return Number of bytes.
+         */
+        public long getBytesAcquired()
+        {
+            return bytesAcquired.get();
+        }
+
+        /**
+         * Looks up the limits in effect.
+         *
+         * @param now Monotonic time in nanoseconds.
+         */
+        private void resolve(long now)
+        {
+            Calendar calendar = Calendar.getInstance();
+            int minuteOfDay = calendar.get(Calendar.HOUR_OF_DAY) * 60
+                    + calendar.get(Calendar.MINUTE);
+
+            resolvedAtNanos = now;
+            List<RateLimit> connectionLimits = connection.getTransferOptions().getRateLimits();
+            connectionLimit = resolveLimit(connectionLimits, null, minuteOfDay);
+            connectionRouteLimit = resolveLimit(connectionLimits, route, minuteOfDay);
+            synchronized (bandwidthManager)
+            {
+                globalLimit = resolveLimit(bandwidthManager.globalLimits, null, minuteOfDay);
+                globalRouteLimit = resolveLimit(bandwidthManager.globalLimits, route,
+                        minuteOfDay);
+            }
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package flingr.app.managers;
+
+import android.content.Context;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import flingr.app.entities.Connection;
+import timber.log.Timber;
+
+/**
+ * Stores the block hashes of the files uploaded to each {@link Connection}, so a modified file
+ * can later be sent as a delta against what the desktop already has.
+ * <p>
+ * A large file has thousands of block hashes, so unlike the other managers they are kept in one
+ * file per upload under the application's files directory rather than in Shared Preferences.
+ */
+public class BlockSignatureManager
+{
+    public static final String SIGNATURE_DIRECTORY = "signatures";
+
+    private static final int FORMAT_VERSION = 1;
+
+    // Matches the size of the upload index, whose entries the signatures belong to
+    private static final int MAX_SIGNATURE_FILES = 2000;
+
+    private static final BlockSignatureManager blockSignatureManager = new BlockSignatureManager();
+
+    public static BlockSignatureManager getInstance()
+    {
+        return blockSignatureManager;
+    }
+
+    /**
+     * Private constructor.
+     */
+    private BlockSignatureManager()
+    {
+    }
+
+    /**
+     * Gets the block hashes of the last upload to a remote file.
+     *
+     * @param context     An Android life-cycle object.
+     * @param connection  The connection the file was sent to.
+     * @param remoteName  Name of the remote file.
+     * @param contentHash SHA-256 of the upload the hashes must belong to.
+     * @param blockSize   Block size the hashes must have been taken at.
+     *
+     * @return The block hashes in file order, or null if none are stored for that upload.
+     */
+    public synchronized List<byte[]> getSignatures(Context context, Connection connection,
+                                                   String remoteName, String contentHash,
+                                                   int blockSize)
+    {
+        File file = getSignatureFile(context, connection, remoteName);
+        if (file == null || !file.exists())
+        {
+            return null;
+        }
+
+        try (DataInputStream input = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file))))
+        {
+            if (input.readInt() != FORMAT_VERSION || !contentHash.equals(input.readUTF())
+                    || input.readInt() != blockSize)
+            {
+                return null;
+            }
+
+            int count = input.readInt();
+            List<byte[]> signatures = new ArrayList<>(count);
+            for (int i = 0; i < count; i++)
+            {
+                byte[] hash = new byte[input.readUnsignedByte()];
+                input.readFully(hash);
+                signatures.add(hash);
+            }
+            return signatures;
+        }
+        catch (IOException e)
+        {
+            Timber.w(e, "Unable to read the signatures of %s", remoteName);
+            return null;
+        }
+    }
+
+    /**
+     * Stores the block hashes of an upload, replacing those of earlier uploads to the same file.
+     *
+     * @param context     An Android life-cycle object.
+     * @param connection  The connection the file was sent to.
+     * @param remoteName  Name of the remote file.
+     * @param contentHash SHA-256 of the uploaded file.
+     * @param blockSize   Block size the hashes were taken at.
+     * @param signatures  The block hashes in file order.
+     */
+    public synchronized void putSignatures(Context context, Connection connection,
+                                           String remoteName, String contentHash, int blockSize,
+                                           List<byte[]> signatures)
+    {
+        File file = getSignatureFile(context, connection, remoteName);
+        if (file == null)
+        {
+            return;
+        }
+
+        File directory = file.getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs())
+        {
+            return;
+        }
+
+        try (DataOutputStream output = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file))))
+        {
+            output.writeInt(FORMAT_VERSION);
+            output.writeUTF(contentHash);
+            output.writeInt(blockSize);
+            output.writeInt(signatures.size());
+            for (byte[] hash : signatures)
+            {
+                output.writeByte(hash.length);
+                output.write(hash);
+            }
+        }
+        catch (IOException e)
+        {
+            Timber.w(e, "Unable to store the signatures of %s", remoteName);
+            file.delete();
+        }
+
+        removeOldestFiles(directory);
+    }
+
+    /**
+     * Deletes the block hashes of a remote file that no longer holds what was uploaded to it.
+     *
+     * @param context    An Android life-cycle object.
+     * @param connection The connection the file was sent to.
+     * @param remoteName Name of the remote file.
+     */
+    public synchronized void removeSignatures(Context context, Connection connection,
+                                              String remoteName)
+    {
+        File file = getSignatureFile(context, connection, remoteName);
+        if (file != null)
+        {
+            file.delete();
+        }
+    }
+
+    /**
+     * Gets the file the block hashes of a remote file are stored in.  Its name is a hash of the
+     * connection and remote name, which may contain characters a file name can't.
+     *
+     * @param context    An Android life-cycle object.
+     * @param connection The connection the file was sent to.
+     * @param remoteName Name of the remote file.
+     *
+     * @return The signature file, or null if there is no context.
+     */
+    private static File getSignatureFile(Context context, Connection connection, String remoteName)
+    {
+        if (context == null)
+        {
+            return null;
+        }
+
+        String key = connection.getActivationCode() + "|" + connection.getUserName() + "|"
+                + remoteName;
+        try
+        {
+            byte[] keyHash = MessageDigest.getInstance("SHA-256").digest(key.getBytes("UTF-8"));
+            StringBuilder name = new StringBuilder();
+            for (byte b : keyHash)
+            {
+                name.append(String.format("%02x", b));
+            }
+            return new File(new File(context.getFilesDir(), SIGNATURE_DIRECTORY), name.toString());
+        }
+        catch (NoSuchAlgorithmException | IOException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Keeps the number of signature files bounded by deleting the least recently written ones.
+     *
+     * @param directory The signature directory.
+     */
+    private static void removeOldestFiles(File directory)
+    {
+        File[] files = directory.listFiles();
+        if (files == null || files.length <= MAX_SIGNATURE_FILES)
+        {
+            return;
+        }
+
+        Arrays.sort(files, (first, second) -> Long.compare(first.lastModified(),
+                second.lastModified()));
+        for (int i = 0; i < files.length - MAX_SIGNATURE_FILES; i++)
+        {
+            files[i].delete();
+        }
+    }
+}
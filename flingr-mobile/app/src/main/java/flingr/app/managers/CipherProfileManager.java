@@ -0,0 +1,218 @@
+package flingr.app.managers;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.text.TextUtils;
+import android.util.Base64;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import flingr.app.entities.AlgorithmBenchmark;
+import flingr.app.entities.CipherProfile;
+import flingr.app.entities.TransferRoute;
+import flingr.app.remote.CipherBenchmark;
+import flingr.app.utilities.Serializer;
+import timber.log.Timber;
+
+/**
+ * Turns a {@link CipherProfile} into the JSch configuration of a session.
+ * <p>
+ * The {@link CipherProfile#LAN_MAX_THROUGHPUT} profile is ordered by a {@link CipherBenchmark}
+ * of this phone, which runs once in a job while the device is idle and charging and is kept in
+ * {@link android.content.SharedPreferences}.  Until it finished the profile's static order is
+ * used.
+ */
+public class CipherProfileManager
+{
+    public static final String CIPHER_BENCHMARK = "FlingrCipherBenchmark";
+
+    // Enough packets to rank the algorithms, which is all the profile needs
+    private static final long BENCHMARK_BYTES_PER_ALGORITHM = 4L * 1024L * 1024L;
+
+    private static final CipherProfileManager cipherProfileManager = new CipherProfileManager();
+
+    private final HashMap<String, AlgorithmBenchmark> benchmarks = new HashMap<>();
+    private boolean isLoaded = false;
+    private boolean isBenchmarkRunning = false;
+
+    public static CipherProfileManager getInstance()
+    {
+        return cipherProfileManager;
+    }
+
+    /**
+     * Private constructor.
+     */
+    private CipherProfileManager()
+    {
+    }
+
+    /**
+     * Creates the JSch configuration entries of a session.
+     *
+     * @param profile The connection's profile.
+     * @param route   The route the session is established over.
+     *
+     * @return The cipher, MAC and key exchange preferences.
+     */
+    public synchronized Map<String, String> getSessionConfig(CipherProfile profile, TransferRoute route)
+    {
+        Map<String, String> config = new HashMap<>();
+
+        CipherProfile resolvedProfile = profile.resolve(route);
+        String ciphers = resolvedProfile.getCiphers();
+        String macs = resolvedProfile.getMacs();
+        if (resolvedProfile == CipherProfile.LAN_MAX_THROUGHPUT)
+        {
+            ciphers = orderByThroughput(ciphers);
+            macs = orderByThroughput(macs);
+        }
+
+        // Acks flow back over s2c, so both directions use the same preferences
+        config.put("cipher.c2s", ciphers);
+        config.put("cipher.s2c", ciphers);
+        config.put("mac.c2s", macs);
+        config.put("mac.s2c", macs);
+        config.put("kex", resolvedProfile.getKeyExchanges());
+        return config;
+    }
+
+    /**
+     * Gets the saved benchmark results.
+     *
+     * @param context An Android life-cycle object.
+     *
+     * @return The results, empty if the benchmark didn't run yet.
+     */
+    public synchronized List<AlgorithmBenchmark> getBenchmarks(Context context)
+    {
+        load(context);
+        return new ArrayList<>(benchmarks.values());
+    }
+
+    /**
+     * Whether the benchmark still has to run on this phone.
+     *
+     * @param context An Android life-cycle object.
+     *
+     * @return True if there are no results yet.
+     */
+    public synchronized boolean needsBenchmark(Context context)
+    {
+        load(context);
+        return benchmarks.isEmpty();
+    }
+
+    /**
+     * Runs the benchmark on the calling thread unless it already ran or is running.
+     *
+     * @param context An Android life-cycle object.
+     */
+    public void runBenchmark(Context context)
+    {
+        synchronized (this)
+        {
+            load(context);
+            if (!benchmarks.isEmpty() || isBenchmarkRunning)
+            {
+                return;
+            }
+            isBenchmarkRunning = true;
+        }
+
+        List<AlgorithmBenchmark> results =
+                new CipherBenchmark(BENCHMARK_BYTES_PER_ALGORITHM).run();
+        saveBenchmarks(context, results);
+    }
+
+    /**
+     * Stores and persists benchmark results.
+     *
+     * @param context An Android life-cycle object.
+     * @param results The results.
+     */
+    private synchronized void saveBenchmarks(Context context, List<AlgorithmBenchmark> results)
+    {
+        isBenchmarkRunning = false;
+        benchmarks.clear();
+        for (AlgorithmBenchmark result : results)
+        {
+            benchmarks.put(result.getName(), result);
+        }
+        Timber.i("Benchmarked %d ciphers and MACs", results.size());
+
+        byte[] serializedObj = Serializer.serialize(benchmarks);
+        if (serializedObj != null)
+        {
+            context.getSharedPreferences(ConnectionManager.FLINGR_PREFS_LABEL, Context.MODE_PRIVATE)
+                    .edit()
+                    .putString(CIPHER_BENCHMARK, Base64.encodeToString(serializedObj, Base64.DEFAULT))
+                    .apply();
+        }
+    }
+
+    /**
+     * Reorders a preference list so the fastest benchmarked algorithms come first.  Algorithms
+     * without a result keep their place behind the benchmarked ones.
+     *
+     * @param algorithms Comma separated algorithm names.
+     *
+     * @return The reordered list.
+     */
+    private String orderByThroughput(String algorithms)
+    {
+        if (benchmarks.isEmpty())
+        {
+            return algorithms;
+        }
+
+        List<String> names = new ArrayList<>(Arrays.asList(algorithms.split(",")));
+        Collections.sort(names,
+                (first, second) -> Long.compare(getBytesPerSecond(second), getBytesPerSecond(first)));
+        return TextUtils.join(",", names);
+    }
+
+    /**
+     * Gets the benchmarked speed of an algorithm.
+     *
+     * @param name JSch name of the algorithm.
+     *
+     * @return Bytes per second, 0 if it wasn't benchmarked.
+     */
+    private long getBytesPerSecond(String name)
+    {
+        AlgorithmBenchmark benchmark = benchmarks.get(name);
+        return benchmark != null ? benchmark.getBytesPerSecond() : 0;
+    }
+
+    /**
+     * Reads the benchmark results from Shared Preferences the first time it is needed.
+     *
+     * @param context An Android life-cycle object.
+     */
+    private void load(Context context)
+    {
+        if (!isLoaded && context != null)
+        {
+            isLoaded = true;
+
+            SharedPreferences sharedPreferences = context.getSharedPreferences(
+                    ConnectionManager.FLINGR_PREFS_LABEL, Context.MODE_PRIVATE);
+            String base64Benchmarks = sharedPreferences.getString(CIPHER_BENCHMARK, null);
+            if (base64Benchmarks != null)
+            {
+                HashMap<String, AlgorithmBenchmark> savedBenchmarks =
+                        Serializer.deserialize(Base64.decode(base64Benchmarks, Base64.DEFAULT));
+                if (savedBenchmarks != null)
+                {
+                    benchmarks.putAll(savedBenchmarks);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package flingr.app.managers;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Base64;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+import flingr.app.entities.Connection;
+import flingr.app.entities.PendingUpload;
+import flingr.app.utilities.Serializer;
+
+/**
+ * Durable queue of the shared files that have not been uploaded yet, backed by
+ * {@link android.content.SharedPreferences} so no share is lost when the process is killed and
+ * large uploads can wait for an unmetered network or charging.
+ */
+public class PendingUploadManager
+{
+    public static final String PENDING_UPLOADS = "FlingrPendingUploads";
+    public static final String NEXT_UPLOAD_ID = "FlingrNextUploadId";
+
+    private static final PendingUploadManager pendingUploadManager = new PendingUploadManager();
+
+    // Ordered by id, which is the order the files were shared in
+    private final TreeMap<Long, PendingUpload> uploads = new TreeMap<>();
+
+    // Never handed out twice, so a stale notification action can't cancel a later upload
+    private long nextId = 1;
+    private boolean isLoaded = false;
+
+    public static PendingUploadManager getInstance()
+    {
+        return pendingUploadManager;
+    }
+
+    /**
+     * Private constructor.
+     */
+    private PendingUploadManager()
+    {
+    }
+
+    /**
+     * Queues shared files and persists the queue.
+     *
+     * @param context     An Android life-cycle object.
+     * @param connections The connections the files are sent to.  With several, the uploads of
+     *                    each file share a fan out id.
+     * @param fileUris    Uris of the local files.
+     * @param fileNames   Names of the remote files.
+     * @param fileSizes   Sizes of the local files in bytes, negative if unknown.
+     * @param isDeferred  True if the files wait for an unmetered network or charging.
+     *
+     * @return The queued uploads.
+     */
+    public synchronized List<PendingUpload> addUploads(Context context,
+                                                       List<Connection> connections,
+                                                       List<String> fileUris,
+                                                       List<String> fileNames,
+                                                       List<Long> fileSizes, boolean isDeferred)
+    {
+        load(context);
+
+        List<PendingUpload> added = new ArrayList<>();
+        for (int i = 0; i < fileUris.size(); i++)
+        {
+            // The fan out is known by the id of its first upload
+            long fanOutId = connections.size() > 1 ? nextId : 0;
+            for (Connection connection : connections)
+            {
+                PendingUpload upload = new PendingUpload(nextId++, connection, fileUris.get(i),
+                        fileNames.get(i), fileSizes.get(i), isDeferred, fanOutId);
+                uploads.put(upload.getId(), upload);
+                added.add(upload);
+            }
+        }
+
+        save(context);
+        return added;
+    }
+
+    /**
+     * Gets every queued upload.
+     *
+     * @param context An Android life-cycle object.
+     *
+     * @return The uploads in the order they were shared.
+     */
+    public synchronized List<PendingUpload> getUploads(Context context)
+    {
+        load(context);
+        return new ArrayList<>(uploads.values());
+    }
+
+    /**
+     * Gets a queued upload.
+     *
+     * @param context An Android life-cycle object.
+     * @param id      Unique identifier of the upload.
+     *
+     * @return The upload, or null if it is no longer queued.
+     */
+    public synchronized PendingUpload getUpload(Context context, long id)
+    {
+        load(context);
+        return uploads.get(id);
+    }
+
+    /**
+     * Whether any queued upload is or isn't deferred.
+     *
+     * @param context    An Android life-cycle object.
+     * @param isDeferred True to look for deferred uploads, false for the others.
+     *
+     * @return True if there is such an upload.
+     */
+    public synchronized boolean hasUploads(Context context, boolean isDeferred)
+    {
+        load(context);
+        for (PendingUpload upload : uploads.values())
+        {
+            if (upload.isDeferred() == isDeferred)
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Marks queued uploads as no longer waiting, once they have been handed to the uploader.
+     *
+     * @param context An Android life-cycle object.
+     * @param started The uploads.
+     */
+    public synchronized void markStarted(Context context, List<PendingUpload> started)
+    {
+        load(context);
+        for (PendingUpload upload : started)
+        {
+            PendingUpload queued = uploads.get(upload.getId());
+            if (queued != null)
+            {
+                queued.setDeferred(false);
+            }
+        }
+        save(context);
+    }
+
+    /**
+     * Removes an upload that finished, failed for good or was cancelled.
+     *
+     * @param context An Android life-cycle object.
+     * @param id      Unique identifier of the upload.
+     */
+    public synchronized void removeUpload(Context context, long id)
+    {
+        load(context);
+        if (uploads.remove(id) != null)
+        {
+            save(context);
+        }
+    }
+
+    /**
+     * Reads the queue from Shared Preferences the first time it is needed.
+     *
+     * @param context An Android life-cycle object.
+     */
+    private void load(Context context)
+    {
+        if (!isLoaded && context != null)
+        {
+            isLoaded = true;
+
+            SharedPreferences sharedPreferences = context.getSharedPreferences(
+                    ConnectionManager.FLINGR_PREFS_LABEL, Context.MODE_PRIVATE);
+            nextId = Math.max(nextId, sharedPreferences.getLong(NEXT_UPLOAD_ID, 1));
+            String base64Uploads = sharedPreferences.getString(PENDING_UPLOADS, null);
+            if (base64Uploads != null)
+            {
+                TreeMap<Long, PendingUpload> savedUploads =
+                        Serializer.deserialize(Base64.decode(base64Uploads, Base64.DEFAULT));
+                if (savedUploads != null)
+                {
+                    uploads.putAll(savedUploads);
+
+                    // Queues saved before the counter was kept only know their own ids
+                    if (!uploads.isEmpty())
+                    {
+                        nextId = Math.max(nextId, uploads.lastKey() + 1);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the queue to Shared Preferences in the background, as the {@link ConnectionManager}
+     * does, so queuing a share never blocks the UI thread on the disk.
+     *
+     * @param context An Android life-cycle object.
+     */
+    private void save(Context context)
+    {
+        if (context != null)
+        {
+            byte[] serializedObj = Serializer.serialize(uploads);
+            if (serializedObj != null)
+            {
+                context.getSharedPreferences(ConnectionManager.FLINGR_PREFS_LABEL, Context.MODE_PRIVATE)
+                        .edit()
+                        .putString(PENDING_UPLOADS, Base64.encodeToString(serializedObj, Base64.DEFAULT))
+                        .putLong(NEXT_UPLOAD_ID, nextId)
+                        .apply();
+            }
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package flingr.app.managers;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Base64;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import flingr.app.entities.Connection;
+import flingr.app.entities.RouteCacheEntry;
+import flingr.app.entities.TransferRoute;
+import flingr.app.utilities.Serializer;
+
+/**
+ * Remembers which route last reached a {@link Connection} from each network the device was on,
+ * backed by {@link android.content.SharedPreferences} so the first upload after a restart can go
+ * straight to the route that worked before.
+ */
+public class RouteCacheManager
+{
+    public static final String ROUTE_CACHE = "FlingrRouteCache";
+
+    // Desktops rarely move on a LAN, while WAN addresses and port forwards change more often
+    private static final long LAN_ENTRY_TTL_MS = 24L * 60L * 60L * 1000L;
+    private static final long WAN_ENTRY_TTL_MS = 6L * 60L * 60L * 1000L;
+
+    private static final RouteCacheManager routeCacheManager = new RouteCacheManager();
+
+    private final HashMap<String, RouteCacheEntry> entries = new HashMap<>();
+    private boolean isLoaded = false;
+
+    public static RouteCacheManager getInstance()
+    {
+        return routeCacheManager;
+    }
+
+    /**
+     * Private constructor.
+     */
+    private RouteCacheManager()
+    {
+    }
+
+    /**
+     * Creates the key a route is cached under.
+     *
+     * @param connection The connection.
+     * @param networkId  Identifier of the network the device is on.
+     *
+     * @return The cache key.
+     */
+    private static String createKey(Connection connection, String networkId)
+    {
+        return connection.getActivationCode() + "|" + connection.getUserName() + "|" + networkId;
+    }
+
+    /**
+     * Gets the route that last reached a connection from a network.
+     *
+     * @param context    An Android life-cycle object.
+     * @param connection The connection.
+     * @param networkId  Identifier of the network the device is on, may be null.
+     *
+     * @return The cached entry, or null if there is none or it expired.
+     */
+    public synchronized RouteCacheEntry getEntry(Context context, Connection connection, String networkId)
+    {
+        if (networkId == null)
+        {
+            return null;
+        }
+
+        load(context);
+        String key = createKey(connection, networkId);
+        RouteCacheEntry entry = entries.get(key);
+        if (entry != null && isExpired(entry, System.currentTimeMillis()))
+        {
+            entries.remove(key);
+            save(context);
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Records the route that reached a connection and persists the cache.
+     *
+     * @param context       An Android life-cycle object.
+     * @param connection    The connection.
+     * @param networkId     Identifier of the network the device is on, may be null.
+     * @param route         The route that worked.
+     * @param connectMillis How long establishing the session took.
+     */
+    public synchronized void putEntry(Context context, Connection connection, String networkId,
+                                      TransferRoute route, long connectMillis)
+    {
+        if (networkId == null)
+        {
+            return;
+        }
+
+        load(context);
+        entries.put(createKey(connection, networkId), new RouteCacheEntry(route, connectMillis));
+        save(context);
+    }
+
+    /**
+     * Forgets the route of a connection from a network after it failed.
+     *
+     * @param context    An Android life-cycle object.
+     * @param connection The connection.
+     * @param networkId  Identifier of the network the device is on, may be null.
+     */
+    public synchronized void invalidate(Context context, Connection connection, String networkId)
+    {
+        if (networkId == null)
+        {
+            return;
+        }
+
+        load(context);
+        if (entries.remove(createKey(connection, networkId)) != null)
+        {
+            save(context);
+        }
+    }
+
+    /**
+     * Whether an entry outlived its time to live.
+     *
+     * @param entry The entry.
+     * @param now   The current time in milliseconds since the epoch.
+     *
+     * @return True if the entry should no longer be used.
+     */
+    private static boolean isExpired(RouteCacheEntry entry, long now)
+    {
+        long ttl = entry.getRoute() == TransferRoute.LAN ? LAN_ENTRY_TTL_MS : WAN_ENTRY_TTL_MS;
+        return now - entry.getRecordedAt() > ttl;
+    }
+
+    /**
+     * Reads the cache from Shared Preferences the first time it is needed and drops expired
+     * entries.
+     *
+     * @param context An Android life-cycle object.
+     */
+    private void load(Context context)
+    {
+        if (!isLoaded && context != null)
+        {
+            isLoaded = true;
+
+            SharedPreferences sharedPreferences = context.getSharedPreferences(
+                    ConnectionManager.FLINGR_PREFS_LABEL, Context.MODE_PRIVATE);
+            String base64Cache = sharedPreferences.getString(ROUTE_CACHE, null);
+            if (base64Cache != null)
+            {
+                HashMap<String, RouteCacheEntry> savedEntries =
+                        Serializer.deserialize(Base64.decode(base64Cache, Base64.DEFAULT));
+                if (savedEntries != null)
+                {
+                    entries.putAll(savedEntries);
+                }
+            }
+
+            long now = System.currentTimeMillis();
+            Iterator<Map.Entry<String, RouteCacheEntry>> iterator = entries.entrySet().iterator();
+            while (iterator.hasNext())
+            {
+                if (isExpired(iterator.next().getValue(), now))
+                {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the cache to Shared Preferences.
+     *
+     * @param context An Android life-cycle object.
+     */
+    private void save(Context context)
+    {
+        if (context != null)
+        {
+            byte[] serializedObj = Serializer.serialize(entries);
+            if (serializedObj != null)
+            {
+                context.getSharedPreferences(ConnectionManager.FLINGR_PREFS_LABEL, Context.MODE_PRIVATE)
+                        .edit()
+                        .putString(ROUTE_CACHE, Base64.encodeToString(serializedObj, Base64.DEFAULT))
+                        .apply();
+            }
+        }
+    }
+}
@@ -0,0 +1,581 @@
+package flingr.app.managers;
+
+import com.jcraft.jsch.Channel;
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import timber.log.Timber;
+
+/**
+ * Keeps authenticated SSH {@link Session}s open between uploads so back to back transfers to
+ * the same desktop only need to open a new channel instead of repeating the key exchange and
+ * password authentication.
+ * <p>
+ * Sessions are keyed by user name, host, port and session configuration and are shared by every
+ * upload to that endpoint that asks for the same configuration, since JSch multiplexes channels
+ * over one session but negotiates settings such as compression once per session.  A session that nobody has leased
+ * for {@link SessionPoolManager#IDLE_TIMEOUT_MS} is disconnected.
+ * <p>
+ * A session that failed is taken out of the pool at once but only disconnected when the last
+ * upload still using it hands it back, so one broken channel doesn't kill the other transfers.
+ * <p>
+ * The desktop only allows {@link SessionPoolManager#MAX_CHANNELS_PER_SESSION} channels on a
+ * session, so uploads sharing one open their channels through the pool, which counts them and
+ * lets an upload wait for a channel another one is about to close.
+ */
+public class SessionPoolManager
+{
+    public static final int IDLE_TIMEOUT_MS = 60000;
+
+    // The desktop's sshd_config sets MaxSessions 3, which caps the channels open on one session
+    public static final int MAX_CHANNELS_PER_SESSION = 3;
+
+    private static final int KEEP_ALIVE_INTERVAL_MS = 15000;
+    private static final int KEEP_ALIVE_COUNT_MAX = 3;
+
+    // A keep alive is sent without waiting for the reply, so a session idle for this long is
+    // checked with a channel round trip before it is handed out again
+    private static final int HEALTH_CHECK_IDLE_MS = 5000;
+    private static final int HEALTH_CHECK_TIMEOUT_MS = 5000;
+
+    // Session config entry the pool key is stored under, so a session can be handed back
+    private static final String POOL_KEY_CONFIG = "flingr.pool_key";
+
+    private static final SessionPoolManager sessionPoolManager = new SessionPoolManager();
+
+    private final JSch jSch = new JSch();
+
+    private final HashMap<String, PooledSession> pooledSessions = new HashMap<>();
+
+    // Leases per session, which outlive the pool entry of a session that was taken out of it
+    private final HashMap<Session, Integer> sessionLeases = new HashMap<>();
+
+    // Channels opened through the pool, and how many of them each session has open
+    private final HashSet<Channel> openChannels = new HashSet<>();
+    private final HashMap<Session, Integer> sessionChannels = new HashMap<>();
+
+    private final ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(
+            (runnable) ->
+            {
+                Thread thread = new Thread(runnable, "FlingrSessionEvictor");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    public static SessionPoolManager getInstance()
+    {
+        return sessionPoolManager;
+    }
+
+    /**
+     * Private constructor.
+     */
+    private SessionPoolManager()
+    {
+    }
+
+    /**
+     * Creates the key a session is pooled under.
+     *
+     * @param userName The user name.
+     * @param host     The host address.
+     * @param port     The host port.
+     * @param config   JSch configuration the session is established with.
+     *
+     * @return The pool key.
+     */
+    public static String createKey(String userName, String host, int port, Map<String, String> config)
+    {
+        return userName + "@" + host + ":" + port + new TreeMap<>(config);
+    }
+
+    /**
+     * Leases a connected session to an endpoint, reusing a pooled one if it is still healthy.
+     * Every leased session must be handed back with {@link SessionPoolManager#release(Session)}.
+     *
+     * @param userName The user name.
+     * @param password The user's password.
+     * @param host     The host address.
+     * @param port     The host port.
+     * @param config   JSch configuration to establish the session with, such as compression.
+     * @param timeout  Connection timeout in milliseconds.
+     *
+     * @return A connected session.
+     *
+     * @throws JSchException if no session could be established.
+     */
+    public Session acquire(String userName, String password, String host, int port,
+                           Map<String, String> config, int timeout) throws JSchException
+    {
+        String key = createKey(userName, host, port, config);
+
+        PooledSession pooledSession;
+        boolean wasIdle;
+        synchronized (this)
+        {
+            pooledSession = pooledSessions.get(key);
+            if (pooledSession == null)
+            {
+                pooledSession = new PooledSession();
+                pooledSessions.put(key, pooledSession);
+            }
+            wasIdle = pooledSession.leases == 0
+                    && System.currentTimeMillis() - pooledSession.idleSince >= HEALTH_CHECK_IDLE_MS;
+            pooledSession.leases++;
+        }
+
+        // Only the connect is serialized per endpoint so concurrent uploads share one handshake
+        try
+        {
+            synchronized (pooledSession)
+            {
+                if (!isHealthy(pooledSession.session, wasIdle, timeout))
+                {
+                    if (pooledSession.session != null)
+                    {
+                        retire(key, pooledSession.session);
+                    }
+
+                    Session session = jSch.getSession(userName, host, port);
+                    session.setPassword(password);
+                    session.setTimeout(timeout);
+
+                    // There be dragons here...but this is just a working demonstration
+                    session.setConfig("StrictHostKeyChecking", "no");
+                    for (Map.Entry<String, String> entry : config.entrySet())
+                    {
+                        session.setConfig(entry.getKey(), entry.getValue());
+                    }
+                    session.setConfig(POOL_KEY_CONFIG, key);
+
+                    session.connect();
+
+                    session.setServerAliveInterval(KEEP_ALIVE_INTERVAL_MS);
+                    session.setServerAliveCountMax(KEEP_ALIVE_COUNT_MAX);
+
+                    pooledSession.session = session;
+                }
+
+                Session session = pooledSession.session;
+                synchronized (this)
+                {
+                    Integer leases = sessionLeases.get(session);
+                    sessionLeases.put(session, leases != null ? leases + 1 : 1);
+                }
+                return session;
+            }
+        }
+        catch (JSchException | RuntimeException e)
+        {
+            releaseLease(key, pooledSession);
+            throw e;
+        }
+    }
+
+    /**
+     * Hands a leased session back to the pool.
+     *
+     * @param session The session returned by {@link SessionPoolManager#acquire}, may be null.
+     */
+    public void release(Session session)
+    {
+        if (session != null)
+        {
+            String key = session.getConfig(POOL_KEY_CONFIG);
+
+            PooledSession pooledSession;
+            boolean isLastLeaseOfRetired;
+            synchronized (this)
+            {
+                pooledSession = pooledSessions.get(key);
+                isLastLeaseOfRetired = returnSessionLease(session) == 0
+                        && (pooledSession == null || pooledSession.session != session);
+            }
+
+            if (isLastLeaseOfRetired)
+            {
+                // The session was invalidated while it was leased
+                session.disconnect();
+            }
+
+            if (pooledSession != null)
+            {
+                releaseLease(key, pooledSession);
+            }
+        }
+    }
+
+    /**
+     * Takes a session that failed out of the pool so the next lease creates a fresh one.  It is
+     * disconnected once the caller's lease is the only one left, so other uploads still using it
+     * finish or fail on their own.
+     *
+     * @param session The broken session, may be null.
+     */
+    public void invalidate(Session session)
+    {
+        if (session != null)
+        {
+            retire(session.getConfig(POOL_KEY_CONFIG), session);
+        }
+    }
+
+    /**
+     * Disconnects the session of a cancelled upload right away, unless other uploads are still
+     * using it.
+     *
+     * @param session The leased session, may be null.
+     *
+     * @return True if the session was disconnected.
+     */
+    public boolean abort(Session session)
+    {
+        if (session == null)
+        {
+            return false;
+        }
+
+        synchronized (this)
+        {
+            Integer leases = sessionLeases.get(session);
+            if (leases != null && leases > 1)
+            {
+                return false;
+            }
+        }
+
+        invalidate(session);
+        return true;
+    }
+
+    /**
+     * Opens a channel on a leased session, waiting for another upload to close one if the
+     * session already has as many channels open as the desktop allows.  The channel is not
+     * connected yet, and must be closed with {@link SessionPoolManager#closeChannel}.
+     *
+     * @param session The leased session.
+     * @param type    Type of the channel, such as "sftp" or "exec".
+     * @param timeout Longest time to wait for a free channel in milliseconds.
+     *
+     * @return The channel.
+     *
+     * @throws JSchException if no channel became free in time or the channel couldn't be made.
+     */
+    public Channel openChannel(Session session, String type, int timeout) throws JSchException
+    {
+        synchronized (this)
+        {
+            long deadline = System.currentTimeMillis() + timeout;
+            while (getOpenChannels(session) >= MAX_CHANNELS_PER_SESSION)
+            {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0)
+                {
+                    throw new JSchException("No free channel on the session");
+                }
+
+                try
+                {
+                    wait(remaining);
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    throw new JSchException("Interrupted while waiting for a free channel", e);
+                }
+            }
+            sessionChannels.put(session, getOpenChannels(session) + 1);
+        }
+
+        return createChannel(session, type);
+    }
+
+    /**
+     * Opens an extra channel on a leased session only if the session can spare it, which leaves
+     * a channel free for every other upload the queue may run to the same desktop.  Used for
+     * channels an upload can do without, such as additional stripes.
+     *
+     * @param session The leased session.
+     * @param type    Type of the channel, such as "sftp" or "exec".
+     *
+     * @return The channel, not connected yet, or null if the session can't spare one.
+     *
+     * @throws JSchException if the channel couldn't be made.
+     */
+    public Channel openSpareChannel(Session session, String type) throws JSchException
+    {
+        synchronized (this)
+        {
+            if (getOpenChannels(session) + UploadQueueManager.MAX_UPLOADS_PER_CONNECTION
+                    > MAX_CHANNELS_PER_SESSION)
+            {
+                return null;
+            }
+            sessionChannels.put(session, getOpenChannels(session) + 1);
+        }
+
+        return createChannel(session, type);
+    }
+
+    /**
+     * Disconnects a channel opened through the pool and frees its place on the session.  Closing
+     * a channel twice is harmless.
+     *
+     * @param session The session the channel was opened on.
+     * @param channel The channel, may be null.
+     */
+    public void closeChannel(Session session, Channel channel)
+    {
+        if (channel != null)
+        {
+            channel.disconnect();
+
+            synchronized (this)
+            {
+                if (openChannels.remove(channel))
+                {
+                    returnChannel(session);
+                }
+            }
+        }
+    }
+
+    /**
+     * Disconnects every pooled session.
+     */
+    public synchronized void closeAll()
+    {
+        for (PooledSession pooledSession : pooledSessions.values())
+        {
+            if (pooledSession.session != null)
+            {
+                pooledSession.session.disconnect();
+            }
+        }
+        pooledSessions.clear();
+        sessionLeases.clear();
+        openChannels.clear();
+        sessionChannels.clear();
+        notifyAll();
+    }
+
+    /**
+     * Takes a session out of its pool entry and disconnects it unless more than one upload still
+     * holds a lease on it, in which case the last one to hand it back disconnects it.
+     *
+     * @param key     Pool key of the session.
+     * @param session The session.
+     */
+    private void retire(String key, Session session)
+    {
+        boolean isUnused;
+        synchronized (this)
+        {
+            PooledSession pooledSession = pooledSessions.get(key);
+            if (pooledSession != null && pooledSession.session == session)
+            {
+                pooledSession.session = null;
+            }
+
+            Integer leases = sessionLeases.get(session);
+            isUnused = leases == null || leases <= 1;
+        }
+
+        if (isUnused)
+        {
+            session.disconnect();
+        }
+    }
+
+    /**
+     * Makes a channel whose place on the session was already counted.
+     *
+     * @param session The session.
+     * @param type    Type of the channel.
+     *
+     * @return The channel.
+     *
+     * @throws JSchException if the channel couldn't be made.
+     */
+    private Channel createChannel(Session session, String type) throws JSchException
+    {
+        try
+        {
+            Channel channel = session.openChannel(type);
+            synchronized (this)
+            {
+                openChannels.add(channel);
+            }
+            return channel;
+        }
+        catch (JSchException | RuntimeException e)
+        {
+            synchronized (this)
+            {
+                returnChannel(session);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Gets the number of channels open on a session.
+     *
+     * @param session The session.
+     *
+     * @return Number of channels.
+     */
+    private int getOpenChannels(Session session)
+    {
+        Integer channels = sessionChannels.get(session);
+        return channels != null ? channels : 0;
+    }
+
+    /**
+     * Frees the place of a channel on a session and wakes the uploads waiting for one.
+     *
+     * @param session The session.
+     */
+    private void returnChannel(Session session)
+    {
+        int channels = getOpenChannels(session);
+        if (channels <= 1)
+        {
+            sessionChannels.remove(session);
+        }
+        else
+        {
+            sessionChannels.put(session, channels - 1);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Counts down the leases of a session.
+     *
+     * @param session The session.
+     *
+     * @return Number of leases still held on it.
+     */
+    private int returnSessionLease(Session session)
+    {
+        Integer leases = sessionLeases.get(session);
+        if (leases == null || leases <= 1)
+        {
+            sessionLeases.remove(session);
+            return 0;
+        }
+        sessionLeases.put(session, leases - 1);
+        return leases - 1;
+    }
+
+    /**
+     * Returns a lease and schedules the session for eviction when it is no longer used.
+     *
+     * @param key           Pool key of the session.
+     * @param pooledSession The pool entry.
+     */
+    private synchronized void releaseLease(String key, PooledSession pooledSession)
+    {
+        pooledSession.leases--;
+        if (pooledSession.leases <= 0)
+        {
+            pooledSession.leases = 0;
+            pooledSession.idleSince = System.currentTimeMillis();
+
+            if (pooledSession.session == null)
+            {
+                pooledSessions.remove(key);
+            }
+            else
+            {
+                evictor.schedule(this::evictIdleSessions, IDLE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Disconnects sessions that have been idle for longer than the idle timeout.
+     */
+    private synchronized void evictIdleSessions()
+    {
+        long now = System.currentTimeMillis();
+
+        Iterator<Map.Entry<String, PooledSession>> iterator = pooledSessions.entrySet().iterator();
+        while (iterator.hasNext())
+        {
+            PooledSession pooledSession = iterator.next().getValue();
+            if (pooledSession.leases == 0 && now - pooledSession.idleSince >= IDLE_TIMEOUT_MS)
+            {
+                if (pooledSession.session != null)
+                {
+                    pooledSession.session.disconnect();
+                }
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Checks that a pooled session can still carry channels.  A session that sat idle has to
+     * open a channel, since a half open TCP connection still looks connected and accepts writes.
+     *
+     * @param session The session to check, may be null.
+     * @param wasIdle True if nobody used the session for a while.
+     * @param timeout Connection timeout in milliseconds.
+     *
+     * @return True if the session is connected, and answered if it was idle.
+     */
+    private static boolean isHealthy(Session session, boolean wasIdle, int timeout)
+    {
+        if (session == null || !session.isConnected())
+        {
+            return false;
+        }
+        if (!wasIdle)
+        {
+            return true;
+        }
+
+        Channel channel = null;
+        try
+        {
+            // The desktop confirms the open and answers the SFTP version exchange
+            channel = session.openChannel("sftp");
+            channel.connect(Math.min(timeout, HEALTH_CHECK_TIMEOUT_MS));
+            return true;
+        }
+        catch (Exception e)
+        {
+            Timber.w(e, "Pooled session failed its health check");
+            return false;
+        }
+        finally
+        {
+            if (channel != null)
+            {
+                channel.disconnect();
+            }
+        }
+    }
+
+    /**
+     * A shared session and the number of uploads currently using it.
+     */
+    private static class PooledSession
+    {
+        private volatile Session session;
+        private int leases = 0;
+        private long idleSince;
+    }
+}
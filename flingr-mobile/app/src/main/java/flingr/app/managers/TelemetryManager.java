@@ -0,0 +1,446 @@
+package flingr.app.managers;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+import android.util.Base64;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import flingr.app.entities.PhaseSample;
+import flingr.app.entities.TransferPhase;
+import flingr.app.entities.TransferRoute;
+import flingr.app.utilities.Serializer;
+
+/**
+ * Keeps the most recent {@link PhaseSample}s of uploads in a ring buffer, summarizes them as
+ * percentiles and exports them as JSON or CSV for diagnostics.
+ * <p>
+ * The buffer is kept in its own Shared Preferences file so it doesn't bloat the preferences the
+ * connections are read from.
+ */
+public class TelemetryManager
+{
+    public static final String TELEMETRY_PREFS_LABEL = "FlingrTelemetryPrefs";
+    public static final String PHASE_SAMPLES = "FlingrPhaseSamples";
+
+    private static final int MAX_SAMPLES = 1000;
+    private static final String EXPORT_DIRECTORY = "diagnostics";
+
+    private static final TelemetryManager telemetryManager = new TelemetryManager();
+
+    private final ArrayDeque<PhaseSample> samples = new ArrayDeque<>();
+    private final AtomicLong transferCount = new AtomicLong(System.currentTimeMillis());
+    private boolean isLoaded = false;
+
+    public static TelemetryManager getInstance()
+    {
+        return telemetryManager;
+    }
+
+    /**
+     * Private constructor.
+     */
+    private TelemetryManager()
+    {
+    }
+
+    /**
+     * Creates an identifier to tie the phases of one upload attempt together.
+     *
+     * @return A new transfer id.
+     */
+    public long nextTransferId()
+    {
+        return transferCount.incrementAndGet();
+    }
+
+    /**
+     * Records a phase that started at a point in time and just finished.
+     *
+     * @param transferId  Identifier of the upload attempt, 0 if none.
+     * @param phase       The phase.
+     * @param route       The route the phase ran over, may be null.
+     * @param startMillis {@link SystemClock#elapsedRealtime()} when the phase started.
+     * @param bytes       Number of bytes the phase moved.
+     * @param isSuccess   True if the phase completed.
+     */
+    public void record(long transferId, TransferPhase phase, TransferRoute route, long startMillis,
+                       long bytes, boolean isSuccess)
+    {
+        long duration = SystemClock.elapsedRealtime() - startMillis;
+        record(new PhaseSample(transferId, phase, route, duration, bytes, isSuccess));
+    }
+
+    /**
+     * Adds a sample, dropping the oldest one if the buffer is full.
+     *
+     * @param sample The sample.
+     */
+    public synchronized void record(PhaseSample sample)
+    {
+        if (samples.size() >= MAX_SAMPLES)
+        {
+            samples.removeFirst();
+        }
+        samples.addLast(sample);
+    }
+
+    /**
+     * Gets a copy of the buffered samples, oldest first.
+     *
+     * @return The samples.
+     */
+    public synchronized List<PhaseSample> getSamples()
+    {
+        return new ArrayList<>(samples);
+    }
+
+    /**
+     * Summarizes the durations of a phase.
+     *
+     * @param phase The phase.
+     * @param route The route to summarize, null for every route.
+     *
+     * @return The summary.
+     */
+    public PhaseSummary getSummary(TransferPhase phase, TransferRoute route)
+    {
+        List<Long> durations = new ArrayList<>();
+        long bytes = 0;
+        long totalMillis = 0;
+        int failures = 0;
+
+        for (PhaseSample sample : getSamples())
+        {
+            if (sample.getPhase() == phase && (route == null || sample.getRoute() == route))
+            {
+                if (sample.isSuccess())
+                {
+                    durations.add(sample.getDurationMillis());
+                    bytes += sample.getBytes();
+                    totalMillis += sample.getDurationMillis();
+                }
+                else
+                {
+                    failures++;
+                }
+            }
+        }
+
+        long[] sorted = new long[durations.size()];
+        for (int i = 0; i < sorted.length; i++)
+        {
+            sorted[i] = durations.get(i);
+        }
+        Arrays.sort(sorted);
+
+        long bytesPerSecond = totalMillis > 0 ? bytes * 1000L / totalMillis : 0;
+        return new PhaseSummary(phase, route, sorted.length, failures, percentile(sorted, 50),
+                percentile(sorted, 90), percentile(sorted, 99), bytesPerSecond);
+    }
+
+    /**
+     * Exports the summaries and every buffered sample as JSON.
+     *
+     * @return The JSON document.
+     *
+     * @throws JSONException if the document could not be built.
+     */
+    public String exportJson() throws JSONException
+    {
+        JSONArray summaries = new JSONArray();
+        for (TransferPhase phase : TransferPhase.values())
+        {
+            for (TransferRoute route : new TransferRoute[]{null, TransferRoute.LAN, TransferRoute.WAN})
+            {
+                PhaseSummary summary = getSummary(phase, route);
+                if (summary.getCount() + summary.getFailures() > 0)
+                {
+                    summaries.put(new JSONObject()
+                            .put("phase", phase.name())
+                            .put("route", route != null ? route.name() : "ALL")
+                            .put("count", summary.getCount())
+                            .put("failures", summary.getFailures())
+                            .put("p50Millis", summary.getP50Millis())
+                            .put("p90Millis", summary.getP90Millis())
+                            .put("p99Millis", summary.getP99Millis())
+                            .put("bytesPerSecond", summary.getBytesPerSecond()));
+                }
+            }
+        }
+
+        JSONArray sampleArray = new JSONArray();
+        for (PhaseSample sample : getSamples())
+        {
+            sampleArray.put(new JSONObject()
+                    .put("transferId", sample.getTransferId())
+                    .put("recordedAt", sample.getRecordedAt())
+                    .put("phase", sample.getPhase().name())
+                    .put("route", sample.getRoute() != null ? sample.getRoute().name() : "")
+                    .put("durationMillis", sample.getDurationMillis())
+                    .put("bytes", sample.getBytes())
+                    .put("success", sample.isSuccess()));
+        }
+
+        return new JSONObject()
+                .put("summaries", summaries)
+                .put("samples", sampleArray)
+                .toString(2);
+    }
+
+    /**
+     * Exports every buffered sample as CSV, one row per sample.
+     *
+     * @return The CSV document.
+     */
+    public String exportCsv()
+    {
+        StringBuilder csv = new StringBuilder(
+                "transferId,recordedAt,phase,route,durationMillis,bytes,success\n");
+        for (PhaseSample sample : getSamples())
+        {
+            csv.append(sample.getTransferId()).append(',')
+                    .append(sample.getRecordedAt()).append(',')
+                    .append(sample.getPhase().name()).append(',')
+                    .append(sample.getRoute() != null ? sample.getRoute().name() : "").append(',')
+                    .append(sample.getDurationMillis()).append(',')
+                    .append(sample.getBytes()).append(',')
+                    .append(sample.isSuccess()).append('\n');
+        }
+        return csv.toString();
+    }
+
+    /**
+     * Writes the JSON and CSV exports to the app's external files directory, where they can be
+     * pulled off the device without root.
+     *
+     * @param context An Android life-cycle object.
+     *
+     * @return The directory the exports were written to.
+     *
+     * @throws IOException   if the files could not be written.
+     * @throws JSONException if the JSON document could not be built.
+     */
+    public File writeExports(Context context) throws IOException, JSONException
+    {
+        File directory = context.getExternalFilesDir(EXPORT_DIRECTORY);
+        if (directory == null)
+        {
+            directory = new File(context.getFilesDir(), EXPORT_DIRECTORY);
+        }
+        if (!directory.isDirectory() && !directory.mkdirs())
+        {
+            throw new IOException("Unable to create " + directory);
+        }
+
+        writeFile(new File(directory, "telemetry.json"), exportJson());
+        writeFile(new File(directory, "telemetry.csv"), exportCsv());
+        return directory;
+    }
+
+    /**
+     * Reads the samples saved by a previous process the first time it is called.
+     *
+     * @param context An Android life-cycle object.
+     */
+    public synchronized void load(Context context)
+    {
+        if (!isLoaded && context != null)
+        {
+            isLoaded = true;
+
+            SharedPreferences sharedPreferences = context.getSharedPreferences(
+                    TELEMETRY_PREFS_LABEL, Context.MODE_PRIVATE);
+            String base64Samples = sharedPreferences.getString(PHASE_SAMPLES, null);
+            if (base64Samples != null)
+            {
+                ArrayList<PhaseSample> savedSamples =
+                        Serializer.deserialize(Base64.decode(base64Samples, Base64.DEFAULT));
+                if (savedSamples != null)
+                {
+                    // Samples recorded before loading are newer than the saved ones
+                    for (int i = savedSamples.size() - 1; i >= 0 && samples.size() < MAX_SAMPLES; i--)
+                    {
+                        samples.addFirst(savedSamples.get(i));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the samples to Shared Preferences.
+     *
+     * @param context An Android life-cycle object.
+     */
+    public void save(Context context)
+    {
+        if (context != null)
+        {
+            byte[] serializedObj = Serializer.serialize(getSamples());
+            if (serializedObj != null)
+            {
+                context.getSharedPreferences(TELEMETRY_PREFS_LABEL, Context.MODE_PRIVATE)
+                        .edit()
+                        .putString(PHASE_SAMPLES, Base64.encodeToString(serializedObj, Base64.DEFAULT))
+                        .apply();
+            }
+        }
+    }
+
+    /**
+     * Gets a percentile of sorted values by the nearest rank.
+     *
+     * @param sorted     The values in ascending order.
+     * @param percentile The percentile between 1 and 100.
+     *
+     * @return The value, or 0 if there are none.
+     */
+    private static long percentile(long[] sorted, int percentile)
+    {
+        if (sorted.length == 0)
+        {
+            return 0;
+        }
+        int rank = (int) Math.ceil(percentile / 100.0 * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+    /**
+     * Writes a text file.
+     *
+     * @param file     The file.
+     * @param contents The text.
+     *
+     * @throws IOException if the file could not be written.
+     */
+    private static void writeFile(File file, String contents) throws IOException
+    {
+        try (FileOutputStream outputStream = new FileOutputStream(file))
+        {
+            outputStream.write(contents.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Percentiles of the successful samples of a phase.
+     */
+    public static class PhaseSummary
+    {
+        private final TransferPhase phase;
+        private final TransferRoute route;
+        private final int count;
+        private final int failures;
+        private final long p50Millis;
+        private final long p90Millis;
+        private final long p99Millis;
+        private final long bytesPerSecond;
+
+        PhaseSummary(TransferPhase phase, TransferRoute route, int count, int failures,
+                     long p50Millis, long p90Millis, long p99Millis, long bytesPerSecond)
+        {
+            this.phase = phase;
+            this.route = route;
+            this.count = count;
+            this.failures = failures;
+            this.p50Millis = p50Millis;
+            this.p90Millis = p90Millis;
+            this.p99Millis = p99Millis;
+            this.bytesPerSecond = bytesPerSecond;
+        }
+
+        /**
+         * Gets the phase.
+         *
+         * @return The phase.
+         */
+        public TransferPhase getPhase()
+        {
+            return phase;
+        }
+
+        /**
+         * Gets the route summarized.
+         *
+         * @return The route, null for every route.
+         */
+        public TransferRoute getRoute()
+        {
+            return route;
+        }
+
+        /**
+         * Gets the number of successful samples.
+         *
+         * @return The sample count.
+         */
+        public int getCount()
+        {
+            return count;
+        }
+
+        /**
+         * Gets the number of failed samples.
+         *
+         * @return The failure count.
+         */
+        public int getFailures()
+        {
+            return failures;
+        }
+
+        /**
+         * Gets the median duration.
+         *
+         * @return Duration in milliseconds.
+         */
+        public long getP50Millis()
+        {
+            return p50Millis;
+        }
+
+        /**
+         * Gets the 90th percentile duration.
+         *
+         * @return Duration in milliseconds.
+         */
+        public long getP90Millis()
+        {
+            return p90Millis;
+        }
+
+        /**
+         * Gets the 99th percentile duration.
+         *
+         * @return Duration in milliseconds.
+         */
+        public long getP99Millis()
+        {
+            return p99Millis;
+        }
+
+        /**
+         * Gets the aggregate throughput of the phase, which is only meaningful for
+         * {@link TransferPhase#TRANSFER}.
+         *
+         * @return Bytes per second.
+         */
+        public long getBytesPerSecond()
+        {
+            return bytesPerSecond;
+        }
+    }
+}
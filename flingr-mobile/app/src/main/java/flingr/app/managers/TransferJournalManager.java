@@ -0,0 +1,176 @@
+package flingr.app.managers;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Base64;
+
+import java.util.HashMap;
+import java.util.Iterator;
+
+import flingr.app.entities.Connection;
+import flingr.app.entities.TransferRecord;
+import flingr.app.utilities.Serializer;
+
+/**
+ * Durable journal of uploads that are in flight, backed by
+ * {@link android.content.SharedPreferences} so an interrupted upload can continue where it
+ * stopped, even after the process was killed.
+ */
+public class TransferJournalManager
+{
+    public static final String TRANSFER_JOURNAL = "FlingrTransferJournal";
+
+    // Records this old are assumed to belong to uploads the user gave up on
+    private static final long RECORD_EXPIRY_MS = 7L * 24L * 60L * 60L * 1000L;
+
+    private static final TransferJournalManager transferJournalManager = new TransferJournalManager();
+
+    private final HashMap<String, TransferRecord> records = new HashMap<>();
+    private boolean isLoaded = false;
+
+    public static TransferJournalManager getInstance()
+    {
+        return transferJournalManager;
+    }
+
+    /**
+     * Private constructor.
+     */
+    private TransferJournalManager()
+    {
+    }
+
+    /**
+     * Creates the key an upload is journaled under.  The activation code identifies the desktop
+     * no matter whether it is reached over the LAN or the WAN.
+     *
+     * @param connection The connection the file is sent to.
+     * @param sourceUri  Uri of the local file.
+     * @param remoteName Name of the remote file.
+     *
+     * @return The journal key.
+     */
+    public static String createKey(Connection connection, String sourceUri, String remoteName)
+    {
+        return connection.getActivationCode() + "|" + connection.getUserName() + "|"
+                + sourceUri + "|" + remoteName;
+    }
+
+    /**
+     * Gets the record of an unfinished upload.
+     *
+     * @param context An Android life-cycle object.
+     * @param key     Journal key from {@link TransferJournalManager#createKey}.
+     *
+     * @return The record, or null if there is no unfinished upload.
+     */
+    public synchronized TransferRecord getRecord(Context context, String key)
+    {
+        load(context);
+        return records.get(key);
+    }
+
+    /**
+     * Adds or replaces the record of an upload and persists the journal.
+     *
+     * @param context An Android life-cycle object.
+     * @param key     Journal key from {@link TransferJournalManager#createKey}.
+     * @param record  The record.
+     */
+    public synchronized void putRecord(Context context, String key, TransferRecord record)
+    {
+        load(context);
+        records.put(key, record);
+        save(context);
+    }
+
+    /**
+     * Persists the progress of a journaled upload.
+     *
+     * @param context        An Android life-cycle object.
+     * @param key            Journal key from {@link TransferJournalManager#createKey}.
+     * @param bytesConfirmed Number of bytes handed to the server.
+     */
+    public synchronized void updateProgress(Context context, String key, long bytesConfirmed)
+    {
+        load(context);
+        TransferRecord record = records.get(key);
+        if (record != null)
+        {
+            record.setBytesConfirmed(bytesConfirmed);
+            save(context);
+        }
+    }
+
+    /**
+     * Removes the record of an upload that finished or can't be resumed.
+     *
+     * @param context An Android life-cycle object.
+     * @param key     Journal key from {@link TransferJournalManager#createKey}.
+     */
+    public synchronized void removeRecord(Context context, String key)
+    {
+        load(context);
+        if (records.remove(key) != null)
+        {
+            save(context);
+        }
+    }
+
+    /**
+     * Reads the journal from Shared Preferences the first time it is needed and drops expired
+     * records.
+     *
+     * @param context An Android life-cycle object.
+     */
+    private void load(Context context)
+    {
+        if (!isLoaded && context != null)
+        {
+            isLoaded = true;
+
+            SharedPreferences sharedPreferences = context.getSharedPreferences(
+                    ConnectionManager.FLINGR_PREFS_LABEL, Context.MODE_PRIVATE);
+            String base64Journal = sharedPreferences.getString(TRANSFER_JOURNAL, null);
+            if (base64Journal != null)
+            {
+                HashMap<String, TransferRecord> savedRecords =
+                        Serializer.deserialize(Base64.decode(base64Journal, Base64.DEFAULT));
+                if (savedRecords != null)
+                {
+                    records.putAll(savedRecords);
+                }
+            }
+
+            long now = System.currentTimeMillis();
+            Iterator<TransferRecord> iterator = records.values().iterator();
+            while (iterator.hasNext())
+            {
+                if (now - iterator.next().getLastUpdated() > RECORD_EXPIRY_MS)
+                {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the journal to Shared Preferences.
+     *
+     * @param context An Android life-cycle object.
+     */
+    private void save(Context context)
+    {
+        if (context != null)
+        {
+            byte[] serializedObj = Serializer.serialize(records);
+            if (serializedObj != null)
+            {
+                context.getSharedPreferences(ConnectionManager.FLINGR_PREFS_LABEL, Context.MODE_PRIVATE)
+                        .edit()
+                        .putString(TRANSFER_JOURNAL, Base64.encodeToString(serializedObj, Base64.DEFAULT))
+                        .apply();
+            }
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package flingr.app.managers;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import flingr.app.entities.TransferProgress;
+import timber.log.Timber;
+
+/**
+ * Delivers {@link TransferProgress} snapshots to any number of listeners, such as the upload
+ * notification or the in-app UI.
+ * <p>
+ * Snapshots are handed to listeners on a single background thread in the order they were
+ * published, so the upload threads never block on a listener.
+ */
+public class TransferProgressManager
+{
+    private static final TransferProgressManager transferProgressManager = new TransferProgressManager();
+
+    private final CopyOnWriteArrayList<ProgressListener> listeners = new CopyOnWriteArrayList<>();
+    private final LinkedHashMap<Integer, TransferProgress> latestProgress = new LinkedHashMap<>();
+    private final ExecutorService dispatcher = Executors.newSingleThreadExecutor((runnable) ->
+    {
+        Thread thread = new Thread(runnable, "FlingrProgress");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public static TransferProgressManager getInstance()
+    {
+        return transferProgressManager;
+    }
+
+    /**
+     * Private constructor.
+     */
+    private TransferProgressManager()
+    {
+    }
+
+    /**
+     * Subscribes a listener and replays the latest snapshot of every unfinished batch to it.
+     *
+     * @param listener The listener.
+     */
+    public void addListener(ProgressListener listener)
+    {
+        dispatcher.execute(() ->
+        {
+            if (listeners.addIfAbsent(listener))
+            {
+                List<TransferProgress> snapshots;
+                synchronized (latestProgress)
+                {
+                    snapshots = new ArrayList<>(latestProgress.values());
+                }
+                for (TransferProgress progress : snapshots)
+                {
+                    notifyListener(listener, progress);
+                }
+            }
+        });
+    }
+
+    /**
+     * Unsubscribes a listener.  It may still receive a snapshot that was already being delivered.
+     *
+     * @param listener The listener.
+     */
+    public void removeListener(ProgressListener listener)
+    {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Publishes a snapshot to every listener.
+     *
+     * @param progress The snapshot.
+     */
+    public void publish(TransferProgress progress)
+    {
+        synchronized (latestProgress)
+        {
+            if (progress.isFinished())
+            {
+                latestProgress.remove(progress.getBatchId());
+            }
+            else
+            {
+                latestProgress.put(progress.getBatchId(), progress);
+            }
+        }
+
+        dispatcher.execute(() ->
+        {
+            for (ProgressListener listener : listeners)
+            {
+                notifyListener(listener, progress);
+            }
+        });
+    }
+
+    /**
+     * Hands a snapshot to a listener, keeping one faulty listener from starving the others.
+     *
+     * @param listener The listener.
+     * @param progress The snapshot.
+     */
+    private static void notifyListener(ProgressListener listener, TransferProgress progress)
+    {
+        try
+        {
+            listener.onProgress(progress);
+        }
+        catch (RuntimeException e)
+        {
+            Timber.e(e, "Progress listener failed");
+        }
+    }
+
+    /**
+     * Receives the progress of uploads.
+     */
+    public interface ProgressListener
+    {
+        /**
+         * Called on the progress thread whenever the progress of a batch changed noticeably.
+         *
+         * @param progress Snapshot of the batch.
+         */
+        void onProgress(TransferProgress progress);
+    }
+}
@@ -0,0 +1,186 @@
+package flingr.app.managers;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Base64;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import flingr.app.entities.Connection;
+import flingr.app.entities.UploadIndexEntry;
+import flingr.app.utilities.Serializer;
+
+/**
+ * Index of the files uploaded to each {@link Connection} and their content hashes, backed by
+ * {@link android.content.SharedPreferences} so re-sharing a file that is already on the desktop
+ * can be skipped.
+ * <p>
+ * The index is rewritten after every upload, so it is kept in its own Shared Preferences file
+ * instead of the one the connections are read from.
+ */
+public class UploadIndexManager
+{
+    public static final String UPLOAD_INDEX_PREFS_LABEL = "FlingrUploadIndexPrefs";
+    public static final String UPLOAD_INDEX = "FlingrUploadIndex";
+
+    // Beyond this the oldest uploads are forgotten, they are the least likely to be shared again
+    private static final int MAX_ENTRIES = 2000;
+
+    private static final UploadIndexManager uploadIndexManager = new UploadIndexManager();
+
+    private final HashMap<String, UploadIndexEntry> entries = new HashMap<>();
+    private boolean isLoaded = false;
+
+    public static UploadIndexManager getInstance()
+    {
+        return uploadIndexManager;
+    }
+
+    /**
+     * Private constructor.
+     */
+    private UploadIndexManager()
+    {
+    }
+
+    /**
+     * Creates the key an upload is indexed under.
+     *
+     * @param connection The connection the file was sent to.
+     * @param remoteName Name of the remote file.
+     *
+     * @return The index key.
+     */
+    private static String createKey(Connection connection, String remoteName)
+    {
+        return connection.getActivationCode() + "|" + connection.getUserName() + "|" + remoteName;
+    }
+
+    /**
+     * Gets what was last uploaded to a remote file.
+     *
+     * @param context    An Android life-cycle object.
+     * @param connection The connection the file was sent to.
+     * @param remoteName Name of the remote file.
+     *
+     * @return The entry, or null if the file is not indexed.
+     */
+    public synchronized UploadIndexEntry getEntry(Context context, Connection connection,
+                                                  String remoteName)
+    {
+        load(context);
+        return entries.get(createKey(connection, remoteName));
+    }
+
+    /**
+     * Records a finished upload and persists the index.
+     *
+     * @param context    An Android life-cycle object.
+     * @param connection The connection the file was sent to.
+     * @param entry      The entry.
+     */
+    public synchronized void putEntry(Context context, Connection connection,
+                                      UploadIndexEntry entry)
+    {
+        load(context);
+        entries.put(createKey(connection, entry.getRemoteName()), entry);
+        if (entries.size() > MAX_ENTRIES)
+        {
+            removeOldestEntry();
+        }
+        save(context);
+    }
+
+    /**
+     * Forgets a remote file that no longer holds what was uploaded to it.
+     *
+     * @param context    An Android life-cycle object.
+     * @param connection The connection the file was sent to.
+     * @param remoteName Name of the remote file.
+     */
+    public synchronized void removeEntry(Context context, Connection connection, String remoteName)
+    {
+        load(context);
+        if (entries.remove(createKey(connection, remoteName)) != null)
+        {
+            save(context);
+        }
+    }
+
+    /**
+     * Drops the entry that was indexed first.
+     */
+    private void removeOldestEntry()
+    {
+        String oldestKey = null;
+        long oldestTime = Long.MAX_VALUE;
+        for (Map.Entry<String, UploadIndexEntry> entry : entries.entrySet())
+        {
+            if (entry.getValue().getIndexedAt() < oldestTime)
+            {
+                oldestTime = entry.getValue().getIndexedAt();
+                oldestKey = entry.getKey();
+            }
+        }
+        entries.remove(oldestKey);
+    }
+
+    /**
+     * Reads the index from Shared Preferences the first time it is needed.
+     *
+     * @param context An Android life-cycle object.
+     */
+    private void load(Context context)
+    {
+        if (!isLoaded && context != null)
+        {
+            isLoaded = true;
+
+            SharedPreferences sharedPreferences = context.getSharedPreferences(
+                    UPLOAD_INDEX_PREFS_LABEL, Context.MODE_PRIVATE);
+            String base64Index = sharedPreferences.getString(UPLOAD_INDEX, null);
+            if (base64Index == null)
+            {
+                // Move an index saved next to the connections into its own file
+                SharedPreferences flingrPreferences = context.getSharedPreferences(
+                        ConnectionManager.FLINGR_PREFS_LABEL, Context.MODE_PRIVATE);
+                base64Index = flingrPreferences.getString(UPLOAD_INDEX, null);
+                if (base64Index != null)
+                {
+                    sharedPreferences.edit().putString(UPLOAD_INDEX, base64Index).apply();
+                    flingrPreferences.edit().remove(UPLOAD_INDEX).apply();
+                }
+            }
+            if (base64Index != null)
+            {
+                HashMap<String, UploadIndexEntry> savedEntries =
+                        Serializer.deserialize(Base64.decode(base64Index, Base64.DEFAULT));
+                if (savedEntries != null)
+                {
+                    entries.putAll(savedEntries);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the index to Shared Preferences.
+     *
+     * @param context An Android life-cycle object.
+     */
+    private void save(Context context)
+    {
+        if (context != null)
+        {
+            byte[] serializedObj = Serializer.serialize(entries);
+            if (serializedObj != null)
+            {
+                context.getSharedPreferences(UPLOAD_INDEX_PREFS_LABEL, Context.MODE_PRIVATE)
+                        .edit()
+                        .putString(UPLOAD_INDEX, Base64.encodeToString(serializedObj, Base64.DEFAULT))
+                        .apply();
+            }
+        }
+    }
+}
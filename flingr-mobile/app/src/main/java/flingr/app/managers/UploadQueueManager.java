@@ -0,0 +1,310 @@
+package flingr.app.managers;
+
+import android.os.Process;
+import android.os.SystemClock;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import flingr.app.entities.Connection;
+import flingr.app.entities.UploadPriority;
+import timber.log.Timber;
+
+/**
+ * Queues uploads and runs them on a bounded pool of worker threads.
+ * <p>
+ * At most {@link UploadQueueManager#MAX_CONCURRENT_UPLOADS} uploads run at once, and at most
+ * {@link UploadQueueManager#MAX_UPLOADS_PER_CONNECTION} of those may target the same
+ * {@link Connection}.  An upload fanned out to several desktops counts against each of them.
+ * Uploads that can't start yet wait without occupying a worker thread.
+ * <p>
+ * A free worker takes the waiting upload with the least work left, so a screenshot shared after a
+ * long video doesn't wait for it: smallest files first, and {@link UploadPriority#INTERACTIVE}
+ * uploads ahead of {@link UploadPriority#BACKGROUND} ones.  Every second an upload waits counts
+ * as {@link UploadQueueManager#AGING_BYTES_PER_SECOND} less work, so a large upload is never
+ * starved by a steady stream of small ones.
+ */
+public class UploadQueueManager
+{
+    public static final int MAX_CONCURRENT_UPLOADS =
+            Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    public static final int MAX_UPLOADS_PER_CONNECTION = 2;
+
+    public static final long AGING_BYTES_PER_SECOND = 4L * 1024L * 1024L;
+
+    // Work assumed for a file whose size the provider doesn't report
+    private static final long UNKNOWN_SIZE_BYTES = 8L * 1024L * 1024L;
+
+    // Background uploads wait behind interactive ones for up to this many seconds of aging
+    private static final long BACKGROUND_PENALTY_BYTES = 256L * AGING_BYTES_PER_SECOND;
+
+    private static final UploadQueueManager uploadQueueManager = new UploadQueueManager();
+
+    private final ExecutorService workers;
+
+    // In arrival order, which breaks ties between uploads of equal cost
+    private final LinkedList<QueuedTask> pendingTasks = new LinkedList<>();
+    private final HashMap<Connection, Integer> activeTasksPerConnection = new HashMap<>();
+    private int activeTasks = 0;
+
+    public static UploadQueueManager getInstance()
+    {
+        return uploadQueueManager;
+    }
+
+    /**
+     * Private constructor.
+     */
+    private UploadQueueManager()
+    {
+        workers = Executors.newFixedThreadPool(MAX_CONCURRENT_UPLOADS, new UploadThreadFactory());
+    }
+
+    /**
+     * Adds an upload to the queue, starting it right away if the concurrency limits allow.
+     *
+     * @param task The upload to run.
+     */
+    public synchronized void enqueue(UploadTask task)
+    {
+        if (task != null)
+        {
+            pendingTasks.add(new QueuedTask(task, SystemClock.elapsedRealtime()));
+            dispatch();
+        }
+    }
+
+    /**
+     * Gets the number of uploads waiting for a worker.
+     *
+     * @return Number of queued uploads.
+     */
+    public synchronized int numOfPendingTasks()
+    {
+        return pendingTasks.size();
+    }
+
+    /**
+     * Gets the number of uploads currently running.
+     *
+     * @return Number of running uploads.
+     */
+    public synchronized int numOfActiveTasks()
+    {
+        return activeTasks;
+    }
+
+    /**
+     * Starts the cheapest pending uploads the global and per connection limits allow.
+     */
+    private synchronized void dispatch()
+    {
+        long now = SystemClock.elapsedRealtime();
+        while (activeTasks < MAX_CONCURRENT_UPLOADS)
+        {
+            QueuedTask cheapestTask = selectNext(pendingTasks, activeTasksPerConnection, now);
+            if (cheapestTask == null)
+            {
+                break;
+            }
+
+            UploadTask task = cheapestTask.task;
+            pendingTasks.remove(cheapestTask);
+            activeTasks++;
+            for (Connection connection : task.getConnections())
+            {
+                activeTasksPerConnection.put(connection,
+                        getActiveTasks(activeTasksPerConnection, connection) + 1);
+            }
+            workers.execute(() -> runTask(task));
+        }
+    }
+
+    /**
+     * Picks the pending upload with the lowest cost whose connections all have a free slot.
+     *
+     * @param pendingTasks             The waiting uploads in arrival order.
+     * @param activeTasksPerConnection Number of running uploads per connection.
+     * @param now                      Current monotonic time in milliseconds.
+     *
+     * @return The upload to start next, or null if none may start.
+     */
+    static QueuedTask selectNext(List<QueuedTask> pendingTasks,
+                                 Map<Connection, Integer> activeTasksPerConnection, long now)
+    {
+        QueuedTask cheapestTask = null;
+        long cheapestCost = Long.MAX_VALUE;
+        for (QueuedTask queuedTask : pendingTasks)
+        {
+            long cost = queuedTask.getCost(now);
+            if (cost < cheapestCost
+                    && hasFreeSlots(activeTasksPerConnection, queuedTask.task.getConnections()))
+            {
+                cheapestTask = queuedTask;
+                cheapestCost = cost;
+            }
+        }
+        return cheapestTask;
+    }
+
+    /**
+     * Whether every connection of an upload runs fewer than the uploads allowed per connection.
+     *
+     * @param activeTasksPerConnection Number of running uploads per connection.
+     * @param connections              The target connections.
+     *
+     * @return True if the upload may start.
+     */
+    private static boolean hasFreeSlots(Map<Connection, Integer> activeTasksPerConnection,
+                                        List<Connection> connections)
+    {
+        for (Connection connection : connections)
+        {
+            if (getActiveTasks(activeTasksPerConnection, connection) >= MAX_UPLOADS_PER_CONNECTION)
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gets the number of running uploads to a connection.
+     *
+     * @param activeTasksPerConnection Number of running uploads per connection.
+     * @param connection               The target connection.
+     *
+     * @return Number of running uploads.
+     */
+    private static int getActiveTasks(Map<Connection, Integer> activeTasksPerConnection,
+                                      Connection connection)
+    {
+        Integer activeForConnection = activeTasksPerConnection.get(connection);
+        return activeForConnection != null ? activeForConnection : 0;
+    }
+
+    /**
+     * Runs an upload on a worker thread and frees its slot afterwards.
+     *
+     * @param task The upload to run.
+     */
+    private void runTask(UploadTask task)
+    {
+        try
+        {
+            task.run();
+        }
+        catch (RuntimeException e)
+        {
+            Timber.e(e, "Upload task failed unexpectedly");
+        }
+        finally
+        {
+            synchronized (this)
+            {
+                activeTasks--;
+
+                for (Connection connection : task.getConnections())
+                {
+                    Integer activeForConnection = activeTasksPerConnection.get(connection);
+                    if (activeForConnection == null || activeForConnection <= 1)
+                    {
+                        activeTasksPerConnection.remove(connection);
+                    }
+                    else
+                    {
+                        activeTasksPerConnection.put(connection, activeForConnection - 1);
+                    }
+                }
+
+                dispatch();
+            }
+        }
+    }
+
+    /**
+     * A single upload that can be queued.
+     */
+    public interface UploadTask extends Runnable
+    {
+        /**
+         * Gets the connections the upload is sent to, each of which it counts against for the
+         * per connection limit.
+         *
+         * @return The target connections.
+         */
+        List<Connection> getConnections();
+
+        /**
+         * Gets the size of the file to upload, which the upload is scheduled by.
+         *
+         * @return Size in bytes, negative if unknown.
+         */
+        long getSize();
+
+        /**
+         * Gets who the upload is running for.
+         *
+         * @return The priority.
+         */
+        UploadPriority getPriority();
+    }
+
+    /**
+     * A waiting upload and when it was queued.
+     */
+    static class QueuedTask
+    {
+        private final UploadTask task;
+        private final long enqueuedAt;
+
+        QueuedTask(UploadTask task, long enqueuedAt)
+        {
+            this.task = task;
+            this.enqueuedAt = enqueuedAt;
+        }
+
+        /**
+         * Gets the work the upload stands for in bytes, less what it earned by waiting.
+         *
+         * @param now Current monotonic time in milliseconds.
+         *
+         * @return The scheduling cost, lowest runs first.
+         */
+        long getCost(long now)
+        {
+            long cost = task.getSize() >= 0 ? task.getSize() : UNKNOWN_SIZE_BYTES;
+            if (task.getPriority() == UploadPriority.BACKGROUND)
+            {
+                cost += BACKGROUND_PENALTY_BYTES;
+            }
+            return cost - (now - enqueuedAt) * AGING_BYTES_PER_SECOND / 1000L;
+        }
+    }
+
+    /**
+     * Creates named, lower priority worker threads so uploads don't compete with the UI.
+     */
+    private static class UploadThreadFactory implements ThreadFactory
+    {
+        private final AtomicInteger threadCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable)
+        {
+            Thread thread = new Thread(() ->
+            {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                runnable.run();
+            }, "FlingrUpload-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
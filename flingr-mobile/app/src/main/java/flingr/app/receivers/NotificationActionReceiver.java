@@ -4,7 +4,7 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 
-import flingr.app.services.FileUploadIntentService;
+import flingr.app.services.FileUploadService;
 
 /**
  * Receives intents
@@ -14,8 +14,18 @@ public class NotificationActionReceiver extends BroadcastReceiver
     public static final String CANCEL_FILEUPLOAD_ACTION
             = "flinger.app.receivers.NotificationActionReceiver.cancel_upload_action";
 
+    public static final String CANCEL_TRANSFER_ACTION
+            = "flinger.app.receivers.NotificationActionReceiver.cancel_transfer_action";
+
     public static final String DONE_FILEUPLOAD_ACTION
             = "flinger.app.receivers.NotificationActionReceiver.done_upload_action";
+
+    public static final String EXTRA_BATCH_ID
+            = "flinger.app.receivers.NotificationActionReceiver.batch_id";
+
+    public static final String EXTRA_UPLOAD_ID
+            = "flinger.app.receivers.NotificationActionReceiver.upload_id";
+
     @Override
     public void onReceive(Context context, Intent intent)
     {
@@ -23,11 +33,27 @@ public class NotificationActionReceiver extends BroadcastReceiver
         {
             if (CANCEL_FILEUPLOAD_ACTION.equals(intent.getAction()))
             {
-                FileUploadIntentService.cancelUpload();
+                int batchId = intent.getIntExtra(EXTRA_BATCH_ID, -1);
+                if (batchId >= 0)
+                {
+                    FileUploadService.cancelBatch(batchId);
+                }
+                else
+                {
+                    FileUploadService.cancelUpload();
+                }
+            }
+            else if (CANCEL_TRANSFER_ACTION.equals(intent.getAction()))
+            {
+                long uploadId = intent.getLongExtra(EXTRA_UPLOAD_ID, -1);
+                if (uploadId >= 0)
+                {
+                    FileUploadService.cancelTransfer(context, uploadId);
+                }
             }
             else if (DONE_FILEUPLOAD_ACTION.equals(intent.getAction()))
             {
-                FileUploadIntentService.doneWithNotification(context);
+                FileUploadService.doneWithNotification(context);
             }
         }
     }
@@ -0,0 +1,404 @@
+package flingr.app.remote;
+
+import com.jcraft.jsch.ChannelExec;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+import com.jcraft.jsch.SftpProgressMonitor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import flingr.app.entities.Connection;
+import flingr.app.managers.BandwidthManager;
+import flingr.app.managers.SessionPoolManager;
+import flingr.app.utilities.BufferPool;
+
+/**
+ * Sends many small files as one tar stream over a single exec channel into the desktop's own
+ * {@code tar}, saving the open, write and close round trips SFTP spends on every file.
+ * <p>
+ * The stock desktop forces every session into its SFTP server, in which case exec channels never
+ * reach a shell.  {@link #isSupported(Session, Connection, int)} probes for a working
+ * {@code tar} once per connection, and callers send the files over SFTP if it isn't there.
+ * <p>
+ * {@code tar} lists every entry as it starts extracting it, so an entry is reported as extracted
+ * once the next one is listed, and the last one once {@code tar} exits successfully.
+ */
+public class BundleUploader
+{
+    // The ustar header only has room for short names, longer ones are sent on their own
+    private static final int MAX_NAME_LENGTH = 100;
+    private static final int TAR_BLOCK_SIZE = 512;
+
+    private static final String PROBE_COMMAND = "tar --version && echo "
+            + ExecHelper.MARKER;
+
+    private final Session session;
+    private final BandwidthManager.Throttle throttle;
+    private final int timeout;
+
+    private volatile ChannelExec channel;
+    private volatile boolean isAborted = false;
+
+    /**
+     * A file of a bundle.
+     */
+    public interface BundleFile
+    {
+        /**
+         * Gets the name of the remote file.
+         *
+         * @return The file name.
+         */
+        String getFileName();
+
+        /**
+         * Opens the local file.
+         *
+         * @return The local file.
+         *
+         * @throws IOException if the file could not be opened.
+         */
+        UploadSource open() throws IOException;
+
+        /**
+         * Gets the monitor notified of the file's bytes as they are sent.
+         *
+         * @return The monitor.  Returning false from {@link SftpProgressMonitor#count(long)}
+         *         stops the whole bundle.
+         */
+        SftpProgressMonitor getMonitor();
+
+        /**
+         * Called once the desktop has extracted the file.
+         */
+        void onExtracted();
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param session  Connected session to open the exec channel on.
+     * @param throttle Throttle the bundle's bytes are paced with.
+     * @param timeout  Channel connect timeout in milliseconds.
+     */
+    public BundleUploader(Session session, BandwidthManager.Throttle throttle, int timeout)
+    {
+        this.session = session;
+        this.throttle = throttle;
+        this.timeout = timeout;
+    }
+
+    /**
+     * Whether a file can go into a bundle, which only holds short, plain ASCII names.
+     *
+     * @param fileName Name of the remote file.
+     *
+     * @return True if the file can be bundled.
+     */
+    public static boolean canBundle(String fileName)
+    {
+        return fileName != null && fileName.length() < MAX_NAME_LENGTH
+                && fileName.indexOf('/') < 0 && !fileName.equals(".") && !fileName.equals("..")
+                && ExecHelper.isLiteral(fileName);
+    }
+
+    /**
+     * Whether the desktop of a connection runs commands over exec channels and has {@code tar}.
+     * The answer is remembered for the rest of the process.
+     *
+     * @param session    Connected session to the desktop.
+     * @param connection The connection of the session.
+     * @param timeout    Channel connect timeout in milliseconds.
+     *
+     * @return True if bundles can be sent.
+     */
+    public static boolean isSupported(Session session, Connection connection, int timeout)
+    {
+        return ExecHelper.isAvailable(session, connection, PROBE_COMMAND, timeout);
+    }
+
+    /**
+     * Uploads files as one tar stream, stopping at the first failure.  Files reported through
+     * {@link BundleFile#onExtracted()} are on the desktop, the others have to be sent again.
+     *
+     * @param files           The files, in the order they are sent.
+     * @param remoteDirectory Directory the SFTP server writes uploads to, as
+     *                        {@link ExecHelper#getUploadDirectory} reports it.
+     *
+     * @throws JSchException if the exec channel could not be opened.
+     * @throws IOException   if a local file could not be read, the bundle was stopped, or the
+     *                       desktop failed to extract it.
+     */
+    public void upload(List<? extends BundleFile> files, String remoteDirectory)
+            throws JSchException, IOException
+    {
+        if (!ExecHelper.isLiteral(remoteDirectory))
+        {
+            throw new IOException("Upload directory can't be passed to the shell");
+        }
+        ExtractionListener listener = new ExtractionListener(files);
+
+        SessionPoolManager sessionPool = SessionPoolManager.getInstance();
+        channel = (ChannelExec) sessionPool.openChannel(session, "exec", timeout);
+        try
+        {
+            channel.setCommand("tar -xvf - -C \"" + remoteDirectory + "\"");
+            channel.setOutputStream(listener, true);
+            channel.setErrStream(listener, true);
+            OutputStream outputStream = channel.getOutputStream();
+            channel.connect(timeout);
+
+            ByteBuffer buffer = BufferPool.acquire();
+            try
+            {
+                for (BundleFile file : files)
+                {
+                    writeEntry(outputStream, file, buffer);
+                }
+
+                // Two empty blocks end the archive
+                outputStream.write(new byte[2 * TAR_BLOCK_SIZE]);
+            }
+            finally
+            {
+                BufferPool.release(buffer);
+            }
+            outputStream.close();
+
+            int exitStatus = ExecHelper.waitForExit(channel);
+            if (exitStatus != 0)
+            {
+                throw new IOException("tar exited with status " + exitStatus);
+            }
+            listener.allExtracted();
+        }
+        catch (IOException e)
+        {
+            if (isAborted)
+            {
+                throw new IOException("canceled", e);
+            }
+            throw e;
+        }
+        finally
+        {
+            sessionPool.closeChannel(session, channel);
+        }
+    }
+
+    /**
+     * Aborts a running bundle by closing its channel.
+     */
+    public void abort()
+    {
+        isAborted = true;
+        ChannelExec runningChannel = channel;
+        if (runningChannel != null)
+        {
+            runningChannel.disconnect();
+        }
+    }
+
+    /**
+     * Writes a file as a tar entry.
+     *
+     * @param outputStream Stream of the exec channel.
+     * @param file         The file.
+     * @param buffer       Pooled buffer to read the file through.
+     *
+     * @throws IOException if the file could not be read or the bundle was stopped.
+     */
+    private void writeEntry(OutputStream outputStream, BundleFile file, ByteBuffer buffer)
+            throws IOException
+    {
+        SftpProgressMonitor monitor = file.getMonitor();
+        try (UploadSource source = file.open())
+        {
+            long fileSize = source.getSize();
+            if (fileSize < 0)
+            {
+                throw new IOException("Size of " + file.getFileName() + " is unknown");
+            }
+
+            monitor.init(SftpProgressMonitor.PUT, file.getFileName(), file.getFileName(), fileSize);
+            outputStream.write(createHeader(file.getFileName(), fileSize));
+
+            long position = 0;
+            while (position < fileSize)
+            {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), fileSize - position));
+                int read = source.readFully(buffer, position);
+                if (read <= 0)
+                {
+                    throw new IOException(file.getFileName() + " ended before its size");
+                }
+
+                for (int written = 0; written < read; written += SftpHelper.THROTTLE_SLICE_SIZE)
+                {
+                    int slice = Math.min(SftpHelper.THROTTLE_SLICE_SIZE, read - written);
+                    throttle.acquire(slice);
+                    outputStream.write(buffer.array(), buffer.arrayOffset() + written, slice);
+                    if (!monitor.count(slice))
+                    {
+                        throw new IOException("canceled");
+                    }
+                }
+                position += read;
+            }
+
+            // Entries are padded to whole blocks
+            int padding = (int) ((TAR_BLOCK_SIZE - fileSize % TAR_BLOCK_SIZE) % TAR_BLOCK_SIZE);
+            outputStream.write(new byte[padding]);
+        }
+    }
+
+    /**
+     * Creates the ustar header of a regular file.
+     *
+     * @param fileName Name of the file, which {@link #canBundle(String)} accepted.
+     * @param fileSize Size of the file in bytes.
+     *
+     * @return The header block.
+     */
+    static byte[] createHeader(String fileName, long fileSize)
+    {
+        byte[] header = new byte[TAR_BLOCK_SIZE];
+        putString(header, 0, fileName);
+        putOctal(header, 100, 8, 0644);
+        putOctal(header, 108, 8, 0);
+        putOctal(header, 116, 8, 0);
+        putOctal(header, 124, 12, fileSize);
+        putOctal(header, 136, 12, System.currentTimeMillis() / 1000L);
+        header[156] = '0';
+        putString(header, 257, "ustar");
+        putString(header, 263, "00");
+
+        // The checksum is computed with its own field filled with spaces
+        Arrays.fill(header, 148, 156, (byte) ' ');
+        long checksum = 0;
+        for (byte b : header)
+        {
+            checksum += b & 0xff;
+        }
+        putOctal(header, 148, 7, checksum);
+        header[154] = 0;
+        header[155] = ' ';
+        return header;
+    }
+
+    /**
+     * Writes an ASCII string into a header field.
+     *
+     * @param header The header.
+     * @param offset Offset of the field.
+     * @param value  The string.
+     */
+    private static void putString(byte[] header, int offset, String value)
+    {
+        byte[] bytes = value.getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(bytes, 0, header, offset, bytes.length);
+    }
+
+    /**
+     * Writes a number into a header field as zero padded octal, terminated by a NUL.
+     *
+     * @param header The header.
+     * @param offset Offset of the field.
+     * @param length Length of the field including the terminator.
+     * @param value  The number.
+     */
+    private static void putOctal(byte[] header, int offset, int length, long value)
+    {
+        String octal = Long.toOctalString(value);
+        StringBuilder padded = new StringBuilder();
+        for (int i = octal.length(); i < length - 1; i++)
+        {
+            padded.append('0');
+        }
+        putString(header, offset, padded.append(octal).toString());
+    }
+
+    /**
+     * Reads the entries {@code tar} lists from its output and reports the extracted files.
+     * JSch writes the output from its session thread.
+     */
+    static class ExtractionListener extends OutputStream
+    {
+        private final Map<String, BundleFile> files = new HashMap<>();
+        private final List<? extends BundleFile> allFiles;
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+        private BundleFile listedFile;
+
+        ExtractionListener(List<? extends BundleFile> allFiles)
+        {
+            this.allFiles = allFiles;
+            for (BundleFile file : allFiles)
+            {
+                files.put(file.getFileName(), file);
+            }
+        }
+
+        @Override
+        public synchronized void write(int b)
+        {
+            if (b == '\n')
+            {
+                onLine(new String(line.toByteArray(), StandardCharsets.UTF_8).trim());
+                line.reset();
+            }
+            else
+            {
+                line.write(b);
+            }
+        }
+
+        /**
+         * Reports every file not reported yet once {@code tar} exited successfully.
+         */
+        synchronized void allExtracted()
+        {
+            for (BundleFile file : allFiles)
+            {
+                if (files.remove(file.getFileName()) != null || file == listedFile)
+                {
+                    file.onExtracted();
+                }
+            }
+            listedFile = null;
+        }
+
+        /**
+         * Handles an entry listed by {@code tar}, which GNU tar prints as is and bsdtar after
+         * "x ".
+         *
+         * @param entry The line.
+         */
+        private void onLine(String entry)
+        {
+            BundleFile file = files.remove(entry);
+            if (file == null && entry.startsWith("x "))
+            {
+                file = files.remove(entry.substring(2));
+            }
+
+            if (file != null)
+            {
+                // Listing the next entry means the previous one was written out
+                if (listedFile != null)
+                {
+                    listedFile.onExtracted();
+                }
+                listedFile = file;
+            }
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package flingr.app.remote;
+
+import android.os.SystemClock;
+
+import com.jcraft.jsch.Cipher;
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.MAC;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import flingr.app.entities.AlgorithmBenchmark;
+import timber.log.Timber;
+
+/**
+ * Measures how fast this phone runs each of JSch's ciphers and MACs by pushing SSH packet sized
+ * buffers through them, the same way a session does during an upload.
+ */
+public class CipherBenchmark
+{
+    public static final String[] CIPHERS = {"aes128-ctr", "aes192-ctr", "aes256-ctr",
+            "aes128-cbc", "aes192-cbc", "aes256-cbc", "3des-ctr", "3des-cbc", "blowfish-cbc",
+            "arcfour128", "arcfour256"};
+    public static final String[] MACS = {"hmac-sha1", "hmac-sha1-96", "hmac-sha2-256", "hmac-md5"};
+
+    // The largest packet JSch sends over a channel
+    private static final int PACKET_SIZE = 32 * 1024;
+
+    private final long bytesPerAlgorithm;
+
+    /**
+     * Constructor.
+     *
+     * @param bytesPerAlgorithm Number of bytes to push through every algorithm.
+     */
+    public CipherBenchmark(long bytesPerAlgorithm)
+    {
+        this.bytesPerAlgorithm = bytesPerAlgorithm;
+    }
+
+    /**
+     * Benchmarks every cipher and MAC JSch can instantiate on this phone.
+     *
+     * @return The results, algorithms that are unavailable are left out.
+     */
+    public List<AlgorithmBenchmark> run()
+    {
+        List<AlgorithmBenchmark> results = new ArrayList<>();
+        for (String cipher : CIPHERS)
+        {
+            AlgorithmBenchmark result = benchmarkCipher(cipher);
+            if (result != null)
+            {
+                results.add(result);
+            }
+        }
+        for (String mac : MACS)
+        {
+            AlgorithmBenchmark result = benchmarkMac(mac);
+            if (result != null)
+            {
+                results.add(result);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Measures the encryption speed of a cipher.
+     *
+     * @param name JSch name of the cipher.
+     *
+     * @return The result, or null if the cipher is unavailable.
+     */
+    public AlgorithmBenchmark benchmarkCipher(String name)
+    {
+        try
+        {
+            Cipher cipher = (Cipher) instantiate(name);
+            cipher.init(Cipher.ENCRYPT_MODE, new byte[cipher.getBlockSize()],
+                    new byte[cipher.getIVSize()]);
+
+            byte[] input = new byte[PACKET_SIZE];
+            byte[] output = new byte[PACKET_SIZE];
+
+            // Let the JIT and any lazily loaded provider warm up first
+            cipher.update(input, 0, PACKET_SIZE, output, 0);
+
+            long wallStart = SystemClock.elapsedRealtimeNanos();
+            long cpuStart = SystemClock.currentThreadTimeMillis();
+            long processed = 0;
+            while (processed < bytesPerAlgorithm)
+            {
+                cipher.update(input, 0, PACKET_SIZE, output, 0);
+                processed += PACKET_SIZE;
+            }
+
+            return createResult(name, true, processed, wallStart, cpuStart);
+        }
+        catch (Exception e)
+        {
+            Timber.d("Cipher %s is unavailable: %s", name, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Measures the speed of a MAC.
+     *
+     * @param name JSch name of the MAC.
+     *
+     * @return The result, or null if the MAC is unavailable.
+     */
+    public AlgorithmBenchmark benchmarkMac(String name)
+    {
+        try
+        {
+            MAC mac = (MAC) instantiate(name);
+            mac.init(new byte[mac.getBlockSize()]);
+
+            byte[] input = new byte[PACKET_SIZE];
+            byte[] digest = new byte[mac.getBlockSize()];
+
+            // Let the JIT and any lazily loaded provider warm up first
+            mac.update(input, 0, PACKET_SIZE);
+            mac.doFinal(digest, 0);
+
+            long wallStart = SystemClock.elapsedRealtimeNanos();
+            long cpuStart = SystemClock.currentThreadTimeMillis();
+            long processed = 0;
+            int sequence = 0;
+            while (processed < bytesPerAlgorithm)
+            {
+                // Sessions MAC the sequence number and the packet
+                mac.update(sequence++);
+                mac.update(input, 0, PACKET_SIZE);
+                mac.doFinal(digest, 0);
+                processed += PACKET_SIZE;
+            }
+
+            return createResult(name, false, processed, wallStart, cpuStart);
+        }
+        catch (Exception e)
+        {
+            Timber.d("MAC %s is unavailable: %s", name, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Creates the implementation JSch uses for an algorithm.
+     *
+     * @param name JSch name of the algorithm.
+     *
+     * @return A new instance.
+     *
+     * @throws Exception if JSch has no implementation or it can't be created.
+     */
+    private static Object instantiate(String name) throws Exception
+    {
+        String className = JSch.getConfig(name);
+        if (className == null)
+        {
+            throw new ClassNotFoundException(name);
+        }
+        return Class.forName(className).newInstance();
+    }
+
+    /**
+     * Creates the result of a run that just finished.
+     *
+     * @param name      JSch name of the algorithm.
+     * @param isCipher  True for a cipher, false for a MAC.
+     * @param processed Number of bytes processed.
+     * @param wallStart {@link SystemClock#elapsedRealtimeNanos()} when the run started.
+     * @param cpuStart  {@link SystemClock#currentThreadTimeMillis()} when the run started.
+     *
+     * @return The result.
+     */
+    private static AlgorithmBenchmark createResult(String name, boolean isCipher, long processed,
+                                                   long wallStart, long cpuStart)
+    {
+        long wallNanos = Math.max(1, SystemClock.elapsedRealtimeNanos() - wallStart);
+        long cpuMillis = SystemClock.currentThreadTimeMillis() - cpuStart;
+
+        long bytesPerSecond = processed * 1000000000L / wallNanos;
+        long cpuMillisPerMegabyte = cpuMillis * 1024L * 1024L / Math.max(1, processed);
+
+        Timber.d("%s: %d bytes/s, %d CPU ms/MiB", name, bytesPerSecond, cpuMillisPerMegabyte);
+        return new AlgorithmBenchmark(name, isCipher, bytesPerSecond, cpuMillisPerMegabyte);
+    }
+}
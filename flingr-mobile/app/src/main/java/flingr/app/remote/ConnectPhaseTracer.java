@@ -0,0 +1,138 @@
+package flingr.app.remote;
+
+import android.os.SystemClock;
+
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.Logger;
+
+import flingr.app.entities.PhaseSample;
+import flingr.app.entities.TransferPhase;
+import flingr.app.entities.TransferRoute;
+import flingr.app.managers.TelemetryManager;
+import timber.log.Timber;
+
+/**
+ * Splits the time JSch spends in {@link com.jcraft.jsch.Session#connect()} into the TCP connect,
+ * key exchange and authentication phases and records them in the {@link TelemetryManager}.
+ * <p>
+ * JSch has no hooks between those phases, but it logs a message at the end of each of them on the
+ * connecting thread.  The tracer is installed as JSch's logger and timestamps those messages for
+ * whichever connect the current thread is tracing.
+ */
+class ConnectPhaseTracer implements Logger
+{
+    private static final String TCP_CONNECTED_MESSAGE = "Connection established";
+    private static final String KEY_EXCHANGE_DONE_MESSAGE = "SSH_MSG_NEWKEYS received";
+    private static final String AUTH_DONE_MESSAGE = "Authentication succeeded";
+
+    private static final ThreadLocal<Trace> currentTrace = new ThreadLocal<>();
+
+    static
+    {
+        JSch.setLogger(new ConnectPhaseTracer());
+    }
+
+    /**
+     * Private constructor.
+     */
+    private ConnectPhaseTracer()
+    {
+    }
+
+    /**
+     * Starts tracing the connects made by the current thread.
+     */
+    static void begin()
+    {
+        currentTrace.set(new Trace(SystemClock.elapsedRealtime()));
+    }
+
+    /**
+     * Stops tracing the current thread and records the phases it went through.  Nothing is
+     * recorded if no handshake happened because a pooled session was reused.
+     *
+     * @param transferId Identifier of the upload attempt, 0 if none.
+     * @param route      The route that was connected over.
+     * @param isSuccess  True if the session was established.
+     */
+    static void end(long transferId, TransferRoute route, boolean isSuccess)
+    {
+        Trace trace = currentTrace.get();
+        currentTrace.remove();
+        if (trace == null || (isSuccess && trace.authDone < 0))
+        {
+            return;
+        }
+
+        TelemetryManager telemetry = TelemetryManager.getInstance();
+        long now = SystemClock.elapsedRealtime();
+        long[] phaseEnds = {trace.tcpConnected, trace.keyExchangeDone, trace.authDone};
+        TransferPhase[] phases = {TransferPhase.TCP_CONNECT, TransferPhase.KEY_EXCHANGE,
+                TransferPhase.AUTH};
+
+        long phaseStart = trace.started;
+        for (int i = 0; i < phases.length; i++)
+        {
+            if (phaseEnds[i] < 0)
+            {
+                // The connect failed during this phase
+                telemetry.record(new PhaseSample(transferId, phases[i], route,
+                        now - phaseStart, 0, false));
+                return;
+            }
+
+            telemetry.record(new PhaseSample(transferId, phases[i], route,
+                    phaseEnds[i] - phaseStart, 0, true));
+            phaseStart = phaseEnds[i];
+        }
+    }
+
+    @Override
+    public boolean isEnabled(int level)
+    {
+        return level >= Logger.WARN || (level == Logger.INFO && currentTrace.get() != null);
+    }
+
+    @Override
+    public void log(int level, String message)
+    {
+        Trace trace = currentTrace.get();
+        if (trace != null && level == Logger.INFO)
+        {
+            long now = SystemClock.elapsedRealtime();
+            if (message.startsWith(TCP_CONNECTED_MESSAGE))
+            {
+                trace.tcpConnected = now;
+            }
+            else if (message.startsWith(KEY_EXCHANGE_DONE_MESSAGE))
+            {
+                trace.keyExchangeDone = now;
+            }
+            else if (message.startsWith(AUTH_DONE_MESSAGE))
+            {
+                trace.authDone = now;
+            }
+        }
+
+        if (level >= Logger.WARN)
+        {
+            Timber.w("JSch: %s", message);
+        }
+    }
+
+    /**
+     * Timestamps of the phases of a connect, -1 until the phase finished.
+     */
+    private static class Trace
+    {
+        private final long started;
+        private long tcpConnected = -1;
+        private long keyExchangeDone = -1;
+        private long authDone = -1;
+
+        Trace(long started)
+        {
+            this.started = started;
+        }
+    }
+}
@@ -0,0 +1,323 @@
+package flingr.app.remote;
+
+import android.content.Context;
+
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.SftpATTRS;
+import com.jcraft.jsch.SftpException;
+import com.jcraft.jsch.SftpProgressMonitor;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import flingr.app.entities.Connection;
+import flingr.app.entities.UploadIndexEntry;
+import flingr.app.managers.BandwidthManager;
+import flingr.app.managers.BlockSignatureManager;
+import flingr.app.managers.UploadIndexManager;
+import timber.log.Timber;
+
+/**
+ * Sends a modified file as a delta against the copy the desktop got from an earlier upload.
+ * <p>
+ * The block hashes of the earlier upload come from the {@link BlockSignatureManager}, and are only
+ * trusted while the remote file still has the size and modification time it had right after that
+ * upload.  The remote file is moved to its temporary name, every block whose hash changed is
+ * written over it at its own offset, and the file takes its real name again once its size has
+ * been verified.  Blocks that did not change never leave the device.  A delta that is cancelled
+ * or fails moves the file back to its real name, so the desktop keeps it either way.
+ */
+public class DeltaSftpUploader
+{
+    // Below this a delta saves too little to be worth the extra round trips
+    private static final long MIN_DELTA_FILE_SIZE = 1024L * 1024L;
+
+    private final Context context;
+    private final ChannelSftp channel;
+    private final Connection connection;
+    private final BandwidthManager.Throttle throttle;
+
+    /**
+     * Constructor.
+     *
+     * @param context    An Android life-cycle object to open the index with.
+     * @param channel    Connected channel to upload over.
+     * @param connection The connection the file is sent to.
+     * @param throttle   Throttle the changed blocks are paced with.
+     */
+    public DeltaSftpUploader(Context context, ChannelSftp channel, Connection connection,
+                             BandwidthManager.Throttle throttle)
+    {
+        this.context = context;
+        this.channel = channel;
+        this.connection = connection;
+        this.throttle = throttle;
+    }
+
+    /**
+     * Uploads the file as a delta if the desktop has an earlier upload of it to compare against.
+     *
+     * @param source   The local file.
+     * @param fileName Name of the remote file.
+     * @param monitor  Monitor notified of the bytes sent and skipped.
+     *
+     * @return True if the file was sent, false if it has to be sent whole.
+     *
+     * @throws SftpException if the remote file could not be written or finalized.
+     * @throws IOException   if the local file could not be read or the monitor stopped the upload.
+     */
+    public boolean upload(UploadSource source, String fileName, SftpProgressMonitor monitor)
+            throws SftpException, IOException
+    {
+        long fileSize = source.getSize();
+        if (!connection.getTransferOptions().isDeltaTransferEnabled() || !source.isSeekable()
+                || fileSize < MIN_DELTA_FILE_SIZE)
+        {
+            return false;
+        }
+
+        List<byte[]> remoteHashes = getRemoteBlockHashes(fileName, fileSize);
+        if (remoteHashes == null)
+        {
+            return false;
+        }
+        List<byte[]> localHashes = source.getBlockHashes();
+
+        List<BlockRange> changedRanges = getChangedRanges(localHashes, remoteHashes, fileSize);
+
+        // Take the remote copy out of the way, so an interrupted delta never leaves a half
+        // patched file under the real name
+        String partialFileName = SftpHelper.getPartialFileName(fileName);
+        removeIfExists(partialFileName);
+        channel.rename(fileName, partialFileName);
+
+        long bytesSent = 0;
+        boolean isFinalized = false;
+        try
+        {
+            // Blocks that are still at the same offset on the desktop are only reported
+            long skippedFrom = 0;
+            for (BlockRange range : changedRanges)
+            {
+                reportSkipped(monitor, range.offset - skippedFrom);
+                SftpHelper.writeRange(channel, source, partialFileName, range.offset,
+                        range.length, monitor, throttle);
+                bytesSent += range.length;
+                skippedFrom = range.offset + range.length;
+            }
+            reportSkipped(monitor, fileSize - skippedFrom);
+
+            SftpHelper.finalizeRemoteFile(channel, source, partialFileName, fileName, throttle);
+            isFinalized = true;
+        }
+        finally
+        {
+            if (!isFinalized)
+            {
+                restoreRemoteFile(partialFileName, fileName, bytesSent > 0);
+            }
+        }
+
+        Timber.i("Sent %d of %d bytes of %s as a delta", bytesSent, fileSize, fileName);
+        return true;
+    }
+
+    /**
+     * Gets the byte ranges of the local file whose blocks differ from the remote file, merging
+     * neighbouring changed blocks into one range.
+     *
+     * @param localHashes  Block hashes of the local file.
+     * @param remoteHashes Block hashes of the remote file.
+     * @param fileSize     Size of the local file.
+     *
+     * @return The changed ranges in file order.
+     */
+    static List<BlockRange> getChangedRanges(List<byte[]> localHashes, List<byte[]> remoteHashes,
+                                             long fileSize)
+    {
+        List<BlockRange> changedRanges = new ArrayList<>();
+        int block = 0;
+        while (block < localHashes.size())
+        {
+            int changedBlock = block;
+            while (changedBlock < localHashes.size()
+                    && isUnchanged(localHashes, remoteHashes, changedBlock))
+            {
+                changedBlock++;
+            }
+
+            int unchangedBlock = changedBlock;
+            while (unchangedBlock < localHashes.size()
+                    && !isUnchanged(localHashes, remoteHashes, unchangedBlock))
+            {
+                unchangedBlock++;
+            }
+
+            long offset = blockOffset(changedBlock, fileSize);
+            long length = blockOffset(unchangedBlock, fileSize) - offset;
+            if (length > 0)
+            {
+                changedRanges.add(new BlockRange(offset, length));
+            }
+            block = unchangedBlock;
+        }
+        return changedRanges;
+    }
+
+    /**
+     * Moves the remote file back to its real name after a delta that did not complete, so the
+     * desktop never loses the file.  If blocks were already written the file mixes old and new
+     * content, so it is also dropped from the upload index and the next upload sends it whole.
+     *
+     * @param partialFileName Temporary name the remote file was moved to.
+     * @param fileName        Real name of the remote file.
+     * @param isPatched       True if any changed block was written.
+     */
+    private void restoreRemoteFile(String partialFileName, String fileName, boolean isPatched)
+    {
+        if (isPatched)
+        {
+            UploadIndexManager.getInstance().removeEntry(context, connection, fileName);
+        }
+
+        try
+        {
+            // Finalizing may have got as far as removing the file under the real name
+            if (SftpHelper.getRemoteFileSize(channel, fileName) < 0)
+            {
+                channel.rename(partialFileName, fileName);
+            }
+        }
+        catch (SftpException e)
+        {
+            Timber.w(e, "Unable to move %s back to %s", partialFileName, fileName);
+        }
+    }
+
+    /**
+     * Gets the block hashes of the remote file if it is still exactly what was uploaded to it.
+     *
+     * @param fileName Name of the remote file.
+     * @param fileSize Size of the local file.
+     *
+     * @return The block hashes, or null if there is nothing trustworthy to compare against.
+     */
+    private List<byte[]> getRemoteBlockHashes(String fileName, long fileSize)
+    {
+        UploadIndexEntry entry = UploadIndexManager.getInstance().getEntry(context, connection,
+                fileName);
+
+        // Blocks can only be overwritten in place, and SFTP can't portably shrink a file
+        if (entry == null || entry.getFileSize() > fileSize)
+        {
+            return null;
+        }
+
+        try
+        {
+            SftpATTRS attributes = channel.stat(fileName);
+            if (attributes.getSize() != entry.getFileSize()
+                    || attributes.getMTime() != entry.getRemoteModifiedTime())
+            {
+                return null;
+            }
+        }
+        catch (SftpException e)
+        {
+            return null;
+        }
+
+        return BlockSignatureManager.getInstance().getSignatures(context, connection, fileName,
+                entry.getContentHash(), UploadSource.SIGNATURE_BLOCK_SIZE);
+    }
+
+    /**
+     * Whether a block of the local file is already at its offset on the desktop.
+     *
+     * @param localHashes  Block hashes of the local file.
+     * @param remoteHashes Block hashes of the remote file.
+     * @param block        Index of the block.
+     *
+     * @return True if the block doesn't need to be sent.
+     */
+    private static boolean isUnchanged(List<byte[]> localHashes, List<byte[]> remoteHashes,
+                                       int block)
+    {
+        return block < remoteHashes.size()
+                && Arrays.equals(localHashes.get(block), remoteHashes.get(block));
+    }
+
+    /**
+     * Gets the offset a block starts at.
+     *
+     * @param block    Index of the block, the block count for the end of the file.
+     * @param fileSize Size of the local file.
+     *
+     * @return The offset in bytes.
+     */
+    private static long blockOffset(int block, long fileSize)
+    {
+        return Math.min(fileSize, (long) block * UploadSource.SIGNATURE_BLOCK_SIZE);
+    }
+
+    /**
+     * Reports bytes the desktop already has as transferred.
+     *
+     * @param monitor Monitor of the upload.
+     * @param length  Number of bytes skipped.
+     *
+     * @throws IOException if the monitor stopped the upload.
+     */
+    private static void reportSkipped(SftpProgressMonitor monitor, long length) throws IOException
+    {
+        if (length > 0 && !monitor.count(length))
+        {
+            throw new IOException("canceled");
+        }
+    }
+
+    /**
+     * Removes a remote file, ignoring that it doesn't exist.
+     *
+     * @param remoteName Name of the remote file.
+     *
+     * @throws SftpException if the file exists but could not be removed.
+     */
+    private void removeIfExists(String remoteName) throws SftpException
+    {
+        try
+        {
+            channel.rm(remoteName);
+        }
+        catch (SftpException e)
+        {
+            if (e.id != ChannelSftp.SSH_FX_NO_SUCH_FILE)
+            {
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * A byte range of the file that has to be sent.
+     */
+    static class BlockRange
+    {
+        final long offset;
+        final long length;
+
+        /**
+         * Constructor.
+         *
+         * @param offset Offset of the first byte.
+         * @param length Number of bytes.
+         */
+        BlockRange(long offset, long length)
+        {
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package flingr.app.remote;
+
+import com.jcraft.jsch.ChannelExec;
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+import com.jcraft.jsch.SftpException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import flingr.app.entities.Connection;
+import flingr.app.managers.SessionPoolManager;
+import timber.log.Timber;
+
+/**
+ * Static helpers shared by the uploaders that stream into a remote command over an exec channel
+ * instead of the desktop's SFTP server.
+ * <p>
+ * The stock desktop forces every session into its SFTP server, which swallows the command and
+ * waits for an SFTP handshake.  A probe command therefore prints {@link #MARKER} only if
+ * everything it needs is there, and the desktop counts as capable only if the marker comes back.
+ */
+public class ExecHelper
+{
+    public static final String MARKER = "flingr-probe";
+
+    private static final long PROBE_TIMEOUT_MS = 3000;
+    private static final long EXIT_TIMEOUT_MS = 30000;
+    private static final long POLL_INTERVAL_MS = 50;
+
+    // Probe outcomes by connection and command, a desktop's configuration doesn't change while
+    // the app runs
+    private static final Map<String, Boolean> probeResults = new ConcurrentHashMap<>();
+
+    /**
+     * Private constructor.
+     */
+    private ExecHelper()
+    {
+    }
+
+    /**
+     * Whether a probe command prints the marker on the desktop of a connection.  The answer is
+     * remembered for the rest of the process.
+     *
+     * @param session      Connected session to the desktop.
+     * @param connection   The connection of the session.
+     * @param probeCommand Command that prints {@link #MARKER} if the desktop is capable.
+     * @param timeout      Channel connect timeout in milliseconds.
+     *
+     * @return True if the marker came back.
+     */
+    public static boolean isAvailable(Session session, Connection connection, String probeCommand,
+                                      int timeout)
+    {
+        String key = connection.getActivationCode() + "|" + connection.getUserName() + "|"
+                + probeCommand;
+        Boolean isAvailable = probeResults.get(key);
+        if (isAvailable == null)
+        {
+            isAvailable = probe(session, probeCommand, timeout);
+            probeResults.put(key, isAvailable);
+            Timber.i("\"%s\" %s on %s", probeCommand, isAvailable ? "works" : "doesn't work",
+                    connection.getColloquialName());
+        }
+        return isAvailable;
+    }
+
+    /**
+     * Whether a path can be put between double quotes in a command and reach the desktop as is,
+     * both through a POSIX shell and through {@code cmd.exe}.
+     *
+     * @param path The path.
+     *
+     * @return True if the path has no characters either shell would interpret.
+     */
+    public static boolean isLiteral(String path)
+    {
+        if (path == null || path.isEmpty())
+        {
+            return false;
+        }
+
+        for (int i = 0; i < path.length(); i++)
+        {
+            char character = path.charAt(i);
+            if (character < 0x20 || character > 0x7e || "\"$`\\%!".indexOf(character) >= 0)
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gets the directory the SFTP server writes uploads to, in a form the desktop's shell accepts.
+     *
+     * @param sftpChannel Connected SFTP channel.
+     *
+     * @return The upload directory.
+     *
+     * @throws SftpException if the directory could not be resolved.
+     */
+    public static String getUploadDirectory(ChannelSftp sftpChannel) throws SftpException
+    {
+        String directory = sftpChannel.realpath(".");
+
+        // Windows paths come back as /C:/...
+        if (directory.length() >= 3 && directory.charAt(0) == '/' && directory.charAt(2) == ':')
+        {
+            directory = directory.substring(1);
+        }
+        return directory;
+    }
+
+    /**
+     * Waits for the remote command of a channel to exit once its input was closed.
+     *
+     * @param channel Connected exec channel.
+     *
+     * @return The exit status, -1 if it didn't exit in time.
+     *
+     * @throws IOException if interrupted while waiting.
+     */
+    static int waitForExit(ChannelExec channel) throws IOException
+    {
+        long deadline = System.currentTimeMillis() + EXIT_TIMEOUT_MS;
+        while (!channel.isClosed() && System.currentTimeMillis() < deadline)
+        {
+            try
+            {
+                Thread.sleep(POLL_INTERVAL_MS);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for the remote command", e);
+            }
+        }
+        return channel.isClosed() ? channel.getExitStatus() : -1;
+    }
+
+    /**
+     * Runs the probe command and waits for the marker.
+     *
+     * @param session      Connected session to the desktop.
+     * @param probeCommand The probe command.
+     * @param timeout      Channel connect timeout in milliseconds.
+     *
+     * @return True if the marker came back.
+     */
+    private static boolean probe(Session session, String probeCommand, int timeout)
+    {
+        SessionPoolManager sessionPool = SessionPoolManager.getInstance();
+        ChannelExec probeChannel = null;
+        try
+        {
+            probeChannel = (ChannelExec) sessionPool.openChannel(session, "exec", timeout);
+            probeChannel.setCommand(probeCommand);
+            InputStream inputStream = probeChannel.getInputStream();
+            probeChannel.connect(timeout);
+
+            // A forced SFTP server prints nothing and waits for its handshake instead
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            long deadline = System.currentTimeMillis() + PROBE_TIMEOUT_MS;
+            while (System.currentTimeMillis() < deadline)
+            {
+                while (inputStream.available() > 0)
+                {
+                    int read = inputStream.read(buffer);
+                    if (read < 0)
+                    {
+                        break;
+                    }
+                    output.write(buffer, 0, read);
+                }
+
+                if (output.toString("US-ASCII").contains(MARKER))
+                {
+                    return true;
+                }
+                if (probeChannel.isClosed() && inputStream.available() <= 0)
+                {
+                    return false;
+                }
+                Thread.sleep(POLL_INTERVAL_MS);
+            }
+            return false;
+        }
+        catch (JSchException | IOException e)
+        {
+            Timber.d("Probe \"%s\" failed: %s", probeCommand, e.getMessage());
+            return false;
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        finally
+        {
+            sessionPool.closeChannel(session, probeChannel);
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package flingr.app.remote;
+
+import android.net.Uri;
+
+import com.jcraft.jsch.ChannelExec;
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+import com.jcraft.jsch.SftpException;
+import com.jcraft.jsch.SftpProgressMonitor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import flingr.app.entities.Connection;
+import flingr.app.entities.TransportMode;
+import flingr.app.managers.BandwidthManager;
+import flingr.app.managers.SessionPoolManager;
+import flingr.app.utilities.BufferPool;
+import timber.log.Timber;
+
+/**
+ * Uploads a file by streaming its raw bytes into {@code cat} over an exec channel, which spares
+ * the SFTP request framing and acknowledgements of every write.
+ * <p>
+ * Only the bytes travel over the exec channel.  The SFTP channel of the upload resolves the
+ * directory to write to beforehand, and verifies and renames the temporary file afterwards like
+ * every other upload.  An upload stopped midway is not resumed, and its temporary file is
+ * removed.
+ */
+public class ExecStreamTransport implements UploadTransport
+{
+    private static final String PROBE_COMMAND = "echo " + ExecHelper.MARKER + " | cat";
+
+    private final Session session;
+    private final ChannelSftp channel;
+    private final BandwidthManager.Throttle throttle;
+    private final int timeout;
+
+    /**
+     * Constructor.
+     *
+     * @param session  Session to open the exec channel on.
+     * @param channel  Connected SFTP channel of the same session.
+     * @param throttle Throttle the file's bytes are paced with.
+     * @param timeout  Channel connect timeout in milliseconds.
+     */
+    public ExecStreamTransport(Session session, ChannelSftp channel,
+                               BandwidthManager.Throttle throttle, int timeout)
+    {
+        this.session = session;
+        this.channel = channel;
+        this.throttle = throttle;
+        this.timeout = timeout;
+    }
+
+    /**
+     * Whether the desktop of a connection runs {@code cat} over exec channels.  The answer is
+     * remembered for the rest of the process.
+     *
+     * @param session    Connected session to the desktop.
+     * @param connection The connection of the session.
+     * @param timeout    Channel connect timeout in milliseconds.
+     *
+     * @return True if files can be streamed.
+     */
+    public static boolean isSupported(Session session, Connection connection, int timeout)
+    {
+        return ExecHelper.isAvailable(session, connection, PROBE_COMMAND, timeout);
+    }
+
+    /**
+     * Whether a file can be streamed, which needs a name the desktop's shell takes literally.
+     *
+     * @param fileName Name of the remote file.
+     *
+     * @return True if the file can be streamed.
+     */
+    public static boolean canSend(String fileName)
+    {
+        return ExecHelper.isLiteral(fileName);
+    }
+
+    @Override
+    public TransportMode getMode()
+    {
+        return TransportMode.EXEC;
+    }
+
+    @Override
+    public boolean upload(UploadSource source, Uri fileUri, String fileName,
+                          SftpProgressMonitor monitor)
+            throws JSchException, SftpException, IOException
+    {
+        String partialFileName = SftpHelper.getPartialFileName(fileName);
+        String remotePath = ExecHelper.getUploadDirectory(channel) + "/" + partialFileName;
+        if (!ExecHelper.isLiteral(remotePath))
+        {
+            throw new IOException("Upload directory can't be passed to the shell");
+        }
+
+        ByteArrayOutputStream errorOutput = new ByteArrayOutputStream();
+        SessionPoolManager sessionPool = SessionPoolManager.getInstance();
+        ChannelExec execChannel = (ChannelExec) sessionPool.openChannel(session, "exec", timeout);
+        boolean isStreamed = false;
+        try
+        {
+            execChannel.setCommand("cat > \"" + remotePath + "\"");
+            execChannel.setErrStream(errorOutput, true);
+            OutputStream outputStream = execChannel.getOutputStream();
+            execChannel.connect(timeout);
+
+            monitor.init(SftpProgressMonitor.PUT, fileName, partialFileName, source.getSize());
+            if (!stream(source, outputStream, monitor))
+            {
+                return false;
+            }
+            outputStream.close();
+
+            int exitStatus = ExecHelper.waitForExit(execChannel);
+            if (exitStatus != 0)
+            {
+                throw new IOException("cat exited with status " + exitStatus + ": "
+                        + new String(errorOutput.toByteArray(), StandardCharsets.UTF_8).trim());
+            }
+            monitor.end();
+            isStreamed = true;
+        }
+        finally
+        {
+            sessionPool.closeChannel(session, execChannel);
+
+            // A stream that stopped midway is never resumed, so its partial file is of no use
+            if (!isStreamed)
+            {
+                removePartialFile(partialFileName);
+            }
+        }
+
+        SftpHelper.finalizeRemoteFile(channel, source, partialFileName, fileName, throttle);
+        return true;
+    }
+
+    /**
+     * Removes the temporary remote file of a failed or stopped upload.
+     *
+     * @param partialFileName Name of the temporary remote file.
+     */
+    private void removePartialFile(String partialFileName)
+    {
+        try
+        {
+            channel.rm(partialFileName);
+        }
+        catch (SftpException e)
+        {
+            Timber.w(e, "Unable to remove partial file %s", partialFileName);
+        }
+    }
+
+    /**
+     * Writes the local file to the remote command.
+     *
+     * @param source       The local file.
+     * @param outputStream Input of the remote command.
+     * @param monitor      Monitor notified of the bytes sent.
+     *
+     * @return True if the whole file was written, false if the monitor stopped it.
+     *
+     * @throws IOException if the local file could not be read or the channel failed.
+     */
+    private boolean stream(UploadSource source, OutputStream outputStream,
+                           SftpProgressMonitor monitor) throws IOException
+    {
+        ByteBuffer buffer = BufferPool.acquire();
+        try
+        {
+            long position = 0;
+            while (true)
+            {
+                buffer.clear();
+                int read = source.readFully(buffer, position);
+                if (read <= 0)
+                {
+                    return true;
+                }
+
+                // Pace the buffer in slices so a slow limit doesn't hold back a whole buffer
+                for (int written = 0; written < read; written += SftpHelper.THROTTLE_SLICE_SIZE)
+                {
+                    int slice = Math.min(SftpHelper.THROTTLE_SLICE_SIZE, read - written);
+                    throttle.acquire(slice);
+                    outputStream.write(buffer.array(), buffer.arrayOffset() + written, slice);
+                    if (!monitor.count(slice))
+                    {
+                        return false;
+                    }
+                }
+                position += read;
+            }
+        }
+        finally
+        {
+            BufferPool.release(buffer);
+        }
+    }
+}
@@ -0,0 +1,305 @@
+package flingr.app.remote;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import flingr.app.managers.BandwidthManager;
+import flingr.app.utilities.BufferPool;
+
+/**
+ * Reads a local file once and hands every chunk to several uploads of it, one per desktop.
+ * <p>
+ * The chunks go through a small ring of pooled buffers.  A buffer is only refilled once every
+ * upload still attached has consumed it, so the slowest desktop holds the reader back instead of
+ * the file being read again for it, and memory stays bounded however far the others are ahead.
+ * An upload that fails or is cancelled detaches and stops holding the others back.
+ */
+public class FanOutReader
+{
+    private static final int RING_SIZE = 4;
+
+    private final UploadSource source;
+    private final ByteBuffer[] ring = new ByteBuffer[RING_SIZE];
+    private final int[] chunkLengths = new int[RING_SIZE];
+
+    // Chunks each upload consumed, or -1 once it detached
+    private final long[] consumedChunks;
+    private long producedChunks = 0;
+    private boolean isEndOfFile = false;
+    private IOException readFailure;
+    private boolean isReleased = false;
+
+    /**
+     * Constructor.
+     *
+     * @param source    The local file.
+     * @param consumers Number of uploads fed from the file.
+     */
+    public FanOutReader(UploadSource source, int consumers)
+    {
+        this.source = source;
+        this.consumedChunks = new long[consumers];
+        for (int i = 0; i < RING_SIZE; i++)
+        {
+            ring[i] = BufferPool.acquire();
+        }
+    }
+
+    /**
+     * Gets the stream an upload reads the file from.  Closing it detaches the upload, as does
+     * {@link #detach(int)} if it never got as far as reading.
+     *
+     * @param consumer Index of the upload.
+     * @param throttle Throttle the upload's bytes are paced with.
+     *
+     * @return The stream.
+     */
+    public InputStream getStream(int consumer, BandwidthManager.Throttle throttle)
+    {
+        return new ConsumerStream(consumer, throttle);
+    }
+
+    /**
+     * Reads the file until its end or until every upload detached.  Runs on the calling thread.
+     *
+     * @throws IOException if the file could not be read, which the uploads are told as well.
+     */
+    public void run() throws IOException
+    {
+        long position = 0;
+        try
+        {
+            while (true)
+            {
+                ByteBuffer buffer;
+                synchronized (this)
+                {
+                    while (hasConsumers() && producedChunks - getSlowestConsumed() >= RING_SIZE)
+                    {
+                        wait();
+                    }
+                    if (!hasConsumers())
+                    {
+                        return;
+                    }
+                    buffer = ring[(int) (producedChunks % RING_SIZE)];
+                }
+
+                // The slot is free, nobody reads it until it is published below
+                buffer.clear();
+                int read = source.readFully(buffer, position);
+
+                synchronized (this)
+                {
+                    if (read <= 0)
+                    {
+                        isEndOfFile = true;
+                        notifyAll();
+                        return;
+                    }
+                    chunkLengths[(int) (producedChunks % RING_SIZE)] = read;
+                    producedChunks++;
+                    notifyAll();
+                }
+                position += read;
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            fail(new IOException("Interrupted while reading", e));
+        }
+        catch (IOException e)
+        {
+            fail(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Detaches an upload, which stops reading the file and no longer holds the reader back.
+     *
+     * @param consumer Index of the upload.
+     */
+    public synchronized void detach(int consumer)
+    {
+        consumedChunks[consumer] = -1;
+        notifyAll();
+
+        if (isReleased && !hasConsumers())
+        {
+            returnBuffers();
+        }
+    }
+
+    /**
+     * Returns the buffers to the pool once the reader is done with them, which is right away if
+     * every upload detached and otherwise when the last one does.  Called by the thread that ran
+     * the reader, after {@link #run()} returned.
+     */
+    public synchronized void release()
+    {
+        isReleased = true;
+        if (!hasConsumers())
+        {
+            returnBuffers();
+        }
+    }
+
+    /**
+     * Hands the buffers of the ring back to the pool.
+     */
+    private void returnBuffers()
+    {
+        for (int i = 0; i < RING_SIZE; i++)
+        {
+            if (ring[i] != null)
+            {
+                BufferPool.release(ring[i]);
+                ring[i] = null;
+            }
+        }
+    }
+
+    /**
+     * Tells the uploads that the file could not be read.
+     *
+     * @param failure The failure.
+     */
+    private synchronized void fail(IOException failure)
+    {
+        readFailure = failure;
+        notifyAll();
+    }
+
+    /**
+     * Whether any upload is still attached.
+     *
+     * @return True if an upload still reads.
+     */
+    private boolean hasConsumers()
+    {
+        for (long consumed : consumedChunks)
+        {
+            if (consumed >= 0)
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gets the chunks the slowest attached upload consumed.
+     *
+     * @return Number of chunks.
+     */
+    private long getSlowestConsumed()
+    {
+        long slowest = Long.MAX_VALUE;
+        for (long consumed : consumedChunks)
+        {
+            if (consumed >= 0)
+            {
+                slowest = Math.min(slowest, consumed);
+            }
+        }
+        return slowest;
+    }
+
+    /**
+     * The file as one upload reads it.
+     */
+    private class ConsumerStream extends InputStream
+    {
+        private final int consumer;
+        private final BandwidthManager.Throttle throttle;
+
+        // Offset in the current chunk
+        private int chunkOffset = 0;
+
+        ConsumerStream(int consumer, BandwidthManager.Throttle throttle)
+        {
+            this.consumer = consumer;
+            this.throttle = throttle;
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException
+        {
+            ByteBuffer chunk;
+            int count;
+            synchronized (FanOutReader.this)
+            {
+                long chunkIndex = consumedChunks[consumer];
+                if (chunkIndex < 0)
+                {
+                    throw new IOException("Stream closed");
+                }
+
+                while (chunkIndex >= producedChunks && !isEndOfFile && readFailure == null)
+                {
+                    try
+                    {
+                        FanOutReader.this.wait();
+                    }
+                    catch (InterruptedException e)
+                    {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted while waiting for the reader", e);
+                    }
+                }
+                if (readFailure != null)
+                {
+                    throw new IOException("Reading the file failed", readFailure);
+                }
+                if (chunkIndex >= producedChunks)
+                {
+                    return -1;
+                }
+
+                int slot = (int) (chunkIndex % RING_SIZE);
+                chunk = ring[slot];
+                count = Math.min(length, chunkLengths[slot] - chunkOffset);
+            }
+
+            // The reader doesn't touch the chunk until this upload moves past it
+            throttle.acquire(count);
+            ByteBuffer view = chunk.duplicate();
+            view.position(chunkOffset);
+            view.get(bytes, offset, count);
+            chunkOffset += count;
+
+            synchronized (FanOutReader.this)
+            {
+                if (consumedChunks[consumer] < 0)
+                {
+                    return count;
+                }
+
+                int slot = (int) (consumedChunks[consumer] % RING_SIZE);
+                if (chunkOffset >= chunkLengths[slot])
+                {
+                    consumedChunks[consumer]++;
+                    chunkOffset = 0;
+                    FanOutReader.this.notifyAll();
+                }
+            }
+            return count;
+        }
+
+        @Override
+        public void close()
+        {
+            detach(consumer);
+        }
+    }
+}
@@ -1,11 +1,15 @@
 package flingr.app.remote;
 
 import android.os.AsyncTask;
+import android.os.SystemClock;
 
 import java.lang.ref.WeakReference;
 import java.util.Objects;
 
 import flingr.app.entities.Connection;
+import flingr.app.entities.TransferPhase;
+import flingr.app.entities.TransferRoute;
+import flingr.app.managers.TelemetryManager;
 import timber.log.Timber;
 
 /**
@@ -44,6 +48,7 @@ public class QueryServerTask extends AsyncTask<String, Void, Connection>
         {
             if (activationCode.length > 0 && activationCode[0] != null)
             {
+                long lookupStart = SystemClock.elapsedRealtime();
                 String jsonResult = AWSRequestor.getRegistrationInfo(activationCode[0]);
 
                 connection = JSONResponseParser.parseJSON(jsonResult);
@@ -52,6 +57,9 @@ public class QueryServerTask extends AsyncTask<String, Void, Connection>
                 {
                     success = true;
                 }
+
+                TelemetryManager.getInstance().record(0, TransferPhase.LOOKUP, TransferRoute.WAN,
+                        lookupStart, jsonResult != null ? jsonResult.length() : 0, success);
             }
 
             if (!success)
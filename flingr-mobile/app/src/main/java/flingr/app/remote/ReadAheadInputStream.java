@@ -0,0 +1,323 @@
+package flingr.app.remote;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import flingr.app.managers.BandwidthManager;
+import flingr.app.utilities.BufferPool;
+
+/**
+ * Reads a range of a local file ahead of the upload sending it, so a slow provider's reads
+ * overlap with the network instead of adding to it.
+ * <p>
+ * A reader thread fills a ring of chunk sized slots cut from buffers of the {@link BufferPool},
+ * and the sending thread copies out of them straight into JSch's arrays.  The ring is set up once
+ * per file and reused for every range of it, so nothing is allocated per chunk or per range.
+ * With a depth of 1 the range is read on the sending thread, as before.
+ */
+class ReadAheadInputStream extends InputStream
+{
+    private static final ExecutorService readers = Executors.newCachedThreadPool((runnable) ->
+    {
+        Thread thread = new Thread(runnable, "FlingrReadAhead");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final UploadSource source;
+    private final BandwidthManager.Throttle throttle;
+    private final int chunkSize;
+    private final ByteBuffer[] pooledBuffers;
+    private final ByteBuffer[] ring;
+    private final int[] chunkLengths;
+
+    // Only touched by the reader, or the sending thread if there is no reader
+    private long readPosition;
+    private long limit;
+
+    private long producedChunks = 0;
+    private long consumedChunks = 0;
+    private int chunkOffset = 0;
+    private boolean isEndOfRange = true;
+    private boolean isStopped = false;
+    private boolean isReaderDone = true;
+    private IOException readFailure;
+    private long bytesRead = 0;
+
+    /**
+     * Constructor.  Nothing is read until a range is started with
+     * {@link #startRange(long, long)}.
+     *
+     * @param source    The local file.
+     * @param throttle  Throttle each read is paced with before it is handed over.
+     * @param depth     Number of chunks read ahead, 1 to read on the sending thread.
+     * @param chunkSize Bytes read from the file at once, at most {@link BufferPool#BUFFER_SIZE}.
+     */
+    ReadAheadInputStream(UploadSource source, BandwidthManager.Throttle throttle, int depth,
+                         int chunkSize)
+    {
+        this.source = source;
+        this.throttle = throttle;
+        this.chunkSize = Math.max(1, Math.min(BufferPool.BUFFER_SIZE, chunkSize));
+        this.ring = new ByteBuffer[Math.max(1, depth)];
+        this.chunkLengths = new int[ring.length];
+
+        // A pooled buffer holds as many slots as whole chunks fit into it
+        int slotsPerBuffer = BufferPool.BUFFER_SIZE / this.chunkSize;
+        this.pooledBuffers = new ByteBuffer[(ring.length + slotsPerBuffer - 1) / slotsPerBuffer];
+        for (int i = 0; i < pooledBuffers.length; i++)
+        {
+            pooledBuffers[i] = BufferPool.acquire();
+        }
+        for (int i = 0; i < ring.length; i++)
+        {
+            ByteBuffer slot = pooledBuffers[i / slotsPerBuffer].duplicate();
+            slot.position((i % slotsPerBuffer) * this.chunkSize);
+            slot.limit(slot.position() + this.chunkSize);
+            ring[i] = slot.slice();
+        }
+    }
+
+    /**
+     * Starts handing out a range of the file, once the previous range is no longer read.
+     *
+     * @param position Offset of the first byte of the range.
+     * @param length   Number of bytes in the range.
+     *
+     * @throws IOException if interrupted while the previous range was stopped.
+     */
+    void startRange(long position, long length) throws IOException
+    {
+        if (!stopReader())
+        {
+            throw new IOException("Interrupted while stopping the reader");
+        }
+
+        synchronized (this)
+        {
+            readPosition = position;
+            limit = position + length;
+            producedChunks = 0;
+            consumedChunks = 0;
+            chunkOffset = 0;
+            isEndOfRange = false;
+            isStopped = false;
+            readFailure = null;
+            bytesRead = 0;
+
+            if (ring.length > 1)
+            {
+                isReaderDone = false;
+                readers.execute(this::readAhead);
+            }
+        }
+    }
+
+    /**
+     * Gets the bytes of the current range handed to the upload so far.
+     *
+     * @return Number of bytes.
+     */
+    synchronized long getBytesRead()
+    {
+        return bytesRead;
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        byte[] single = new byte[1];
+        return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException
+    {
+        ByteBuffer chunk;
+        int count;
+        synchronized (this)
+        {
+            if (ring.length == 1 && consumedChunks == producedChunks && !isEndOfRange)
+            {
+                // Nobody reads ahead, so fill the only buffer here
+                fillChunk();
+            }
+
+            while (consumedChunks == producedChunks && !isEndOfRange && readFailure == null)
+            {
+                waitForReader();
+            }
+            if (consumedChunks == producedChunks && readFailure != null)
+            {
+                throw readFailure;
+            }
+            if (consumedChunks == producedChunks)
+            {
+                return -1;
+            }
+
+            int slot = (int) (consumedChunks % ring.length);
+            chunk = ring[slot];
+            count = Math.min(length, chunkLengths[slot] - chunkOffset);
+        }
+
+        // The reader leaves the chunk alone until it is consumed below
+        throttle.acquire(count);
+        System.arraycopy(chunk.array(), chunk.arrayOffset() + chunkOffset, bytes, offset, count);
+
+        synchronized (this)
+        {
+            chunkOffset += count;
+            bytesRead += count;
+            if (chunkOffset >= chunkLengths[(int) (consumedChunks % ring.length)])
+            {
+                chunkOffset = 0;
+                consumedChunks++;
+                notifyAll();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Stops reading the current range.  JSch doesn't close the stream of a put, so this only
+     * happens once the file is done, and hands the buffers back to the pool.
+     */
+    @Override
+    public void close()
+    {
+        // The buffers of a reader that can't be stopped are left to the garbage collector
+        if (stopReader())
+        {
+            for (ByteBuffer buffer : pooledBuffers)
+            {
+                BufferPool.release(buffer);
+            }
+        }
+    }
+
+    /**
+     * Stops the reader of the current range and waits for it, since a read in progress still
+     * writes to its slot.
+     *
+     * @return True once the reader is done, false if interrupted while waiting.
+     */
+    private synchronized boolean stopReader()
+    {
+        isStopped = true;
+        notifyAll();
+
+        while (!isReaderDone)
+        {
+            try
+            {
+                wait();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Fills the ring from the file until the end of the range or until the reader is stopped.
+     * Runs on a reader thread.
+     */
+    private void readAhead()
+    {
+        try
+        {
+            while (true)
+            {
+                synchronized (this)
+                {
+                    while (!isStopped && producedChunks - consumedChunks >= ring.length)
+                    {
+                        wait();
+                    }
+                    if (isStopped || isEndOfRange)
+                    {
+                        return;
+                    }
+                }
+                fillChunk();
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            synchronized (this)
+            {
+                readFailure = new IOException("Interrupted while reading ahead", e);
+            }
+        }
+        catch (IOException e)
+        {
+            synchronized (this)
+            {
+                readFailure = e;
+            }
+        }
+        finally
+        {
+            synchronized (this)
+            {
+                isReaderDone = true;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Reads the next chunk of the range into its free slot and publishes it.
+     *
+     * @throws IOException if the file could not be read.
+     */
+    private void fillChunk() throws IOException
+    {
+        int slot = (int) (producedChunks % ring.length);
+        ByteBuffer buffer = ring[slot];
+        buffer.clear();
+        buffer.limit((int) Math.min(chunkSize, limit - readPosition));
+
+        int read = readPosition < limit ? source.readFully(buffer, readPosition) : 0;
+        synchronized (this)
+        {
+            if (read <= 0)
+            {
+                isEndOfRange = true;
+            }
+            else
+            {
+                chunkLengths[slot] = read;
+                readPosition += read;
+                producedChunks++;
+            }
+            notifyAll();
+        }
+    }
+
+    /**
+     * Waits for the reader to publish a chunk.
+     *
+     * @throws IOException if interrupted while waiting.
+     */
+    private void waitForReader() throws IOException
+    {
+        try
+        {
+            wait();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the reader", e);
+        }
+    }
+}
@@ -0,0 +1,334 @@
+package flingr.app.remote;
+
+import android.content.Context;
+import android.net.Uri;
+
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.SftpException;
+import com.jcraft.jsch.SftpProgressMonitor;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import flingr.app.entities.Connection;
+import flingr.app.entities.TransferOptions;
+import flingr.app.entities.TransferRecord;
+import flingr.app.managers.BandwidthManager;
+import flingr.app.managers.TransferJournalManager;
+import timber.log.Timber;
+
+/**
+ * Uploads a file over a single SFTP channel and journals its progress in the
+ * {@link TransferJournalManager}, so a later attempt continues from the last confirmed offset
+ * instead of starting over.
+ * <p>
+ * The file is written under a temporary name and only renamed once complete.  An upload is only
+ * resumed if the local file still has the journaled fingerprint and the tail of the remote
+ * partial file matches the local bytes at the same offset.
+ * <p>
+ * The number of write requests in flight is sized to the link by a {@link WritePipelineTuner},
+ * or fixed by the connection's {@link flingr.app.entities.TransferOptions#getPipelineDepth()}.
+ * Every chunk is paced by a {@link BandwidthManager.Throttle} as JSch reads it, and the file is
+ * read ahead of JSch by one {@link ReadAheadInputStream} per file, sized by the same options.
+ */
+public class ResumableSftpUploader
+{
+    private static final int FINGERPRINT_SAMPLE_SIZE = 64 * 1024;
+    private static final int PREFIX_CHECK_SIZE = 64 * 1024;
+    private static final long JOURNAL_INTERVAL_BYTES = 4L * 1024L * 1024L;
+
+    private final Context context;
+    private final ChannelSftp channel;
+    private final Connection connection;
+    private final BandwidthManager.Throttle throttle;
+
+    /**
+     * Constructor.
+     *
+     * @param context    An Android life-cycle object to open the journal with.
+     * @param channel    Connected channel to upload over.
+     * @param connection The connection the file is sent to.
+     * @param throttle   Throttle the file's bytes are paced with.
+     */
+    public ResumableSftpUploader(Context context, ChannelSftp channel, Connection connection,
+                                 BandwidthManager.Throttle throttle)
+    {
+        this.context = context;
+        this.channel = channel;
+        this.connection = connection;
+        this.throttle = throttle;
+    }
+
+    /**
+     * Uploads the file, resuming a previous attempt if possible.
+     *
+     * @param source   The local file.
+     * @param fileUri  Uri of the local file, which the upload is journaled under.
+     * @param fileName Name of the remote file.
+     * @param monitor  Monitor notified of the bytes sent.  Returning false from
+     *                 {@link SftpProgressMonitor#count(long)} stops the upload and keeps the
+     *                 partial file so it can be resumed.
+     *
+     * @return True if the file was sent, false if the monitor stopped the upload.
+     *
+     * @throws SftpException if the remote file could not be written or finalized.
+     * @throws IOException   if the local file could not be read.
+     */
+    public boolean upload(UploadSource source, Uri fileUri, String fileName,
+                       SftpProgressMonitor monitor) throws SftpException, IOException
+    {
+        long fileSize = source.getSize();
+        TransferJournalManager journal = TransferJournalManager.getInstance();
+        String key = TransferJournalManager.createKey(connection, fileUri.toString(), fileName);
+        String partialFileName = SftpHelper.getPartialFileName(fileName);
+        String fingerprint = computeFingerprint(source);
+
+        long resumeOffset = getResumeOffset(journal.getRecord(context, key), fingerprint,
+                source, partialFileName);
+        if (resumeOffset == 0)
+        {
+            journal.putRecord(context, key,
+                    new TransferRecord(fileUri.toString(), fileName, fingerprint, fileSize));
+        }
+        else
+        {
+            Timber.i("Resuming %s at byte %d", fileName, resumeOffset);
+
+            // The resumed bytes are never written, so report them up front
+            monitor.count(resumeOffset);
+        }
+
+        JournalingProgressMonitor journalingMonitor =
+                new JournalingProgressMonitor(monitor, key, resumeOffset);
+
+        TransferOptions transferOptions = connection.getTransferOptions();
+        WritePipelineTuner tuner = new WritePipelineTuner(transferOptions.getPipelineDepth());
+        long position = resumeOffset;
+        boolean isEndOfFile = false;
+        try (ReadAheadInputStream segment = new ReadAheadInputStream(source, throttle,
+                transferOptions.getReadAheadDepth(), transferOptions.getReadChunkSize()))
+        {
+            // The pipeline depth of a put is fixed once it starts, so the file goes out in
+            // segments and every segment gets the depth the previous ones measured
+            while (!isEndOfFile && !journalingMonitor.isStopped)
+            {
+                long rttStart = System.nanoTime();
+                channel.realpath(".");
+                tuner.addRttSample(System.nanoTime() - rttStart);
+                channel.setBulkRequests(tuner.getDepth());
+
+                long segmentSize = tuner.getSegmentSize();
+                long segmentStart = System.nanoTime();
+                segment.startRange(position, segmentSize);
+
+                // Appending writes at the current size of the partial file, which is where the
+                // last segment or attempt stopped
+                channel.put(segment, partialFileName, journalingMonitor,
+                        position == 0 ? ChannelSftp.OVERWRITE : ChannelSftp.APPEND);
+                long segmentBytes = segment.getBytesRead();
+                tuner.addSegmentSample(segmentBytes, System.nanoTime() - segmentStart);
+
+                position += segmentBytes;
+                isEndOfFile = segmentBytes < segmentSize
+                        || (fileSize >= 0 && position >= fileSize);
+            }
+        }
+        catch (JSchException e)
+        {
+            throw new SftpException(ChannelSftp.SSH_FX_FAILURE, e.getMessage());
+        }
+        finally
+        {
+            journal.updateProgress(context, key, journalingMonitor.bytesConfirmed);
+        }
+
+        // A stopped upload is left to be resumed
+        if (journalingMonitor.isStopped)
+        {
+            return false;
+        }
+
+        SftpHelper.finalizeRemoteFile(channel, source, partialFileName, fileName, throttle);
+        journal.removeRecord(context, key);
+        return true;
+    }
+
+    /**
+     * Decides where a journaled upload can continue from.
+     *
+     * @param record          The journal record, may be null.
+     * @param fingerprint     Fingerprint of the local file.
+     * @param source          The local file.
+     * @param partialFileName Name of the temporary remote file.
+     *
+     * @return The offset to resume from, 0 to start over.
+     */
+    private long getResumeOffset(TransferRecord record, String fingerprint, UploadSource source,
+                                 String partialFileName)
+    {
+        if (record == null || record.getBytesConfirmed() <= 0
+                || !fingerprint.equals(record.getFingerprint()))
+        {
+            return 0;
+        }
+
+        try
+        {
+            // Bytes still in flight when the journal was written may have landed as well, so
+            // resume from what the server actually has
+            long remoteSize = SftpHelper.getRemoteFileSize(channel, partialFileName);
+            if (remoteSize <= 0 || (source.getSize() >= 0 && remoteSize > source.getSize()))
+            {
+                return 0;
+            }
+
+            return remotePrefixMatches(source, partialFileName, remoteSize) ? remoteSize : 0;
+        }
+        catch (SftpException | IOException e)
+        {
+            Timber.w(e, "Unable to verify partial file %s, starting over", partialFileName);
+            return 0;
+        }
+    }
+
+    /**
+     * Compares the last bytes of the remote partial file with the local bytes at the same offset.
+     *
+     * @param source          The local file.
+     * @param partialFileName Name of the temporary remote file.
+     * @param remoteSize      Size of the temporary remote file.
+     *
+     * @return True if the bytes match.
+     *
+     * @throws SftpException if the remote file could not be read.
+     * @throws IOException   if the local file could not be read.
+     */
+    private boolean remotePrefixMatches(UploadSource source, String partialFileName,
+                                        long remoteSize) throws SftpException, IOException
+    {
+        long offset = Math.max(0, remoteSize - PREFIX_CHECK_SIZE);
+        int length = (int) (remoteSize - offset);
+
+        byte[] remoteBytes;
+        try (InputStream remoteStream = channel.get(partialFileName, null, offset))
+        {
+            remoteBytes = readFully(remoteStream, length);
+        }
+
+        ByteBuffer localBytes = ByteBuffer.allocate(length);
+        int localLength = source.readFully(localBytes, offset);
+
+        return remoteBytes.length == length && localLength == length
+                && Arrays.equals(remoteBytes, localBytes.array());
+    }
+
+    /**
+     * Fingerprints the local file by its size and first bytes, which is enough to notice that a
+     * different file was shared under the same Uri without reading all of it.
+     *
+     * @param source The local file.
+     *
+     * @return Hex encoded SHA-256 fingerprint.
+     *
+     * @throws IOException if the local file could not be read.
+     */
+    private static String computeFingerprint(UploadSource source) throws IOException
+    {
+        ByteBuffer sample = ByteBuffer.allocate(FINGERPRINT_SAMPLE_SIZE);
+        int length = source.readFully(sample, 0);
+
+        try
+        {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(Long.toString(source.getSize()).getBytes());
+            digest.update(sample.array(), 0, length);
+
+            return UploadSource.toHex(digest.digest());
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IOException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * Reads up to a number of bytes, stopping early only at the end of the stream.
+     *
+     * @param inputStream The stream to read.
+     * @param length      Maximum number of bytes to read.
+     *
+     * @return The bytes read.
+     *
+     * @throws IOException if the stream could not be read.
+     */
+    private static byte[] readFully(InputStream inputStream, int length) throws IOException
+    {
+        byte[] buffer = new byte[length];
+        int total = 0;
+        while (total < length)
+        {
+            int read = inputStream.read(buffer, total, length - total);
+            if (read < 0)
+            {
+                break;
+            }
+            total += read;
+        }
+        return total == length ? buffer : Arrays.copyOf(buffer, total);
+    }
+
+    /**
+     * Forwards progress to the upload's monitor and periodically persists it in the journal.
+     */
+    private class JournalingProgressMonitor implements SftpProgressMonitor
+    {
+        private final SftpProgressMonitor monitor;
+        private final String key;
+        private long bytesConfirmed;
+        private long bytesJournaled;
+        private boolean isStopped = false;
+
+        JournalingProgressMonitor(SftpProgressMonitor monitor, String key, long resumeOffset)
+        {
+            this.monitor = monitor;
+            this.key = key;
+            this.bytesConfirmed = resumeOffset;
+            this.bytesJournaled = resumeOffset;
+        }
+
+        @Override
+        public void init(int op, String src, String dest, long max)
+        {
+            monitor.init(op, src, dest, max);
+        }
+
+        @Override
+        public boolean count(long count)
+        {
+            bytesConfirmed += count;
+            if (bytesConfirmed - bytesJournaled >= JOURNAL_INTERVAL_BYTES)
+            {
+                bytesJournaled = bytesConfirmed;
+                TransferJournalManager.getInstance().updateProgress(context, key, bytesConfirmed);
+            }
+
+            if (!monitor.count(count))
+            {
+                isStopped = true;
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        public void end()
+        {
+            monitor.end();
+        }
+    }
+}
@@ -0,0 +1,385 @@
+package flingr.app.remote;
+
+import android.content.Context;
+import android.os.SystemClock;
+
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import flingr.app.entities.Connection;
+import flingr.app.entities.RouteCacheEntry;
+import flingr.app.entities.TransferRoute;
+import flingr.app.managers.BandwidthManager;
+import flingr.app.managers.CipherProfileManager;
+import flingr.app.managers.RouteCacheManager;
+import flingr.app.managers.SessionPoolManager;
+import flingr.app.utilities.CompressionPolicy;
+import flingr.app.utilities.NetworkHelper;
+import timber.log.Timber;
+
+/**
+ * Leases SSH sessions to a {@link Connection} from the {@link SessionPoolManager}.
+ * <p>
+ * {@link SessionConnector#connect(Context, Connection, boolean, long, int)} races the LAN and WAN
+ * addresses in the style of happy eyeballs: the attempt over the route that last worked from the
+ * current network starts first, the other follows after a short stagger (or right away if the
+ * first attempt fails), and the first session to authenticate wins.
+ */
+public class SessionConnector
+{
+    public static final long ROUTE_STAGGER_MS = 250;
+
+    // How many times its usual connect time a predicted route gets before the other one starts
+    private static final long PREDICTION_SLACK = 2;
+
+    private static final ExecutorService connectWorkers = Executors.newCachedThreadPool(
+            (runnable) ->
+            {
+                Thread thread = new Thread(runnable, "FlingrConnect");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    /**
+     * A leased session and the route it was established over.
+     */
+    public static class ConnectedSession
+    {
+        private final Session session;
+        private final TransferRoute route;
+
+        ConnectedSession(Session session, TransferRoute route)
+        {
+            this.session = session;
+            this.route = route;
+        }
+
+        /**
+         * Gets the session, which must be handed back with
+         * {@link SessionPoolManager#release(Session)}.
+         *
+         * @return The connected session.
+         */
+        public Session getSession()
+        {
+            return session;
+        }
+
+        /**
+         * Gets the route the session was established over.
+         *
+         * @return The route.
+         */
+        public TransferRoute getRoute()
+        {
+            return route;
+        }
+    }
+
+    /**
+     * Connects to a connection over the route predicted by the {@link RouteCacheManager} for the
+     * current network, racing the LAN and WAN routes if there is no prediction or it fails.
+     *
+     * @param context        An Android life-cycle object.
+     * @param connection     Connection information.
+     * @param isCompressible True if the file to send is worth compressing.
+     * @param transferId     Upload attempt the connect phases are recorded under.
+     * @param timeout        Connection timeout of each attempt in milliseconds.
+     *
+     * @return The winning session, or null if neither route could be established.
+     */
+    public static ConnectedSession connect(Context context, Connection connection,
+                                           boolean isCompressible, long transferId, int timeout)
+    {
+        RouteCacheManager routeCache = RouteCacheManager.getInstance();
+        String networkId = NetworkHelper.getNetworkId(context);
+        RouteCacheEntry cachedEntry = routeCache.getEntry(context, connection, networkId);
+
+        TransferRoute firstRoute = TransferRoute.LAN;
+        long stagger = ROUTE_STAGGER_MS;
+        if (cachedEntry != null)
+        {
+            // Go straight to the route that worked last time and only fall back to the other one
+            // once it takes clearly longer than it used to
+            firstRoute = cachedEntry.getRoute();
+            stagger = Math.min(timeout, Math.max(ROUTE_STAGGER_MS,
+                    PREDICTION_SLACK * cachedEntry.getConnectMillis()));
+        }
+        else if (!NetworkHelper.isOnLocalSubnet(context, connection.getLocalAddress())
+                && connection.getWanAddress() != null)
+        {
+            // The desktop is not on this network, so its local address is unlikely to answer
+            firstRoute = TransferRoute.WAN;
+        }
+
+        TransferRoute secondRoute = firstRoute == TransferRoute.LAN ? TransferRoute.WAN
+                : TransferRoute.LAN;
+
+        long startTime = SystemClock.elapsedRealtime();
+        ConnectedSession winner = race(connection, firstRoute, secondRoute, stagger, isCompressible,
+                transferId, timeout);
+
+        if (winner != null)
+        {
+            routeCache.putEntry(context, connection, networkId, winner.getRoute(),
+                    SystemClock.elapsedRealtime() - startTime);
+        }
+        else if (cachedEntry != null)
+        {
+            routeCache.invalidate(context, connection, networkId);
+        }
+
+        return winner;
+    }
+
+    /**
+     * Races two routes of a connection and returns the first to authenticate.  The first route
+     * starts right away, the second after a stagger or as soon as the first fails.
+     *
+     * @param connection     Connection information.
+     * @param firstRoute     The route expected to work.
+     * @param secondRoute    The other route.
+     * @param stagger        Head start of the first route in milliseconds.
+     * @param isCompressible True if the file to send is worth compressing.
+     * @param transferId     Upload attempt the connect phases are recorded under.
+     * @param timeout        Connection timeout of each attempt in milliseconds.
+     *
+     * @return The winning session, or null if neither route could be established.
+     */
+    private static ConnectedSession race(Connection connection, TransferRoute firstRoute,
+                                         TransferRoute secondRoute, long stagger,
+                                         boolean isCompressible, long transferId, int timeout)
+    {
+        CompletionService<ConnectedSession> attempts =
+                new ExecutorCompletionService<>(connectWorkers);
+
+        Future<ConnectedSession> firstAttempt =
+                attempts.submit(() -> connectOrThrow(connection, firstRoute, isCompressible, transferId,
+                        timeout));
+        Future<ConnectedSession> secondAttempt = null;
+        int pendingAttempts = 1;
+
+        ConnectedSession winner = null;
+        try
+        {
+            // Give the first route a head start, but stop waiting as soon as it fails
+            Future<ConnectedSession> finished = attempts.poll(stagger, TimeUnit.MILLISECONDS);
+            if (finished != null)
+            {
+                pendingAttempts--;
+                winner = getResult(finished);
+            }
+
+            if (winner == null)
+            {
+                secondAttempt = attempts.submit(() -> connectOrThrow(connection, secondRoute, isCompressible,
+                        transferId, timeout));
+                pendingAttempts++;
+            }
+
+            while (winner == null && pendingAttempts > 0)
+            {
+                finished = attempts.take();
+                pendingAttempts--;
+                winner = getResult(finished);
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            // The loser can't be aborted mid handshake, so hand its session back once it lands
+            abandon(firstAttempt, winner);
+            abandon(secondAttempt, winner);
+        }
+
+        return winner;
+    }
+
+    /**
+     * Leases a session over a single route and records it in the {@link RouteCacheManager} if it
+     * connects.
+     *
+     * @param context        An Android life-cycle object.
+     * @param connection     Connection information.
+     * @param route          The route to connect over.
+     * @param isCompressible True if the file to send is worth compressing.
+     * @param transferId     Upload attempt the connect phases are recorded under.
+     * @param timeout        Connection timeout in milliseconds.
+     *
+     * @return The session, or null if it could not be established.
+     */
+    public static ConnectedSession connect(Context context, Connection connection,
+                                           TransferRoute route, boolean isCompressible,
+                                           long transferId, int timeout)
+    {
+        try
+        {
+            long startTime = SystemClock.elapsedRealtime();
+            ConnectedSession connected = connectOrThrow(connection, route, isCompressible,
+                    transferId, timeout);
+            RouteCacheManager.getInstance().putEntry(context, connection,
+                    NetworkHelper.getNetworkId(context), route,
+                    SystemClock.elapsedRealtime() - startTime);
+            return connected;
+        }
+        catch (JSchException | NullPointerException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Forgets the route predicted for a connection on the current network, after a transfer over
+     * it failed.
+     *
+     * @param context    An Android life-cycle object.
+     * @param connection Connection information.
+     */
+    public static void invalidateRoute(Context context, Connection connection)
+    {
+        RouteCacheManager.getInstance().invalidate(context, connection,
+                NetworkHelper.getNetworkId(context));
+    }
+
+    /**
+     * Leases a session over a single route.
+     *
+     * @param connection     Connection information.
+     * @param route          The route to connect over.
+     * @param isCompressible True if the file to send is worth compressing.
+     * @param transferId     Upload attempt the connect phases are recorded under.
+     * @param timeout        Connection timeout in milliseconds.
+     *
+     * @return The session.
+     *
+     * @throws JSchException if the session could not be established.
+     */
+    private static ConnectedSession connectOrThrow(Connection connection, TransferRoute route,
+                                                   boolean isCompressible, long transferId,
+                                                   int timeout)
+            throws JSchException
+    {
+        String host = route == TransferRoute.LAN ? connection.getLocalAddress()
+                : connection.getWanAddress();
+        Integer port = route == TransferRoute.LAN ? connection.getLocalPort()
+                : connection.getWanPort();
+
+        if (host == null || port == null)
+        {
+            throw new JSchException("No " + route + " address for " + connection.getColloquialName());
+        }
+
+        boolean isConnected = false;
+        ConnectPhaseTracer.begin();
+        try
+        {
+            Session session = SessionPoolManager.getInstance().acquire(connection.getUserName(),
+                    connection.getUserPassword(), host, port,
+                    createSessionConfig(connection, route, isCompressible), timeout);
+            isConnected = true;
+            return new ConnectedSession(session, route);
+        }
+        finally
+        {
+            ConnectPhaseTracer.end(transferId, route, isConnected);
+        }
+    }
+
+    /**
+     * Creates the JSch configuration of a session to a connection over a route.
+     *
+     * @param connection     Connection information.
+     * @param route          The route the session is established over.
+     * @param isCompressible True if the file to send is worth compressing.
+     *
+     * @return The configuration entries.
+     */
+    private static Map<String, String> createSessionConfig(Connection connection,
+                                                           TransferRoute route,
+                                                           boolean isCompressible)
+    {
+        Map<String, String> config = new HashMap<>(CipherProfileManager.getInstance()
+                .getSessionConfig(connection.getTransferOptions().getCipherProfile(), route));
+
+        // Compression is chosen from the wire throughput this desktop reached over the route
+        long measuredBytesPerSecond = BandwidthManager.getInstance()
+                .getMeasuredBytesPerSecond(connection, route);
+        int compressionLevel = CompressionPolicy.chooseLevel(
+                connection.getTransferOptions().getCompressionMode(), isCompressible, route,
+                measuredBytesPerSecond);
+        if (compressionLevel != CompressionPolicy.NO_COMPRESSION)
+        {
+            config.put("compression.c2s", "zlib@openssh.com,zlib,none");
+            config.put("compression_level", Integer.toString(compressionLevel));
+        }
+
+        return config;
+    }
+
+    /**
+     * Gets the result of a finished attempt.
+     *
+     * @param attempt The finished attempt.
+     *
+     * @return The session, or null if the attempt failed.
+     *
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    private static ConnectedSession getResult(Future<ConnectedSession> attempt)
+            throws InterruptedException
+    {
+        try
+        {
+            return attempt.get();
+        }
+        catch (ExecutionException e)
+        {
+            Timber.d("Connection attempt failed: %s", e.getCause().getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Releases the session of an attempt that lost the race, waiting for it in the background
+     * if it is still connecting.
+     *
+     * @param attempt The attempt, may be null.
+     * @param winner  The session that won the race, may be null.
+     */
+    private static void abandon(Future<ConnectedSession> attempt, ConnectedSession winner)
+    {
+        if (attempt == null)
+        {
+            return;
+        }
+
+        connectWorkers.execute(() ->
+        {
+            try
+            {
+                ConnectedSession loser = attempt.get();
+                if (loser != winner)
+                {
+                    SessionPoolManager.getInstance().release(loser.getSession());
+                }
+            }
+            catch (ExecutionException | InterruptedException e)
+            {
+                // Nothing to release
+            }
+        });
+    }
+}
@@ -0,0 +1,165 @@
+package flingr.app.remote;
+
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.SftpATTRS;
+import com.jcraft.jsch.SftpException;
+import com.jcraft.jsch.SftpProgressMonitor;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import flingr.app.managers.BandwidthManager;
+import flingr.app.utilities.BufferPool;
+
+/**
+ * Static helpers shared by the SFTP upload strategies.
+ */
+public class SftpHelper
+{
+    // Uploads are written under this suffix and only take their real name once complete
+    public static final String PARTIAL_FILE_SUFFIX = ".flingr-part";
+
+    // Any mode other than OVERWRITE, RESUME or APPEND makes JSch open the remote file for writing
+    // without truncating it and without moving the offset to the end of the file.
+    static final int WRITE_AT_OFFSET_MODE = 3;
+
+    // Bytes reserved from a throttle at once, a couple of SFTP write requests
+    static final int THROTTLE_SLICE_SIZE = 64 * 1024;
+
+    /**
+     * Gets the name an upload is written under until it is complete.
+     *
+     * @param fileName Final name of the remote file.
+     *
+     * @return The temporary remote file name.
+     */
+    public static String getPartialFileName(String fileName)
+    {
+        return fileName + PARTIAL_FILE_SUFFIX;
+    }
+
+    /**
+     * Gets the size of a remote file.
+     *
+     * @param channel  Connected channel.
+     * @param fileName Name of the remote file.
+     *
+     * @return The size in bytes, or -1 if the file doesn't exist.
+     *
+     * @throws SftpException if the file exists but could not be read.
+     */
+    public static long getRemoteFileSize(ChannelSftp channel, String fileName) throws SftpException
+    {
+        try
+        {
+            return channel.stat(fileName).getSize();
+        }
+        catch (SftpException e)
+        {
+            if (e.id == ChannelSftp.SSH_FX_NO_SUCH_FILE)
+            {
+                return -1;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Verifies the size and sampled content of a completed temporary remote file and moves it to
+     * its final name, replacing any file already there.
+     *
+     * @param channel         Connected channel.
+     * @param source          The local file that was uploaded.
+     * @param partialFileName Name of the temporary remote file.
+     * @param fileName        Final name of the remote file.
+     * @param throttle        Throttle the repairs of corrupt regions are paced with.
+     *
+     * @throws SftpException if the remote file is incomplete, corrupt beyond repair, or could not
+     *                       be renamed.
+     * @throws IOException   if the local file could not be read.
+     */
+    public static void finalizeRemoteFile(ChannelSftp channel, UploadSource source,
+                                          String partialFileName, String fileName,
+                                          BandwidthManager.Throttle throttle)
+            throws SftpException, IOException
+    {
+        long fileSize = source.getSize();
+        if (fileSize >= 0)
+        {
+            SftpATTRS attributes = channel.stat(partialFileName);
+            if (attributes.getSize() != fileSize)
+            {
+                throw new SftpException(ChannelSftp.SSH_FX_FAILURE, "Upload wrote "
+                        + attributes.getSize() + " of " + fileSize + " bytes");
+            }
+
+            UploadVerifier.verify(channel, source, partialFileName, throttle);
+        }
+
+        // SFTP version 3 renames fail if the destination already exists
+        try
+        {
+            channel.rm(fileName);
+        }
+        catch (SftpException e)
+        {
+            if (e.id != ChannelSftp.SSH_FX_NO_SUCH_FILE)
+            {
+                throw e;
+            }
+        }
+        channel.rename(partialFileName, fileName);
+    }
+
+    /**
+     * Writes a byte range of the local file to the same offset of a remote file.
+     *
+     * @param channel    Channel to write over.
+     * @param source     The local file.
+     * @param remoteName Name of the remote file.
+     * @param offset     Offset of the first byte of the range.
+     * @param length     Number of bytes in the range.
+     * @param monitor    Monitor notified of the bytes sent, may be null.
+     * @param throttle   Throttle the bytes are paced with.
+     *
+     * @throws SftpException if the remote file could not be written.
+     * @throws IOException   if the local file could not be read or the monitor stopped the write.
+     */
+    static void writeRange(ChannelSftp channel, UploadSource source, String remoteName,
+                           long offset, long length, SftpProgressMonitor monitor,
+                           BandwidthManager.Throttle throttle)
+            throws SftpException, IOException
+    {
+        ByteBuffer buffer = BufferPool.acquire();
+        try (OutputStream outputStream = channel.put(remoteName, monitor, WRITE_AT_OFFSET_MODE,
+                offset))
+        {
+            long sent = 0;
+            while (sent < length)
+            {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), length - sent));
+
+                int read = source.readFully(buffer, offset + sent);
+                if (read <= 0)
+                {
+                    throw new IOException("File ended before the range at " + offset + " was sent");
+                }
+
+                // Pace the buffer in slices so a slow limit doesn't hold back a whole buffer
+                for (int written = 0; written < read; written += THROTTLE_SLICE_SIZE)
+                {
+                    int slice = Math.min(THROTTLE_SLICE_SIZE, read - written);
+                    throttle.acquire(slice);
+                    outputStream.write(buffer.array(), buffer.arrayOffset() + written, slice);
+                }
+                sent += read;
+            }
+        }
+        finally
+        {
+            BufferPool.release(buffer);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package flingr.app.remote;
+
+import android.content.Context;
+import android.net.Uri;
+
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.Session;
+import com.jcraft.jsch.SftpException;
+import com.jcraft.jsch.SftpProgressMonitor;
+
+import java.io.IOException;
+
+import flingr.app.entities.Connection;
+import flingr.app.entities.TransferOptions;
+import flingr.app.entities.TransportMode;
+import flingr.app.managers.BandwidthManager;
+
+/**
+ * Uploads a file with SFTP requests.  A modified file only sends its changed blocks through a
+ * {@link DeltaSftpUploader}, a large one is split across several channels by a
+ * {@link StripedSftpUploader}, and everything else is journaled by a
+ * {@link ResumableSftpUploader} so it can be resumed.
+ */
+public class SftpTransport implements UploadTransport
+{
+    private final Context context;
+    private final Session session;
+    private final ChannelSftp channel;
+    private final Connection connection;
+    private final BandwidthManager.Throttle throttle;
+    private final int timeout;
+
+    /**
+     * Constructor.
+     *
+     * @param context    An Android life-cycle object to open the journal and index with.
+     * @param session    Session the channel belongs to, which stripes open their channels on.
+     * @param channel    Connected channel to upload over.
+     * @param connection The connection the file is sent to.
+     * @param throttle   Throttle the file's bytes are paced with.
+     * @param timeout    Channel connect timeout in milliseconds.
+     */
+    public SftpTransport(Context context, Session session, ChannelSftp channel,
+                         Connection connection, BandwidthManager.Throttle throttle, int timeout)
+    {
+        this.context = context;
+        this.session = session;
+        this.channel = channel;
+        this.connection = connection;
+        this.throttle = throttle;
+        this.timeout = timeout;
+    }
+
+    @Override
+    public TransportMode getMode()
+    {
+        return TransportMode.SFTP;
+    }
+
+    @Override
+    public boolean upload(UploadSource source, Uri fileUri, String fileName,
+                          SftpProgressMonitor monitor) throws SftpException, IOException
+    {
+        if (new DeltaSftpUploader(context, channel, connection, throttle).upload(source, fileName,
+                monitor))
+        {
+            return true;
+        }
+
+        TransferOptions transferOptions = connection.getTransferOptions();
+        if (StripedSftpUploader.shouldStripe(source, transferOptions))
+        {
+            new StripedSftpUploader(session, channel, transferOptions, throttle, timeout)
+                    .upload(source, fileName, monitor);
+            return true;
+        }
+
+        return new ResumableSftpUploader(context, channel, connection, throttle).upload(source,
+                fileUri, fileName, monitor);
+    }
+}
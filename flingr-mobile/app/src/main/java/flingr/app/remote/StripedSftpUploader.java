@@ -0,0 +1,282 @@
+package flingr.app.remote;
+
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+import com.jcraft.jsch.SftpException;
+import com.jcraft.jsch.SftpProgressMonitor;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import flingr.app.entities.TransferOptions;
+import flingr.app.managers.BandwidthManager;
+import flingr.app.managers.SessionPoolManager;
+import timber.log.Timber;
+
+/**
+ * Uploads a single large file by splitting it into byte ranges and writing every range at its
+ * offset over its own SFTP channel, so one slow request/ack pipe doesn't cap the transfer.
+ * <p>
+ * The ranges are written to a temporary remote file that is only renamed to the requested name
+ * once its size has been verified.
+ */
+public class StripedSftpUploader
+{
+    private final Session session;
+    private final ChannelSftp controlChannel;
+    private final TransferOptions transferOptions;
+    private final BandwidthManager.Throttle throttle;
+    private final int timeout;
+
+    /**
+     * Constructor.
+     *
+     * @param session         Connected session to open the stripe channels on.
+     * @param controlChannel  Connected channel used for the first stripe and to finalize the file.
+     * @param transferOptions The stripe count and minimum stripe size to use.
+     * @param throttle        Throttle every stripe paces its bytes with.
+     * @param timeout         Channel connect timeout in milliseconds.
+     */
+    public StripedSftpUploader(Session session, ChannelSftp controlChannel,
+                               TransferOptions transferOptions,
+                               BandwidthManager.Throttle throttle, int timeout)
+    {
+        this.session = session;
+        this.controlChannel = controlChannel;
+        this.transferOptions = transferOptions;
+        this.throttle = throttle;
+        this.timeout = timeout;
+    }
+
+    /**
+     * Whether a file can be striped and is large enough to be worth it.
+     *
+     * @param source          The local file.
+     * @param transferOptions The stripe count and minimum stripe size to use.
+     *
+     * @return True if the file should be sent by a {@link StripedSftpUploader}.
+     */
+    public static boolean shouldStripe(UploadSource source, TransferOptions transferOptions)
+    {
+        return source.isSeekable() && transferOptions.getStripeCount() > 1
+                && source.getSize() >= 2 * transferOptions.getMinStripeSize();
+    }
+
+    /**
+     * Uploads the file.
+     *
+     * @param source   The local file, which must be seekable.
+     * @param fileName Name of the remote file.
+     * @param monitor  Monitor notified of the bytes sent by every stripe, may be called from
+     *                 several threads at once.
+     *
+     * @throws SftpException if the remote file could not be written or finalized.
+     * @throws IOException   if the local file could not be read.
+     */
+    public void upload(UploadSource source, String fileName, SftpProgressMonitor monitor)
+            throws SftpException, IOException
+    {
+        long fileSize = source.getSize();
+        String partialFileName = SftpHelper.getPartialFileName(fileName);
+        SftpProgressMonitor stripeMonitor = new StripeProgressMonitor(monitor);
+
+        monitor.init(SftpProgressMonitor.PUT, fileName, fileName, fileSize);
+
+        // Create the remote file empty, every stripe then writes into it at its own offset
+        controlChannel.put(partialFileName, ChannelSftp.OVERWRITE).close();
+
+        boolean completed = false;
+        List<ChannelSftp> channels = openStripeChannels(fileSize);
+        ExecutorService stripeWorkers = null;
+        try
+        {
+            // Stripes start on block boundaries, so every block is hashed as its stripe reads it
+            long blockSize = UploadSource.SIGNATURE_BLOCK_SIZE;
+            long stripeSize = (fileSize + channels.size() - 1) / channels.size();
+            stripeSize = (stripeSize + blockSize - 1) / blockSize * blockSize;
+
+            List<Future<Void>> stripes = new ArrayList<>();
+            if (channels.size() > 1)
+            {
+                stripeWorkers = Executors.newFixedThreadPool(channels.size() - 1);
+                for (int i = 1; i < channels.size(); i++)
+                {
+                    final ChannelSftp channel = channels.get(i);
+                    final long offset = i * stripeSize;
+                    final long length = Math.min(stripeSize, fileSize - offset);
+                    stripes.add(stripeWorkers.submit(() ->
+                    {
+                        SftpHelper.writeRange(channel, source, partialFileName, offset, length,
+                                stripeMonitor, throttle);
+                        return null;
+                    }));
+                }
+            }
+
+            // The calling thread sends the first stripe itself
+            SftpHelper.writeRange(controlChannel, source, partialFileName, 0,
+                    Math.min(stripeSize, fileSize), stripeMonitor, throttle);
+
+            for (Future<Void> stripe : stripes)
+            {
+                waitForStripe(stripe);
+            }
+
+            SftpHelper.finalizeRemoteFile(controlChannel, source, partialFileName, fileName,
+                    throttle);
+            completed = true;
+        }
+        finally
+        {
+            if (stripeWorkers != null)
+            {
+                stripeWorkers.shutdownNow();
+            }
+            for (ChannelSftp channel : channels)
+            {
+                if (channel != controlChannel)
+                {
+                    SessionPoolManager.getInstance().closeChannel(session, channel);
+                }
+            }
+
+            if (!completed)
+            {
+                removePartialFile(partialFileName);
+            }
+        }
+
+        monitor.end();
+    }
+
+    /**
+     * Opens the channels the file is striped across.  Stripes only take the channels the shared
+     * session can spare without starving other uploads to the desktop, so fewer stripes are
+     * used than asked for if the session is busy.
+     *
+     * @param fileSize Size of the local file in bytes.
+     *
+     * @return The connected channels, the control channel first.
+     */
+    private List<ChannelSftp> openStripeChannels(long fileSize)
+    {
+        long maxStripes = Math.max(1, fileSize / transferOptions.getMinStripeSize());
+        int stripeCount = (int) Math.min(transferOptions.getStripeCount(), maxStripes);
+
+        List<ChannelSftp> channels = new ArrayList<>();
+        channels.add(controlChannel);
+
+        SessionPoolManager sessionPool = SessionPoolManager.getInstance();
+        for (int i = 1; i < stripeCount; i++)
+        {
+            ChannelSftp channel = null;
+            try
+            {
+                channel = (ChannelSftp) sessionPool.openSpareChannel(session, "sftp");
+                if (channel == null)
+                {
+                    break;
+                }
+                channel.connect(timeout);
+                channels.add(channel);
+            }
+            catch (JSchException e)
+            {
+                Timber.w(e, "Unable to open stripe channel %d", channels.size());
+                sessionPool.closeChannel(session, channel);
+                break;
+            }
+        }
+
+        if (channels.size() < stripeCount)
+        {
+            Timber.i("Striping over %d of %d channels", channels.size(), stripeCount);
+        }
+        return channels;
+    }
+
+    /**
+     * Waits for a stripe sent by another thread and rethrows its failure.
+     *
+     * @param stripe The pending stripe.
+     *
+     * @throws SftpException if the stripe failed to write the remote file.
+     * @throws IOException   if the stripe failed to read the local file or was interrupted.
+     */
+    private static void waitForStripe(Future<Void> stripe) throws SftpException, IOException
+    {
+        try
+        {
+            stripe.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a stripe", e);
+        }
+        catch (ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+            if (cause instanceof SftpException)
+            {
+                throw (SftpException) cause;
+            }
+            throw new IOException("Stripe failed", cause);
+        }
+    }
+
+    /**
+     * Removes the temporary remote file of a failed or cancelled upload.
+     *
+     * @param partialFileName Name of the temporary remote file.
+     */
+    private void removePartialFile(String partialFileName)
+    {
+        try
+        {
+            controlChannel.rm(partialFileName);
+        }
+        catch (SftpException e)
+        {
+            Timber.w(e, "Unable to remove partial file %s", partialFileName);
+        }
+    }
+
+    /**
+     * Forwards the byte counts of every stripe to the upload's monitor.  The stripes each open
+     * and close the remote file, so their init and end calls are not forwarded.
+     */
+    private static class StripeProgressMonitor implements SftpProgressMonitor
+    {
+        private final SftpProgressMonitor monitor;
+
+        StripeProgressMonitor(SftpProgressMonitor monitor)
+        {
+            this.monitor = monitor;
+        }
+
+        @Override
+        public void init(int op, String src, String dest, long max)
+        {
+            // Don't do anything
+        }
+
+        @Override
+        public boolean count(long count)
+        {
+            return monitor.count(count);
+        }
+
+        @Override
+        public void end()
+        {
+            // Don't do anything
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package flingr.app.remote;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import flingr.app.entities.Connection;
+import flingr.app.entities.TransferRoute;
+import flingr.app.entities.TransportMode;
+
+/**
+ * Measures the throughput each {@link UploadTransport} reaches to a desktop over a route, and
+ * picks the faster one for connections in {@link TransportMode#AUTO}.
+ * <p>
+ * Each transport is tried once before the measurements are compared, and the slower one is
+ * tried again every so often in case the link changed.  The measurements only live as long as
+ * the process.
+ */
+public class TransportSelector
+{
+    // Smaller uploads are dominated by their fixed costs and say little about throughput
+    private static final long MIN_SAMPLE_BYTES = 1024L * 1024L;
+
+    private static final double SMOOTHING = 0.3;
+    private static final int EXPLORE_INTERVAL = 20;
+
+    // Smoothed bytes per second by connection, route and transport
+    private static final Map<String, Double> throughputs = new ConcurrentHashMap<>();
+    private static final Map<String, Integer> choiceCounts = new ConcurrentHashMap<>();
+
+    /**
+     * Private constructor.
+     */
+    private TransportSelector()
+    {
+    }
+
+    /**
+     * Chooses the transport of an upload.
+     *
+     * @param connection The connection the file is sent to.
+     * @param route      The route the session was established over.
+     *
+     * @return {@link TransportMode#SFTP} or {@link TransportMode#EXEC}, which is never chosen
+     *         again over a route once it failed there.
+     */
+    public static TransportMode choose(Connection connection, TransferRoute route)
+    {
+        TransportMode mode = connection.getTransferOptions().getTransportMode();
+        Double sftpThroughput = throughputs.get(createKey(connection, route, TransportMode.SFTP));
+        Double execThroughput = throughputs.get(createKey(connection, route, TransportMode.EXEC));
+        if (mode == TransportMode.SFTP || (execThroughput != null && execThroughput <= 0))
+        {
+            return TransportMode.SFTP;
+        }
+        if (mode == TransportMode.EXEC)
+        {
+            return TransportMode.EXEC;
+        }
+        if (sftpThroughput == null)
+        {
+            return TransportMode.SFTP;
+        }
+        if (execThroughput == null)
+        {
+            return TransportMode.EXEC;
+        }
+
+        TransportMode faster = execThroughput > sftpThroughput
+                ? TransportMode.EXEC : TransportMode.SFTP;
+        String countKey = createKey(connection, route, TransportMode.AUTO);
+        Integer count = choiceCounts.get(countKey);
+        int choice = count == null ? 1 : count + 1;
+        choiceCounts.put(countKey, choice);
+        if (choice % EXPLORE_INTERVAL == 0)
+        {
+            return faster == TransportMode.EXEC ? TransportMode.SFTP : TransportMode.EXEC;
+        }
+        return faster;
+    }
+
+    /**
+     * Records the throughput of a finished upload.
+     *
+     * @param connection   The connection the file was sent to.
+     * @param route        The route the session was established over.
+     * @param mode         The transport that sent the file.
+     * @param bytes        Bytes the transport actually sent.
+     * @param elapsedNanos Time the upload took in nanoseconds.
+     */
+    public static void record(Connection connection, TransferRoute route, TransportMode mode,
+                              long bytes, long elapsedNanos)
+    {
+        if (bytes < MIN_SAMPLE_BYTES || elapsedNanos <= 0)
+        {
+            return;
+        }
+
+        String key = createKey(connection, route, mode);
+        double sample = bytes * 1e9 / elapsedNanos;
+        Double previous = throughputs.get(key);
+        throughputs.put(key, previous == null
+                ? sample : previous + SMOOTHING * (sample - previous));
+    }
+
+    /**
+     * Records that streaming failed over a route, so uploads over it use SFTP from now on.
+     *
+     * @param connection The connection the file was sent to.
+     * @param route      The route the session was established over.
+     */
+    public static void recordExecUnavailable(Connection connection, TransferRoute route)
+    {
+        throughputs.put(createKey(connection, route, TransportMode.EXEC), 0.0);
+    }
+
+    /**
+     * Creates the key measurements are stored under.
+     *
+     * @param connection The connection.
+     * @param route      The route.
+     * @param mode       The transport.
+     *
+     * @return The key.
+     */
+    private static String createKey(Connection connection, TransferRoute route,
+                                    TransportMode mode)
+    {
+        return connection.getActivationCode() + "|" + connection.getUserName() + "|" + route
+                + "|" + mode;
+    }
+}
@@ -0,0 +1,116 @@
+package flingr.app.remote;
+
+import android.content.Context;
+
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.SftpATTRS;
+import com.jcraft.jsch.SftpException;
+
+import java.io.IOException;
+
+import flingr.app.entities.Connection;
+import flingr.app.entities.UploadIndexEntry;
+import flingr.app.managers.BlockSignatureManager;
+import flingr.app.managers.UploadIndexManager;
+import timber.log.Timber;
+
+/**
+ * Skips uploads whose content is already on the desktop under the same name.
+ * <p>
+ * A file counts as already uploaded if the {@link UploadIndexManager} has an entry for its remote
+ * name, the remote file still has the size and modification time it had right after that upload,
+ * and the local file hashes to the indexed SHA-256.  The local file is only hashed once the cheap
+ * checks passed.
+ */
+public class UploadDeduplicator
+{
+    /**
+     * Whether the content of a local file is already on the desktop under a name.
+     *
+     * @param context    An Android life-cycle object.
+     * @param channel    Connected channel to the desktop.
+     * @param connection The connection the file is sent to.
+     * @param source     The local file.
+     * @param fileName   Name of the remote file.
+     *
+     * @return True if sending the file can be skipped.
+     *
+     * @throws IOException if the local file could not be read.
+     */
+    public static boolean isAlreadyUploaded(Context context, ChannelSftp channel,
+                                            Connection connection, UploadSource source,
+                                            String fileName) throws IOException
+    {
+        UploadIndexManager index = UploadIndexManager.getInstance();
+        UploadIndexEntry entry = index.getEntry(context, connection, fileName);
+        if (entry == null || (source.getSize() >= 0 && source.getSize() != entry.getFileSize()))
+        {
+            return false;
+        }
+
+        SftpATTRS attributes;
+        try
+        {
+            attributes = channel.stat(fileName);
+        }
+        catch (SftpException e)
+        {
+            // Deleted or moved on the desktop
+            forget(context, connection, fileName);
+            return false;
+        }
+
+        if (attributes.getSize() != entry.getFileSize()
+                || attributes.getMTime() != entry.getRemoteModifiedTime())
+        {
+            // Something else wrote the file since it was uploaded
+            forget(context, connection, fileName);
+            return false;
+        }
+
+        return entry.getContentHash().equals(source.getContentHash());
+    }
+
+    /**
+     * Indexes a file that was just uploaded and stores its block hashes for later delta uploads.
+     * The hashes were taken while the file was read for the upload, unless it was read out of
+     * order.
+     *
+     * @param context    An Android life-cycle object.
+     * @param channel    Connected channel to the desktop.
+     * @param connection The connection the file was sent to.
+     * @param source     The local file.
+     * @param fileName   Name of the remote file.
+     */
+    public static void recordUpload(Context context, ChannelSftp channel, Connection connection,
+                                    UploadSource source, String fileName)
+    {
+        try
+        {
+            SftpATTRS attributes = channel.stat(fileName);
+            String contentHash = source.getContentHash();
+            UploadIndexManager.getInstance().putEntry(context, connection,
+                    new UploadIndexEntry(fileName, attributes.getSize(), attributes.getMTime(),
+                            contentHash));
+            BlockSignatureManager.getInstance().putSignatures(context, connection, fileName,
+                    contentHash, UploadSource.SIGNATURE_BLOCK_SIZE, source.getBlockHashes());
+        }
+        catch (SftpException | IOException e)
+        {
+            Timber.w(e, "Unable to index %s", fileName);
+        }
+    }
+
+    /**
+     * Forgets a remote file that no longer holds what was uploaded to it.
+     *
+     * @param context    An Android life-cycle object.
+     * @param connection The connection the file was sent to.
+     * @param fileName   Name of the remote file.
+     */
+    private static void forget(Context context, Connection connection, String fileName)
+    {
+        UploadIndexManager.getInstance().removeEntry(context, connection, fileName);
+        BlockSignatureManager.getInstance().removeSignatures(context, connection, fileName);
+    }
+}
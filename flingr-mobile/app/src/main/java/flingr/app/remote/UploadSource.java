@@ -0,0 +1,672 @@
+package flingr.app.remote;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.provider.OpenableColumns;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import flingr.app.utilities.BufferPool;
+import timber.log.Timber;
+
+/**
+ * A local file being uploaded, read at arbitrary offsets.
+ * <p>
+ * Files behind a file descriptor are read through a {@link FileChannel}, and file:// Uris are
+ * memory mapped, so bytes move without a copy through a small stream buffer.  Providers that
+ * only hand out a pipe fall back to a stream that is reopened whenever an earlier offset is read.
+ * Positional reads of a seekable source may be made from several threads at once.  A rendition
+ * produced in memory, such as a downscaled photo, is read straight from its bytes.
+ * <p>
+ * Reads that continue from the start of the file feed a SHA-256 of its content and the block
+ * hashes a later delta upload compares against, so a sequential upload hashes the file without
+ * reading it twice.
+ */
+public class UploadSource implements Closeable
+{
+    // Mapping a huge file at once could exhaust the address space of 32 bit phones
+    private static final long MAP_WINDOW_SIZE = 64L * 1024L * 1024L;
+
+    // Granularity at which a later upload of a modified file can skip unchanged bytes
+    public static final int SIGNATURE_BLOCK_SIZE = 128 * 1024;
+
+    private final ContentResolver contentResolver;
+    private final Uri fileUri;
+    private final long size;
+    private final Closeable owner;
+    private final FileChannel fileChannel;
+    private final boolean isMapped;
+    private final byte[] contents;
+
+    private MappedByteBuffer mappedWindow;
+    private long mappedWindowStart = -1;
+
+    private InputStream sequentialStream;
+    private long sequentialPosition;
+
+    private final MessageDigest digest = newDigest("SHA-256");
+    private long digestPosition = 0;
+    private String contentHash;
+
+    // Blocks are hashed by whichever reads continue from their start, so stripes read in
+    // parallel still hash every block they cover
+    private final HashMap<Long, BlockHasher> pendingBlocks = new HashMap<>();
+    private final ArrayList<byte[]> blockHashes = new ArrayList<>();
+
+    /**
+     * Constructor.
+     *
+     * @param contentResolver Resolver the file was opened with.
+     * @param fileUri         Uri of the file.
+     * @param size            Size of the file in bytes, negative if unknown.
+     * @param owner           Object that owns the open file, may be null.
+     * @param fileChannel     Channel to read the file with, null if it isn't seekable.
+     * @param isMapped        True to read the channel through memory mapped windows.
+     * @param contents        Contents of the file held in memory, null to read it.
+     */
+    private UploadSource(ContentResolver contentResolver, Uri fileUri, long size, Closeable owner,
+                         FileChannel fileChannel, boolean isMapped, byte[] contents)
+    {
+        this.contentResolver = contentResolver;
+        this.fileUri = fileUri;
+        this.size = size;
+        this.owner = owner;
+        this.fileChannel = fileChannel;
+        this.isMapped = isMapped;
+        this.contents = contents;
+    }
+
+    /**
+     * Opens a local file in the most efficient way its provider allows.
+     *
+     * @param contentResolver Resolver to open the file with.
+     * @param fileUri         Uri of the file.
+     *
+     * @return The open source, to be closed by the caller.
+     *
+     * @throws FileNotFoundException if the file could not be opened.
+     */
+    public static UploadSource open(ContentResolver contentResolver, Uri fileUri)
+            throws FileNotFoundException
+    {
+        if (ContentResolver.SCHEME_FILE.equals(fileUri.getScheme()) && fileUri.getPath() != null)
+        {
+            try
+            {
+                FileInputStream inputStream = new FileInputStream(new File(fileUri.getPath()));
+                FileChannel channel = inputStream.getChannel();
+                return new UploadSource(contentResolver, fileUri, channel.size(), inputStream,
+                        channel, true, null);
+            }
+            catch (IOException | SecurityException e)
+            {
+                Timber.d("Unable to map %s, opening it through the resolver", fileUri);
+            }
+        }
+
+        ParcelFileDescriptor descriptor = null;
+        try
+        {
+            descriptor = contentResolver.openFileDescriptor(fileUri, "r");
+        }
+        catch (FileNotFoundException | SecurityException e)
+        {
+            // Fall back to a plain stream below
+        }
+
+        if (descriptor != null && descriptor.getStatSize() >= 0)
+        {
+            FileInputStream inputStream = new ParcelFileDescriptor.AutoCloseInputStream(descriptor);
+            return new UploadSource(contentResolver, fileUri, descriptor.getStatSize(),
+                    inputStream, inputStream.getChannel(), false, null);
+        }
+        else if (descriptor != null)
+        {
+            // A pipe, its size can only come from the provider
+            closeQuietly(descriptor);
+        }
+
+        UploadSource source = new UploadSource(contentResolver, fileUri,
+                querySize(contentResolver, fileUri), null, null, false, null);
+        source.reopenSequentialStream();
+        return source;
+    }
+
+    /**
+     * Wraps a rendition of a local file that was produced in memory, such as a downscaled photo,
+     * so it uploads like the file itself.
+     *
+     * @param contentResolver Resolver the original file was opened with.
+     * @param fileUri         Uri of the original file.
+     * @param contents        Bytes to upload in place of the file.
+     *
+     * @return The source, to be closed by the caller.
+     */
+    public static UploadSource wrap(ContentResolver contentResolver, Uri fileUri, byte[] contents)
+    {
+        return new UploadSource(contentResolver, fileUri, contents.length, null, null, false,
+                contents);
+    }
+
+    /**
+     * Gets the size of the file.
+     *
+     * @return Size in bytes, negative if unknown.
+     */
+    public long getSize()
+    {
+        return size;
+    }
+
+    /**
+     * Whether the file can be read at arbitrary offsets without reopening it.
+     *
+     * @return True if seekable.
+     */
+    public boolean isSeekable()
+    {
+        return fileChannel != null || contents != null;
+    }
+
+    /**
+     * Reads bytes at an offset into a buffer, up to its remaining space.
+     *
+     * @param buffer   The buffer to fill from its position.
+     * @param position Offset in the file of the first byte to read.
+     *
+     * @return Number of bytes read, -1 at the end of the file.
+     *
+     * @throws IOException if the file could not be read.
+     */
+    public int read(ByteBuffer buffer, long position) throws IOException
+    {
+        int start = buffer.position();
+        int read;
+        if (contents != null)
+        {
+            read = readContents(buffer, position);
+        }
+        else if (isMapped)
+        {
+            read = readMapped(buffer, position);
+        }
+        else if (fileChannel != null)
+        {
+            read = fileChannel.read(buffer, position);
+        }
+        else
+        {
+            read = readSequential(buffer, position);
+        }
+
+        if (read > 0)
+        {
+            updateDigest(buffer, start, position, read);
+        }
+        return read;
+    }
+
+    /**
+     * Gets the SHA-256 of the whole file.  Bytes read in order from the start of the file are
+     * hashed as they pass, so after a sequential upload this costs nothing; any bytes not seen
+     * that way are read now.
+     *
+     * @return Hex encoded SHA-256 of the file.
+     *
+     * @throws IOException if the file could not be read.
+     */
+    public String getContentHash() throws IOException
+    {
+        synchronized (digest)
+        {
+            if (contentHash != null)
+            {
+                return contentHash;
+            }
+        }
+
+        ByteBuffer buffer = BufferPool.acquire();
+        try
+        {
+            while (true)
+            {
+                long position;
+                synchronized (digest)
+                {
+                    position = digestPosition;
+                }
+
+                buffer.clear();
+                if (read(buffer, position) < 0)
+                {
+                    break;
+                }
+            }
+        }
+        finally
+        {
+            BufferPool.release(buffer);
+        }
+
+        synchronized (digest)
+        {
+            if (contentHash == null)
+            {
+                contentHash = toHex(digest.digest());
+
+                // Without a known size the last block only ends here
+                for (Long block : new ArrayList<>(pendingBlocks.keySet()))
+                {
+                    completeBlock(block);
+                }
+            }
+            return contentHash;
+        }
+    }
+
+    /**
+     * Gets the MD5 of every {@link #SIGNATURE_BLOCK_SIZE} block of the file, the last one possibly
+     * shorter.  Blocks an upload read from their start were hashed as they passed, only the
+     * others are read now.
+     *
+     * @return The block hashes in file order.
+     *
+     * @throws IOException if the file could not be read.
+     */
+    public List<byte[]> getBlockHashes() throws IOException
+    {
+        if (size < 0)
+        {
+            // A stream can only be read in order, which hashes every block on the way
+            getContentHash();
+        }
+        else
+        {
+            long blockCount = (size + SIGNATURE_BLOCK_SIZE - 1) / SIGNATURE_BLOCK_SIZE;
+            ByteBuffer buffer = BufferPool.acquire();
+            try
+            {
+                for (long block = 0; block < blockCount; block++)
+                {
+                    if (getBlockHash(block) == null)
+                    {
+                        long blockStart = block * SIGNATURE_BLOCK_SIZE;
+                        buffer.clear();
+                        buffer.limit((int) Math.min(SIGNATURE_BLOCK_SIZE, size - blockStart));
+                        readFully(buffer, blockStart);
+                    }
+                }
+            }
+            finally
+            {
+                BufferPool.release(buffer);
+            }
+        }
+
+        synchronized (digest)
+        {
+            return Collections.unmodifiableList(new ArrayList<>(blockHashes));
+        }
+    }
+
+    /**
+     * Gets the hash of a block if it has been read in full.
+     *
+     * @param block Index of the block.
+     *
+     * @return The MD5 of the block, or null if it hasn't been hashed yet.
+     */
+    public byte[] getBlockHash(long block)
+    {
+        synchronized (digest)
+        {
+            return block < blockHashes.size() ? blockHashes.get((int) block) : null;
+        }
+    }
+
+    /**
+     * Encodes bytes as lower case hex.
+     *
+     * @param bytes The bytes.
+     *
+     * @return The hex string.
+     */
+    public static String toHex(byte[] bytes)
+    {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes)
+        {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Reads bytes at an offset until a buffer is full or the file ends.
+     *
+     * @param buffer   The buffer to fill from its position.
+     * @param position Offset in the file of the first byte to read.
+     *
+     * @return Number of bytes read.
+     *
+     * @throws IOException if the file could not be read.
+     */
+    public int readFully(ByteBuffer buffer, long position) throws IOException
+    {
+        int total = 0;
+        while (buffer.hasRemaining())
+        {
+            int read = read(buffer, position + total);
+            if (read < 0)
+            {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    @Override
+    public synchronized void close()
+    {
+        mappedWindow = null;
+        closeQuietly(owner);
+        closeQuietly(sequentialStream);
+        sequentialStream = null;
+    }
+
+    /**
+     * Copies bytes at an offset of the in memory contents into a buffer.
+     *
+     * @param buffer   The buffer to fill from its position.
+     * @param position Offset of the first byte to copy.
+     *
+     * @return Number of bytes copied, -1 at the end of the contents.
+     */
+    private int readContents(ByteBuffer buffer, long position)
+    {
+        if (position >= contents.length)
+        {
+            return -1;
+        }
+
+        int length = (int) Math.min(buffer.remaining(), contents.length - position);
+        buffer.put(contents, (int) position, length);
+        return length;
+    }
+
+    /**
+     * Feeds the part of a read that continues the hashed prefix of the file to the digest, and
+     * the parts that continue a block from its start to that block's hash.
+     *
+     * @param buffer   The buffer that was read into.
+     * @param start    Position in the buffer of the first byte read.
+     * @param position Offset in the file of the first byte read.
+     * @param length   Number of bytes read.
+     */
+    private void updateDigest(ByteBuffer buffer, int start, long position, int length)
+    {
+        long end = position + length;
+        synchronized (digest)
+        {
+            if (contentHash == null && position <= digestPosition && end > digestPosition)
+            {
+                digest.update(slice(buffer, start + (int) (digestPosition - position),
+                        start + length));
+                digestPosition = end;
+            }
+
+            long blockStart = position - (position % SIGNATURE_BLOCK_SIZE);
+            while (blockStart < end)
+            {
+                long block = blockStart / SIGNATURE_BLOCK_SIZE;
+                BlockHasher hasher = pendingBlocks.get(block);
+                if (hasher == null && getBlockHash(block) == null && position <= blockStart)
+                {
+                    hasher = new BlockHasher();
+                    pendingBlocks.put(block, hasher);
+                }
+
+                long hashedEnd = hasher != null ? blockStart + hasher.length : -1;
+                long readEnd = Math.min(end, blockStart + SIGNATURE_BLOCK_SIZE);
+                if (hasher != null && position <= hashedEnd && readEnd > hashedEnd)
+                {
+                    hasher.digest.update(slice(buffer, start + (int) (hashedEnd - position),
+                            start + (int) (readEnd - position)));
+                    hasher.length += readEnd - hashedEnd;
+                    if (hasher.length == SIGNATURE_BLOCK_SIZE
+                            || (size >= 0 && blockStart + hasher.length >= size))
+                    {
+                        completeBlock(block);
+                    }
+                }
+                blockStart += SIGNATURE_BLOCK_SIZE;
+            }
+        }
+    }
+
+    /**
+     * Moves the hash of a block that has been read to its end into the block hashes.
+     *
+     * @param block Index of the block.
+     */
+    private void completeBlock(long block)
+    {
+        BlockHasher hasher = pendingBlocks.remove(block);
+        while (blockHashes.size() <= block)
+        {
+            blockHashes.add(null);
+        }
+        blockHashes.set((int) block, hasher.digest.digest());
+    }
+
+    /**
+     * Gets part of a buffer without touching its position and limit.
+     *
+     * @param buffer The buffer.
+     * @param from   Position of the first byte.
+     * @param to     Position after the last byte.
+     *
+     * @return A view of the bytes.
+     */
+    private static ByteBuffer slice(ByteBuffer buffer, int from, int to)
+    {
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit(to);
+        slice.position(from);
+        return slice;
+    }
+
+    /**
+     * Creates a message digest.
+     *
+     * @param algorithm Name of the algorithm.
+     *
+     * @return The digest.
+     */
+    private static MessageDigest newDigest(String algorithm)
+    {
+        try
+        {
+            return MessageDigest.getInstance(algorithm);
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            // Every Android release ships SHA-256 and MD5
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Copies bytes out of the memory mapped window that holds an offset.
+     *
+     * @param buffer   The buffer to fill from its position.
+     * @param position Offset in the file of the first byte to read.
+     *
+     * @return Number of bytes read, -1 at the end of the file.
+     *
+     * @throws IOException if the file could not be mapped.
+     */
+    private int readMapped(ByteBuffer buffer, long position) throws IOException
+    {
+        if (position >= size)
+        {
+            return -1;
+        }
+
+        ByteBuffer window;
+        long windowStart = position - (position % MAP_WINDOW_SIZE);
+        synchronized (this)
+        {
+            if (mappedWindowStart != windowStart || mappedWindow == null)
+            {
+                mappedWindow = fileChannel.map(FileChannel.MapMode.READ_ONLY, windowStart,
+                        Math.min(MAP_WINDOW_SIZE, size - windowStart));
+                mappedWindowStart = windowStart;
+            }
+            // Every reader gets its own position and limit on the shared mapping
+            window = mappedWindow.duplicate();
+        }
+
+        int offset = (int) (position - windowStart);
+        int length = Math.min(buffer.remaining(), window.capacity() - offset);
+        window.position(offset);
+        window.limit(offset + length);
+        buffer.put(window);
+        return length;
+    }
+
+    /**
+     * Reads from the fallback stream, reopening it if an earlier offset is requested.
+     *
+     * @param buffer   The buffer to fill from its position.
+     * @param position Offset in the file of the first byte to read.
+     *
+     * @return Number of bytes read, -1 at the end of the file.
+     *
+     * @throws IOException if the file could not be read.
+     */
+    private synchronized int readSequential(ByteBuffer buffer, long position) throws IOException
+    {
+        if (sequentialStream == null || position < sequentialPosition)
+        {
+            reopenSequentialStream();
+        }
+
+        while (sequentialPosition < position)
+        {
+            long skipped = sequentialStream.skip(position - sequentialPosition);
+            if (skipped <= 0)
+            {
+                return -1;
+            }
+            sequentialPosition += skipped;
+        }
+
+        int read = sequentialStream.read(buffer.array(), buffer.arrayOffset() + buffer.position(),
+                buffer.remaining());
+        if (read > 0)
+        {
+            buffer.position(buffer.position() + read);
+            sequentialPosition += read;
+        }
+        return read;
+    }
+
+    /**
+     * Opens the fallback stream at the start of the file.
+     *
+     * @throws FileNotFoundException if the file could not be opened, or may no longer be read.
+     */
+    private synchronized void reopenSequentialStream() throws FileNotFoundException
+    {
+        closeQuietly(sequentialStream);
+
+        InputStream inputStream;
+        try
+        {
+            inputStream = contentResolver.openInputStream(fileUri);
+        }
+        catch (SecurityException e)
+        {
+            // A share without a persistable grant can't be read by a later process
+            throw new FileNotFoundException("No permission to read " + fileUri);
+        }
+        if (inputStream == null)
+        {
+            throw new FileNotFoundException(fileUri.toString());
+        }
+        sequentialStream = inputStream;
+        sequentialPosition = 0;
+    }
+
+    /**
+     * Asks the provider for the size of a file without opening it.
+     *
+     * @param contentResolver Resolver to query.
+     * @param fileUri         Uri of the file.
+     *
+     * @return Size in bytes, or -1 if the provider doesn't know it.
+     */
+    public static long querySize(ContentResolver contentResolver, Uri fileUri)
+    {
+        try (Cursor cursor = contentResolver.query(fileUri, new String[]{OpenableColumns.SIZE},
+                null, null, null))
+        {
+            if (cursor != null && cursor.moveToFirst() && !cursor.isNull(0))
+            {
+                return cursor.getLong(0);
+            }
+        }
+        catch (RuntimeException e)
+        {
+            Timber.d("Provider did not report the size of %s", fileUri);
+        }
+        return -1;
+    }
+
+    /**
+     * Closes an object, ignoring failures.
+     *
+     * @param closeable The object, may be null.
+     */
+    private static void closeQuietly(Closeable closeable)
+    {
+        if (closeable != null)
+        {
+            try
+            {
+                closeable.close();
+            }
+            catch (IOException e)
+            {
+                // Nothing left to do with it
+            }
+        }
+    }
+
+    /**
+     * Hash of a block that is being read from its start.
+     */
+    private static class BlockHasher
+    {
+        private final MessageDigest digest = newDigest("MD5");
+        private long length = 0;
+    }
+}
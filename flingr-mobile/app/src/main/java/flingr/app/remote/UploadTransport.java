@@ -0,0 +1,44 @@
+package flingr.app.remote;
+
+import android.net.Uri;
+
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.SftpException;
+import com.jcraft.jsch.SftpProgressMonitor;
+
+import java.io.IOException;
+
+import flingr.app.entities.TransportMode;
+
+/**
+ * A way of moving the bytes of a file to the desktop over a connected session.  Every transport
+ * writes the file under its temporary name and leaves it under its real name only once the
+ * upload is complete and verified.
+ */
+public interface UploadTransport
+{
+    /**
+     * Gets the mode the transport is selected and measured under.
+     *
+     * @return The transport mode.
+     */
+    TransportMode getMode();
+
+    /**
+     * Uploads a file.
+     *
+     * @param source   The local file.
+     * @param fileUri  Uri of the local file.
+     * @param fileName Name of the remote file.
+     * @param monitor  Monitor notified of the bytes sent.  Returning false from
+     *                 {@link SftpProgressMonitor#count(long)} stops the upload.
+     *
+     * @return True if the file was sent, false if the monitor stopped the upload.
+     *
+     * @throws JSchException if a channel could not be opened.
+     * @throws SftpException if the remote file could not be written or finalized.
+     * @throws IOException   if the local file could not be read or the desktop failed to store it.
+     */
+    boolean upload(UploadSource source, Uri fileUri, String fileName, SftpProgressMonitor monitor)
+            throws JSchException, SftpException, IOException;
+}
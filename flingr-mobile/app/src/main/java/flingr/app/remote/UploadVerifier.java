@@ -0,0 +1,224 @@
+package flingr.app.remote;
+
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.SftpException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import flingr.app.managers.BandwidthManager;
+import timber.log.Timber;
+
+/**
+ * Checks that a completed upload landed intact by reading a sample of its blocks back from the
+ * desktop and comparing them with the block hashes taken while the file was sent.
+ * <p>
+ * The desktop only speaks SFTP, which has no way to hash a file on the server, so the remote side
+ * of the comparison is a handful of partial reads rather than a full download.  Small files are
+ * read back whole.  A block that differs is widened to the run of differing blocks around it, and
+ * only that run is sent again.
+ */
+class UploadVerifier
+{
+    // Blocks read back besides the first and last, whose edges are the likeliest to go wrong
+    private static final int SAMPLED_BLOCKS = 6;
+    private static final int MAX_REPAIRS = 2;
+
+    private static final Random random = new Random();
+
+    /**
+     * Verifies a remote file against the local file it was uploaded from, repairing the regions
+     * that differ.
+     *
+     * @param channel    Connected channel.
+     * @param source     The local file.
+     * @param remoteName Name of the remote file.
+     * @param throttle   Throttle the repairs are paced with.
+     *
+     * @throws SftpException if the remote file could not be read, or still differs after repairs.
+     * @throws IOException   if the local file could not be read.
+     */
+    static void verify(ChannelSftp channel, UploadSource source, String remoteName,
+                       BandwidthManager.Throttle throttle) throws SftpException, IOException
+    {
+        List<byte[]> localHashes = source.getBlockHashes();
+        if (localHashes.isEmpty())
+        {
+            return;
+        }
+
+        TreeSet<Integer> blocks = chooseBlocks(localHashes.size());
+        for (int repair = 0; ; repair++)
+        {
+            TreeSet<Integer> badBlocks = new TreeSet<>();
+            for (int block : blocks)
+            {
+                if (!badBlocks.contains(block)
+                        && !isIntact(channel, source, remoteName, localHashes, block))
+                {
+                    addBadRun(channel, source, remoteName, localHashes, block, badBlocks);
+                }
+            }
+
+            if (badBlocks.isEmpty())
+            {
+                return;
+            }
+            else if (repair == MAX_REPAIRS)
+            {
+                throw new SftpException(ChannelSftp.SSH_FX_FAILURE, remoteName
+                        + " still differs from the local file after " + repair + " repairs");
+            }
+
+            Timber.w("%d blocks of %s differ from the local file, sending them again",
+                    badBlocks.size(), remoteName);
+            for (int block : badBlocks)
+            {
+                long offset = getBlockOffset(block);
+                SftpHelper.writeRange(channel, source, remoteName, offset,
+                        getBlockLength(source, block), null, throttle);
+            }
+            blocks = badBlocks;
+        }
+    }
+
+    /**
+     * Chooses the blocks to read back: all of them for small files, otherwise the first, the
+     * last and a random sample in between.
+     *
+     * @param blockCount Number of blocks in the file.
+     *
+     * @return Indexes of the blocks to verify.
+     */
+    private static TreeSet<Integer> chooseBlocks(int blockCount)
+    {
+        TreeSet<Integer> blocks = new TreeSet<>();
+        if (blockCount <= SAMPLED_BLOCKS + 2)
+        {
+            for (int block = 0; block < blockCount; block++)
+            {
+                blocks.add(block);
+            }
+            return blocks;
+        }
+
+        blocks.add(0);
+        blocks.add(blockCount - 1);
+        while (blocks.size() < SAMPLED_BLOCKS + 2)
+        {
+            blocks.add(1 + random.nextInt(blockCount - 2));
+        }
+        return blocks;
+    }
+
+    /**
+     * Adds a differing block and the differing blocks next to it, up to the first intact block on
+     * either side.
+     *
+     * @param channel     Connected channel.
+     * @param source      The local file.
+     * @param remoteName  Name of the remote file.
+     * @param localHashes Block hashes of the local file.
+     * @param block       Index of the differing block.
+     * @param badBlocks   The differing blocks found so far.
+     *
+     * @throws SftpException if the remote file could not be read.
+     */
+    private static void addBadRun(ChannelSftp channel, UploadSource source, String remoteName,
+                                  List<byte[]> localHashes, int block, TreeSet<Integer> badBlocks)
+            throws SftpException
+    {
+        badBlocks.add(block);
+        for (int before = block - 1;
+             before >= 0 && !isIntact(channel, source, remoteName, localHashes, before); before--)
+        {
+            badBlocks.add(before);
+        }
+        for (int after = block + 1; after < localHashes.size()
+                && !isIntact(channel, source, remoteName, localHashes, after); after++)
+        {
+            badBlocks.add(after);
+        }
+    }
+
+    /**
+     * Reads a block back from the desktop and compares its hash with the local one.
+     *
+     * @param channel     Connected channel.
+     * @param source      The local file.
+     * @param remoteName  Name of the remote file.
+     * @param localHashes Block hashes of the local file.
+     * @param block       Index of the block.
+     *
+     * @return True if the remote block matches.
+     *
+     * @throws SftpException if the remote file could not be read.
+     */
+    private static boolean isIntact(ChannelSftp channel, UploadSource source, String remoteName,
+                                    List<byte[]> localHashes, int block) throws SftpException
+    {
+        int length = getBlockLength(source, block);
+        byte[] remoteBytes = new byte[length];
+        int total = 0;
+        try (InputStream remoteStream = channel.get(remoteName, null, getBlockOffset(block)))
+        {
+            while (total < length)
+            {
+                int read = remoteStream.read(remoteBytes, total, length - total);
+                if (read < 0)
+                {
+                    break;
+                }
+                total += read;
+            }
+        }
+        catch (IOException e)
+        {
+            throw new SftpException(ChannelSftp.SSH_FX_FAILURE, "Unable to read back "
+                    + remoteName, e);
+        }
+
+        try
+        {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            digest.update(remoteBytes, 0, total);
+            return total == length && Arrays.equals(digest.digest(), localHashes.get(block));
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Gets the offset a block starts at.
+     *
+     * @param block Index of the block.
+     *
+     * @return The offset in bytes.
+     */
+    private static long getBlockOffset(int block)
+    {
+        return (long) block * UploadSource.SIGNATURE_BLOCK_SIZE;
+    }
+
+    /**
+     * Gets the length of a block, which is shorter than the others at the end of the file.
+     *
+     * @param source The local file.
+     * @param block  Index of the block.
+     *
+     * @return The length in bytes.
+     */
+    private static int getBlockLength(UploadSource source, int block)
+    {
+        return (int) Math.min(UploadSource.SIGNATURE_BLOCK_SIZE,
+                source.getSize() - getBlockOffset(block));
+    }
+}
@@ -0,0 +1,126 @@
+package flingr.app.remote;
+
+import flingr.app.entities.TransferOptions;
+import timber.log.Timber;
+
+/**
+ * Sizes the SFTP write pipeline of an upload to the bandwidth-delay product of the link.
+ * <p>
+ * The file is sent in segments.  Before each segment the round trip time is sampled while the
+ * channel is idle, and after it the throughput the segment reached.  If the segment came close to
+ * what its in-flight requests allow per round trip, the requests were the bottleneck and the depth
+ * doubles; otherwise the depth settles just above what the measured link can carry.
+ */
+class WritePipelineTuner
+{
+    // JSch's own outstanding request limit, which is plenty on a LAN
+    static final int DEFAULT_DEPTH = 16;
+    static final int MAX_DEPTH = TransferOptions.MAX_PIPELINE_DEPTH;
+
+    // JSch sizes every write request to the server's maximum packet, 32 KiB with OpenSSH
+    static final int REQUEST_SIZE = 32 * 1024;
+
+    private static final long MIN_SEGMENT_SIZE = 4L * 1024L * 1024L;
+    private static final long MAX_SEGMENT_SIZE = 256L * 1024L * 1024L;
+
+    // Each segment costs a few idle round trips, so it should span many full pipelines
+    private static final int SEGMENT_PIPELINES = 16;
+    private static final long SEGMENT_MILLIS = 4000;
+
+    // A segment this close to the pipeline's limit was held back by the pipeline
+    private static final double PIPELINE_BOUND_UTILIZATION = 0.8;
+    private static final double DEPTH_HEADROOM = 1.5;
+
+    private final boolean isFixed;
+    private int depth;
+    private long minRttNanos = Long.MAX_VALUE;
+    private double bytesPerSecond = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param depthOverride Depth from the connection's {@link TransferOptions}, or
+     *                      {@link TransferOptions#AUTO_PIPELINE_DEPTH} to tune it.
+     */
+    WritePipelineTuner(int depthOverride)
+    {
+        isFixed = depthOverride != TransferOptions.AUTO_PIPELINE_DEPTH;
+        depth = isFixed ? Math.min(MAX_DEPTH, depthOverride) : DEFAULT_DEPTH;
+    }
+
+    /**
+     * Records the time a request took to be answered while no writes were in flight.
+     *
+     * @param rttNanos Round trip time in nanoseconds.
+     */
+    void addRttSample(long rttNanos)
+    {
+        if (rttNanos > 0)
+        {
+            minRttNanos = Math.min(minRttNanos, rttNanos);
+        }
+    }
+
+    /**
+     * Records a finished segment and adjusts the depth for the next one.
+     *
+     * @param bytes        Bytes the segment sent.
+     * @param elapsedNanos Time the segment took in nanoseconds.
+     */
+    void addSegmentSample(long bytes, long elapsedNanos)
+    {
+        if (bytes <= 0 || elapsedNanos <= 0)
+        {
+            return;
+        }
+
+        bytesPerSecond = bytes * 1e9 / elapsedNanos;
+        if (isFixed || minRttNanos == Long.MAX_VALUE)
+        {
+            return;
+        }
+
+        double rttSeconds = minRttNanos / 1e9;
+        double pipelineLimit = (double) depth * REQUEST_SIZE / rttSeconds;
+        int previousDepth = depth;
+        if (bytesPerSecond >= PIPELINE_BOUND_UTILIZATION * pipelineLimit)
+        {
+            depth = Math.min(MAX_DEPTH, depth * 2);
+        }
+        else
+        {
+            long bandwidthDelayProduct = (long) (bytesPerSecond * rttSeconds);
+            depth = (int) Math.max(DEFAULT_DEPTH, Math.min(MAX_DEPTH,
+                    (long) Math.ceil(DEPTH_HEADROOM * bandwidthDelayProduct / REQUEST_SIZE)));
+        }
+
+        if (depth != previousDepth)
+        {
+            Timber.d("Write pipeline %d -> %d requests (%.0f B/s, rtt %d ms)", previousDepth, depth,
+                    bytesPerSecond, minRttNanos / 1000000L);
+        }
+    }
+
+    /**
+     * Gets the number of write requests to keep in flight.
+     *
+     * @return The pipeline depth.
+     */
+    int getDepth()
+    {
+        return depth;
+    }
+
+    /**
+     * Gets how many bytes the next segment should send, long enough for the round trips between
+     * segments not to matter and short enough to adjust the depth every few seconds.
+     *
+     * @return The segment size in bytes.
+     */
+    long getSegmentSize()
+    {
+        long size = Math.max(MIN_SEGMENT_SIZE, (long) SEGMENT_PIPELINES * depth * REQUEST_SIZE);
+        size = Math.max(size, (long) (bytesPerSecond * SEGMENT_MILLIS / 1000));
+        return Math.min(MAX_SEGMENT_SIZE, size);
+    }
+}
@@ -0,0 +1,75 @@
+package flingr.app.services;
+
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.Process;
+
+import flingr.app.managers.CipherProfileManager;
+import timber.log.Timber;
+
+/**
+ * Runs the {@link flingr.app.remote.CipherBenchmark} of the {@link CipherProfileManager} once,
+ * while the device is idle and charging, so it never competes with an upload for the CPU or the
+ * battery.
+ */
+public class CipherBenchmarkJobService extends JobService
+{
+    // Follows the jobs of the UploadScheduler
+    static final int JOB_CIPHER_BENCHMARK = 4;
+
+    /**
+     * Schedules the benchmark unless it already ran on this phone.
+     *
+     * @param context An Android life-cycle object.
+     */
+    public static void scheduleIfNeeded(Context context)
+    {
+        if (!CipherProfileManager.getInstance().needsBenchmark(context))
+        {
+            return;
+        }
+
+        JobScheduler jobScheduler = context.getSystemService(JobScheduler.class);
+        if (jobScheduler == null)
+        {
+            return;
+        }
+
+        JobInfo jobInfo = new JobInfo.Builder(JOB_CIPHER_BENCHMARK,
+                new ComponentName(context, CipherBenchmarkJobService.class))
+                .setRequiresDeviceIdle(true)
+                .setRequiresCharging(true)
+                .setPersisted(true)
+                .build();
+        if (jobScheduler.schedule(jobInfo) != JobScheduler.RESULT_SUCCESS)
+        {
+            Timber.w("Unable to schedule the cipher benchmark");
+        }
+    }
+
+    @Override
+    public boolean onStartJob(JobParameters params)
+    {
+        Context applicationContext = getApplicationContext();
+        Thread thread = new Thread(() ->
+        {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            CipherProfileManager.getInstance().runBenchmark(applicationContext);
+            jobFinished(params, false);
+        }, "FlingrCipherBenchmark");
+        thread.setDaemon(true);
+        thread.start();
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params)
+    {
+        // The benchmark can't be interrupted, it saves its results whenever it finishes
+        return false;
+    }
+}
@@ -0,0 +1,1352 @@
+package flingr.app.services;
+
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.IBinder;
+import android.os.SystemClock;
+import android.support.v4.app.NotificationCompat;
+import android.support.v4.content.ContextCompat;
+
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+import com.jcraft.jsch.SftpException;
+import com.jcraft.jsch.SftpProgressMonitor;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import flingr.app.FlingrApplication;
+import flingr.app.R;
+import flingr.app.entities.Connection;
+import flingr.app.entities.PendingUpload;
+import flingr.app.entities.TransferOptions;
+import flingr.app.entities.TransferPhase;
+import flingr.app.entities.TransferRoute;
+import flingr.app.entities.TransportMode;
+import flingr.app.entities.UploadPriority;
+import flingr.app.managers.BandwidthManager;
+import flingr.app.managers.PendingUploadManager;
+import flingr.app.managers.SessionPoolManager;
+import flingr.app.managers.TelemetryManager;
+import flingr.app.managers.TransferProgressManager;
+import flingr.app.managers.UploadQueueManager;
+import flingr.app.remote.BundleUploader;
+import flingr.app.remote.ExecHelper;
+import flingr.app.remote.ExecStreamTransport;
+import flingr.app.remote.FanOutReader;
+import flingr.app.remote.SessionConnector;
+import flingr.app.remote.SftpHelper;
+import flingr.app.remote.SftpTransport;
+import flingr.app.remote.TransportSelector;
+import flingr.app.remote.UploadDeduplicator;
+import flingr.app.remote.UploadSource;
+import flingr.app.remote.UploadTransport;
+import flingr.app.utilities.CancellationToken;
+import flingr.app.utilities.CompressionPolicy;
+import flingr.app.utilities.MediaScaler;
+import timber.log.Timber;
+
+/**
+ * A service to upload files to a Flingr server.
+ * <p>
+ * Every start request runs the files of the {@link PendingUploadManager} that aren't uploading yet
+ * as an {@link UploadBatch}.  Each file is queued in the {@link UploadQueueManager} so several
+ * files upload at once, leaves the pending queue once it is done, and the service stops itself
+ * once the last batch is finished.  Requests from an {@link UploadJobService} also run the
+ * deferred files.
+ * <p>
+ * While batches are running the service is in the foreground, and a {@link TransferLockHolder}
+ * keeps the CPU and Wi-Fi awake for as long as bytes are moving, so uploads keep their speed with
+ * the screen off.
+ * <p>
+ * When a batch sends many small files to a desktop, they go out together through a
+ * {@link BundleUploader}, and any of them it couldn't deliver are sent on their own afterwards.
+ * A file shared to several desktops at once is read a single time by a {@link FanOutReader} that
+ * feeds one upload per desktop.
+ */
+public class FileUploadService extends Service
+{
+    private static final String ACTION_SEND_FILES = "flingr.app.services.action.sendfiles";
+
+    private static final String EXTRA_INCLUDE_DEFERRED = "flingr.app.services.extra.includedeferred";
+    private static final String EXTRA_FOREGROUND = "flingr.app.services.extra.foreground";
+
+    static final int FOREGROUND_NOTIFICATION_ID = 958722;
+    static final int STATUS_NOTIFICATION_ID = 958723;
+    static final int DONE_NOTIFICATION_ID = 958724;
+
+    // Batches are registered and the service is stopped while holding this set's lock
+    private static final Set<UploadBatch> activeBatches = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    private static final AtomicInteger batchCount = new AtomicInteger();
+
+    // Pending uploads that already belong to a batch of this process
+    private static final Set<Long> claimedUploads = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+    // Tokens of the pending uploads that belong to a running batch, by upload id
+    private static final Map<Long, CancellationToken> transferTokens = new ConcurrentHashMap<>();
+
+    private static final int TIMEOUT = 5000;
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long RETRY_DELAY_MS = 2000;
+
+    // A batch bundles the files up to this size once it has enough of them for one desktop
+    private static final long MAX_BUNDLED_FILE_SIZE = 1024L * 1024L;
+    private static final int MIN_BUNDLE_FILES = 8;
+
+    // Runs the uploads of a fan out to each desktop while the queue's worker reads the file
+    private static final ExecutorService fanOutSenders = Executors.newCachedThreadPool((runnable) ->
+    {
+        Thread thread = new Thread(runnable, "FlingrFanOut");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final String FILE_NOT_FOUND_MESSAGE = "Unable to open selected file";
+    private static final String NO_CHANNEL_MESSAGE = "Unable to establish an SFTP channel";
+
+    private static UploadNotificationListener notificationListener;
+
+    private volatile int lastStartId;
+
+    private TransferLockHolder transferLocks;
+
+    /**
+     * Static method to start the service on the pending uploads that aren't deferred, while the
+     * app is in the foreground.
+     *
+     * @param context Context that sends the intent.
+     */
+    static void startPendingUploads(Context context)
+    {
+        Intent intent = new Intent(context, FileUploadService.class);
+        intent.setAction(ACTION_SEND_FILES);
+        context.startService(intent);
+    }
+
+    /**
+     * Static method to start the service on the pending uploads from the background, as a
+     * foreground service.
+     *
+     * @param context         Context that sends the intent.
+     * @param includeDeferred True to also run the deferred uploads.
+     */
+    static void runPendingUploads(Context context, boolean includeDeferred)
+    {
+        Intent intent = new Intent(context, FileUploadService.class);
+        intent.setAction(ACTION_SEND_FILES);
+        intent.putExtra(EXTRA_INCLUDE_DEFERRED, includeDeferred);
+        intent.putExtra(EXTRA_FOREGROUND, true);
+        ContextCompat.startForegroundService(context, intent);
+    }
+
+    /**
+     * Cancels every upload that is queued or running.
+     */
+    public static void cancelUpload()
+    {
+        for (UploadBatch batch : activeBatches)
+        {
+            batch.cancel();
+        }
+    }
+
+    /**
+     * Cancels the uploads of a single batch.
+     *
+     * @param batchId Unique identifier of the batch, as published in its progress.
+     */
+    public static void cancelBatch(int batchId)
+    {
+        for (UploadBatch batch : activeBatches)
+        {
+            if (batch.getBatchId() == batchId)
+            {
+                batch.cancel();
+            }
+        }
+    }
+
+    /**
+     * Cancels a single upload.  A running upload is aborted right away, one that is still
+     * waiting to run is taken out of the queue.
+     *
+     * @param context  An Android life-cycle object.
+     * @param uploadId Unique identifier of the pending upload.
+     */
+    public static void cancelTransfer(Context context, long uploadId)
+    {
+        CancellationToken token = transferTokens.get(uploadId);
+        if (token != null)
+        {
+            token.cancel();
+        }
+        else if (!claimedUploads.contains(uploadId))
+        {
+            PendingUploadManager.getInstance().removeUpload(context, uploadId);
+        }
+    }
+
+    /**
+     * Clears the done notification posted after an operation was cancelled or completed.
+     *
+     * @param context An instance of a lifecycle object to get the Notification Manager from.
+     */
+    public static void doneWithNotification(Context context)
+    {
+        context.getSystemService(NotificationManager.class).cancel(DONE_NOTIFICATION_ID);
+    }
+
+    @Override
+    public void onCreate()
+    {
+        super.onCreate();
+
+        TelemetryManager.getInstance().load(this);
+        CipherBenchmarkJobService.scheduleIfNeeded(this);
+        transferLocks = new TransferLockHolder(this);
+
+        // The listener outlives the service so it still posts the outcome of the last batch
+        synchronized (FileUploadService.class)
+        {
+            if (notificationListener == null)
+            {
+                notificationListener = new UploadNotificationListener(getApplicationContext());
+                TransferProgressManager.getInstance().addListener(notificationListener);
+            }
+        }
+    }
+
+    @Override
+    public void onDestroy()
+    {
+        transferLocks.release();
+
+        // Keep the diagnostics of this run around for the next export
+        TelemetryManager.getInstance().save(this);
+        super.onDestroy();
+    }
+
+    @Override
+    public IBinder onBind(Intent intent)
+    {
+        return null;
+    }
+
+    /**
+     * Receives intent from sender to process.
+     *
+     * @param intent The received intent.
+     * @param flags Additional data about the start request.
+     * @param startId Unique identifier of this start request.
+     *
+     * @return How the system should handle the service if it is killed.
+     */
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId)
+    {
+        // A batch finishing meanwhile can't stop the service before this start is handled
+        synchronized (activeBatches)
+        {
+            lastStartId = startId;
+
+            if (intent != null && ACTION_SEND_FILES.equals(intent.getAction()))
+            {
+                // A service started from the background has to enter the foreground, even if it
+                // finds nothing to do
+                if (intent.getBooleanExtra(EXTRA_FOREGROUND, false))
+                {
+                    startForeground(FOREGROUND_NOTIFICATION_ID, createForegroundNotification());
+                }
+
+                // Only the user starts the service from the foreground
+                UploadPriority priority = intent.getBooleanExtra(EXTRA_FOREGROUND, false)
+                        ? UploadPriority.BACKGROUND : UploadPriority.INTERACTIVE;
+                initializeFileSend(intent.getBooleanExtra(EXTRA_INCLUDE_DEFERRED, false),
+                        priority);
+            }
+
+            if (activeBatches.isEmpty())
+            {
+                stopForeground(true);
+                stopSelf(startId);
+            }
+        }
+
+        return START_NOT_STICKY;
+    }
+
+    /**
+     * Initialize sending of the pending uploads that aren't uploading yet, as one batch.
+     *
+     * @param includeDeferred True to also send the deferred uploads.
+     * @param priority        Who the uploads run for.
+     */
+    private void initializeFileSend(boolean includeDeferred, UploadPriority priority)
+    {
+        PendingUploadManager pendingUploads = PendingUploadManager.getInstance();
+        List<PendingUpload> uploads = new ArrayList<>();
+        for (PendingUpload upload : pendingUploads.getUploads(this))
+        {
+            if ((includeDeferred || !upload.isDeferred()) && claimedUploads.add(upload.getId()))
+            {
+                uploads.add(upload);
+            }
+        }
+
+        if (uploads.isEmpty())
+        {
+            return;
+        }
+
+        // From here on they are ordinary uploads, which the recovery job restarts if the
+        // process dies before they finish
+        pendingUploads.markStarted(this, uploads);
+        UploadScheduler.scheduleRecovery(this);
+        UploadScheduler.cancelIdleJobs(this);
+
+        UploadBatch batch = new UploadBatch(batchCount.incrementAndGet(), uploads.size());
+        activeBatches.add(batch);
+
+        // Uploads can run for a long time after the app leaves the screen
+        startForeground(FOREGROUND_NOTIFICATION_ID, createForegroundNotification());
+
+        // Uploads of the same file to several desktops read it together if they want the same
+        // rendition of it, and small files are grouped by desktop, so a bundle can carry them
+        Map<String, List<FileUploadTask>> fanOuts = new LinkedHashMap<>();
+        Map<Connection, List<FileUploadTask>> smallFiles = new LinkedHashMap<>();
+        for (PendingUpload upload : uploads)
+        {
+            FileUploadTask task = new FileUploadTask(batch, upload, priority);
+            if (upload.getFanOutId() != 0)
+            {
+                // The quality only matters to desktops that get a downscaled rendition
+                TransferOptions transferOptions = upload.getConnection().getTransferOptions();
+                int maxImageDimension = transferOptions.getMaxImageDimension();
+                String fanOutKey = upload.getFanOutId() + ":" + maxImageDimension + ":"
+                        + (maxImageDimension != TransferOptions.ORIGINAL_IMAGE_SIZE
+                        ? transferOptions.getImageQuality() : 0);
+                List<FileUploadTask> tasks = fanOuts.get(fanOutKey);
+                if (tasks == null)
+                {
+                    tasks = new ArrayList<>();
+                    fanOuts.put(fanOutKey, tasks);
+                }
+                tasks.add(task);
+            }
+            else if (task.canBundle())
+            {
+                List<FileUploadTask> tasks = smallFiles.get(upload.getConnection());
+                if (tasks == null)
+                {
+                    tasks = new ArrayList<>();
+                    smallFiles.put(upload.getConnection(), tasks);
+                }
+                tasks.add(task);
+            }
+            else
+            {
+                UploadQueueManager.getInstance().enqueue(task);
+            }
+        }
+
+        for (List<FileUploadTask> tasks : fanOuts.values())
+        {
+            // The rest of a fan out may have finished before the process died
+            UploadQueueManager.getInstance().enqueue(tasks.size() > 1
+                    ? new FanOutUploadTask(tasks, priority) : tasks.get(0));
+        }
+
+        for (List<FileUploadTask> tasks : smallFiles.values())
+        {
+            if (tasks.size() >= MIN_BUNDLE_FILES)
+            {
+                UploadQueueManager.getInstance().enqueue(new BundleUploadTask(tasks, priority));
+            }
+            else
+            {
+                for (FileUploadTask task : tasks)
+                {
+                    UploadQueueManager.getInstance().enqueue(task);
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates the notification shown while the service runs in the foreground.
+     *
+     * @return The notification.
+     */
+    private Notification createForegroundNotification()
+    {
+        return new NotificationCompat.Builder(this, FlingrApplication.CHANNEL_ID)
+                .setSmallIcon(R.mipmap.ic_launcher)
+                .setContentTitle("Flingr")
+                .setContentText("Uploading files")
+                .setPriority(NotificationCompat.PRIORITY_LOW)
+                .setOnlyAlertOnce(true)
+                .build();
+    }
+
+    /**
+     * Marks a file of a batch as finished and stops the service if no work is left.
+     *
+     * @param batch The batch the file belongs to.
+     * @param fileSent True if the file was uploaded.
+     * @param failureMessage Reason the upload failed, null if it succeeded or was cancelled.
+     */
+    private void finishFile(UploadBatch batch, boolean fileSent, String failureMessage)
+    {
+        if (batch.fileFinished(fileSent, failureMessage))
+        {
+            synchronized (activeBatches)
+            {
+                activeBatches.remove(batch);
+
+                // Only stops if no start arrived since the last one handled, otherwise that
+                // start's batch keeps the foreground state and the locks
+                if (activeBatches.isEmpty() && stopSelfResult(lastStartId))
+                {
+                    transferLocks.release();
+                    UploadScheduler.cancelIdleJobs(this);
+                    stopForeground(true);
+                }
+            }
+        }
+    }
+
+    /**
+     * Business logic to send a file using JSCH.
+     *
+     * @param cancellationToken Token of the file's upload.
+     * @param connection The connection to be established's information.
+     * @param fileUri The URI to the file to send.
+     * @param fileName The name of the file to send.
+     * @param progressUpdater Monitor of the file's progress.
+     *
+     * @return Null if the file was sent or the upload was cancelled, otherwise the reason it failed.
+     */
+    private String sendFile(CancellationToken cancellationToken, Connection connection, Uri fileUri,
+                            String fileName, TransferProgressUpdater progressUpdater)
+    {
+        SessionPoolManager sessionPool = SessionPoolManager.getInstance();
+        long transferId = TelemetryManager.getInstance().nextTransferId();
+        boolean isCompressible = CompressionPolicy.isCompressible(
+                CompressionPolicy.getMimeType(getContentResolver(), fileUri, fileName), fileName);
+        Session session = null;
+        String failureMessage;
+
+        try
+        {
+            // Try the route that worked last time from this network, racing both if needed
+            SessionConnector.ConnectedSession connected =
+                    SessionConnector.connect(this, connection, isCompressible, transferId,
+                            TIMEOUT);
+            if (connected == null)
+            {
+                failureMessage = "Unable to establish a connection";
+            }
+            else
+            {
+                session = connected.getSession();
+
+                // Try and send the file
+                failureMessage = sftpFileSend(session, connected.getRoute(), transferId, connection,
+                        fileUri, fileName, progressUpdater);
+
+                // A session that is still up but has no channel to spare, such as while another
+                // upload stripes over it, is fine, so wait for a channel on it once more
+                if (NO_CHANNEL_MESSAGE.equals(failureMessage) && session.isConnected()
+                        && !cancellationToken.isCancelled())
+                {
+                    failureMessage = sftpFileSend(session, connected.getRoute(), transferId,
+                            connection, fileUri, fileName, progressUpdater);
+                }
+
+                // Only if the connection itself was lost, forget the route and try the other one
+                if (failureMessage != null && !session.isConnected()
+                        && !cancellationToken.isCancelled())
+                {
+                    sessionPool.release(session);
+                    session = null;
+                    SessionConnector.invalidateRoute(this, connection);
+
+                    TransferRoute otherRoute = connected.getRoute() == TransferRoute.LAN
+                            ? TransferRoute.WAN : TransferRoute.LAN;
+                    SessionConnector.ConnectedSession fallback =
+                            SessionConnector.connect(this, connection, otherRoute, isCompressible,
+                                    transferId, TIMEOUT);
+                    if (fallback != null)
+                    {
+                        session = fallback.getSession();
+                        failureMessage = sftpFileSend(session, otherRoute, transferId, connection,
+                                fileUri, fileName, progressUpdater);
+                    }
+                }
+            }
+        }
+        finally
+        {
+            // Keep the session open for the next upload to this desktop
+            sessionPool.release(session);
+        }
+
+        return failureMessage;
+    }
+
+    /**
+     * Try to send the file using a sftp channel.
+     *
+     * @param session Session instance.
+     * @param route The route the session was established over.
+     * @param transferId Identifier of the upload attempt the phases are recorded under.
+     * @param connection The connection the file is sent to.
+     * @param fileUri Uri of the file to send.
+     * @param fileName Name of the file to be sent.
+     * @param progressUpdater Monitor of the file's progress.
+     *
+     * @return Null if successful or cancelled, otherwise the reason the file was not sent.
+     */
+    private String sftpFileSend(Session session, TransferRoute route, long transferId,
+                                Connection connection, Uri fileUri, String fileName,
+                                TransferProgressUpdater progressUpdater)
+    {
+        TelemetryManager telemetry = TelemetryManager.getInstance();
+        String failureMessage = null;
+        ChannelSftp sftpChannel = null;
+        try
+        {
+            if (session != null && session.isConnected())
+            {
+                TransferPhase phase = TransferPhase.CHANNEL_OPEN;
+                long phaseStart = SystemClock.elapsedRealtime();
+                try
+                {
+                    sftpChannel = (ChannelSftp) SessionPoolManager.getInstance().openChannel(
+                            session, "sftp", TIMEOUT);
+                    sftpChannel.connect(TIMEOUT);
+                    telemetry.record(transferId, phase, route, phaseStart, 0, true);
+
+                    phase = TransferPhase.TRANSFER;
+                    phaseStart = SystemClock.elapsedRealtime();
+
+                    // Cancelling closes the channel, and the session unless other uploads use it,
+                    // so a blocked write fails at once instead of at the next progress callback
+                    final ChannelSftp abortableChannel = sftpChannel;
+                    CancellationToken cancellationToken = progressUpdater.getCancellationToken();
+                    try (CancellationToken.Registration abort = cancellationToken.onCancel(
+                            () -> abortTransfer(session, abortableChannel));
+                         UploadSource source = openSource(connection, fileUri, fileName))
+                    {
+                        progressUpdater.start(source.getSize());
+
+                        if (UploadDeduplicator.isAlreadyUploaded(this, sftpChannel, connection,
+                                source, fileName))
+                        {
+                            // Nothing to send, the desktop already has this content
+                            progressUpdater.count(Math.max(0, source.getSize()));
+                            return null;
+                        }
+
+                        BandwidthManager.Throttle throttle = BandwidthManager.getInstance()
+                                .getThrottle(this, connection, route);
+                        UploadTransport transport = chooseTransport(session, sftpChannel, route,
+                                connection, fileName, throttle);
+                        long transportStart = System.nanoTime();
+                        boolean isSent;
+                        try
+                        {
+                            isSent = transport.upload(source, fileUri, fileName, progressUpdater);
+                        }
+                        catch (JSchException | SftpException | IOException e)
+                        {
+                            // The retry goes over SFTP, which is always there
+                            if (transport.getMode() == TransportMode.EXEC
+                                    && !cancellationToken.isCancelled())
+                            {
+                                TransportSelector.recordExecUnavailable(connection, route);
+                            }
+                            throw e;
+                        }
+                        if (isSent)
+                        {
+                            long elapsedNanos = System.nanoTime() - transportStart;
+                            TransportSelector.record(connection, route, transport.getMode(),
+                                    throttle.getBytesAcquired(), elapsedNanos);
+                            BandwidthManager.getInstance().recordThroughput(connection, route,
+                                    throttle.getBytesAcquired(), elapsedNanos);
+                            UploadDeduplicator.recordUpload(this, sftpChannel, connection, source,
+                                    fileName);
+                        }
+                    }
+                    telemetry.record(transferId, phase, route, phaseStart,
+                            progressUpdater.getBytesCounted(), true);
+                }
+                catch (JSchException e)
+                {
+                    telemetry.record(transferId, phase, route, phaseStart, 0, false);
+
+                    // A refused channel leaves the session usable, unless the session went down
+                    if (!session.isConnected())
+                    {
+                        SessionPoolManager.getInstance().invalidate(session);
+                    }
+                    failureMessage = NO_CHANNEL_MESSAGE;
+                }
+                catch (FileNotFoundException e)
+                {
+                    telemetry.record(transferId, phase, route, phaseStart, 0, false);
+                    failureMessage = FILE_NOT_FOUND_MESSAGE;
+                }
+                catch (SftpException | IOException e)
+                {
+                    telemetry.record(transferId, phase, route, phaseStart,
+                            progressUpdater.getBytesCounted(), false);
+                    failureMessage = "Could not transfer file";
+                }
+            }
+            else
+            {
+                failureMessage = "Unable to establish a connection";
+            }
+        }
+        finally
+        {
+           if (sftpChannel != null)
+           {
+               long closeStart = SystemClock.elapsedRealtime();
+               SessionPoolManager.getInstance().closeChannel(session, sftpChannel);
+               telemetry.record(transferId, TransferPhase.CLOSE, route, closeStart, 0, true);
+           }
+        }
+        return failureMessage;
+    }
+
+    /**
+     * Chooses how a file travels to the desktop.  Streaming over an exec channel falls back to
+     * SFTP when the desktop can't run {@code cat} or the file name can't be passed to it.
+     *
+     * @param session     Session the upload runs over.
+     * @param sftpChannel Connected SFTP channel of the session.
+     * @param route       The route the session was established over.
+     * @param connection  The connection the file is sent to.
+     * @param fileName    Name of the remote file.
+     * @param throttle    Throttle the file's bytes are paced with.
+     *
+     * @return The transport.
+     */
+    private UploadTransport chooseTransport(Session session, ChannelSftp sftpChannel,
+                                            TransferRoute route, Connection connection,
+                                            String fileName, BandwidthManager.Throttle throttle)
+    {
+        if (TransportSelector.choose(connection, route) == TransportMode.EXEC
+                && ExecStreamTransport.canSend(fileName))
+        {
+            if (ExecStreamTransport.isSupported(session, connection, TIMEOUT))
+            {
+                return new ExecStreamTransport(session, sftpChannel, throttle, TIMEOUT);
+            }
+            TransportSelector.recordExecUnavailable(connection, route);
+        }
+        return new SftpTransport(this, session, sftpChannel, connection, throttle, TIMEOUT);
+    }
+
+    /**
+     * Opens a local file to upload, downscaled first if the connection asks for smaller photos.
+     *
+     * @param connection The connection the file is sent to.
+     * @param fileUri    Uri of the file.
+     * @param fileName   Name of the file.
+     *
+     * @return The open source, to be closed by the caller.
+     *
+     * @throws IOException if the file could not be opened.
+     */
+    private UploadSource openSource(Connection connection, Uri fileUri, String fileName)
+            throws IOException
+    {
+        UploadSource source = UploadSource.open(getContentResolver(), fileUri);
+        TransferOptions transferOptions = connection.getTransferOptions();
+        if (transferOptions.getMaxImageDimension() == TransferOptions.ORIGINAL_IMAGE_SIZE)
+        {
+            return source;
+        }
+
+        byte[] rendition = MediaScaler.downscaleImage(getContentResolver(), fileUri,
+                CompressionPolicy.getMimeType(getContentResolver(), fileUri, fileName),
+                source.getSize(), transferOptions.getMaxImageDimension(),
+                transferOptions.getImageQuality());
+        if (rendition == null)
+        {
+            return source;
+        }
+
+        source.close();
+        return UploadSource.wrap(getContentResolver(), fileUri, rendition);
+    }
+
+    /**
+     * Aborts an upload that was cancelled mid transfer.
+     *
+     * @param session Session the upload runs over.
+     * @param channel Channel the upload writes to.
+     */
+    private static void abortTransfer(Session session, ChannelSftp channel)
+    {
+        channel.disconnect();
+        SessionPoolManager.getInstance().abort(session);
+    }
+
+    /**
+     * Uploads a single file of a batch when the {@link UploadQueueManager} gives it a worker.
+     */
+    private class FileUploadTask implements UploadQueueManager.UploadTask
+    {
+        private final UploadBatch batch;
+        private final CancellationToken cancellationToken;
+        private final long uploadId;
+        private final Connection connection;
+        private final Uri fileUri;
+        private final String fileName;
+        private final long fileSize;
+        private final UploadPriority priority;
+        private final TransferProgressUpdater progressUpdater;
+
+        FileUploadTask(UploadBatch batch, PendingUpload upload, UploadPriority priority)
+        {
+            this.batch = batch;
+            this.cancellationToken = batch.newFileToken();
+            this.uploadId = upload.getId();
+            this.connection = upload.getConnection();
+            this.fileUri = Uri.parse(upload.getFileUri());
+            this.fileName = upload.getFileName();
+            this.fileSize = upload.getFileSize();
+            this.priority = priority;
+            this.progressUpdater = new TransferProgressUpdater(batch, uploadId, fileName,
+                    cancellationToken, transferLocks);
+
+            transferTokens.put(uploadId, cancellationToken);
+        }
+
+        /**
+         * Whether the file is small enough for a bundle and has a name a bundle can hold.
+         *
+         * @return True if the file can be bundled.
+         */
+        boolean canBundle()
+        {
+            return fileSize >= 0 && fileSize <= MAX_BUNDLED_FILE_SIZE
+                    && BundleUploader.canBundle(fileName);
+        }
+
+        @Override
+        public List<Connection> getConnections()
+        {
+            return Collections.singletonList(connection);
+        }
+
+        @Override
+        public long getSize()
+        {
+            return fileSize;
+        }
+
+        @Override
+        public UploadPriority getPriority()
+        {
+            return priority;
+        }
+
+        @Override
+        public void run()
+        {
+            boolean fileSent = false;
+            String failureMessage = null;
+            try
+            {
+                // Every retry resumes from where the journal says the last attempt stopped
+                for (int attempt = 1; attempt <= MAX_ATTEMPTS && !cancellationToken.isCancelled();
+                     attempt++)
+                {
+                    // Connecting counts as activity, the device must not sleep mid handshake
+                    transferLocks.onActivity();
+                    failureMessage = sendFile(cancellationToken, connection, fileUri, fileName,
+                            progressUpdater);
+                    if (failureMessage == null || FILE_NOT_FOUND_MESSAGE.equals(failureMessage)
+                            || attempt == MAX_ATTEMPTS)
+                    {
+                        break;
+                    }
+
+                    try
+                    {
+                        Thread.sleep(RETRY_DELAY_MS * attempt);
+                    }
+                    catch (InterruptedException e)
+                    {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+                if (cancellationToken.isCancelled())
+                {
+                    // The aborted channel's error is not a failure
+                    failureMessage = null;
+                }
+                fileSent = failureMessage == null && !cancellationToken.isCancelled();
+            }
+            finally
+            {
+                finish(fileSent, failureMessage);
+            }
+        }
+
+        /**
+         * Takes the file out of the pending queue and reports it to its batch.
+         *
+         * @param fileSent       True if the file was uploaded.
+         * @param failureMessage Reason the upload failed, null if it succeeded or was cancelled.
+         */
+        void finish(boolean fileSent, String failureMessage)
+        {
+            // Failed and cancelled files leave the queue as well, only a dead process leaves
+            // them behind
+            PendingUploadManager.getInstance().removeUpload(FileUploadService.this, uploadId);
+            transferTokens.remove(uploadId);
+            claimedUploads.remove(uploadId);
+            finishFile(batch, fileSent, failureMessage);
+        }
+    }
+
+    /**
+     * Uploads the small files of a batch to one desktop as a bundle when the
+     * {@link UploadQueueManager} gives it a worker.  Files the bundle didn't deliver are queued
+     * on their own, which is also how they are sent to desktops that can't take bundles.
+     */
+    private class BundleUploadTask implements UploadQueueManager.UploadTask
+    {
+        private final List<FileUploadTask> files;
+        private final Connection connection;
+        private final UploadPriority priority;
+        private final long size;
+
+        BundleUploadTask(List<FileUploadTask> files, UploadPriority priority)
+        {
+            this.files = files;
+            this.connection = files.get(0).connection;
+            this.priority = priority;
+
+            long totalSize = 0;
+            for (FileUploadTask file : files)
+            {
+                totalSize += file.fileSize;
+            }
+            this.size = totalSize;
+        }
+
+        @Override
+        public List<Connection> getConnections()
+        {
+            return Collections.singletonList(connection);
+        }
+
+        @Override
+        public long getSize()
+        {
+            return size;
+        }
+
+        @Override
+        public UploadPriority getPriority()
+        {
+            return priority;
+        }
+
+        @Override
+        public void run()
+        {
+            Set<FileUploadTask> extractedFiles =
+                    Collections.newSetFromMap(new ConcurrentHashMap<>());
+            try
+            {
+                transferLocks.onActivity();
+                sendBundle(extractedFiles);
+            }
+            finally
+            {
+                for (FileUploadTask file : files)
+                {
+                    if (extractedFiles.contains(file))
+                    {
+                        file.finish(true, null);
+                    }
+                    else if (file.cancellationToken.isCancelled())
+                    {
+                        file.finish(false, null);
+                    }
+                    else
+                    {
+                        UploadQueueManager.getInstance().enqueue(file);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Sends the files as a bundle, if the desktop can take one.
+         *
+         * @param extractedFiles Set the files the desktop extracted are added to.
+         */
+        private void sendBundle(Set<FileUploadTask> extractedFiles)
+        {
+            // SSH compression stands in for compressing the archive itself
+            boolean isCompressible = false;
+            for (FileUploadTask file : files)
+            {
+                isCompressible |= CompressionPolicy.isCompressible(CompressionPolicy.getMimeType(
+                        getContentResolver(), file.fileUri, file.fileName), file.fileName);
+            }
+
+            SessionPoolManager sessionPool = SessionPoolManager.getInstance();
+            TelemetryManager telemetry = TelemetryManager.getInstance();
+            long transferId = telemetry.nextTransferId();
+            SessionConnector.ConnectedSession connected = SessionConnector.connect(
+                    FileUploadService.this, connection, isCompressible, transferId, TIMEOUT);
+            if (connected == null)
+            {
+                return;
+            }
+
+            Session session = connected.getSession();
+            TransferRoute route = connected.getRoute();
+            List<CancellationToken.Registration> registrations = new ArrayList<>();
+            long phaseStart = SystemClock.elapsedRealtime();
+            try
+            {
+                if (!BundleUploader.isSupported(session, connection, TIMEOUT))
+                {
+                    return;
+                }
+
+                String remoteDirectory;
+                ChannelSftp sftpChannel = (ChannelSftp) sessionPool.openChannel(session, "sftp",
+                        TIMEOUT);
+                try
+                {
+                    sftpChannel.connect(TIMEOUT);
+                    remoteDirectory = ExecHelper.getUploadDirectory(sftpChannel);
+                }
+                finally
+                {
+                    sessionPool.closeChannel(session, sftpChannel);
+                }
+
+                BundleUploader uploader = new BundleUploader(session, BandwidthManager.getInstance()
+                        .getThrottle(FileUploadService.this, connection, route), TIMEOUT);
+
+                // Cancelling any of the files stops the bundle, and the rest go out on their own
+                List<BundleUploader.BundleFile> bundleFiles = new ArrayList<>();
+                for (FileUploadTask file : files)
+                {
+                    if (!file.cancellationToken.isCancelled())
+                    {
+                        registrations.add(file.cancellationToken.onCancel(uploader::abort));
+                        bundleFiles.add(new BundledFile(file, extractedFiles));
+                    }
+                }
+
+                phaseStart = SystemClock.elapsedRealtime();
+                uploader.upload(bundleFiles, remoteDirectory);
+                telemetry.record(transferId, TransferPhase.TRANSFER, route, phaseStart,
+                        getBytesCounted(), true);
+            }
+            catch (JSchException | SftpException | IOException e)
+            {
+                Timber.w(e, "Bundle to %s stopped, sending the rest one by one",
+                        connection.getColloquialName());
+                telemetry.record(transferId, TransferPhase.TRANSFER, route, phaseStart,
+                        getBytesCounted(), false);
+            }
+            finally
+            {
+                for (CancellationToken.Registration registration : registrations)
+                {
+                    registration.close();
+                }
+                sessionPool.release(session);
+            }
+        }
+
+        /**
+         * Gets the bytes the bundle sent so far.
+         *
+         * @return Number of bytes.
+         */
+        private long getBytesCounted()
+        {
+            long bytesCounted = 0;
+            for (FileUploadTask file : files)
+            {
+                bytesCounted += file.progressUpdater.getBytesCounted();
+            }
+            return bytesCounted;
+        }
+    }
+
+    /**
+     * Uploads one file to several desktops at once when the {@link UploadQueueManager} gives it a
+     * worker.  The worker reads the file into a {@link FanOutReader}, and every desktop gets its
+     * own session and upload fed from it.  Desktops the fan out didn't deliver to are queued on
+     * their own, reading the file again.
+     */
+    private class FanOutUploadTask implements UploadQueueManager.UploadTask
+    {
+        private final List<FileUploadTask> targets;
+        private final UploadPriority priority;
+
+        FanOutUploadTask(List<FileUploadTask> targets, UploadPriority priority)
+        {
+            this.targets = targets;
+            this.priority = priority;
+        }
+
+        @Override
+        public List<Connection> getConnections()
+        {
+            // Every desktop gets an upload of its own, so each counts against its limit
+            List<Connection> connections = new ArrayList<>();
+            for (FileUploadTask target : targets)
+            {
+                connections.add(target.connection);
+            }
+            return connections;
+        }
+
+        @Override
+        public long getSize()
+        {
+            return targets.get(0).fileSize;
+        }
+
+        @Override
+        public UploadPriority getPriority()
+        {
+            return priority;
+        }
+
+        @Override
+        public void run()
+        {
+            Set<FileUploadTask> sentTargets = Collections.newSetFromMap(new ConcurrentHashMap<>());
+            try
+            {
+                transferLocks.onActivity();
+                sendToAll(sentTargets);
+            }
+            finally
+            {
+                for (FileUploadTask target : targets)
+                {
+                    if (sentTargets.contains(target))
+                    {
+                        target.finish(true, null);
+                    }
+                    else if (target.cancellationToken.isCancelled())
+                    {
+                        target.finish(false, null);
+                    }
+                    else
+                    {
+                        UploadQueueManager.getInstance().enqueue(target);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Reads the file once and waits for every desktop's upload of it.
+         *
+         * @param sentTargets Set the uploads that reached their desktop are added to.
+         */
+        private void sendToAll(Set<FileUploadTask> sentTargets)
+        {
+            FileUploadTask first = targets.get(0);
+            boolean isCompressible = CompressionPolicy.isCompressible(CompressionPolicy.getMimeType(
+                    getContentResolver(), first.fileUri, first.fileName), first.fileName);
+
+            try (UploadSource source = openSource(first.connection, first.fileUri,
+                    first.fileName))
+            {
+                FanOutReader reader = new FanOutReader(source, targets.size());
+                try
+                {
+                    List<Future<?>> senders = new ArrayList<>();
+                    for (int i = 0; i < targets.size(); i++)
+                    {
+                        final int consumer = i;
+                        senders.add(fanOutSenders.submit(() -> sendToTarget(reader, consumer,
+                                source, isCompressible, sentTargets)));
+                    }
+
+                    try
+                    {
+                        reader.run();
+                    }
+                    catch (IOException e)
+                    {
+                        Timber.w(e, "Unable to read %s for its fan out", first.fileName);
+                    }
+
+                    for (Future<?> sender : senders)
+                    {
+                        sender.get();
+                    }
+                }
+                finally
+                {
+                    // Uploads still running hand the buffers back when they detach
+                    reader.release();
+                }
+            }
+            catch (ExecutionException | IOException e)
+            {
+                Timber.w(e, "Fan out of %s stopped", first.fileName);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Uploads the file to one of the desktops, reading it from the fan out.
+         *
+         * @param reader         The fan out.
+         * @param consumer       Index of the desktop's upload.
+         * @param source         The local file, which the finished upload is verified against.
+         * @param isCompressible True if the file's content type compresses well.
+         * @param sentTargets    Set the upload is added to once it reached the desktop.
+         */
+        private void sendToTarget(FanOutReader reader, int consumer, UploadSource source,
+                                  boolean isCompressible, Set<FileUploadTask> sentTargets)
+        {
+            FileUploadTask target = targets.get(consumer);
+            SessionPoolManager sessionPool = SessionPoolManager.getInstance();
+            TelemetryManager telemetry = TelemetryManager.getInstance();
+            long transferId = telemetry.nextTransferId();
+            Session session = null;
+            ChannelSftp sftpChannel = null;
+            TransferRoute route = null;
+            long phaseStart = SystemClock.elapsedRealtime();
+            try
+            {
+                SessionConnector.ConnectedSession connected = SessionConnector.connect(
+                        FileUploadService.this, target.connection, isCompressible, transferId,
+                        TIMEOUT);
+                if (connected == null || target.cancellationToken.isCancelled())
+                {
+                    return;
+                }
+                session = connected.getSession();
+                route = connected.getRoute();
+
+                sftpChannel = (ChannelSftp) sessionPool.openChannel(session, "sftp", TIMEOUT);
+                sftpChannel.connect(TIMEOUT);
+
+                final Session abortableSession = session;
+                final ChannelSftp abortableChannel = sftpChannel;
+                BandwidthManager.Throttle throttle = BandwidthManager.getInstance()
+                        .getThrottle(FileUploadService.this, target.connection, route);
+                String partialFileName = SftpHelper.getPartialFileName(target.fileName);
+                phaseStart = SystemClock.elapsedRealtime();
+                try (CancellationToken.Registration abort = target.cancellationToken.onCancel(
+                        () -> abortTransfer(abortableSession, abortableChannel));
+                     InputStream stream = reader.getStream(consumer, throttle))
+                {
+                    target.progressUpdater.start(source.getSize());
+                    sftpChannel.put(stream, partialFileName, target.progressUpdater,
+                            ChannelSftp.OVERWRITE);
+                }
+                if (target.cancellationToken.isCancelled())
+                {
+                    return;
+                }
+
+                SftpHelper.finalizeRemoteFile(sftpChannel, source, partialFileName,
+                        target.fileName, throttle);
+                UploadDeduplicator.recordUpload(FileUploadService.this, sftpChannel,
+                        target.connection, source, target.fileName);
+                sentTargets.add(target);
+                telemetry.record(transferId, TransferPhase.TRANSFER, route, phaseStart,
+                        target.progressUpdater.getBytesCounted(), true);
+            }
+            catch (JSchException | SftpException | IOException e)
+            {
+                Timber.w(e, "Fan out to %s failed", target.connection.getColloquialName());
+                telemetry.record(transferId, TransferPhase.TRANSFER, route, phaseStart,
+                        target.progressUpdater.getBytesCounted(), false);
+            }
+            finally
+            {
+                reader.detach(consumer);
+                sessionPool.closeChannel(session, sftpChannel);
+                sessionPool.release(session);
+            }
+        }
+    }
+
+    /**
+     * A file of a {@link BundleUploadTask}, reporting to the monitor of its own upload.
+     */
+    private class BundledFile implements BundleUploader.BundleFile
+    {
+        private final FileUploadTask file;
+        private final Set<FileUploadTask> extractedFiles;
+
+        BundledFile(FileUploadTask file, Set<FileUploadTask> extractedFiles)
+        {
+            this.file = file;
+            this.extractedFiles = extractedFiles;
+        }
+
+        @Override
+        public String getFileName()
+        {
+            return file.fileName;
+        }
+
+        @Override
+        public UploadSource open() throws IOException
+        {
+            UploadSource source = openSource(file.connection, file.fileUri, file.fileName);
+            file.progressUpdater.start(source.getSize());
+            return source;
+        }
+
+        @Override
+        public SftpProgressMonitor getMonitor()
+        {
+            return file.progressUpdater;
+        }
+
+        @Override
+        public void onExtracted()
+        {
+            extractedFiles.add(file);
+        }
+    }
+
+    /**
+     * Monitor that reports the bytes of a file that have been transferred to its batch, and keeps
+     * the transfer locks held while they flow.
+     */
+    private static class TransferProgressUpdater implements SftpProgressMonitor
+    {
+        private final UploadBatch batch;
+        private final long uploadId;
+        private final String fileName;
+        private final CancellationToken cancellationToken;
+        private final TransferLockHolder transferLocks;
+        private boolean isStarted = false;
+        private long bytesCounted = 0;
+
+        TransferProgressUpdater(UploadBatch batch, long uploadId, String fileName,
+                                CancellationToken cancellationToken,
+                                TransferLockHolder transferLocks)
+        {
+            this.batch = batch;
+            this.uploadId = uploadId;
+            this.fileName = fileName;
+            this.cancellationToken = cancellationToken;
+            this.transferLocks = transferLocks;
+        }
+
+        /**
+         * Starts an attempt to send the file, discarding the progress of any previous attempt.
+         *
+         * @param fileSize Size of the file, negative if unknown.
+         */
+        synchronized void start(long fileSize)
+        {
+            if (!isStarted)
+            {
+                isStarted = true;
+                batch.fileStarted(uploadId, fileName, fileSize);
+            }
+            else
+            {
+                batch.bytesTransferred(-bytesCounted);
+            }
+            bytesCounted = 0;
+        }
+
+        /**
+         * Gets the token of the file's upload.
+         *
+         * @return The cancellation token.
+         */
+        CancellationToken getCancellationToken()
+        {
+            return cancellationToken;
+        }
+
+        /**
+         * Gets the bytes sent by the current attempt.
+         *
+         * @return Number of bytes.
+         */
+        synchronized long getBytesCounted()
+        {
+            return bytesCounted;
+        }
+
+        @Override
+        public void init(int op, String src, String dest, long max)
+        {
+            // Don't do anything
+        }
+
+        @Override
+        public boolean count(long count)
+        {
+            if (cancellationToken.isCancelled())
+            {
+                return false;
+            }
+            else
+            {
+                synchronized (this)
+                {
+                    bytesCounted += count;
+                }
+                transferLocks.onActivity();
+                batch.bytesTransferred(count);
+                return true;
+            }
+        }
+
+        @Override
+        public void end()
+        {
+            // Cancelled uploads keep their partial file so sharing the file again resumes it
+        }
+    }
+}
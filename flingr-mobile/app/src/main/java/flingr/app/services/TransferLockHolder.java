@@ -0,0 +1,147 @@
+package flingr.app.services;
+
+import android.content.Context;
+import android.net.wifi.WifiManager;
+import android.os.PowerManager;
+import android.os.SystemClock;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import timber.log.Timber;
+
+/**
+ * Keeps the CPU awake and the Wi-Fi radio out of power save while uploads are moving bytes, so
+ * they don't drop to a trickle once the screen turns off.
+ * <p>
+ * The locks are taken on the first sign of activity and dropped as soon as
+ * {@link #release()} is called or no activity was reported for {@link #STALL_TIMEOUT_MS}, so a
+ * stalled upload can't keep the device awake.  Activity is reported for every chunk sent, so
+ * reporting it is only a clock read while the locks are held.
+ */
+class TransferLockHolder
+{
+    private static final String LOCK_TAG = "flingr:upload";
+
+    private static final long STALL_TIMEOUT_MS = 15000;
+    private static final long STALL_CHECK_INTERVAL_MS = 5000;
+
+    private static final ScheduledExecutorService stallChecker =
+            Executors.newSingleThreadScheduledExecutor((runnable) ->
+            {
+                Thread thread = new Thread(runnable, "FlingrStallCheck");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    private final PowerManager.WakeLock wakeLock;
+    private final WifiManager.WifiLock wifiLock;
+
+    private ScheduledFuture<?> stallCheck;
+
+    private volatile boolean isHeld = false;
+    private volatile long lastActivityMillis;
+
+    /**
+     * Constructor.
+     *
+     * @param context An Android life-cycle object to get the power and Wi-Fi services from.
+     */
+    TransferLockHolder(Context context)
+    {
+        PowerManager powerManager = context.getSystemService(PowerManager.class);
+        wakeLock = powerManager != null
+                ? powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, LOCK_TAG) : null;
+
+        // The Wi-Fi manager leaks any other context than the application's
+        WifiManager wifiManager =
+                context.getApplicationContext().getSystemService(WifiManager.class);
+        wifiLock = wifiManager != null
+                ? wifiManager.createWifiLock(WifiManager.WIFI_MODE_FULL_HIGH_PERF, LOCK_TAG) : null;
+
+        if (wakeLock != null)
+        {
+            wakeLock.setReferenceCounted(false);
+        }
+        if (wifiLock != null)
+        {
+            wifiLock.setReferenceCounted(false);
+        }
+    }
+
+    /**
+     * Reports that an upload is connecting or sending, taking the locks if they aren't held.
+     */
+    void onActivity()
+    {
+        lastActivityMillis = SystemClock.elapsedRealtime();
+        if (!isHeld)
+        {
+            acquire();
+        }
+    }
+
+    /**
+     * Drops the locks right away, once the last upload has finished.
+     */
+    synchronized void release()
+    {
+        if (!isHeld)
+        {
+            return;
+        }
+
+        isHeld = false;
+        if (stallCheck != null)
+        {
+            stallCheck.cancel(false);
+            stallCheck = null;
+        }
+        if (wakeLock != null && wakeLock.isHeld())
+        {
+            wakeLock.release();
+        }
+        if (wifiLock != null && wifiLock.isHeld())
+        {
+            wifiLock.release();
+        }
+        Timber.d("Released the transfer locks");
+    }
+
+    /**
+     * Takes the locks and starts watching for a stall.
+     */
+    private synchronized void acquire()
+    {
+        if (isHeld)
+        {
+            return;
+        }
+
+        isHeld = true;
+        if (wakeLock != null)
+        {
+            wakeLock.acquire();
+        }
+        if (wifiLock != null)
+        {
+            wifiLock.acquire();
+        }
+        stallCheck = stallChecker.scheduleWithFixedDelay(this::releaseIfStalled,
+                STALL_CHECK_INTERVAL_MS, STALL_CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        Timber.d("Acquired the transfer locks");
+    }
+
+    /**
+     * Drops the locks if no upload reported activity for a while.
+     */
+    private void releaseIfStalled()
+    {
+        if (SystemClock.elapsedRealtime() - lastActivityMillis >= STALL_TIMEOUT_MS)
+        {
+            release();
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package flingr.app.services;
+
+import android.os.SystemClock;
+
+import flingr.app.entities.TransferProgress;
+import flingr.app.managers.TransferProgressManager;
+import flingr.app.utilities.CancellationToken;
+import flingr.app.utilities.ThroughputEstimator;
+
+/**
+ * Tracks the files shared together in one request and publishes their aggregate progress to the
+ * {@link TransferProgressManager}.
+ * <p>
+ * Byte counts arrive for every chunk the upload threads send, so they are coalesced: a snapshot
+ * is published at most every {@link #MIN_REPORT_INTERVAL_MS}, and only if the percentage moved
+ * or {@link #MAX_REPORT_INTERVAL_MS} passed since the last one.
+ */
+class UploadBatch
+{
+    private static final long MIN_REPORT_INTERVAL_MS = 500;
+    private static final long MAX_REPORT_INTERVAL_MS = 2000;
+
+    private final int batchId;
+    private final int totalFiles;
+    private int filesStarted = 0;
+    private int filesFinished = 0;
+    private int filesFailed = 0;
+    private long lastUploadId = -1;
+    private String lastFileName;
+    private String lastFailureMessage;
+
+    private long bytesKnown = 0;
+    private long bytesTransferred = 0;
+
+    private final ThroughputEstimator throughputEstimator = new ThroughputEstimator();
+    private long lastReportMillis = -1;
+    private int lastReportedPercent = -1;
+    private int lastReportedFilesFinished = 0;
+
+    // Parent of the tokens of the batch's files
+    private final CancellationToken cancellationToken = new CancellationToken();
+
+    /**
+     * Constructor.
+     *
+     * @param batchId    Unique identifier of the batch.
+     * @param totalFiles Number of files in the batch.
+     */
+    UploadBatch(int batchId, int totalFiles)
+    {
+        this.batchId = batchId;
+        this.totalFiles = totalFiles;
+    }
+
+    /**
+     * Gets the unique identifier of the batch.
+     *
+     * @return The batch id.
+     */
+    int getBatchId()
+    {
+        return batchId;
+    }
+
+    /**
+     * Cancels every upload of the batch, aborting those that are running.
+     */
+    void cancel()
+    {
+        cancellationToken.cancel();
+    }
+
+    /**
+     * Whether the batch was cancelled.
+     *
+     * @return True if cancelled.
+     */
+    boolean isCancelled()
+    {
+        return cancellationToken.isCancelled();
+    }
+
+    /**
+     * Creates the token of a file of the batch, which is cancelled with the batch.
+     *
+     * @return The file's token.
+     */
+    CancellationToken newFileToken()
+    {
+        return new CancellationToken(cancellationToken);
+    }
+
+    /**
+     * Records that a file started transferring.
+     *
+     * @param uploadId Unique identifier of the file's upload.
+     * @param fileName Name of the file.
+     * @param fileSize Size of the file in bytes.
+     */
+    synchronized void fileStarted(long uploadId, String fileName, long fileSize)
+    {
+        lastUploadId = uploadId;
+        lastFileName = fileName;
+        filesStarted++;
+        bytesKnown += Math.max(0, fileSize);
+        reportProgress(false);
+    }
+
+    /**
+     * Records bytes transferred by any file of the batch.
+     *
+     * @param count Number of bytes transferred since the last call for that file.
+     */
+    synchronized void bytesTransferred(long count)
+    {
+        bytesTransferred += count;
+        reportProgress(false);
+    }
+
+    /**
+     * Records that a file finished and publishes the outcome of the batch after the last one.
+     *
+     * @param fileSent       True if the file was uploaded.
+     * @param failureMessage Reason the upload failed, null if it succeeded or was cancelled.
+     *
+     * @return True if this was the last file of the batch.
+     */
+    synchronized boolean fileFinished(boolean fileSent, String failureMessage)
+    {
+        filesFinished++;
+        if (!fileSent)
+        {
+            filesFailed++;
+            if (failureMessage != null)
+            {
+                lastFailureMessage = failureMessage;
+            }
+        }
+
+        boolean isLastFile = filesFinished >= totalFiles;
+        reportProgress(isLastFile);
+        return isLastFile;
+    }
+
+    /**
+     * Publishes a snapshot of the batch if enough changed since the last one.
+     *
+     * @param force True to publish regardless of when the last snapshot was published.
+     */
+    private void reportProgress(boolean force)
+    {
+        long now = SystemClock.elapsedRealtime();
+        long elapsed = now - lastReportMillis;
+
+        // Sizes are only known once a file starts, so assume the rest average the same
+        long bytesEstimated = filesStarted > 0 ? (bytesKnown * totalFiles) / filesStarted : 0;
+        int percentComplete = bytesEstimated > 0
+                ? (int) Math.min(100L, (bytesTransferred * 100L) / bytesEstimated) : 0;
+
+        if (!force && lastReportMillis >= 0)
+        {
+            boolean hasChanged = percentComplete != lastReportedPercent
+                    || filesFinished != lastReportedFilesFinished;
+            if (elapsed < MIN_REPORT_INTERVAL_MS || (!hasChanged && elapsed < MAX_REPORT_INTERVAL_MS))
+            {
+                return;
+            }
+        }
+
+        throughputEstimator.sample(bytesTransferred, now);
+        lastReportMillis = now;
+        lastReportedPercent = percentComplete;
+        lastReportedFilesFinished = filesFinished;
+
+        TransferProgressManager.getInstance().publish(new TransferProgress(batchId, totalFiles,
+                filesFinished, filesFailed, lastUploadId, lastFileName, bytesTransferred,
+                bytesEstimated, throughputEstimator.getBytesPerSecond(),
+                filesFinished >= totalFiles, isCancelled(), lastFailureMessage));
+    }
+}
@@ -0,0 +1,29 @@
+package flingr.app.services;
+
+import android.app.job.JobParameters;
+import android.app.job.JobService;
+
+/**
+ * Runs the uploads in the {@link flingr.app.managers.PendingUploadManager} when one of the jobs of
+ * the {@link UploadScheduler} fires.  The uploads themselves run in the
+ * {@link FileUploadService}, so the job is finished as soon as they are handed over.
+ */
+public class UploadJobService extends JobService
+{
+    @Override
+    public boolean onStartJob(JobParameters params)
+    {
+        // The recovery job only picks up deferred files if it happens to find good conditions
+        boolean includeDeferred = params.getJobId() != UploadScheduler.JOB_RECOVERY
+                || UploadScheduler.isUploadFavourable(this);
+        FileUploadService.runPendingUploads(this, includeDeferred);
+        return false;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params)
+    {
+        // Nothing runs in the job itself
+        return false;
+    }
+}
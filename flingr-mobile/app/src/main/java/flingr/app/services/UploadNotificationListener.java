@@ -0,0 +1,227 @@
+package flingr.app.services;
+
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.support.v4.app.NotificationCompat;
+import android.text.format.DateUtils;
+import android.text.format.Formatter;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import flingr.app.FlingrApplication;
+import flingr.app.R;
+import flingr.app.entities.TransferProgress;
+import flingr.app.managers.TransferProgressManager;
+import flingr.app.receivers.NotificationActionReceiver;
+
+/**
+ * Shows the progress of every batch in a status notification, and its outcome in the done
+ * notification once it finishes.
+ */
+class UploadNotificationListener implements TransferProgressManager.ProgressListener
+{
+    private final Context context;
+    private final NotificationManager notificationManager;
+    private final Map<Integer, NotificationCompat.Builder> statusNotBuilders = new HashMap<>();
+    private final NotificationCompat.Builder doneNotBuilder;
+
+    /**
+     * Constructor.
+     *
+     * @param context Context to post notifications from, should be the application context.
+     */
+    UploadNotificationListener(Context context)
+    {
+        this.context = context;
+        notificationManager = context.getSystemService(NotificationManager.class);
+
+        // Build the intent structure
+        Intent doneBroadcastIntent = new Intent(context, NotificationActionReceiver.class);
+        doneBroadcastIntent.setAction(NotificationActionReceiver.DONE_FILEUPLOAD_ACTION);
+        PendingIntent doneActionIntent = PendingIntent.getBroadcast(context, 0,
+                doneBroadcastIntent, PendingIntent.FLAG_UPDATE_CURRENT);
+
+        // Set notification settings that won't change across posts
+        doneNotBuilder = new NotificationCompat.Builder(context, FlingrApplication.CHANNEL_ID)
+                .addAction(R.mipmap.ic_launcher, "Close", doneActionIntent)
+                .setSmallIcon(R.mipmap.ic_launcher)
+                .setPriority(NotificationCompat.PRIORITY_DEFAULT)
+                .setAutoCancel(false)
+                .setContentTitle("Flingr")
+                .setOnlyAlertOnce(true);
+    }
+
+    /**
+     * Gets the builder of the status notification of a batch, whose cancel action only cancels
+     * that batch.  A batch of several files also gets an action that skips the file shown.
+     *
+     * @param progress Snapshot of the batch.
+     *
+     * @return The notification builder.
+     */
+    private synchronized NotificationCompat.Builder getStatusNotBuilder(TransferProgress progress)
+    {
+        int batchId = progress.getBatchId();
+        NotificationCompat.Builder statusNotBuilder = statusNotBuilders.get(batchId);
+        if (statusNotBuilder == null)
+        {
+            // Build the intent structure, the request code keeps the batches' intents apart
+            Intent broadcastIntent = new Intent(context, NotificationActionReceiver.class);
+            broadcastIntent.setAction(NotificationActionReceiver.CANCEL_FILEUPLOAD_ACTION);
+            broadcastIntent.putExtra(NotificationActionReceiver.EXTRA_BATCH_ID, batchId);
+            PendingIntent actionIntent = PendingIntent.getBroadcast(context, batchId,
+                    broadcastIntent, PendingIntent.FLAG_UPDATE_CURRENT);
+
+            // Set notification settings that won't change across posts
+            statusNotBuilder = new NotificationCompat.Builder(context, FlingrApplication.CHANNEL_ID)
+                    .addAction(R.mipmap.ic_launcher, "Cancel", actionIntent)
+                    .setSmallIcon(R.mipmap.ic_launcher)
+                    .setPriority(NotificationCompat.PRIORITY_DEFAULT)
+                    .setAutoCancel(false)
+                    .setOnlyAlertOnce(true);
+            if (progress.getTotalFiles() > 1)
+            {
+                statusNotBuilder.addAction(R.mipmap.ic_launcher, "Skip file",
+                        createSkipIntent(batchId, progress.getCurrentUploadId()));
+            }
+            statusNotBuilders.put(batchId, statusNotBuilder);
+        }
+        else if (progress.getTotalFiles() > 1)
+        {
+            // Points the existing skip action at the file that started last
+            createSkipIntent(batchId, progress.getCurrentUploadId());
+        }
+        return statusNotBuilder;
+    }
+
+    /**
+     * Creates or updates the intent of the skip action of a batch.  Updating the extras of the
+     * batch's intent in place changes what its posted action cancels.
+     *
+     * @param batchId  Unique identifier of the batch.
+     * @param uploadId Unique identifier of the upload to cancel, -1 for none.
+     *
+     * @return The intent.
+     */
+    private PendingIntent createSkipIntent(int batchId, long uploadId)
+    {
+        Intent broadcastIntent = new Intent(context, NotificationActionReceiver.class);
+        broadcastIntent.setAction(NotificationActionReceiver.CANCEL_TRANSFER_ACTION);
+        broadcastIntent.putExtra(NotificationActionReceiver.EXTRA_UPLOAD_ID, uploadId);
+        return PendingIntent.getBroadcast(context, batchId, broadcastIntent,
+                PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+
+    /**
+     * Gets the id of the status notification of a batch.
+     *
+     * @param batchId Unique identifier of the batch.
+     *
+     * @return The notification id.
+     */
+    private static int getStatusNotificationId(int batchId)
+    {
+        // Step by two so batches never reuse the done notification's id
+        return FileUploadService.STATUS_NOTIFICATION_ID + 2 * batchId;
+    }
+
+    @Override
+    public void onProgress(TransferProgress progress)
+    {
+        if (progress.isFinished())
+        {
+            postDoneNotification(progress);
+        }
+        else
+        {
+            postStatusNotification(progress);
+        }
+    }
+
+    /**
+     * Updates the status notification with the aggregate progress of a batch.
+     *
+     * @param progress Snapshot of the batch.
+     */
+    private void postStatusNotification(TransferProgress progress)
+    {
+        int totalFiles = progress.getTotalFiles();
+        String title = totalFiles == 1 ? "Uploading " + progress.getCurrentFileName()
+                : "Uploading " + Math.min(progress.getFilesFinished() + 1, totalFiles)
+                + " of " + totalFiles + " files";
+
+        StringBuilder text = new StringBuilder().append(progress.getPercentComplete())
+                .append("% complete");
+        if (progress.getBytesPerSecond() > 0)
+        {
+            text.append(", ")
+                    .append(Formatter.formatShortFileSize(context, progress.getBytesPerSecond()))
+                    .append("/s");
+        }
+        if (progress.getEtaMillis() >= 0)
+        {
+            text.append(", ")
+                    .append(DateUtils.formatElapsedTime(progress.getEtaMillis() / 1000L))
+                    .append(" left");
+        }
+
+        // With several files, name the one the skip action cancels
+        Notification notification = getStatusNotBuilder(progress)
+                .setContentTitle(title)
+                .setContentText(text.toString())
+                .setSubText(totalFiles > 1 ? progress.getCurrentFileName() : null)
+                .setProgress(100, progress.getPercentComplete(), progress.getBytesEstimated() <= 0)
+                .build();
+
+        // Post the notification
+        notificationManager.notify(getStatusNotificationId(progress.getBatchId()), notification);
+    }
+
+    /**
+     * Replaces the status notification of a finished batch with the done notification.
+     *
+     * @param progress Final snapshot of the batch.
+     */
+    private void postDoneNotification(TransferProgress progress)
+    {
+        int totalFiles = progress.getTotalFiles();
+        int filesFailed = progress.getFilesFailed();
+
+        String contentText;
+        if (progress.isCancelled())
+        {
+            contentText = totalFiles == 1 ? progress.getCurrentFileName() + " upload cancelled"
+                    : "Upload of " + totalFiles + " files cancelled";
+        }
+        else if (filesFailed == 0)
+        {
+            contentText = totalFiles == 1 ? progress.getCurrentFileName() + " uploaded successfully"
+                    : totalFiles + " files uploaded successfully";
+        }
+        else if (totalFiles == 1)
+        {
+            contentText = progress.getFailureMessage();
+        }
+        else
+        {
+            contentText = (totalFiles - filesFailed) + " of " + totalFiles
+                    + " files uploaded, " + filesFailed + " failed";
+        }
+
+        Notification notification = doneNotBuilder.setContentText(contentText)
+                .build();
+
+        // Get rid of the status notification
+        synchronized (this)
+        {
+            statusNotBuilders.remove(progress.getBatchId());
+        }
+        notificationManager.cancel(getStatusNotificationId(progress.getBatchId()));
+        // Post the notification
+        notificationManager.notify(FileUploadService.DONE_NOTIFICATION_ID, notification);
+    }
+}
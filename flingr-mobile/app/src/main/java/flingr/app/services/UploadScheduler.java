@@ -0,0 +1,253 @@
+package flingr.app.services;
+
+import android.app.job.JobInfo;
+import android.app.job.JobScheduler;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.net.ConnectivityManager;
+import android.os.BatteryManager;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import flingr.app.entities.Connection;
+import flingr.app.managers.PendingUploadManager;
+import flingr.app.remote.UploadSource;
+import flingr.app.utilities.FileSharingIntentParser;
+import timber.log.Timber;
+
+/**
+ * Decides when shared files are uploaded.
+ * <p>
+ * Every share is written to the {@link PendingUploadManager} before anything is sent, so it
+ * survives the process being killed.  Small shares, and any share while the device is on an
+ * unmetered network or charging, upload right away.  Large shares on a metered network wait for a
+ * {@link JobScheduler} job that runs once the device is on an unmetered network or charging, and
+ * that job sends every deferred file in one batch so a single radio wake-up serves them all.
+ */
+public class UploadScheduler
+{
+    // Shares smaller than this are never worth holding back
+    public static final long DEFER_THRESHOLD_BYTES = 25L * 1024L * 1024L;
+
+    static final int JOB_UNMETERED = 1;
+    static final int JOB_CHARGING = 2;
+    static final int JOB_RECOVERY = 3;
+
+    // Long enough for an upload that is still running not to be picked up twice
+    private static final long RECOVERY_DELAY_MS = 10L * 60L * 1000L;
+
+    /**
+     * Queues shared files and either starts them or defers them until conditions are better.
+     *
+     * @param context     An Android life-cycle object.
+     * @param connection  The connection to send the files to.
+     * @param sharedFiles The files to send.
+     *
+     * @return True if the files were deferred, false if they are uploading.
+     */
+    public static boolean submit(Context context, Connection connection,
+                                 List<FileSharingIntentParser.SharedFileInfo> sharedFiles)
+    {
+        return submit(context, Collections.singletonList(connection), sharedFiles);
+    }
+
+    /**
+     * Queues shared files for several connections at once, so each file is read once for all of
+     * them, and either starts them or defers them until conditions are better.
+     *
+     * @param context     An Android life-cycle object.
+     * @param connections The connections to send the files to.
+     * @param sharedFiles The files to send.
+     *
+     * @return True if the files were deferred, false if they are uploading.
+     */
+    public static boolean submit(Context context, List<Connection> connections,
+                                 List<FileSharingIntentParser.SharedFileInfo> sharedFiles)
+    {
+        List<String> fileUris = new ArrayList<>();
+        List<String> fileNames = new ArrayList<>();
+        List<Long> fileSizes = new ArrayList<>();
+        long totalSize = 0;
+        for (FileSharingIntentParser.SharedFileInfo sharedFile : sharedFiles)
+        {
+            long fileSize = getFileSize(context, sharedFile);
+            fileUris.add(sharedFile.getFileUri().toString());
+            fileNames.add(sharedFile.getFileName());
+            fileSizes.add(fileSize);
+            totalSize += Math.max(0, fileSize) * connections.size();
+        }
+
+        boolean isDeferred = totalSize >= DEFER_THRESHOLD_BYTES && !isUploadFavourable(context);
+        PendingUploadManager.getInstance().addUploads(context, connections, fileUris, fileNames,
+                fileSizes, isDeferred);
+
+        if (isDeferred)
+        {
+            // Shares are only readable while the grant lasts, keep it if the provider allows
+            for (FileSharingIntentParser.SharedFileInfo sharedFile : sharedFiles)
+            {
+                keepReadPermission(context, sharedFile);
+            }
+
+            schedule(context, JOB_UNMETERED);
+            schedule(context, JOB_CHARGING);
+            Timber.i("Deferred %d files (%d bytes) until unmetered or charging",
+                    sharedFiles.size(), totalSize);
+        }
+        else
+        {
+            FileUploadService.startPendingUploads(context);
+        }
+
+        return isDeferred;
+    }
+
+    /**
+     * Whether large uploads may go out now: the device is on an unmetered network or charging.
+     *
+     * @param context An Android life-cycle object.
+     *
+     * @return True if deferred uploads can run.
+     */
+    static boolean isUploadFavourable(Context context)
+    {
+        ConnectivityManager connectivityManager =
+                context.getSystemService(ConnectivityManager.class);
+        if (connectivityManager != null && connectivityManager.getActiveNetwork() != null
+                && !connectivityManager.isActiveNetworkMetered())
+        {
+            return true;
+        }
+
+        BatteryManager batteryManager = context.getSystemService(BatteryManager.class);
+        return batteryManager != null && batteryManager.isCharging();
+    }
+
+    /**
+     * Schedules the job that picks up whatever is left in the queue if the process dies while
+     * uploading.
+     *
+     * @param context An Android life-cycle object.
+     */
+    static void scheduleRecovery(Context context)
+    {
+        schedule(context, JOB_RECOVERY);
+    }
+
+    /**
+     * Cancels the jobs that have nothing left to do once the queue has drained.
+     *
+     * @param context An Android life-cycle object.
+     */
+    static void cancelIdleJobs(Context context)
+    {
+        JobScheduler jobScheduler = context.getSystemService(JobScheduler.class);
+        if (jobScheduler == null)
+        {
+            return;
+        }
+
+        PendingUploadManager pendingUploads = PendingUploadManager.getInstance();
+        if (!pendingUploads.hasUploads(context, true))
+        {
+            jobScheduler.cancel(JOB_UNMETERED);
+            jobScheduler.cancel(JOB_CHARGING);
+        }
+        if (!pendingUploads.hasUploads(context, false))
+        {
+            jobScheduler.cancel(JOB_RECOVERY);
+        }
+    }
+
+    /**
+     * Schedules one of the upload jobs, replacing it if it is already scheduled.  The jobs are
+     * persisted so they survive a reboot along with the queue.
+     *
+     * @param context An Android life-cycle object.
+     * @param jobId   {@link #JOB_UNMETERED}, {@link #JOB_CHARGING} or {@link #JOB_RECOVERY}.
+     */
+    private static void schedule(Context context, int jobId)
+    {
+        JobScheduler jobScheduler = context.getSystemService(JobScheduler.class);
+        if (jobScheduler == null)
+        {
+            return;
+        }
+
+        // A job's constraints are all required, so "unmetered or charging" takes two jobs
+        JobInfo.Builder builder = new JobInfo.Builder(jobId,
+                new ComponentName(context, UploadJobService.class))
+                .setPersisted(true);
+        switch (jobId)
+        {
+            case JOB_UNMETERED:
+                builder.setRequiredNetworkType(JobInfo.NETWORK_TYPE_UNMETERED);
+                break;
+            case JOB_CHARGING:
+                builder.setRequiredNetworkType(JobInfo.NETWORK_TYPE_ANY)
+                        .setRequiresCharging(true);
+                break;
+            default:
+                builder.setRequiredNetworkType(JobInfo.NETWORK_TYPE_ANY)
+                        .setMinimumLatency(RECOVERY_DELAY_MS);
+                break;
+        }
+
+        if (jobScheduler.schedule(builder.build()) != JobScheduler.RESULT_SUCCESS)
+        {
+            Timber.w("Unable to schedule upload job %d", jobId);
+        }
+    }
+
+    /**
+     * Gets the size of a shared file without opening it.
+     *
+     * @param context    An Android life-cycle object.
+     * @param sharedFile The shared file.
+     *
+     * @return Size in bytes, or -1 if unknown.
+     */
+    private static long getFileSize(Context context,
+                                    FileSharingIntentParser.SharedFileInfo sharedFile)
+    {
+        if ("file".equals(sharedFile.getFileUri().getScheme()))
+        {
+            return new File(sharedFile.getFileUri().getPath()).length();
+        }
+        return UploadSource.querySize(context.getContentResolver(), sharedFile.getFileUri());
+    }
+
+    /**
+     * Keeps read access to a deferred file past the lifetime of the share, which only works for
+     * providers that grant persistable permissions.
+     * <p>
+     * A queued content Uri without a persistable grant can't be read once the process that got
+     * the share dies.  Such an upload fails to open with a {@link java.io.FileNotFoundException},
+     * which is never retried, and is removed from the queue like any upload that failed for good.
+     *
+     * @param context    An Android life-cycle object.
+     * @param sharedFile The shared file.
+     */
+    private static void keepReadPermission(Context context,
+                                           FileSharingIntentParser.SharedFileInfo sharedFile)
+    {
+        if (!"content".equals(sharedFile.getFileUri().getScheme()))
+        {
+            return;
+        }
+
+        try
+        {
+            context.getContentResolver().takePersistableUriPermission(sharedFile.getFileUri(),
+                    Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        }
+        catch (SecurityException e)
+        {
+            Timber.d("No persistable grant for %s", sharedFile.getFileUri());
+        }
+    }
+}
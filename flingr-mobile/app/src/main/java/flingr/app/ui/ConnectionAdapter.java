@@ -10,12 +10,20 @@ import android.widget.ArrayAdapter;
 import android.widget.ImageButton;
 import android.widget.PopupMenu;
 import android.widget.TextView;
+import android.widget.Toast;
+
+import org.json.JSONException;
+
+import java.io.File;
+import java.io.IOException;
 
 import flingr.app.R;
 import flingr.app.activities.NewConnectionActivity;
 import flingr.app.entities.Connection;
 import flingr.app.managers.ConnectionManager;
+import flingr.app.managers.TelemetryManager;
 import flingr.app.utilities.Serializer;
+import timber.log.Timber;
 
 /**
  * Adapts {@link Connection}(s) to view items to be placed in a
@@ -91,9 +99,41 @@ public class ConnectionAdapter extends ArrayAdapter<Connection>
                 }
                 return true;
             }
+            else if (menu_item_id == R.id.export_diagnostics_menu_item)
+            {
+                exportDiagnostics();
+                return true;
+            }
             return false;
         });
 
         popupMenu.show();
     }
+
+    /**
+     * Writes the upload telemetry to the app's files and offers the JSON export to other apps.
+     */
+    private void exportDiagnostics()
+    {
+        TelemetryManager telemetry = TelemetryManager.getInstance();
+        telemetry.load(getContext());
+        try
+        {
+            File directory = telemetry.writeExports(getContext());
+
+            Intent intent = new Intent(Intent.ACTION_SEND);
+            intent.setType("application/json");
+            intent.putExtra(Intent.EXTRA_SUBJECT, "Flingr diagnostics");
+            intent.putExtra(Intent.EXTRA_TEXT, telemetry.exportJson());
+            getContext().startActivity(Intent.createChooser(intent, "Export diagnostics"));
+
+            Toast.makeText(getContext(), "Diagnostics written to " + directory,
+                    Toast.LENGTH_LONG).show();
+        }
+        catch (IOException | JSONException e)
+        {
+            Timber.e(e, "Unable to export diagnostics");
+            Toast.makeText(getContext(), "Unable to export diagnostics", Toast.LENGTH_LONG).show();
+        }
+    }
 }
@@ -0,0 +1,209 @@
+package flingr.app.ui;
+
+import android.view.View;
+import android.widget.EditText;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import flingr.app.R;
+import flingr.app.entities.RateLimit;
+import flingr.app.entities.TransferRoute;
+
+/**
+ * Binds the fields of the rate_limit_fields layout to a list of {@link RateLimit}s: one limit over
+ * any network, one over the home network and one over the internet, all applying in the same
+ * time window.  Used for the limits of a connection and for the global ones alike.
+ */
+public class RateLimitEditor
+{
+    private static final long BYTES_PER_KB = 1024L;
+
+    // Routes of the limit fields, in the order of the fields
+    private static final TransferRoute[] ROUTES = {null, TransferRoute.LAN, TransferRoute.WAN};
+
+    private final EditText[] limitEditTexts;
+    private final EditText startEditText;
+    private final EditText endEditText;
+
+    /**
+     * Constructor.
+     *
+     * @param fields The inflated rate_limit_fields layout.
+     */
+    public RateLimitEditor(View fields)
+    {
+        limitEditTexts = new EditText[]{fields.findViewById(R.id.rateLimitEditText),
+                fields.findViewById(R.id.lanRateLimitEditText),
+                fields.findViewById(R.id.wanRateLimitEditText)};
+        startEditText = fields.findViewById(R.id.rateLimitStartEditText);
+        endEditText = fields.findViewById(R.id.rateLimitEndEditText);
+    }
+
+    /**
+     * Fills the fields from limits.  Of several limits of a route only the first is shown.
+     *
+     * @param limits The limits, empty for none.
+     */
+    public void show(List<RateLimit> limits)
+    {
+        for (int i = 0; i < ROUTES.length; i++)
+        {
+            RateLimit limit = findLimit(limits, ROUTES[i]);
+            limitEditTexts[i].setText(limit != null
+                    ? String.valueOf(Math.max(1, limit.getBytesPerSecond() / BYTES_PER_KB)) : "");
+        }
+
+        RateLimit limit = limits.isEmpty() ? null : limits.get(0);
+        boolean isScheduled = limit != null && limit.getStartMinute() != limit.getEndMinute();
+        startEditText.setText(isScheduled ? formatMinute(limit.getStartMinute()) : "");
+        endEditText.setText(isScheduled ? formatMinute(limit.getEndMinute()) : "");
+    }
+
+    /**
+     * Reads the limits from the fields.
+     *
+     * @return The limits, empty for none, or null if a field doesn't hold a valid value.
+     */
+    public List<RateLimit> read()
+    {
+        String start = startEditText.getText().toString().trim();
+        String end = endEditText.getText().toString().trim();
+        int startMinute = start.isEmpty() ? 0 : parseMinute(start);
+        int endMinute = end.isEmpty() ? 0 : parseMinute(end);
+        if (startMinute < 0 || endMinute < 0 || start.isEmpty() != end.isEmpty())
+        {
+            return null;
+        }
+
+        List<RateLimit> limits = new ArrayList<>();
+        for (int i = 0; i < ROUTES.length; i++)
+        {
+            String text = limitEditTexts[i].getText().toString().trim();
+            if (text.isEmpty())
+            {
+                continue;
+            }
+
+            long kilobytesPerSecond;
+            try
+            {
+                kilobytesPerSecond = Long.parseLong(text);
+            }
+            catch (NumberFormatException e)
+            {
+                return null;
+            }
+            if (kilobytesPerSecond <= 0 || kilobytesPerSecond > Long.MAX_VALUE / BYTES_PER_KB)
+            {
+                return null;
+            }
+
+            limits.add(new RateLimit(kilobytesPerSecond * BYTES_PER_KB, ROUTES[i], startMinute,
+                    endMinute));
+        }
+        return limits;
+    }
+
+    /**
+     * Describes limits in a few words.
+     *
+     * @param limits The limits, empty for none.
+     *
+     * @return The description.
+     */
+    public static String describe(List<RateLimit> limits)
+    {
+        if (limits.isEmpty())
+        {
+            return "none";
+        }
+
+        StringBuilder description = new StringBuilder();
+        for (RateLimit limit : limits)
+        {
+            if (description.length() > 0)
+            {
+                description.append(", ");
+            }
+            description.append(Math.max(1, limit.getBytesPerSecond() / BYTES_PER_KB))
+                    .append(" KB/s");
+            if (limit.getRoute() == TransferRoute.LAN)
+            {
+                description.append(" at home");
+            }
+            else if (limit.getRoute() == TransferRoute.WAN)
+            {
+                description.append(" over the internet");
+            }
+        }
+
+        RateLimit limit = limits.get(0);
+        if (limit.getStartMinute() != limit.getEndMinute())
+        {
+            description.append(" from ").append(formatMinute(limit.getStartMinute()))
+                    .append(" to ").append(formatMinute(limit.getEndMinute()));
+        }
+        return description.toString();
+    }
+
+    /**
+     * Finds the first limit of a route.
+     *
+     * @param limits The limits.
+     * @param route  The route, null for limits of both routes.
+     *
+     * @return The limit, or null if there is none.
+     */
+    private static RateLimit findLimit(List<RateLimit> limits, TransferRoute route)
+    {
+        for (RateLimit limit : limits)
+        {
+            if (limit.getRoute() == route)
+            {
+                return limit;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Parses a time of day written as HH:MM.
+     *
+     * @param text The time.
+     *
+     * @return Minute of the day, -1 if the text isn't a time.
+     */
+    private static int parseMinute(String text)
+    {
+        String[] parts = text.split(":");
+        if (parts.length != 2 || parts[0].isEmpty() || parts[1].isEmpty())
+        {
+            return -1;
+        }
+
+        try
+        {
+            int hour = Integer.parseInt(parts[0]);
+            int minute = Integer.parseInt(parts[1]);
+            return hour >= 0 && hour < 24 && minute >= 0 && minute < 60 ? hour * 60 + minute : -1;
+        }
+        catch (NumberFormatException e)
+        {
+            return -1;
+        }
+    }
+
+    /**
+     * Formats a minute of the day as HH:MM.
+     *
+     * @param minuteOfDay Minute of the day.
+     *
+     * @return The time.
+     */
+    private static String formatMinute(int minuteOfDay)
+    {
+        return String.format(Locale.US, "%02d:%02d", minuteOfDay / 60, minuteOfDay % 60);
+    }
+}
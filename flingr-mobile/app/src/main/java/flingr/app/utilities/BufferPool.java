@@ -0,0 +1,60 @@
+package flingr.app.utilities;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Pool of large heap buffers shared by the uploads, so moving big files through JSch doesn't
+ * allocate and collect a new buffer for every stripe and file.  Heap buffers are used because
+ * JSch only accepts byte arrays.
+ */
+public class BufferPool
+{
+    public static final int BUFFER_SIZE = 1024 * 1024;
+
+    // Enough for the read ahead rings of the running uploads and their stripes
+    private static final int MAX_POOLED_BUFFERS = 16;
+
+    private static final ArrayDeque<ByteBuffer> pooledBuffers = new ArrayDeque<>();
+
+    /**
+     * Takes a cleared buffer of {@link #BUFFER_SIZE} bytes from the pool, allocating one if the
+     * pool is empty.
+     *
+     * @return The buffer, to be handed back with {@link #release(ByteBuffer)}.
+     */
+    public static ByteBuffer acquire()
+    {
+        ByteBuffer buffer;
+        synchronized (pooledBuffers)
+        {
+            buffer = pooledBuffers.pollFirst();
+        }
+
+        if (buffer == null)
+        {
+            buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Hands a buffer back to the pool.
+     *
+     * @param buffer The buffer from {@link #acquire()}, may be null.
+     */
+    public static void release(ByteBuffer buffer)
+    {
+        if (buffer != null && buffer.capacity() == BUFFER_SIZE)
+        {
+            synchronized (pooledBuffers)
+            {
+                if (pooledBuffers.size() < MAX_POOLED_BUFFERS)
+                {
+                    pooledBuffers.addFirst(buffer);
+                }
+            }
+        }
+    }
+}
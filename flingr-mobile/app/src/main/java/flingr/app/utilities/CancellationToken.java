@@ -0,0 +1,128 @@
+package flingr.app.utilities;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import timber.log.Timber;
+
+/**
+ * Cancellation signal of a single transfer or a group of transfers.
+ * <p>
+ * Besides being polled with {@link #isCancelled()}, a token runs the actions registered with
+ * {@link #onCancel(Runnable)} the moment it is cancelled, such as closing the channel a transfer is
+ * blocked on.  Cancelling a token also cancels every token created with it as the parent.
+ */
+public class CancellationToken
+{
+    private final List<Runnable> actions = new ArrayList<>();
+    private volatile boolean isCancelled = false;
+
+    /**
+     * An action registered with a token, which must be closed once the work it aborts is done.
+     */
+    public interface Registration extends AutoCloseable
+    {
+        @Override
+        void close();
+    }
+
+    /**
+     * Constructor of a token that is only cancelled directly.
+     */
+    public CancellationToken()
+    {
+    }
+
+    /**
+     * Constructor of a token that is also cancelled with its parent.
+     *
+     * @param parent The parent token.
+     */
+    public CancellationToken(CancellationToken parent)
+    {
+        // Children live as long as their parent, which only groups a bounded number of them
+        parent.onCancel(this::cancel);
+    }
+
+    /**
+     * Whether the token was cancelled.
+     *
+     * @return True if cancelled.
+     */
+    public boolean isCancelled()
+    {
+        return isCancelled;
+    }
+
+    /**
+     * Cancels the token and runs its actions.  Does nothing if it was already cancelled.
+     */
+    public void cancel()
+    {
+        List<Runnable> pendingActions;
+        synchronized (actions)
+        {
+            if (isCancelled)
+            {
+                return;
+            }
+            isCancelled = true;
+            pendingActions = new ArrayList<>(actions);
+            actions.clear();
+        }
+
+        // Outside the lock, an action may block on the transfer it is closing
+        for (Runnable action : pendingActions)
+        {
+            runQuietly(action);
+        }
+    }
+
+    /**
+     * Registers an action to run when the token is cancelled, or right away if it already is.
+     *
+     * @param action The action.
+     *
+     * @return Registration to close once the action is no longer needed.
+     */
+    public Registration onCancel(Runnable action)
+    {
+        synchronized (actions)
+        {
+            if (!isCancelled)
+            {
+                actions.add(action);
+                return () ->
+                {
+                    synchronized (actions)
+                    {
+                        actions.remove(action);
+                    }
+                };
+            }
+        }
+
+        runQuietly(action);
+        return () ->
+        {
+            // Already ran
+        };
+    }
+
+    /**
+     * Runs an action, so one failing action doesn't keep the others from running.
+     *
+     * @param action The action.
+     */
+    private static void runQuietly(Runnable action)
+    {
+        try
+        {
+            action.run();
+        }
+        catch (RuntimeException e)
+        {
+            Timber.w(e, "Cancellation action failed");
+        }
+    }
+}
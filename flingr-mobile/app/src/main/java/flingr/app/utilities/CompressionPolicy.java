@@ -0,0 +1,148 @@
+package flingr.app.utilities;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.webkit.MimeTypeMap;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+import flingr.app.entities.CompressionMode;
+import flingr.app.entities.TransferRoute;
+
+/**
+ * Static helpers that decide whether and how hard a file is compressed by the SSH transport.
+ * <p>
+ * Compression only pays off for content that isn't compressed already, and only while the link
+ * is slower than the phone can deflate.  On a fast LAN zlib would make the CPU the bottleneck.
+ */
+public class CompressionPolicy
+{
+    public static final int NO_COMPRESSION = 0;
+    private static final int FAST_COMPRESSION = 1;
+    private static final int DEFAULT_COMPRESSION = 6;
+
+    // Above this the phone can't deflate fast enough to keep up with the link
+    private static final long MAX_COMPRESSED_BYTES_PER_SECOND = 16L * 1024L * 1024L;
+    // Below this the link is slow enough to spend more CPU on a better ratio
+    private static final long SLOW_LINK_BYTES_PER_SECOND = 2L * 1024L * 1024L;
+
+    private static final Set<String> COMPRESSIBLE_TYPES = new HashSet<>(Arrays.asList(
+            "application/json", "application/xml", "application/javascript",
+            "application/x-sh", "application/x-tar", "application/sql", "application/rtf",
+            "application/x-ndjson", "image/bmp", "image/x-ms-bmp", "image/tiff",
+            "image/svg+xml", "audio/wav", "audio/x-wav", "audio/wave", "audio/aiff",
+            "audio/x-aiff"));
+
+    private static final Set<String> COMPRESSIBLE_EXTENSIONS = new HashSet<>(Arrays.asList(
+            "txt", "log", "csv", "tsv", "json", "xml", "html", "htm", "md", "yaml", "yml",
+            "sql", "tar", "wav", "aiff", "bmp", "tif", "tiff", "svg"));
+
+    /**
+     * Gets the MIME type of a shared file from its provider, or from its name as a fallback.
+     *
+     * @param contentResolver Resolver to query the provider with.
+     * @param fileUri         Uri of the file.
+     * @param fileName        Name of the file.
+     *
+     * @return The MIME type, or null if unknown.
+     */
+    public static String getMimeType(ContentResolver contentResolver, Uri fileUri, String fileName)
+    {
+        String mimeType = null;
+        try
+        {
+            mimeType = contentResolver.getType(fileUri);
+        }
+        catch (SecurityException e)
+        {
+            // Fall back to the file name below
+        }
+
+        String extension = getExtension(fileName);
+        if ((mimeType == null || "application/octet-stream".equals(mimeType)) && extension != null)
+        {
+            mimeType = MimeTypeMap.getSingleton().getMimeTypeFromExtension(extension);
+        }
+        return mimeType;
+    }
+
+    /**
+     * Whether a file is likely to shrink under zlib.  Formats that carry their own compression,
+     * such as JPEG, MP4 and ZIP, are not.
+     *
+     * @param mimeType MIME type of the file, may be null.
+     * @param fileName Name of the file, may be null.
+     *
+     * @return True if the file is worth compressing.
+     */
+    public static boolean isCompressible(String mimeType, String fileName)
+    {
+        if (mimeType != null)
+        {
+            String type = mimeType.toLowerCase(Locale.US);
+            if (type.startsWith("text/") || COMPRESSIBLE_TYPES.contains(type))
+            {
+                return true;
+            }
+        }
+
+        String extension = getExtension(fileName);
+        return extension != null && COMPRESSIBLE_EXTENSIONS.contains(extension);
+    }
+
+    /**
+     * Chooses the zlib level of a session.
+     *
+     * @param mode           The connection's compression mode.
+     * @param isCompressible True if the file is worth compressing.
+     * @param route          The route the session is established over.
+     * @param bytesPerSecond Measured throughput to the desktop over the route, 0 if unknown.
+     *
+     * @return The level between 1 and 9, or {@link #NO_COMPRESSION}.
+     */
+    public static int chooseLevel(CompressionMode mode, boolean isCompressible, TransferRoute route,
+                                  long bytesPerSecond)
+    {
+        if (mode == CompressionMode.OFF || (mode == CompressionMode.AUTO && !isCompressible))
+        {
+            return NO_COMPRESSION;
+        }
+
+        if (bytesPerSecond <= 0)
+        {
+            // Nothing measured yet, assume a LAN is fast and the WAN is not
+            return route == TransferRoute.LAN ? FAST_COMPRESSION : DEFAULT_COMPRESSION;
+        }
+        else if (bytesPerSecond >= MAX_COMPRESSED_BYTES_PER_SECOND)
+        {
+            return mode == CompressionMode.ALWAYS ? FAST_COMPRESSION : NO_COMPRESSION;
+        }
+        else if (bytesPerSecond >= SLOW_LINK_BYTES_PER_SECOND)
+        {
+            return FAST_COMPRESSION;
+        }
+        return DEFAULT_COMPRESSION;
+    }
+
+    /**
+     * Gets the lower case extension of a file name.
+     *
+     * @param fileName The file name, may be null.
+     *
+     * @return The extension without the dot, or null if there is none.
+     */
+    private static String getExtension(String fileName)
+    {
+        if (fileName == null)
+        {
+            return null;
+        }
+
+        int dot = fileName.lastIndexOf('.');
+        return dot >= 0 && dot < fileName.length() - 1
+                ? fileName.substring(dot + 1).toLowerCase(Locale.US) : null;
+    }
+}
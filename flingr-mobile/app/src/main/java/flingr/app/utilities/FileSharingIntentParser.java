@@ -14,7 +14,9 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.PrintStream;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.Locale;
 import java.util.Objects;
 
@@ -24,7 +26,7 @@ import timber.log.Timber;
  * Create an entire class dedicated to parsing Intent contents for information pertaining to a
  * shared file received from another application.
  * <p>
- * Number of variations to receive shared files in Android so far:  3
+ * Number of variations to receive shared files in Android so far:  4
  */
 public class FileSharingIntentParser
 {
@@ -47,16 +49,64 @@ public class FileSharingIntentParser
     }
 
     /**
-     * Parses a received Intent for pertinent information to handle a shared file.
+     * Parses a received Intent for pertinent information to handle one or more shared files.
      *
      * @param theIntent The received intent.
-     * @return A entity object with the desired information
+     * @return A list of entity objects with the desired information, empty if nothing usable
+     * was shared.
      * @throws NullPointerException if parameter is null
      */
-    public SharedFileInfo parseIntent(Intent theIntent) throws NullPointerException
+    public List<SharedFileInfo> parseIntent(Intent theIntent) throws NullPointerException
     {
         Objects.requireNonNull(theIntent);
 
+        List<SharedFileInfo> retVal = new ArrayList<>();
+
+        if (Intent.ACTION_SEND_MULTIPLE.equals(theIntent.getAction()))
+        {
+            String intentFileType = theIntent.getType();
+
+            /*
+             * See https://developer.android.com/training/sharing/receive#handling-content
+             */
+            List<Parcelable> someParcelables = theIntent.getParcelableArrayListExtra(Intent.EXTRA_STREAM);
+            if (someParcelables != null)
+            {
+                for (Parcelable someParcelable : someParcelables)
+                {
+                    if (someParcelable instanceof Uri)
+                    {
+                        retVal.add(createSharedFileInfo((Uri) someParcelable, intentFileType));
+                    }
+                }
+            }
+
+            // Some applications only populate the clip data
+            if (retVal.isEmpty())
+            {
+                retVal.addAll(parseClipData(theIntent.getClipData()));
+            }
+        }
+        else
+        {
+            SharedFileInfo sharedFileInfo = parseSingleFileIntent(theIntent);
+            if (sharedFileInfo != null)
+            {
+                retVal.add(sharedFileInfo);
+            }
+        }
+
+        return retVal;
+    }
+
+    /**
+     * Parses a received ACTION_SEND Intent for pertinent information to handle a shared file.
+     *
+     * @param theIntent The received intent.
+     * @return A entity object with the desired information, or null if none could be found.
+     */
+    private SharedFileInfo parseSingleFileIntent(Intent theIntent)
+    {
         String intentAction = theIntent.getAction();
         String intentFileType = theIntent.getType();
 
@@ -74,11 +124,7 @@ public class FileSharingIntentParser
                 Parcelable someParcelable = theIntent.getParcelableExtra(Intent.EXTRA_STREAM);
                 if (someParcelable instanceof Uri)
                 {
-                    SharedFileInfo sharedFileInfo = new SharedFileInfo();
-                    sharedFileInfo.fileUri = (Uri) someParcelable;
-                    sharedFileInfo.fileName = getFileNameFromUri(sharedFileInfo.fileUri);
-                    sharedFileInfo.mimeType = intentFileType;
-                    return sharedFileInfo;
+                    return createSharedFileInfo((Uri) someParcelable, intentFileType);
                 }
 
             }
@@ -122,35 +168,64 @@ public class FileSharingIntentParser
             Uri dataUri = theIntent.getData();
             if (dataUri != null)
             {
-                SharedFileInfo sharedFileInfo = new SharedFileInfo();
-                sharedFileInfo.fileUri = dataUri;
-                sharedFileInfo.mimeType = intentFileType;
-                sharedFileInfo.fileName = getFileNameFromUri(sharedFileInfo.fileUri);
-
-                return sharedFileInfo;
+                return createSharedFileInfo(dataUri, intentFileType);
             }
 
-
-            /*
-             * See https://developer.android.com/reference/android/content/ClipData?hl=en
-             */
-            ClipData clipData = theIntent.getClipData();
-            if (clipData != null)
+            // A single send only ever carries one item, so ignore any extras
+            List<SharedFileInfo> clipboardFiles = parseClipData(theIntent.getClipData());
+            if (!clipboardFiles.isEmpty())
             {
-                SharedFileInfo sharedFileInfo = new SharedFileInfo();
-
-                // TODO  Only support one clipboard item at a time for now
-                sharedFileInfo.mimeType = clipData.getDescription().getMimeType(0);
-
-                ClipData.Item clipboardItem = clipData.getItemAt(0);
-                sharedFileInfo.fileUri = clipboardItem.getUri();
-                sharedFileInfo.fileName = getFileNameFromUri(clipboardItem.getUri());
-                return sharedFileInfo;
+                return clipboardFiles.get(0);
             }
         }
         return null;
     }
 
+    /**
+     * Creates shared file information for every Uri in the clip data.
+     * <p>
+     * See https://developer.android.com/reference/android/content/ClipData?hl=en
+     *
+     * @param clipData The clip data of the received intent, may be null.
+     *
+     * @return The shared file information of every clipboard item with a Uri.
+     */
+    private List<SharedFileInfo> parseClipData(ClipData clipData)
+    {
+        List<SharedFileInfo> retVal = new ArrayList<>();
+        if (clipData != null)
+        {
+            for (int i = 0; i < clipData.getItemCount(); i++)
+            {
+                ClipData.Item clipboardItem = clipData.getItemAt(i);
+                if (clipboardItem.getUri() != null)
+                {
+                    // The description carries one mime type per distinct type, not per item
+                    String mimeType = clipData.getDescription().getMimeType(0);
+                    retVal.add(createSharedFileInfo(clipboardItem.getUri(), mimeType));
+                }
+            }
+        }
+        return retVal;
+    }
+
+    /**
+     * Creates a shared file entity for a Uri.
+     *
+     * @param fileUri The Uri of the shared file.
+     * @param mimeType The mime type the sharing application provided.
+     *
+     * @return The shared file entity.
+     */
+    private SharedFileInfo createSharedFileInfo(Uri fileUri, String mimeType)
+    {
+        SharedFileInfo sharedFileInfo = new SharedFileInfo();
+        sharedFileInfo.fileUri = fileUri;
+        sharedFileInfo.mimeType = mimeType;
+        sharedFileInfo.fileName = getFileNameFromUri(fileUri);
+        return sharedFileInfo;
+    }
+
     /**
      * Get the file name from a URI.  Assumes its a content:// scheme first using a
      * content resolver and DISPLAY_NAME, then try and pull the file name from the last
@@ -0,0 +1,227 @@
+package flingr.app.utilities;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.media.ExifInterface;
+import android.net.Uri;
+import android.os.Build;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+
+import timber.log.Timber;
+
+/**
+ * Static helpers that shrink shared photos to a smaller rendition before they are uploaded, for
+ * connections that don't need full resolution.
+ * <p>
+ * The rendition is encoded in memory in the photo's own format and uploaded in its place, so no
+ * temporary file is written.  Photos that are small enough already, formats a bitmap can't
+ * carry without loss such as animations, and renditions that wouldn't be smaller are left alone.
+ */
+public class MediaScaler
+{
+    /**
+     * Downscales a photo so its longer side is at most a number of pixels.
+     *
+     * @param contentResolver Resolver to open the photo with.
+     * @param fileUri         Uri of the photo.
+     * @param mimeType        MIME type of the photo, may be null.
+     * @param fileSize        Size of the photo in bytes, negative if unknown.
+     * @param maxDimension    Longest side of the rendition in pixels.
+     * @param quality         Encoder quality of JPEG and WebP renditions, 0 to 100.
+     *
+     * @return The encoded rendition, or null if the photo is uploaded as it is.
+     */
+    public static byte[] downscaleImage(ContentResolver contentResolver, Uri fileUri,
+                                        String mimeType, long fileSize, int maxDimension,
+                                        int quality)
+    {
+        Bitmap.CompressFormat format = getFormat(mimeType);
+        if (format == null || maxDimension <= 0)
+        {
+            return null;
+        }
+
+        try
+        {
+            BitmapFactory.Options bounds = new BitmapFactory.Options();
+            bounds.inJustDecodeBounds = true;
+            try (InputStream inputStream = contentResolver.openInputStream(fileUri))
+            {
+                BitmapFactory.decodeStream(inputStream, null, bounds);
+            }
+
+            int longerSide = Math.max(bounds.outWidth, bounds.outHeight);
+            if (longerSide <= maxDimension)
+            {
+                return null;
+            }
+
+            // Rotating pixels drops the EXIF orientation, so it has to be known up front
+            int rotation = 0;
+            if (format == Bitmap.CompressFormat.JPEG)
+            {
+                rotation = getRotation(contentResolver, fileUri);
+                if (rotation < 0)
+                {
+                    return null;
+                }
+            }
+
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = 1;
+            while (longerSide / (options.inSampleSize * 2) >= maxDimension)
+            {
+                options.inSampleSize *= 2;
+            }
+            if (format == Bitmap.CompressFormat.JPEG)
+            {
+                // No alpha to keep, so half the memory of a decoded 48 MP photo
+                options.inPreferredConfig = Bitmap.Config.RGB_565;
+            }
+
+            Bitmap bitmap;
+            try (InputStream inputStream = contentResolver.openInputStream(fileUri))
+            {
+                bitmap = BitmapFactory.decodeStream(inputStream, null, options);
+            }
+            if (bitmap == null)
+            {
+                return null;
+            }
+
+            Bitmap rendition = scale(bitmap, maxDimension, rotation);
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            boolean isEncoded = rendition.compress(format, quality, outputStream);
+            rendition.recycle();
+            if (!isEncoded || (fileSize >= 0 && outputStream.size() >= fileSize))
+            {
+                return null;
+            }
+
+            Timber.i("Downscaled %s from %d to %d bytes", fileUri, fileSize, outputStream.size());
+            return outputStream.toByteArray();
+        }
+        catch (IOException | SecurityException | OutOfMemoryError e)
+        {
+            Timber.w(e, "Unable to downscale %s, uploading it as it is", fileUri);
+            return null;
+        }
+    }
+
+    /**
+     * Gets the format a photo is encoded in again.
+     *
+     * @param mimeType MIME type of the photo, may be null.
+     *
+     * @return The format, or null if photos of the type aren't downscaled.
+     */
+    private static Bitmap.CompressFormat getFormat(String mimeType)
+    {
+        if (mimeType == null)
+        {
+            return null;
+        }
+
+        switch (mimeType.toLowerCase(Locale.US))
+        {
+            case "image/jpeg":
+            case "image/jpg":
+                return Bitmap.CompressFormat.JPEG;
+            case "image/png":
+                return Bitmap.CompressFormat.PNG;
+            case "image/webp":
+                return Bitmap.CompressFormat.WEBP;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Gets how far a JPEG has to be rotated to be shown upright.
+     *
+     * @param contentResolver Resolver to open the photo with.
+     * @param fileUri         Uri of the photo.
+     *
+     * @return Clockwise rotation in degrees, or -1 if it can't be read.
+     */
+    private static int getRotation(ContentResolver contentResolver, Uri fileUri)
+    {
+        ExifInterface exif;
+        try
+        {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N)
+            {
+                try (InputStream inputStream = contentResolver.openInputStream(fileUri))
+                {
+                    exif = new ExifInterface(inputStream);
+                }
+            }
+            else if (ContentResolver.SCHEME_FILE.equals(fileUri.getScheme()))
+            {
+                exif = new ExifInterface(fileUri.getPath());
+            }
+            else
+            {
+                // Marshmallow can only read the EXIF of a file path
+                return -1;
+            }
+        }
+        catch (IOException | SecurityException e)
+        {
+            return -1;
+        }
+
+        switch (exif.getAttributeInt(ExifInterface.TAG_ORIENTATION,
+                ExifInterface.ORIENTATION_NORMAL))
+        {
+            case ExifInterface.ORIENTATION_NORMAL:
+            case ExifInterface.ORIENTATION_UNDEFINED:
+                return 0;
+            case ExifInterface.ORIENTATION_ROTATE_90:
+                return 90;
+            case ExifInterface.ORIENTATION_ROTATE_180:
+                return 180;
+            case ExifInterface.ORIENTATION_ROTATE_270:
+                return 270;
+            default:
+                // Mirrored orientations are rare enough to send as they are
+                return -1;
+        }
+    }
+
+    /**
+     * Scales a decoded photo to fit the longest side and turns it upright.
+     *
+     * @param bitmap       The decoded photo, recycled if a new bitmap is made.
+     * @param maxDimension Longest side of the rendition in pixels.
+     * @param rotation     Clockwise rotation in degrees.
+     *
+     * @return The rendition.
+     */
+    private static Bitmap scale(Bitmap bitmap, int maxDimension, int rotation)
+    {
+        float factor = Math.min(1f,
+                (float) maxDimension / Math.max(bitmap.getWidth(), bitmap.getHeight()));
+        if (factor >= 1f && rotation == 0)
+        {
+            return bitmap;
+        }
+
+        Matrix matrix = new Matrix();
+        matrix.postScale(factor, factor);
+        matrix.postRotate(rotation);
+        Bitmap rendition = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(),
+                bitmap.getHeight(), matrix, true);
+        if (rendition != bitmap)
+        {
+            bitmap.recycle();
+        }
+        return rendition;
+    }
+}
@@ -0,0 +1,152 @@
+package flingr.app.utilities;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.LinkAddress;
+import android.net.LinkProperties;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.wifi.WifiInfo;
+import android.net.wifi.WifiManager;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Static helpers to identify the network the device is currently on.
+ */
+public class NetworkHelper
+{
+    // Reported instead of the real BSSID when the app lacks location permission
+    private static final String HIDDEN_BSSID = "02:00:00:00:00:00";
+
+    /**
+     * Creates an identifier of the current network: the Wi-Fi access point if it can be read,
+     * otherwise the IPv4 subnet of the active network.
+     *
+     * @param context An Android life-cycle object.
+     *
+     * @return The network identifier, or null if the device is offline.
+     */
+    public static String getNetworkId(Context context)
+    {
+        ConnectivityManager connectivityManager = context.getSystemService(ConnectivityManager.class);
+        Network network = connectivityManager != null ? connectivityManager.getActiveNetwork() : null;
+        if (network == null)
+        {
+            return null;
+        }
+
+        NetworkCapabilities capabilities = connectivityManager.getNetworkCapabilities(network);
+        if (capabilities != null && capabilities.hasTransport(NetworkCapabilities.TRANSPORT_WIFI))
+        {
+            WifiManager wifiManager = (WifiManager) context.getApplicationContext()
+                    .getSystemService(Context.WIFI_SERVICE);
+            WifiInfo wifiInfo = wifiManager != null ? wifiManager.getConnectionInfo() : null;
+            if (wifiInfo != null && wifiInfo.getBSSID() != null
+                    && !HIDDEN_BSSID.equals(wifiInfo.getBSSID()))
+            {
+                return "wifi:" + wifiInfo.getBSSID();
+            }
+        }
+
+        LinkAddress linkAddress = getIPv4LinkAddress(connectivityManager.getLinkProperties(network));
+        if (linkAddress != null)
+        {
+            int prefixLength = linkAddress.getPrefixLength();
+            return "net:" + toSubnet(linkAddress.getAddress(), prefixLength) + "/" + prefixLength;
+        }
+
+        return null;
+    }
+
+    /**
+     * Checks whether an address is on the same IPv4 subnet as the device's active network.
+     *
+     * @param context An Android life-cycle object.
+     * @param address The literal IPv4 address to check.
+     *
+     * @return True if the address is on the device's subnet.
+     */
+    public static boolean isOnLocalSubnet(Context context, String address)
+    {
+        if (address == null || address.isEmpty())
+        {
+            return false;
+        }
+
+        ConnectivityManager connectivityManager = context.getSystemService(ConnectivityManager.class);
+        Network network = connectivityManager != null ? connectivityManager.getActiveNetwork() : null;
+        if (network == null)
+        {
+            return false;
+        }
+
+        LinkAddress linkAddress = getIPv4LinkAddress(connectivityManager.getLinkProperties(network));
+        if (linkAddress == null)
+        {
+            return false;
+        }
+
+        try
+        {
+            // Only literal addresses are compared, a host name would need a DNS lookup
+            if (!address.matches("\\d{1,3}(\\.\\d{1,3}){3}"))
+            {
+                return false;
+            }
+
+            InetAddress other = InetAddress.getByName(address);
+            int prefixLength = linkAddress.getPrefixLength();
+            return toSubnet(linkAddress.getAddress(), prefixLength)
+                    .equals(toSubnet(other, prefixLength));
+        }
+        catch (UnknownHostException e)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Gets the first IPv4 address of a network link.
+     *
+     * @param linkProperties The link properties, may be null.
+     *
+     * @return The IPv4 link address, or null if there is none.
+     */
+    private static LinkAddress getIPv4LinkAddress(LinkProperties linkProperties)
+    {
+        if (linkProperties != null)
+        {
+            for (LinkAddress linkAddress : linkProperties.getLinkAddresses())
+            {
+                if (linkAddress.getAddress() instanceof Inet4Address)
+                {
+                    return linkAddress;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Masks an IPv4 address down to its network address.
+     *
+     * @param address      The address.
+     * @param prefixLength Number of network bits.
+     *
+     * @return The network address in dotted notation.
+     */
+    private static String toSubnet(InetAddress address, int prefixLength)
+    {
+        byte[] bytes = address.getAddress();
+        int value = ((bytes[0] & 0xFF) << 24) | ((bytes[1] & 0xFF) << 16)
+                | ((bytes[2] & 0xFF) << 8) | (bytes[3] & 0xFF);
+        int mask = prefixLength == 0 ? 0 : -1 << (32 - prefixLength);
+        int subnet = value & mask;
+
+        return ((subnet >>> 24) & 0xFF) + "." + ((subnet >>> 16) & 0xFF) + "."
+                + ((subnet >>> 8) & 0xFF) + "." + (subnet & 0xFF);
+    }
+}
@@ -0,0 +1,55 @@
+package flingr.app.utilities;
+
+/**
+ * Smooths a byte counter into a throughput with an exponentially weighted moving average, so a
+ * single stalled or bursty interval doesn't make the rate and ETA jump around.
+ */
+public class ThroughputEstimator
+{
+    // Time constant of the average, older samples fade by 1/e every this many milliseconds
+    private static final double SMOOTHING_WINDOW_MS = 3000.0;
+
+    private long lastBytes = 0;
+    private long lastSampleMillis = -1;
+    private double bytesPerSecond = 0;
+
+    /**
+     * Adds a sample of the byte counter.
+     *
+     * @param totalBytes Total bytes counted so far.
+     * @param nowMillis  Monotonic time of the sample in milliseconds.
+     */
+    public void sample(long totalBytes, long nowMillis)
+    {
+        if (lastSampleMillis < 0)
+        {
+            lastSampleMillis = nowMillis;
+            lastBytes = totalBytes;
+            return;
+        }
+
+        long elapsed = nowMillis - lastSampleMillis;
+        if (elapsed <= 0)
+        {
+            return;
+        }
+
+        // Retried files roll the counter back, which isn't negative throughput
+        double rate = Math.max(0, totalBytes - lastBytes) * 1000.0 / elapsed;
+        double weight = 1.0 - Math.exp(-elapsed / SMOOTHING_WINDOW_MS);
+        bytesPerSecond = bytesPerSecond == 0 ? rate : bytesPerSecond + weight * (rate - bytesPerSecond);
+
+        lastSampleMillis = nowMillis;
+        lastBytes = totalBytes;
+    }
+
+    /**
+     * Gets the smoothed throughput.
+     *
+     * @return Bytes per second.
+     */
+    public long getBytesPerSecond()
+    {
+        return (long) bytesPerSecond;
+    }
+}
@@ -0,0 +1,51 @@
+package flingr.app.utilities;
+
+/**
+ * Token bucket that paces a byte stream to a rate.
+ * <p>
+ * Callers reserve the bytes they are about to send and are told how long to wait first.  The
+ * bucket may go into debt, so a caller never waits for a whole chunk to accumulate: it waits
+ * exactly as long as its bytes take at the rate, and concurrent callers are paced one after the
+ * other.  Up to {@link #BURST_SECONDS} of unused rate is saved up, enough to absorb scheduling
+ * jitter without letting an idle stream flood the link when it resumes.
+ */
+public class TokenBucket
+{
+    private static final double BURST_SECONDS = 0.1;
+    private static final double MIN_BURST_BYTES = 64 * 1024;
+
+    private double tokens = 0;
+    private long lastRefillNanos = -1;
+
+    /**
+     * Reserves bytes at a rate.
+     *
+     * @param bytes          Number of bytes about to be sent.
+     * @param bytesPerSecond The rate, 0 or less for no limit.
+     * @param nowNanos       Monotonic time in nanoseconds.
+     *
+     * @return How long to wait before sending in nanoseconds, 0 to send right away.
+     */
+    public synchronized long reserve(long bytes, long bytesPerSecond, long nowNanos)
+    {
+        double burst = Math.max(MIN_BURST_BYTES, bytesPerSecond * BURST_SECONDS);
+        if (bytesPerSecond <= 0 || lastRefillNanos < 0)
+        {
+            // Start every limited stretch with a full bucket
+            tokens = burst;
+        }
+        else
+        {
+            tokens = Math.min(burst, tokens + (nowNanos - lastRefillNanos) * bytesPerSecond / 1e9);
+        }
+        lastRefillNanos = bytesPerSecond > 0 ? nowNanos : -1;
+
+        if (bytesPerSecond <= 0)
+        {
+            return 0;
+        }
+
+        tokens -= bytes;
+        return tokens >= 0 ? 0 : (long) (-tokens * 1e9 / bytesPerSecond);
+    }
+}
@@ -0,0 +1,86 @@
+package flingr.app.entities;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RateLimitTest
+{
+    @Test
+    public void testWindowWithinDay()
+    {
+        // 09:00 to 17:00
+        RateLimit limit = new RateLimit(1024, null, 9 * 60, 17 * 60);
+
+        assertFalse(limit.appliesTo(TransferRoute.WAN, 9 * 60 - 1));
+        assertTrue(limit.appliesTo(TransferRoute.WAN, 9 * 60));
+        assertTrue(limit.appliesTo(TransferRoute.WAN, 12 * 60));
+        assertTrue(limit.appliesTo(TransferRoute.WAN, 17 * 60 - 1));
+        assertFalse(limit.appliesTo(TransferRoute.WAN, 17 * 60));
+    }
+
+    @Test
+    public void testWindowWrappingPastMidnight()
+    {
+        // 22:00 to 06:00
+        RateLimit limit = new RateLimit(1024, null, 22 * 60, 6 * 60);
+
+        assertFalse(limit.appliesTo(TransferRoute.LAN, 22 * 60 - 1));
+        assertTrue(limit.appliesTo(TransferRoute.LAN, 22 * 60));
+        assertTrue(limit.appliesTo(TransferRoute.LAN, RateLimit.MINUTES_PER_DAY - 1));
+        assertTrue(limit.appliesTo(TransferRoute.LAN, 0));
+        assertTrue(limit.appliesTo(TransferRoute.LAN, 6 * 60 - 1));
+        assertFalse(limit.appliesTo(TransferRoute.LAN, 6 * 60));
+        assertFalse(limit.appliesTo(TransferRoute.LAN, 12 * 60));
+    }
+
+    @Test
+    public void testWindowEndingAtMidnight()
+    {
+        // 18:00 to 24:00, which is minute 0 of the next day
+        RateLimit limit = new RateLimit(1024, null, 18 * 60, RateLimit.MINUTES_PER_DAY);
+
+        assertEquals(0, limit.getEndMinute());
+        assertTrue(limit.appliesTo(TransferRoute.WAN, RateLimit.MINUTES_PER_DAY - 1));
+        assertFalse(limit.appliesTo(TransferRoute.WAN, 0));
+        assertFalse(limit.appliesTo(TransferRoute.WAN, 17 * 60));
+    }
+
+    @Test
+    public void testEqualStartAndEndApplyAllDay()
+    {
+        RateLimit limit = new RateLimit(1024, null, 8 * 60, 8 * 60);
+
+        for (int minute = 0; minute < RateLimit.MINUTES_PER_DAY; minute += 59)
+        {
+            assertTrue(limit.appliesTo(TransferRoute.WAN, minute));
+        }
+        assertTrue(new RateLimit(1024, null).appliesTo(TransferRoute.LAN, 0));
+    }
+
+    @Test
+    public void testRouteRestriction()
+    {
+        RateLimit wanLimit = new RateLimit(1024, TransferRoute.WAN);
+        RateLimit anyLimit = new RateLimit(1024, null);
+
+        assertTrue(wanLimit.appliesTo(TransferRoute.WAN, 0));
+        assertFalse(wanLimit.appliesTo(TransferRoute.LAN, 0));
+        assertTrue(anyLimit.appliesTo(TransferRoute.WAN, 0));
+        assertTrue(anyLimit.appliesTo(TransferRoute.LAN, 0));
+    }
+
+    @Test
+    public void testOutOfRangeValuesAreNormalized()
+    {
+        RateLimit limit = new RateLimit(0, null, -60, RateLimit.MINUTES_PER_DAY + 60);
+
+        assertEquals(1, limit.getBytesPerSecond());
+        assertEquals(RateLimit.MINUTES_PER_DAY - 60, limit.getStartMinute());
+        assertEquals(60, limit.getEndMinute());
+        assertTrue(limit.appliesTo(TransferRoute.WAN, 0));
+        assertFalse(limit.appliesTo(TransferRoute.WAN, 60));
+    }
+}
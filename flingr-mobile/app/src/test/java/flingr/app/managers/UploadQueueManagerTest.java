@@ -0,0 +1,220 @@
+package flingr.app.managers;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import flingr.app.entities.Connection;
+import flingr.app.entities.UploadPriority;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class UploadQueueManagerTest
+{
+    private static final long MB = 1024L * 1024L;
+
+    private Connection desktop;
+    private Connection laptop;
+    private List<UploadQueueManager.QueuedTask> pendingTasks;
+    private HashMap<Connection, Integer> activeTasksPerConnection;
+
+    @Before
+    public void initializeVars()
+    {
+        desktop = new Connection("12345", "Desktop", "1.1.1.1", 1234, "tester1", "password1");
+        laptop = new Connection("2222", "Laptop", "2.2.2.2", 2222, "tester2", "password2");
+        pendingTasks = new ArrayList<>();
+        activeTasksPerConnection = new HashMap<>();
+    }
+
+    @Test
+    public void testSmallFileRunsBeforeLargeOne()
+    {
+        UploadQueueManager.QueuedTask video = queue(desktop, 2048L * MB,
+                UploadPriority.INTERACTIVE, 0);
+        UploadQueueManager.QueuedTask screenshot = queue(desktop, 50L * 1024L,
+                UploadPriority.INTERACTIVE, 0);
+
+        assertSame(screenshot, select(0));
+        pendingTasks.remove(screenshot);
+        assertSame(video, select(0));
+    }
+
+    @Test
+    public void testInteractiveRunsBeforeBackgroundOfSameSize()
+    {
+        UploadQueueManager.QueuedTask background = queue(desktop, 10L * MB,
+                UploadPriority.BACKGROUND, 0);
+        UploadQueueManager.QueuedTask interactive = queue(desktop, 10L * MB,
+                UploadPriority.INTERACTIVE, 0);
+
+        assertSame(interactive, select(0));
+        pendingTasks.remove(interactive);
+        assertSame(background, select(0));
+    }
+
+    @Test
+    public void testEqualCostRunsInArrivalOrder()
+    {
+        UploadQueueManager.QueuedTask first = queue(desktop, MB, UploadPriority.INTERACTIVE, 0);
+        queue(laptop, MB, UploadPriority.INTERACTIVE, 0);
+
+        assertSame(first, select(0));
+    }
+
+    @Test
+    public void testUnknownSizeCountsAsMediumFile()
+    {
+        UploadQueueManager.QueuedTask unknown = queue(desktop, -1, UploadPriority.INTERACTIVE, 0);
+        UploadQueueManager.QueuedTask large = queue(desktop, 100L * MB,
+                UploadPriority.INTERACTIVE, 0);
+        UploadQueueManager.QueuedTask small = queue(desktop, MB, UploadPriority.INTERACTIVE, 0);
+
+        assertSame(small, select(0));
+        pendingTasks.remove(small);
+        assertSame(unknown, select(0));
+        pendingTasks.remove(unknown);
+        assertSame(large, select(0));
+    }
+
+    @Test
+    public void testWaitingLargeFileOvertakesNewSmallOnes()
+    {
+        // A minute of waiting takes 240 MB off the large file
+        UploadQueueManager.QueuedTask large = queue(desktop, 250L * MB,
+                UploadPriority.INTERACTIVE, 0);
+        UploadQueueManager.QueuedTask small = queue(desktop, MB, UploadPriority.INTERACTIVE,
+                60000);
+        assertSame(small, select(60000));
+        pendingTasks.remove(small);
+
+        // Small files keep arriving, but the large one has waited long enough
+        queue(desktop, MB, UploadPriority.INTERACTIVE, 62500);
+        assertSame(large, select(62500));
+    }
+
+    @Test
+    public void testFullConnectionIsSkipped()
+    {
+        UploadQueueManager.QueuedTask toDesktop = queue(desktop, MB, UploadPriority.INTERACTIVE, 0);
+        UploadQueueManager.QueuedTask toLaptop = queue(laptop, 100L * MB,
+                UploadPriority.INTERACTIVE, 0);
+
+        activeTasksPerConnection.put(desktop, UploadQueueManager.MAX_UPLOADS_PER_CONNECTION);
+        assertSame(toLaptop, select(0));
+
+        activeTasksPerConnection.put(laptop, UploadQueueManager.MAX_UPLOADS_PER_CONNECTION);
+        assertNull(select(0));
+
+        activeTasksPerConnection.put(desktop, UploadQueueManager.MAX_UPLOADS_PER_CONNECTION - 1);
+        assertSame(toDesktop, select(0));
+    }
+
+    @Test
+    public void testFanOutWaitsForEveryConnection()
+    {
+        UploadQueueManager.QueuedTask fanOut = queue(Arrays.asList(desktop, laptop), MB,
+                UploadPriority.INTERACTIVE, 0);
+        UploadQueueManager.QueuedTask toDesktop = queue(desktop, 100L * MB,
+                UploadPriority.INTERACTIVE, 0);
+
+        activeTasksPerConnection.put(laptop, UploadQueueManager.MAX_UPLOADS_PER_CONNECTION);
+        assertSame(toDesktop, select(0));
+
+        activeTasksPerConnection.put(laptop, UploadQueueManager.MAX_UPLOADS_PER_CONNECTION - 1);
+        assertSame(fanOut, select(0));
+    }
+
+    /**
+     * Adds an upload to a single connection to the pending uploads.
+     *
+     * @param connection The target connection.
+     * @param size       Size of the file in bytes, negative if unknown.
+     * @param priority   Who the upload runs for.
+     * @param enqueuedAt When it was queued in milliseconds.
+     *
+     * @return The queued upload.
+     */
+    private UploadQueueManager.QueuedTask queue(Connection connection, long size,
+                                                UploadPriority priority, long enqueuedAt)
+    {
+        return queue(Collections.singletonList(connection), size, priority, enqueuedAt);
+    }
+
+    /**
+     * Adds an upload to the pending uploads.
+     *
+     * @param connections The target connections.
+     * @param size        Size of the file in bytes, negative if unknown.
+     * @param priority    Who the upload runs for.
+     * @param enqueuedAt  When it was queued in milliseconds.
+     *
+     * @return The queued upload.
+     */
+    private UploadQueueManager.QueuedTask queue(List<Connection> connections, long size,
+                                                UploadPriority priority, long enqueuedAt)
+    {
+        UploadQueueManager.QueuedTask queuedTask = new UploadQueueManager.QueuedTask(
+                new TestUploadTask(connections, size, priority), enqueuedAt);
+        pendingTasks.add(queuedTask);
+        return queuedTask;
+    }
+
+    /**
+     * Picks the upload the queue would start next.
+     *
+     * @param now Current time in milliseconds.
+     *
+     * @return The upload, or null if none may start.
+     */
+    private UploadQueueManager.QueuedTask select(long now)
+    {
+        return UploadQueueManager.selectNext(pendingTasks, activeTasksPerConnection, now);
+    }
+
+    /**
+     * An upload that only describes itself.
+     */
+    private static class TestUploadTask implements UploadQueueManager.UploadTask
+    {
+        private final List<Connection> connections;
+        private final long size;
+        private final UploadPriority priority;
+
+        TestUploadTask(List<Connection> connections, long size, UploadPriority priority)
+        {
+            this.connections = connections;
+            this.size = size;
+            this.priority = priority;
+        }
+
+        @Override
+        public List<Connection> getConnections()
+        {
+            return connections;
+        }
+
+        @Override
+        public long getSize()
+        {
+            return size;
+        }
+
+        @Override
+        public UploadPriority getPriority()
+        {
+            return priority;
+        }
+
+        @Override
+        public void run()
+        {
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package flingr.app.remote;
+
+import com.jcraft.jsch.SftpProgressMonitor;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BundleUploaderTest
+{
+    @Test
+    public void testHeaderFields()
+    {
+        byte[] header = BundleUploader.createHeader("photo 1.jpg", 100);
+
+        assertEquals(512, header.length);
+        assertEquals("photo 1.jpg", readString(header, 0, 100));
+        assertEquals("0000644", readString(header, 100, 8));
+        assertEquals("0000000", readString(header, 108, 8));
+        assertEquals("0000000", readString(header, 116, 8));
+        assertEquals("00000000144", readString(header, 124, 12));
+        assertEquals('0', header[156]);
+        assertEquals("ustar", readString(header, 257, 6));
+        assertEquals("00", new String(header, 263, 2, StandardCharsets.US_ASCII));
+
+        // Numeric fields end in a NUL
+        assertEquals(0, header[107]);
+        assertEquals(0, header[135]);
+    }
+
+    @Test
+    public void testHeaderChecksum()
+    {
+        byte[] header = BundleUploader.createHeader("notes.txt", 12345);
+
+        // Six octal digits, a NUL and a space, summed over the header with the field as spaces
+        assertEquals(0, header[154]);
+        assertEquals(' ', header[155]);
+        long checksum = Long.parseLong(readString(header, 148, 7), 8);
+
+        byte[] blanked = Arrays.copyOf(header, header.length);
+        Arrays.fill(blanked, 148, 156, (byte) ' ');
+        long expected = 0;
+        for (byte b : blanked)
+        {
+            expected += b & 0xff;
+        }
+        assertEquals(expected, checksum);
+    }
+
+    @Test
+    public void testHeaderOfLargestSize()
+    {
+        // Eleven octal digits hold up to 8 GB
+        long fileSize = 8L * 1024L * 1024L * 1024L - 1;
+        byte[] header = BundleUploader.createHeader("video.mp4", fileSize);
+
+        assertEquals(fileSize, Long.parseLong(readString(header, 124, 12), 8));
+        assertTrue(System.currentTimeMillis() / 1000L
+                - Long.parseLong(readString(header, 136, 12), 8) < 60);
+    }
+
+    @Test
+    public void testGnuListingReportsEntryOnceNextIsListed() throws IOException
+    {
+        List<TestFile> files = createFiles("a.txt", "b.txt", "c.txt");
+        BundleUploader.ExtractionListener listener = new BundleUploader.ExtractionListener(files);
+
+        write(listener, "a.txt\n");
+        assertExtracted(files, 0, 0, 0);
+
+        write(listener, "b.txt\n");
+        assertExtracted(files, 1, 0, 0);
+
+        write(listener, "c.txt\n");
+        assertExtracted(files, 1, 1, 0);
+
+        // The last entry is only known to be complete once tar exits
+        listener.allExtracted();
+        assertExtracted(files, 1, 1, 1);
+    }
+
+    @Test
+    public void testBsdListingWithCarriageReturns() throws IOException
+    {
+        List<TestFile> files = createFiles("a.txt", "b c.txt");
+        BundleUploader.ExtractionListener listener = new BundleUploader.ExtractionListener(files);
+
+        write(listener, "x a.txt\r\nx b c.txt\r\n");
+        assertExtracted(files, 1, 0);
+
+        listener.allExtracted();
+        assertExtracted(files, 1, 1);
+    }
+
+    @Test
+    public void testLinesSplitAcrossWritesAndUnknownLines() throws IOException
+    {
+        List<TestFile> files = createFiles("a.txt", "b.txt");
+        BundleUploader.ExtractionListener listener = new BundleUploader.ExtractionListener(files);
+
+        write(listener, "a.t");
+        write(listener, "xt\ntar: a.txt: time stamp in the future\n");
+        assertExtracted(files, 0, 0);
+
+        write(listener, "b.t");
+        assertExtracted(files, 0, 0);
+        write(listener, "xt\n");
+        assertExtracted(files, 1, 0);
+    }
+
+    @Test
+    public void testAllExtractedReportsUnlistedFilesOnce() throws IOException
+    {
+        // Some tars list nothing without a tty
+        List<TestFile> files = createFiles("a.txt", "b.txt");
+        BundleUploader.ExtractionListener listener = new BundleUploader.ExtractionListener(files);
+
+        write(listener, "a.txt\nb.txt\n");
+        listener.allExtracted();
+        listener.allExtracted();
+        assertExtracted(files, 1, 1);
+    }
+
+    /**
+     * Reads a NUL terminated ASCII header field.
+     *
+     * @param header The header.
+     * @param offset Offset of the field.
+     * @param length Length of the field.
+     *
+     * @return The field up to its first NUL.
+     */
+    private static String readString(byte[] header, int offset, int length)
+    {
+        int end = offset;
+        while (end < offset + length && header[end] != 0)
+        {
+            end++;
+        }
+        return new String(header, offset, end - offset, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Writes tar output to a listener.
+     *
+     * @param listener The listener.
+     * @param output   The output.
+     *
+     * @throws IOException never.
+     */
+    private static void write(BundleUploader.ExtractionListener listener, String output)
+            throws IOException
+    {
+        listener.write(output.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Creates bundle files.
+     *
+     * @param fileNames Names of the files.
+     *
+     * @return The files.
+     */
+    private static List<TestFile> createFiles(String... fileNames)
+    {
+        List<TestFile> files = new ArrayList<>();
+        for (String fileName : fileNames)
+        {
+            files.add(new TestFile(fileName));
+        }
+        return files;
+    }
+
+    /**
+     * Checks how often each file was reported as extracted.
+     *
+     * @param files    The files.
+     * @param expected Expected number of reports of each file.
+     */
+    private static void assertExtracted(List<TestFile> files, int... expected)
+    {
+        for (int i = 0; i < expected.length; i++)
+        {
+            assertEquals(files.get(i).getFileName(), expected[i], files.get(i).extractedCount);
+        }
+    }
+
+    /**
+     * A bundle file that only counts its extraction reports.
+     */
+    private static class TestFile implements BundleUploader.BundleFile
+    {
+        private final String fileName;
+        private int extractedCount = 0;
+
+        TestFile(String fileName)
+        {
+            this.fileName = fileName;
+        }
+
+        @Override
+        public String getFileName()
+        {
+            return fileName;
+        }
+
+        @Override
+        public UploadSource open()
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public SftpProgressMonitor getMonitor()
+        {
+            return null;
+        }
+
+        @Override
+        public void onExtracted()
+        {
+            extractedCount++;
+        }
+    }
+}
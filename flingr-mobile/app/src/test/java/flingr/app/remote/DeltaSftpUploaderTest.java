@@ -0,0 +1,114 @@
+package flingr.app.remote;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DeltaSftpUploaderTest
+{
+    private static final int BLOCK_SIZE = UploadSource.SIGNATURE_BLOCK_SIZE;
+
+    @Test
+    public void testIdenticalFileHasNoChangedRanges()
+    {
+        List<byte[]> hashes = createHashes(4);
+
+        assertTrue(DeltaSftpUploader.getChangedRanges(hashes, createHashes(4),
+                4L * BLOCK_SIZE).isEmpty());
+    }
+
+    @Test
+    public void testNeighbouringChangedBlocksAreMerged()
+    {
+        List<byte[]> remoteHashes = createHashes(6);
+        List<byte[]> localHashes = createHashes(6);
+        changeBlock(localHashes, 1);
+        changeBlock(localHashes, 2);
+        changeBlock(localHashes, 4);
+
+        List<DeltaSftpUploader.BlockRange> ranges = DeltaSftpUploader.getChangedRanges(
+                localHashes, remoteHashes, 6L * BLOCK_SIZE);
+
+        assertEquals(2, ranges.size());
+        assertRange(ranges.get(0), BLOCK_SIZE, 2L * BLOCK_SIZE);
+        assertRange(ranges.get(1), 4L * BLOCK_SIZE, BLOCK_SIZE);
+    }
+
+    @Test
+    public void testGrownFileSendsItsNewTail()
+    {
+        // The remote file ended inside its third block, the local one has a short fifth block
+        long fileSize = 4L * BLOCK_SIZE + 100;
+        List<byte[]> remoteHashes = createHashes(3);
+        changeBlock(remoteHashes, 2);
+        List<byte[]> localHashes = createHashes(5);
+
+        List<DeltaSftpUploader.BlockRange> ranges = DeltaSftpUploader.getChangedRanges(
+                localHashes, remoteHashes, fileSize);
+
+        assertEquals(1, ranges.size());
+        assertRange(ranges.get(0), 2L * BLOCK_SIZE, fileSize - 2L * BLOCK_SIZE);
+    }
+
+    @Test
+    public void testChangedFirstAndLastBlocks()
+    {
+        long fileSize = 3L * BLOCK_SIZE + 10;
+        List<byte[]> remoteHashes = createHashes(4);
+        List<byte[]> localHashes = createHashes(4);
+        changeBlock(localHashes, 0);
+        changeBlock(localHashes, 3);
+
+        List<DeltaSftpUploader.BlockRange> ranges = DeltaSftpUploader.getChangedRanges(
+                localHashes, remoteHashes, fileSize);
+
+        assertEquals(2, ranges.size());
+        assertRange(ranges.get(0), 0, BLOCK_SIZE);
+        assertRange(ranges.get(1), 3L * BLOCK_SIZE, 10);
+    }
+
+    /**
+     * Creates distinct hashes for a number of blocks.
+     *
+     * @param count Number of blocks.
+     *
+     * @return The hashes, equal for equal block indexes.
+     */
+    private static List<byte[]> createHashes(int count)
+    {
+        List<byte[]> hashes = new ArrayList<>();
+        for (int block = 0; block < count; block++)
+        {
+            hashes.add(new byte[]{(byte) block, 1});
+        }
+        return hashes;
+    }
+
+    /**
+     * Gives a block a hash no other block has.
+     *
+     * @param hashes The hashes.
+     * @param block  Index of the block.
+     */
+    private static void changeBlock(List<byte[]> hashes, int block)
+    {
+        hashes.set(block, new byte[]{(byte) block, 2});
+    }
+
+    /**
+     * Checks the bounds of a range.
+     *
+     * @param range  The range.
+     * @param offset Expected offset.
+     * @param length Expected length.
+     */
+    private static void assertRange(DeltaSftpUploader.BlockRange range, long offset, long length)
+    {
+        assertEquals(offset, range.offset);
+        assertEquals(length, range.length);
+    }
+}
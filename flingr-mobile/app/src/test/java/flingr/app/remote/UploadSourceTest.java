@@ -0,0 +1,160 @@
+package flingr.app.remote;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class UploadSourceTest
+{
+    private static final int BLOCK_SIZE = UploadSource.SIGNATURE_BLOCK_SIZE;
+
+    // Three full blocks and a short last one
+    private static final int FILE_SIZE = 3 * BLOCK_SIZE + 1000;
+
+    private byte[] contents;
+
+    @Before
+    public void initializeVars()
+    {
+        contents = new byte[FILE_SIZE];
+        new Random(42).nextBytes(contents);
+    }
+
+    @Test
+    public void testSequentialReadHashesContentAndBlocks() throws Exception
+    {
+        UploadSource source = UploadSource.wrap(null, null, contents);
+
+        // Chunks that don't line up with the blocks
+        readRange(source, 0, FILE_SIZE, 50000);
+
+        for (int block = 0; block < 4; block++)
+        {
+            assertNotNull("Block " + block + " was not hashed on the way",
+                    source.getBlockHash(block));
+        }
+        assertEquals(UploadSource.toHex(hash("SHA-256", 0, FILE_SIZE)),
+                source.getContentHash());
+        assertBlockHashes(source.getBlockHashes());
+    }
+
+    @Test
+    public void testStripesReadOutOfOrderHashEveryBlock() throws Exception
+    {
+        UploadSource source = UploadSource.wrap(null, null, contents);
+
+        // Two stripes split on a block boundary, the later one read first
+        readRange(source, 2 * BLOCK_SIZE, FILE_SIZE, 32768);
+        readRange(source, 0, 2 * BLOCK_SIZE, 32768);
+
+        for (int block = 0; block < 4; block++)
+        {
+            assertNotNull("Block " + block + " was not hashed on the way",
+                    source.getBlockHash(block));
+        }
+        assertBlockHashes(source.getBlockHashes());
+        assertEquals(UploadSource.toHex(hash("SHA-256", 0, FILE_SIZE)),
+                source.getContentHash());
+    }
+
+    @Test
+    public void testReadFromMiddleOfBlockDoesNotHashIt() throws Exception
+    {
+        UploadSource source = UploadSource.wrap(null, null, contents);
+
+        // A stripe that starts inside the first block only covers the second from its start
+        readRange(source, 1000, 2 * BLOCK_SIZE, 40000);
+
+        assertNull(source.getBlockHash(0));
+        assertNotNull(source.getBlockHash(1));
+
+        // The missing blocks and the prefix of the file are read when asked for
+        assertBlockHashes(source.getBlockHashes());
+        assertEquals(UploadSource.toHex(hash("SHA-256", 0, FILE_SIZE)),
+                source.getContentHash());
+    }
+
+    @Test
+    public void testRereadingHashedBytesDoesNotChangeHashes() throws Exception
+    {
+        UploadSource source = UploadSource.wrap(null, null, contents);
+
+        // A retried segment reads bytes that were already hashed
+        readRange(source, 0, BLOCK_SIZE + 500, 65536);
+        readRange(source, 100, BLOCK_SIZE + 500, 65536);
+        readRange(source, BLOCK_SIZE + 500, FILE_SIZE, 65536);
+
+        assertBlockHashes(source.getBlockHashes());
+        assertEquals(UploadSource.toHex(hash("SHA-256", 0, FILE_SIZE)),
+                source.getContentHash());
+    }
+
+    /**
+     * Reads part of a source in chunks.
+     *
+     * @param source    The source.
+     * @param from      Offset of the first byte.
+     * @param to        Offset after the last byte.
+     * @param chunkSize Bytes per read.
+     *
+     * @throws IOException if the source could not be read.
+     */
+    private static void readRange(UploadSource source, long from, long to, int chunkSize)
+            throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(chunkSize);
+        for (long position = from; position < to; position += chunkSize)
+        {
+            buffer.clear();
+            buffer.limit((int) Math.min(chunkSize, to - position));
+            source.readFully(buffer, position);
+        }
+    }
+
+    /**
+     * Checks block hashes against the MD5 of every block of the contents.
+     *
+     * @param blockHashes The hashes to check.
+     *
+     * @throws NoSuchAlgorithmException if MD5 is missing.
+     */
+    private void assertBlockHashes(List<byte[]> blockHashes) throws NoSuchAlgorithmException
+    {
+        assertEquals(4, blockHashes.size());
+        for (int block = 0; block < 4; block++)
+        {
+            int start = block * BLOCK_SIZE;
+            assertArrayEquals("Block " + block + " has the wrong hash",
+                    hash("MD5", start, Math.min(start + BLOCK_SIZE, FILE_SIZE)),
+                    blockHashes.get(block));
+        }
+    }
+
+    /**
+     * Hashes part of the contents.
+     *
+     * @param algorithm Name of the digest.
+     * @param from      Offset of the first byte.
+     * @param to        Offset after the last byte.
+     *
+     * @return The hash.
+     *
+     * @throws NoSuchAlgorithmException if the digest is missing.
+     */
+    private byte[] hash(String algorithm, int from, int to) throws NoSuchAlgorithmException
+    {
+        return MessageDigest.getInstance(algorithm).digest(Arrays.copyOfRange(contents, from, to));
+    }
+}
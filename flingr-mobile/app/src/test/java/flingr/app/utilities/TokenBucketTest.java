@@ -0,0 +1,91 @@
+package flingr.app.utilities;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class TokenBucketTest
+{
+    private static final long SECOND = 1000L * 1000L * 1000L;
+    private static final long RATE = 1024L * 1024L;
+
+    // A tenth of a second at the rate is saved up
+    private static final long BURST = RATE / 10;
+
+    // The burst is a fraction of a byte more than BURST
+    private static final double TOLERANCE = 10000;
+
+    @Test
+    public void testFirstReserveWithinBurstDoesNotWait()
+    {
+        TokenBucket bucket = new TokenBucket();
+
+        assertEquals(0, bucket.reserve(BURST, RATE, 5 * SECOND));
+    }
+
+    @Test
+    public void testReserveBeyondTokensWaitsForTheDebt()
+    {
+        TokenBucket bucket = new TokenBucket();
+
+        // The burst covers part of the bytes, the rest takes its time at the rate
+        long waitNanos = bucket.reserve(RATE, RATE, 0);
+        assertEquals(SECOND - SECOND / 10, waitNanos, TOLERANCE);
+    }
+
+    @Test
+    public void testConcurrentReservesAreQueued()
+    {
+        TokenBucket bucket = new TokenBucket();
+
+        assertEquals(0, bucket.reserve(BURST, RATE, 0));
+        assertEquals(SECOND / 10, bucket.reserve(BURST, RATE, 0), TOLERANCE);
+        assertEquals(2 * SECOND / 10, bucket.reserve(BURST, RATE, 0), TOLERANCE);
+    }
+
+    @Test
+    public void testRefillPaysOffDebt()
+    {
+        TokenBucket bucket = new TokenBucket();
+        long waitNanos = bucket.reserve(RATE, RATE, 0);
+
+        // Once the wait is over the bucket is even, and refills from there
+        assertEquals(0, bucket.reserve(0, RATE, waitNanos));
+        assertEquals(0, bucket.reserve(RATE / 20, RATE, waitNanos + SECOND / 20));
+        assertEquals(SECOND / 20, bucket.reserve(RATE / 20, RATE, waitNanos + SECOND / 20),
+                TOLERANCE);
+    }
+
+    @Test
+    public void testIdleBucketSavesUpOnlyTheBurst()
+    {
+        TokenBucket bucket = new TokenBucket();
+        bucket.reserve(BURST, RATE, 0);
+
+        // Ten idle seconds still only allow one burst without waiting
+        assertEquals(0, bucket.reserve(BURST, RATE, 10 * SECOND));
+        assertEquals(SECOND, bucket.reserve(RATE, RATE, 10 * SECOND), TOLERANCE);
+    }
+
+    @Test
+    public void testSlowRateKeepsMinimumBurst()
+    {
+        TokenBucket bucket = new TokenBucket();
+
+        // A tenth of a second at 10 KB/s would be smaller than one write request
+        assertEquals(0, bucket.reserve(64 * 1024, 10 * 1024, 0));
+        assertEquals(SECOND, bucket.reserve(10 * 1024, 10 * 1024, 0), TOLERANCE);
+    }
+
+    @Test
+    public void testUnlimitedNeverWaitsAndRestartsFull()
+    {
+        TokenBucket bucket = new TokenBucket();
+        bucket.reserve(10 * RATE, RATE, 0);
+
+        assertEquals(0, bucket.reserve(100 * RATE, 0, SECOND));
+
+        // A limit that comes back starts with a full bucket instead of the old debt
+        assertEquals(0, bucket.reserve(BURST, RATE, 2 * SECOND));
+    }
+}